@@ -4,8 +4,8 @@ import java.io.UnsupportedEncodingException;
 
 /**
  * This class represents a ServiceConfigurationItem which highlights detailed specification of a service.
- * Current only used for capturing services that provides paging service as this detail cannot be found anywhere.
- * This service can  be expanded in the future.
+ * Currently used for capturing services that provides paging service as this detail cannot be found anywhere
+ * and for tuning how many concurrent download requests a service can handle.
  *
  * @author tey006
  *
@@ -13,8 +13,13 @@ import java.io.UnsupportedEncodingException;
 
 public class ServiceConfigurationItem {
 
+    /** The value of a concurrent request setting that hasn't been configured (the downloader's default will apply) */
+    public static final int UNSET = 0;
+
     String id, url;
     boolean paging;
+    int initialConcurrentRequests = UNSET;
+    int maxConcurrentRequests = UNSET;
 
 
     public ServiceConfigurationItem(String id, String url, boolean paging){
@@ -47,4 +52,38 @@ public class ServiceConfigurationItem {
         return paging;
     }
 
+    /**
+     * The number of concurrent requests that downloads will initially make against this service. This will
+     * adapt to the observed performance of the service (see EndpointLimiter).
+     * @return UNSET if the downloader's default should be used
+     */
+    public int getInitialConcurrentRequests() {
+        return initialConcurrentRequests;
+    }
+
+    /**
+     * The number of concurrent requests that downloads will initially make against this service. This will
+     * adapt to the observed performance of the service (see EndpointLimiter).
+     * @param initialConcurrentRequests
+     */
+    public void setInitialConcurrentRequests(int initialConcurrentRequests) {
+        this.initialConcurrentRequests = initialConcurrentRequests;
+    }
+
+    /**
+     * The most concurrent requests that downloads will ever make against this service.
+     * @return UNSET if the downloader's default should be used
+     */
+    public int getMaxConcurrentRequests() {
+        return maxConcurrentRequests;
+    }
+
+    /**
+     * The most concurrent requests that downloads will ever make against this service.
+     * @param maxConcurrentRequests
+     */
+    public void setMaxConcurrentRequests(int maxConcurrentRequests) {
+        this.maxConcurrentRequests = maxConcurrentRequests;
+    }
+
 }
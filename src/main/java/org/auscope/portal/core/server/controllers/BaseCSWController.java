@@ -1,9 +1,14 @@
 package org.auscope.portal.core.server.controllers;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 
+import org.auscope.portal.core.services.csw.CSWRecordComparator;
 import org.auscope.portal.core.services.responses.csw.CSWRecord;
+import org.auscope.portal.core.view.JSONFragmentCache;
 import org.auscope.portal.core.view.ViewCSWRecordFactory;
 import org.auscope.portal.core.view.ViewKnownLayerFactory;
 import org.auscope.portal.core.view.knownlayer.KnownLayer;
@@ -13,6 +18,12 @@ import org.springframework.web.servlet.ModelAndView;
 
 /**
  * Base class for all controllers that intend on returning CSWRecords
+ *
+ * If a JSONFragmentCache is specified, record/known layer responses will be assembled from cached JSON
+ * fragments and rendered with ETag (and optionally gzip) support.
+ *
+ * Record responses can be paged, sorted and projected (restricted to a subset of view fields) to reduce
+ * the size of responses. Full record details can then be requested on demand (see CSWCacheService.getRecordByFileIdentifier).
  * @author Josh Vote
  *
  */
@@ -24,9 +35,22 @@ public abstract class BaseCSWController extends BasePortalController {
     /** Used for converting data to something the view can understand*/
     private ViewKnownLayerFactory viewKnownLayerFactory;
 
+    /** [Optional] Used for generating responses from pre-serialized JSON*/
+    private JSONFragmentCache jsonFragmentCache;
+
     protected BaseCSWController(ViewCSWRecordFactory viewCSWRecordFactory, ViewKnownLayerFactory viewKnownLayerFactory) {
+        this(viewCSWRecordFactory, viewKnownLayerFactory, null);
+    }
+
+    /**
+     * @param viewCSWRecordFactory Used for converting records to something the view can understand
+     * @param viewKnownLayerFactory Used for converting known layers to something the view can understand
+     * @param jsonFragmentCache [Optional] If set, responses will be assembled from pre-serialized JSON fragments
+     */
+    protected BaseCSWController(ViewCSWRecordFactory viewCSWRecordFactory, ViewKnownLayerFactory viewKnownLayerFactory, JSONFragmentCache jsonFragmentCache) {
         this.viewCSWRecordFactory = viewCSWRecordFactory;
         this.viewKnownLayerFactory = viewKnownLayerFactory;
+        this.jsonFragmentCache = jsonFragmentCache;
     }
 
     /**
@@ -51,6 +75,16 @@ public abstract class BaseCSWController extends BasePortalController {
             return generateJSONResponseMAV(false, new CSWRecord[] {}, "");
         }
 
+        if (jsonFragmentCache != null) {
+            try {
+                String dataJson = jsonFragmentCache.getRecordsJSON(Arrays.asList(records));
+                return new ModelAndView(jsonFragmentCache.generateResponseView(true, dataJson, matchedResults, "No errors"));
+            } catch (Exception ex) {
+                log.error("Error converting data records", ex);
+                return generateJSONResponseMAV(false, new CSWRecord[] {}, 0, "Error converting data records");
+            }
+        }
+
         List<ModelMap> recordRepresentations = new ArrayList<ModelMap>();
 
         try {
@@ -71,6 +105,22 @@ public abstract class BaseCSWController extends BasePortalController {
      * @return
      */
     protected ModelAndView generateKnownLayerResponse(List<KnownLayerAndRecords> knownLayers) {
+        return generateKnownLayerResponse(knownLayers, null);
+    }
+
+    /**
+     * Utility for generating a response model that represents a number
+     * of KnownLayerAndRecord objects
+     * @param knownLayers The known layers to transform
+     * @param recordFields [Optional] The view fields to include for each record (see ViewCSWRecordFactory). If null, every field will be included
+     * @return
+     */
+    protected ModelAndView generateKnownLayerResponse(List<KnownLayerAndRecords> knownLayers, Set<String> recordFields) {
+        if (jsonFragmentCache != null) {
+            String dataJson = jsonFragmentCache.getKnownLayersJSON(knownLayers, recordFields);
+            return new ModelAndView(jsonFragmentCache.generateResponseView(true, dataJson, null, ""));
+        }
+
         List<ModelMap> viewKnownLayers = new ArrayList<ModelMap>();
         for (KnownLayerAndRecords knownLayerAndRecords : knownLayers) {
             KnownLayer kl = knownLayerAndRecords.getKnownLayer();
@@ -81,12 +131,12 @@ public abstract class BaseCSWController extends BasePortalController {
 
             List<ModelMap> viewMappedRecords = new ArrayList<ModelMap>();
             for (CSWRecord rec : knownLayerAndRecords.getBelongingRecords()) {
-                viewMappedRecords.add(viewCSWRecordFactory.toView(rec));
+                viewMappedRecords.add(viewCSWRecordFactory.toView(rec, recordFields));
             }
 
             List<ModelMap> viewRelatedRecords = new ArrayList<ModelMap>();
             for (CSWRecord rec : knownLayerAndRecords.getRelatedRecords()) {
-                viewRelatedRecords.add(viewCSWRecordFactory.toView(rec));
+                viewRelatedRecords.add(viewCSWRecordFactory.toView(rec, recordFields));
             }
 
             viewKnownLayer.put("cswRecords", viewMappedRecords);
@@ -105,14 +155,75 @@ public abstract class BaseCSWController extends BasePortalController {
      */
     protected ModelAndView generateCSWRecordResponse(List<CSWRecord> records) {
         List<ModelMap> viewRecords = new ArrayList<ModelMap>();
+        List<CSWRecord> namedRecords = new ArrayList<CSWRecord>();
         for (CSWRecord rec : records) {
             if (rec.getServiceName() == null || rec.getServiceName().isEmpty()) {
                 continue;//dont include any records with an empty name (it looks bad)
             }
 
-            viewRecords.add(viewCSWRecordFactory.toView(rec));
+            if (jsonFragmentCache != null) {
+                namedRecords.add(rec);
+            } else {
+                viewRecords.add(viewCSWRecordFactory.toView(rec));
+            }
+        }
+
+        if (jsonFragmentCache != null) {
+            String dataJson = jsonFragmentCache.getRecordsJSON(namedRecords);
+            return new ModelAndView(jsonFragmentCache.generateResponseView(true, dataJson, null, ""));
         }
 
         return generateJSONResponseMAV(true, viewRecords, "");
     }
+
+    /**
+     * Utility for generating a response model that represents a single page of CSWRecord objects. Records
+     * with an empty name will be skipped. The response will include the total number of (named) records
+     * available as totalResults.
+     *
+     * @param records The full list of records to page through
+     * @param start The index (after sorting) of the first record to include
+     * @param limit The maximum number of records to include. If less than or equal to 0, all remaining records will be included
+     * @param sortField [Optional] The view field to sort by (see CSWRecordComparator.SortField). If null, the original order is retained
+     * @param sortAscending Whether the sort should be ascending or descending
+     * @param fields [Optional] The view fields to include for each record (see ViewCSWRecordFactory). If null, every field will be included
+     * @return
+     */
+    protected ModelAndView generateCSWRecordResponse(List<CSWRecord> records, int start, int limit, String sortField, boolean sortAscending, Set<String> fields) {
+        List<CSWRecord> namedRecords = new ArrayList<CSWRecord>();
+        for (CSWRecord rec : records) {
+            if (rec.getServiceName() == null || rec.getServiceName().isEmpty()) {
+                continue;//dont include any records with an empty name (it looks bad)
+            }
+            namedRecords.add(rec);
+        }
+
+        if (sortField != null) {
+            CSWRecordComparator comparator;
+            try {
+                comparator = CSWRecordComparator.fromFieldName(sortField, sortAscending);
+            } catch (IllegalArgumentException ex) {
+                log.debug("Unsupported sort field: " + sortField);
+                return generateJSONResponseMAV(false, null, "Unsupported sort field: " + sortField);
+            }
+            Collections.sort(namedRecords, comparator);
+        }
+
+        int total = namedRecords.size();
+        int from = Math.min(Math.max(start, 0), total);
+        int to = limit > 0 ? Math.min(from + limit, total) : total;
+        List<CSWRecord> page = namedRecords.subList(from, to);
+
+        if (jsonFragmentCache != null) {
+            String dataJson = jsonFragmentCache.getRecordsJSON(page, fields);
+            return new ModelAndView(jsonFragmentCache.generateResponseView(true, dataJson, total, ""));
+        }
+
+        List<ModelMap> viewRecords = new ArrayList<ModelMap>();
+        for (CSWRecord rec : page) {
+            viewRecords.add(viewCSWRecordFactory.toView(rec, fields));
+        }
+
+        return generateJSONResponseMAV(true, viewRecords, total, "");
+    }
 }
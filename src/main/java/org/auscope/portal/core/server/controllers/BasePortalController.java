@@ -12,6 +12,7 @@ import java.net.UnknownHostException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.List;
+import java.util.Properties;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 import org.apache.commons.logging.Log;
@@ -22,9 +23,14 @@ import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.conn.ConnectTimeoutException;
 import org.apache.http.entity.StringEntity;
 import org.auscope.portal.core.server.http.download.DownloadResponse;
+import org.auscope.portal.core.server.http.download.ServiceDownloadManager;
 import org.auscope.portal.core.services.PortalServiceException;
 import org.auscope.portal.core.util.FileIOUtil;
 import org.auscope.portal.core.view.JSONView;
+import org.auscope.portal.core.view.StreamingGeoJSONView;
+import org.auscope.portal.core.view.StreamingWFSTransformView;
+import org.auscope.portal.core.view.StreamingZipDownloadView;
+import org.auscope.portal.core.xslt.PortalXSLTTransformer;
 import org.springframework.ui.ModelMap;
 import org.springframework.web.servlet.ModelAndView;
 
@@ -106,6 +112,18 @@ public abstract class BasePortalController {
         return generateJSONResponseMAV(success, data, message, matchedResults, null);
     }
 
+    /**
+     * Generates a GeoJSON FeatureCollection response where the WFS response is converted as it is streamed
+     * to the client (see GeoJSONUtil). Unlike the other JSON responses, this is NOT wrapped in the 'standard'
+     * portal response model so it can be consumed directly by mapping clients.
+     * @param wfsResponse The raw WFS response (see BaseWFSService.getWFSResponseStream). Will be closed after rendering
+     * @param method The method used to make the request. Will be released after rendering
+     * @return
+     */
+    protected ModelAndView generateGeoJSONWFSResponseMAV(InputStream wfsResponse, HttpRequestBase method) {
+        return new ModelAndView(new StreamingGeoJSONView(wfsResponse, method));
+    }
+
     /**
      * Utility method to generate a standard ModelAndView response for rendering JSON
      * @param success The result of the operation
@@ -145,6 +163,34 @@ public abstract class BasePortalController {
         return generateJSONResponseMAV(success, data, "", debug);
     }
 
+    /**
+     * Generates a JSON response containing WFS response info where the WFS response is streamed through transformer
+     * directly to the client (rather than being read into memory). The response will be identical in form to
+     * generateJSONResponseMAV(success, gml, kml, method)
+     * @param wfsResponse The raw WFS response (see BaseWFSService.getWFSResponseStream). Will be closed after rendering
+     * @param transformer Will be used to transform wfsResponse into the "kml" response
+     * @param styleSheetParams [Optional] Properties to apply to the transformer
+     * @param includeGml If false, the raw GML will NOT be included in the response (saving bandwidth and memory)
+     * @param method The method used to make the request (used for populating debug info). Will be released after rendering
+     * @return
+     */
+    protected ModelAndView generateStreamingWFSResponseMAV(InputStream wfsResponse, PortalXSLTTransformer transformer, Properties styleSheetParams, boolean includeGml, HttpRequestBase method) {
+        StreamingWFSTransformView view = new StreamingWFSTransformView(wfsResponse, transformer, styleSheetParams, includeGml, method, makeDebugInfoModel(method), OPERATION_FAILED);
+        return new ModelAndView(view);
+    }
+
+    /**
+     * Generates a zip response where every download in downloadManager is streamed to the client as a zip
+     * entry the moment it completes (see ServiceDownloadManager.downloadAllToZip). Use DownloadTracker
+     * instead for downloads that must complete in the background.
+     * @param downloadManager Contains the downloads to run. Downloads will only commence when the view renders
+     * @param fileName The name of the zip file as presented to the client
+     * @return
+     */
+    protected ModelAndView generateStreamingZipDownloadMAV(ServiceDownloadManager downloadManager, String fileName) {
+        return new ModelAndView(new StreamingZipDownloadView(downloadManager, fileName));
+    }
+
     /**
      * Utility method to generate a standard ModelAndView response for rendering JSON
      * @param success The result of the operation
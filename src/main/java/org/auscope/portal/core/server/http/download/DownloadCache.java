@@ -0,0 +1,345 @@
+package org.auscope.portal.core.server.http.download;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A disk cache of completed download archives keyed on the (normalised) set of URLs that were downloaded.
+ *
+ * Entries are only served while they are younger than the freshness window. Whenever the cache exceeds its
+ * size limit the least recently used entries are evicted - entries that are currently in use (see acquire/release)
+ * are never evicted. Archives are hard linked in and out of the cache where possible (falling back to a copy).
+ *
+ * Archives are stored as <key>-<creation time>.zip so the cache can be restored from its directory after a restart.
+ */
+public class DownloadCache {
+
+    private static final String ARCHIVE_SUFFIX = ".zip";
+    /** Suffix of archives that are still being linked/copied into the cache */
+    private static final String PARTIAL_SUFFIX = ".partial";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final Log log = LogFactory.getLog(getClass());
+    private final File directory;
+    private final long maxBytes;
+    private final long freshnessMillis;
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    private long totalBytes = 0;
+
+    /**
+     * Creates a new cache, restoring any archives already in directory
+     * @param directory Where the archives will be stored. Will be created if it doesn't exist.
+     * @param maxBytes The total size of archives that can be cached
+     * @param freshnessMillis How long (in milliseconds) an archive can be served for after it's created
+     */
+    public DownloadCache(File directory, long maxBytes, long freshnessMillis) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.freshnessMillis = freshnessMillis;
+        if (!directory.exists() && !directory.mkdirs()) {
+            log.warn("Unable to create download cache directory: " + directory.getPath());
+        }
+        restore();
+    }
+
+    /**
+     * Generates the cache key for a list of URLs. The key ignores the order and duplication of the URLs.
+     * @param urls
+     * @return
+     */
+    public static String createKey(String[] urls) {
+        TreeSet<String> normalised = new TreeSet<String>();
+        for (String url : urls) {
+            normalised.add(url.trim());
+        }
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+        for (String url : normalised) {
+            digest.update(url.getBytes(UTF8));
+            digest.update((byte) '\n');
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest()) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Reads any archives left in the cache directory from a previous instance
+     */
+    private synchronized void restore() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File f : files) {
+            String name = f.getName();
+            if (name.endsWith(PARTIAL_SUFFIX)) {
+                //Left over from an interrupted put
+                deleteFile(f);
+                continue;
+            }
+
+            int separator = name.lastIndexOf('-');
+            if (!name.endsWith(ARCHIVE_SUFFIX) || separator < 0) {
+                continue;
+            }
+
+            try {
+                String key = name.substring(0, separator);
+                long created = Long.parseLong(name.substring(separator + 1, name.length() - ARCHIVE_SUFFIX.length()));
+                Entry existing = entries.get(key);
+                if (existing != null && existing.created >= created) {
+                    deleteFile(f);
+                    continue;
+                }
+                if (existing != null) {
+                    removeEntry(existing);
+                }
+                addEntry(new Entry(key, f, created));
+            } catch (NumberFormatException ex) {
+                log.debug("Ignoring unrecognised file in download cache: " + f.getPath());
+            }
+        }
+        evict();
+    }
+
+    /**
+     * Looks up a fresh archive for urls. The returned entry is in use (and will not be evicted) until it is passed to release.
+     * @param urls The URLs that were downloaded
+     * @return The cached archive or null if there is none (or it is no longer fresh)
+     */
+    public synchronized Entry acquire(String[] urls) {
+        Entry entry = entries.get(createKey(urls));
+        if (entry == null || isStale(entry)) {
+            return null;
+        }
+
+        entry.refCount++;
+        entry.lastAccessed = System.currentTimeMillis();
+        return entry;
+    }
+
+    /**
+     * Marks an entry returned by acquire as no longer in use
+     * @param entry
+     */
+    public synchronized void release(Entry entry) {
+        if (entry.refCount > 0) {
+            entry.refCount--;
+        }
+
+        if (entry.refCount == 0 && entry.removed) {
+            deleteFile(entry.file);
+        }
+        evict();
+    }
+
+    /**
+     * Writes a fresh cached archive for urls (if one exists) to destination, replacing any existing file.
+     * @param urls The URLs that were downloaded
+     * @param destination Will receive the cached archive
+     * @return true if destination was written, false if there is no fresh cached archive
+     * @throws IOException
+     */
+    public boolean copyTo(String[] urls, File destination) throws IOException {
+        Entry entry = acquire(urls);
+        if (entry == null) {
+            return false;
+        }
+
+        try {
+            linkOrCopy(entry.file, destination);
+            return true;
+        } finally {
+            release(entry);
+        }
+    }
+
+    /**
+     * Adds a completed download archive to the cache (replacing any existing archive for urls). archive
+     * is left in place - the cache will hold its own link or copy. The link/copy is made before the cache
+     * is locked so other callers aren't held up by a slow copy.
+     * @param urls The URLs that were downloaded
+     * @param archive The completed archive
+     * @return true if the archive was cached, false if it's too large to cache
+     * @throws IOException
+     */
+    public boolean put(String[] urls, File archive) throws IOException {
+        if (archive.length() > maxBytes) {
+            return false;
+        }
+
+        String key = createKey(urls);
+        File partial = File.createTempFile(key + "-", PARTIAL_SUFFIX, directory);
+        try {
+            linkOrCopy(archive, partial);
+
+            synchronized (this) {
+                //Never reuse the name of an existing archive (which may still be in use)
+                long created = System.currentTimeMillis();
+                File cached;
+                while ((cached = new File(directory, key + "-" + created + ARCHIVE_SUFFIX)).exists()) {
+                    created++;
+                }
+                Files.move(partial.toPath(), cached.toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+                Entry existing = entries.get(key);
+                if (existing != null) {
+                    removeEntry(existing);
+                }
+                addEntry(new Entry(key, cached, created));
+                evict();
+            }
+            return true;
+        } finally {
+            deleteFile(partial);
+        }
+    }
+
+    /**
+     * The total size (in bytes) of the cached archives
+     * @return
+     */
+    public synchronized long getSize() {
+        return totalBytes;
+    }
+
+    /**
+     * The number of archives in the cache
+     * @return
+     */
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    private boolean isStale(Entry entry) {
+        return System.currentTimeMillis() - entry.created > freshnessMillis;
+    }
+
+    private void addEntry(Entry entry) {
+        entries.put(entry.key, entry);
+        totalBytes += entry.size;
+    }
+
+    /**
+     * Removes entry from the index, deleting its archive once it's no longer in use
+     */
+    private void removeEntry(Entry entry) {
+        if (entries.get(entry.key) == entry) {
+            entries.remove(entry.key);
+        }
+        totalBytes -= entry.size;
+        entry.removed = true;
+        if (entry.refCount == 0) {
+            deleteFile(entry.file);
+        }
+    }
+
+    /**
+     * Removes every stale entry and then the least recently used entries until the cache fits in maxBytes.
+     * Entries in use are never removed.
+     */
+    private void evict() {
+        List<Entry> candidates = new ArrayList<Entry>();
+        for (Entry entry : entries.values()) {
+            if (entry.refCount == 0) {
+                candidates.add(entry);
+            }
+        }
+
+        //Oldest access first
+        Collections.sort(candidates, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return a.lastAccessed < b.lastAccessed ? -1 : (a.lastAccessed == b.lastAccessed ? 0 : 1);
+            }
+        });
+
+        for (Entry entry : candidates) {
+            if (isStale(entry) || totalBytes > maxBytes) {
+                removeEntry(entry);
+            }
+        }
+    }
+
+    private void deleteFile(File f) {
+        if (f.exists() && !f.delete()) {
+            log.warn("Unable to delete cached download: " + f.getPath());
+        }
+    }
+
+    /**
+     * Hard links destination to source (copying if a link can't be made), replacing any existing destination
+     */
+    private static void linkOrCopy(File source, File destination) throws IOException {
+        Files.deleteIfExists(destination.toPath());
+        try {
+            Files.createLink(destination.toPath(), source.toPath());
+        } catch (IOException ex) {
+            Files.copy(source.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (UnsupportedOperationException ex) {
+            Files.copy(source.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * A single cached archive
+     */
+    public static class Entry {
+        private final String key;
+        private final File file;
+        private final long created;
+        private final long size;
+        private long lastAccessed;
+        private int refCount;
+        private boolean removed;
+
+        private Entry(String key, File file, long created) {
+            this.key = key;
+            this.file = file;
+            this.created = created;
+            this.size = file.length();
+            this.lastAccessed = created;
+        }
+
+        /**
+         * The cached archive. Only valid whilst the entry is acquired.
+         * @return
+         */
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * When this archive was added to the cache
+         * @return
+         */
+        public long getCreated() {
+            return created;
+        }
+    }
+}
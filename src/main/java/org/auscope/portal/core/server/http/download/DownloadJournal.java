@@ -0,0 +1,203 @@
+package org.auscope.portal.core.server.http.download;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A persistent record of DownloadTracker jobs so that queued and completed downloads can survive a restart.
+ *
+ * Each tracker is stored as a separate properties file (named after the tracker's email) in a local directory.
+ * Files are replaced atomically so a crash mid write will never corrupt an existing entry.
+ */
+public class DownloadJournal {
+
+    private static final String ENTRY_SUFFIX = ".properties";
+    private static final String KEY_EMAIL = "email";
+    private static final String KEY_PROGRESS = "progress";
+    private static final String KEY_FILE = "file";
+    private static final String KEY_LAST_COMPLETED = "lastCompletedTime";
+    private static final String KEY_URL_COUNT = "urlCount";
+    private static final String KEY_URL_PREFIX = "url.";
+
+    private final Log log = LogFactory.getLog(getClass());
+    private File directory;
+
+    /**
+     * Creates a new journal
+     * @param directory The directory for storing journal entries. Will be created if it doesn't exist.
+     */
+    public DownloadJournal(File directory) {
+        this.directory = directory;
+        if (!directory.exists() && !directory.mkdirs()) {
+            log.warn("Unable to create download journal directory: " + directory.getPath());
+        }
+    }
+
+    /**
+     * The directory storing the journal entries
+     * @return
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    private File getEntryFile(String email) {
+        try {
+            return new File(directory, URLEncoder.encode(email, "UTF-8") + ENTRY_SUFFIX);
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Writes (or replaces) the entry for entry.getEmail()
+     * @param entry
+     * @throws IOException
+     */
+    public synchronized void write(Entry entry) throws IOException {
+        Properties props = new Properties();
+        props.setProperty(KEY_EMAIL, entry.getEmail());
+        props.setProperty(KEY_PROGRESS, entry.getProgress().name());
+        props.setProperty(KEY_LAST_COMPLETED, Long.toString(entry.getLastCompletedTime()));
+        if (entry.getFile() != null) {
+            props.setProperty(KEY_FILE, entry.getFile().getAbsolutePath());
+        }
+        String[] urls = entry.getUrls();
+        if (urls != null) {
+            props.setProperty(KEY_URL_COUNT, Integer.toString(urls.length));
+            for (int i = 0; i < urls.length; i++) {
+                props.setProperty(KEY_URL_PREFIX + i, urls[i]);
+            }
+        }
+
+        File entryFile = getEntryFile(entry.getEmail());
+        File tmpFile = File.createTempFile("APT_JOURNAL", ".tmp", directory);
+        OutputStream os = new FileOutputStream(tmpFile);
+        try {
+            props.store(os, "DownloadTracker journal entry");
+        } finally {
+            IOUtils.closeQuietly(os);
+        }
+        Files.move(tmpFile.toPath(), entryFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Removes the entry for email (if it exists)
+     * @param email
+     */
+    public synchronized void delete(String email) {
+        File entryFile = getEntryFile(email);
+        if (entryFile.exists() && !entryFile.delete()) {
+            log.warn("Unable to delete journal entry: " + entryFile.getPath());
+        }
+    }
+
+    /**
+     * Reads every entry in this journal. Unreadable entries will be logged and skipped.
+     * @return
+     */
+    public synchronized List<Entry> readAll() {
+        List<Entry> entries = new ArrayList<Entry>();
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return entries;
+        }
+
+        for (File f : files) {
+            if (!f.getName().endsWith(ENTRY_SUFFIX)) {
+                continue;
+            }
+
+            InputStream is = null;
+            try {
+                is = new FileInputStream(f);
+                Properties props = new Properties();
+                props.load(is);
+
+                String[] urls = null;
+                String urlCount = props.getProperty(KEY_URL_COUNT);
+                if (urlCount != null) {
+                    urls = new String[Integer.parseInt(urlCount)];
+                    for (int i = 0; i < urls.length; i++) {
+                        urls[i] = props.getProperty(KEY_URL_PREFIX + i);
+                    }
+                }
+                String file = props.getProperty(KEY_FILE);
+
+                entries.add(new Entry(props.getProperty(KEY_EMAIL),
+                        Progression.valueOf(props.getProperty(KEY_PROGRESS)),
+                        file == null ? null : new File(file),
+                        Long.parseLong(props.getProperty(KEY_LAST_COMPLETED)),
+                        urls));
+            } catch (Exception ex) {
+                log.warn(String.format("Skipping unreadable journal entry '%1$s': %2$s", f.getPath(), ex.getMessage()));
+                log.debug("Exception:", ex);
+            } finally {
+                IOUtils.closeQuietly(is);
+            }
+        }
+
+        return entries;
+    }
+
+    /**
+     * The journaled state of a single DownloadTracker
+     */
+    public static class Entry {
+        private String email;
+        private Progression progress;
+        private File file;
+        private long lastCompletedTime;
+        private String[] urls;
+
+        /**
+         * @param email The tracker's email
+         * @param progress The tracker's progress
+         * @param file [Optional] The file receiving/containing the download
+         * @param lastCompletedTime The time the tracker last completed a download
+         * @param urls [Optional] The URLs being downloaded (only required for recovering incomplete downloads)
+         */
+        public Entry(String email, Progression progress, File file, long lastCompletedTime, String[] urls) {
+            this.email = email;
+            this.progress = progress;
+            this.file = file;
+            this.lastCompletedTime = lastCompletedTime;
+            this.urls = urls;
+        }
+
+        public String getEmail() {
+            return email;
+        }
+
+        public Progression getProgress() {
+            return progress;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public long getLastCompletedTime() {
+            return lastCompletedTime;
+        }
+
+        public String[] getUrls() {
+            return urls;
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package org.auscope.portal.core.server.http.download;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Live progress accounting for the downloads of a single ServiceDownloadManager.
+ *
+ * Every URL has its own UrlProgress recording its state, the bytes received from its endpoint and (for paged WFS
+ * downloads) the number of features received. Counters are updated by the threads doing the downloading and can
+ * be polled at any time from any thread.
+ */
+public class DownloadProgress {
+
+    /**
+     * The state of the download of a single URL
+     */
+    public enum State {
+        /** Waiting for a free session/endpoint permit */
+        QUEUED,
+        /** Receiving data from the endpoint */
+        RUNNING,
+        /** Every byte has been received from the endpoint */
+        FINISHED,
+        /** The download failed */
+        FAILED
+    }
+
+    private final UrlProgress[] urlProgress;
+    private final long createdTime;
+
+    /**
+     * Creates a new instance with every URL QUEUED
+     * @param urls The URLs being downloaded
+     */
+    public DownloadProgress(String[] urls) {
+        this.createdTime = System.currentTimeMillis();
+        this.urlProgress = new UrlProgress[urls.length];
+        for (int i = 0; i < urls.length; i++) {
+            urlProgress[i] = new UrlProgress(urls[i]);
+        }
+    }
+
+    /**
+     * The progress of the URL at index
+     * @param index
+     * @return
+     */
+    public UrlProgress getUrlProgress(int index) {
+        return urlProgress[index];
+    }
+
+    /**
+     * The progress of every URL (in the order they were requested)
+     * @return
+     */
+    public List<UrlProgress> getUrlProgress() {
+        return Collections.unmodifiableList(Arrays.asList(urlProgress));
+    }
+
+    /**
+     * When this download was created
+     * @return
+     */
+    public long getCreatedTime() {
+        return createdTime;
+    }
+
+    /**
+     * The number of URLs currently in state
+     * @param state
+     * @return
+     */
+    public int getCount(State state) {
+        int count = 0;
+        for (UrlProgress progress : urlProgress) {
+            if (progress.getState() == state) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns true if every URL has either FINISHED or FAILED
+     * @return
+     */
+    public boolean isDone() {
+        return getCount(State.FINISHED) + getCount(State.FAILED) == urlProgress.length;
+    }
+
+    /**
+     * The total number of bytes received across every URL
+     * @return
+     */
+    public long getBytesReceived() {
+        long total = 0;
+        for (UrlProgress progress : urlProgress) {
+            total += progress.getBytesReceived();
+        }
+        return total;
+    }
+
+    /**
+     * The total number of features received across every (paged) URL
+     * @return
+     */
+    public long getFeaturesReceived() {
+        long total = 0;
+        for (UrlProgress progress : urlProgress) {
+            total += progress.getFeaturesReceived();
+        }
+        return total;
+    }
+
+    /**
+     * The mean rate (in bytes per second) that data has been received since the first URL started
+     * @return
+     */
+    public double getThroughput() {
+        long start = Long.MAX_VALUE;
+        long end = 0;
+        for (UrlProgress progress : urlProgress) {
+            if (progress.getStartTime() > 0) {
+                start = Math.min(start, progress.getStartTime());
+                end = Math.max(end, progress.getEndTime() > 0 ? progress.getEndTime() : System.currentTimeMillis());
+            }
+        }
+
+        if (start == Long.MAX_VALUE || end <= start) {
+            return 0;
+        }
+        return getBytesReceived() * 1000.0 / (end - start);
+    }
+
+    /**
+     * The fraction (0 to 1) of the overall download that is complete. URLs with a known number of features
+     * contribute partial progress, all others only count once they've finished (or failed).
+     * @return
+     */
+    public double getFractionComplete() {
+        if (urlProgress.length == 0) {
+            return 1.0;
+        }
+
+        double total = 0;
+        for (UrlProgress progress : urlProgress) {
+            total += progress.getFractionComplete();
+        }
+        return total / urlProgress.length;
+    }
+
+    /**
+     * Estimates the time (in milliseconds) until every URL is done by extrapolating the elapsed time against
+     * getFractionComplete.
+     * @return The estimate or -1 if no estimate can be made yet
+     */
+    public long getEstimatedTimeRemaining() {
+        double fraction = getFractionComplete();
+        if (fraction >= 1.0) {
+            return 0;
+        } else if (fraction <= 0) {
+            return -1;
+        }
+
+        long elapsed = System.currentTimeMillis() - createdTime;
+        return (long) (elapsed * (1.0 - fraction) / fraction);
+    }
+
+    /**
+     * The progress of the download of a single URL
+     */
+    public static class UrlProgress {
+        private final String url;
+        private final String endpoint;
+        private final AtomicLong bytesReceived = new AtomicLong();
+        private final AtomicLong featuresReceived = new AtomicLong();
+        private volatile long featuresExpected = -1;
+        private volatile State state = State.QUEUED;
+        private volatile long startTime;
+        private volatile long endTime;
+
+        UrlProgress(String url) {
+            this.url = url;
+            String host;
+            try {
+                host = new URI(url).getHost();
+            } catch (URISyntaxException ex) {
+                host = null;
+            }
+            this.endpoint = host == null ? url : host;
+        }
+
+        /**
+         * The URL being downloaded
+         * @return
+         */
+        public String getUrl() {
+            return url;
+        }
+
+        /**
+         * The host of the URL being downloaded
+         * @return
+         */
+        public String getEndpoint() {
+            return endpoint;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        public long getBytesReceived() {
+            return bytesReceived.get();
+        }
+
+        public long getFeaturesReceived() {
+            return featuresReceived.get();
+        }
+
+        /**
+         * The total number of features that will be received or -1 if unknown
+         * @return
+         */
+        public long getFeaturesExpected() {
+            return featuresExpected;
+        }
+
+        /**
+         * When this URL started RUNNING (or 0 if it hasn't)
+         * @return
+         */
+        public long getStartTime() {
+            return startTime;
+        }
+
+        /**
+         * When this URL FINISHED or FAILED (or 0 if it hasn't)
+         * @return
+         */
+        public long getEndTime() {
+            return endTime;
+        }
+
+        /**
+         * The mean rate (in bytes per second) that data has been received for this URL
+         * @return
+         */
+        public double getThroughput() {
+            if (startTime == 0) {
+                return 0;
+            }
+            long elapsed = (endTime > 0 ? endTime : System.currentTimeMillis()) - startTime;
+            return elapsed <= 0 ? 0 : bytesReceived.get() * 1000.0 / elapsed;
+        }
+
+        /**
+         * The fraction (0 to 1) of this URL's download that is complete.
+         * @return
+         */
+        public double getFractionComplete() {
+            State currentState = state;
+            if (currentState == State.FINISHED || currentState == State.FAILED) {
+                return 1.0;
+            }
+            long expected = featuresExpected;
+            if (currentState == State.RUNNING && expected > 0) {
+                return Math.min(1.0, featuresReceived.get() / (double) expected) * 0.99;
+            }
+            return 0;
+        }
+
+        void setRunning() {
+            if (state == State.QUEUED) {
+                startTime = System.currentTimeMillis();
+                state = State.RUNNING;
+            }
+        }
+
+        void setFinished() {
+            setDone(State.FINISHED);
+        }
+
+        void setFailed() {
+            setDone(State.FAILED);
+        }
+
+        private synchronized void setDone(State doneState) {
+            if (state == State.FINISHED || state == State.FAILED) {
+                return;
+            }
+            if (startTime == 0) {
+                startTime = System.currentTimeMillis();
+            }
+            endTime = System.currentTimeMillis();
+            state = doneState;
+        }
+
+        void addBytes(long count) {
+            bytesReceived.addAndGet(count);
+        }
+
+        void addFeatures(long count) {
+            featuresReceived.addAndGet(count);
+        }
+
+        void setFeaturesExpected(long featuresExpected) {
+            this.featuresExpected = featuresExpected;
+        }
+    }
+}
@@ -1,21 +1,35 @@
 package org.auscope.portal.core.server.http.download;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
+import java.io.OutputStream;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.zip.ZipOutputStream;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.auscope.portal.core.configuration.ServiceConfiguration;
+import org.auscope.portal.core.server.http.HttpServiceCaller;
+import org.auscope.portal.core.util.FileDownloadUtil;
 import org.auscope.portal.core.util.FileIOUtil;
+import org.auscope.portal.core.util.ParallelZipWriter;
+import org.auscope.portal.core.util.ScratchSpace;
 
 /**
  * DownloadTracker provides a way for downloads to be made in the background via
@@ -23,6 +37,19 @@ import org.auscope.portal.core.util.FileIOUtil;
  * getTracker(email), startTrack(), then getFile or getFileHandle. Refer to each
  * of the method Java doc for more info
  *
+ * All downloads are run on a shared pool of MAX_CONCURRENT_JOBS workers, any excess downloads
+ * will wait in a FIFO queue. Each tracker (ie each email) can only have a single download in
+ * progress at a time. Expired trackers are cleaned up every CLEANUP_INTERVAL_MINUTES.
+ *
+ * If a DownloadJournal is configured (see setJournal) tracker state is persisted so that
+ * completed downloads (and incomplete downloads via resumeJournaledDownloads) survive a restart.
+ *
+ * If a DownloadCache is configured (see setDownloadCache) successfully completed downloads are cached so that
+ * later requests for the same set of URLs can be served from the cached archive without being re-downloaded.
+ *
+ * Download archives are created in the default ScratchSpace (owned by the tracker's email) so they count against
+ * the scratch quotas.
+ *
  *
  * @author tey006
  *
@@ -33,25 +60,116 @@ public class DownloadTracker {
     private static ConcurrentHashMap<String, DownloadTracker> downloadTracker;
     private Progression downloadProgress;
     private File file;
+    private ScratchSpace.ScratchFile scratchFile;
     private long lastCompletedTime=System.currentTimeMillis();
+    private long queuedTime;
+    private long startedTime;
+    private String[] pendingUrls;
+    private volatile DownloadProgress liveProgress;
     public static final long timeAllowForCache=6 * 60 * 60 * 1000; //VT we give the user 6 hours to download before we clear up memory
 
+    /** The number of downloads that can run simultaneously (across all trackers) */
+    public static final int MAX_CONCURRENT_JOBS = 4;
+    /** How often expired trackers are cleaned up */
+    public static final long CLEANUP_INTERVAL_MINUTES = 10;
+
+    private static final ThreadPoolExecutor jobExecutor;
+    private static final ScheduledExecutorService cleanupScheduler;
+    private static final AtomicLong totalQueueWaitTime = new AtomicLong();
+    private static final AtomicLong startedJobCount = new AtomicLong();
+    private static volatile DownloadJournal journal;
+    private static volatile DownloadCache downloadCache;
+
     static {
         downloadTracker = new ConcurrentHashMap<String, DownloadTracker>();
+
+        jobExecutor = new ThreadPoolExecutor(MAX_CONCURRENT_JOBS, MAX_CONCURRENT_JOBS, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory("APT_DOWNLOAD_JOB"));
+        cleanupScheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("APT_DOWNLOAD_CLEANUP"));
+        cleanupScheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    DownloadTracker.cleanUp(timeAllowForCache);
+                } catch (Exception e) {
+                    LogFactory.getLog(DownloadTracker.class).warn("Error cleaning up download trackers", e);
+                }
+            }
+        }, CLEANUP_INTERVAL_MINUTES, CLEANUP_INTERVAL_MINUTES, TimeUnit.MINUTES);
     }
 
     public DownloadTracker(String email) {
         this.email = email;
         downloadProgress = Progression.NOT_STARTED;
         try {
-            this.file=File.createTempFile("APT_TRACKER", ".zip");
-            this.file.deleteOnExit();
+            createFile();
         } catch (IOException e) {
             logger.error("Unable to write to file", e);
             e.printStackTrace();
         }
     }
 
+    /**
+     * Restores a tracker from a journal entry
+     */
+    private DownloadTracker(DownloadJournal.Entry entry) {
+        this.email = entry.getEmail();
+        this.file = entry.getFile();
+        if (this.file != null) {
+            //Archives from before the restart are recovered into the current scratch space where possible
+            this.scratchFile = ScratchSpace.getDefault().adopt(email, this.file);
+            if (this.scratchFile != null) {
+                this.file = this.scratchFile.getFile();
+            }
+        }
+        this.lastCompletedTime = entry.getLastCompletedTime();
+        if (entry.getProgress() == Progression.COMPLETED) {
+            this.downloadProgress = Progression.COMPLETED;
+        } else {
+            //Anything not completed was interrupted by the restart and needs to be resumed
+            this.downloadProgress = Progression.NOT_STARTED;
+            this.pendingUrls = entry.getUrls();
+            if (this.file == null) {
+                try {
+                    createFile();
+                } catch (IOException e) {
+                    logger.error("Unable to write to file", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces this tracker's archive with a new empty scratch file (deleting any existing archive)
+     */
+    private void createFile() throws IOException {
+        deleteFile();
+        this.scratchFile = ScratchSpace.getDefault().createFile(email, "APT_TRACKER", ".zip");
+        this.file = this.scratchFile.getFile();
+    }
+
+    /**
+     * Deletes this tracker's archive (returning its space to the scratch quotas)
+     */
+    private void deleteFile() {
+        if (scratchFile != null) {
+            scratchFile.delete();
+            scratchFile = null;
+        } else if (file != null) {
+            file.delete();
+        }
+    }
+
+    /**
+     * Opens this tracker's archive for writing, blocking whilst the scratch quotas are exhausted
+     */
+    private OutputStream openFile() throws IOException {
+        if (scratchFile != null) {
+            return scratchFile.openOutputStream();
+        }
+        return new FileOutputStream(file);
+    }
+
     /**
      * To get a reference to an instance of the tracker. Each email address acts as a token and
      * is only allowed 1 instance of a tracker
@@ -59,10 +177,6 @@ public class DownloadTracker {
      * @return a reference to a DownloadTracker instance
      */
     public static DownloadTracker getTracker(String email) {
-
-        //VT: always perform some clean up in case of memory leak.
-        DownloadTracker.cleanUp(timeAllowForCache);
-
         if (downloadTracker.containsKey(email)) {
             return downloadTracker.get(email);
         } else {
@@ -86,12 +200,19 @@ public class DownloadTracker {
             long lastComplete=downloadTracker.get(key).getLastCompletedTime();
             if(currentTime - lastComplete > timeAllowance){
                 try {
-                    File f=downloadTracker.get(key).getFileHandle();
-                    f.delete();
+                    DownloadTracker tracker = downloadTracker.get(key);
+                    synchronized (tracker) {
+                        if (tracker.getProgress() != Progression.INPROGRESS) {
+                            tracker.deleteFile();
+                        }
+                    }
                 } catch (Exception e) {
                     LogFactory.getLog(DownloadTracker.class).warn(e);
                 }
                 downloadTracker.remove(key);
+                if (journal != null) {
+                    journal.delete(key);
+                }
             }
         }
     }
@@ -110,11 +231,182 @@ public class DownloadTracker {
                 this.downloadProgress=Progression.INPROGRESS;
             }
         }
+        this.pendingUrls = null;
+        this.queuedTime = System.currentTimeMillis();
+        this.startedTime = 0;
+        this.liveProgress = null;
+
+        if (serveFromCache(sdm.getUrls())) {
+            return;
+        }
+        this.liveProgress = sdm.getDownloadProgress();
+        writeJournal(sdm.getUrls());
+
         Process p = new Process(sdm);
-        ExecutorService pool = Executors.newSingleThreadExecutor();
-        pool.execute(p);
-        pool.shutdown();
+        jobExecutor.execute(p);
+
+    }
+
+    /**
+     * Configures a journal for persisting tracker state. Any trackers in the journal will be restored
+     * (replacing any existing trackers with the same email). Incomplete downloads will NOT be restarted until
+     * resumeJournaledDownloads is called.
+     *
+     * @param journal [Optional] The journal to use - null will disable persistence
+     */
+    public static synchronized void setJournal(DownloadJournal journal) {
+        DownloadTracker.journal = journal;
+        if (journal == null) {
+            return;
+        }
+
+        for (DownloadJournal.Entry entry : journal.readAll()) {
+            if (entry.getProgress() == Progression.COMPLETED && (entry.getFile() == null || !entry.getFile().exists())) {
+                journal.delete(entry.getEmail());
+                continue;
+            }
+            downloadTracker.put(entry.getEmail(), new DownloadTracker(entry));
+        }
+    }
+
+    /**
+     * Configures a cache for completed downloads. Subsequent downloads of the same set of URLs will be
+     * served from the cache (whilst it remains fresh).
+     *
+     * @param downloadCache [Optional] The cache to use - null will disable caching
+     */
+    public static void setDownloadCache(DownloadCache downloadCache) {
+        DownloadTracker.downloadCache = downloadCache;
+    }
+
+    /**
+     * Attempts to complete this tracker's download from the cache
+     * @return true if the download was completed from the cache
+     */
+    private synchronized boolean serveFromCache(String[] urls) {
+        DownloadCache cache = downloadCache;
+        if (cache == null) {
+            return false;
+        }
+
+        try {
+            if (!cache.copyTo(urls, file)) {
+                return false;
+            }
+        } catch (IOException e) {
+            logger.warn("Unable to serve download from cache: " + e.getMessage());
+            logger.debug("Exception:", e);
+            return false;
+        }
 
+        this.startedTime = this.queuedTime;
+        setDownloadComplete();
+        return true;
+    }
+
+    /**
+     * Adds this tracker's completed download to the cache (if configured)
+     */
+    private void addToCache(String[] urls) {
+        DownloadCache cache = downloadCache;
+        if (cache == null) {
+            return;
+        }
+
+        try {
+            cache.put(urls, file);
+        } catch (IOException e) {
+            logger.warn("Unable to cache download: " + e.getMessage());
+            logger.debug("Exception:", e);
+        }
+    }
+
+    /**
+     * Restarts every download that was restored from the journal in an incomplete state.
+     * @param serviceCaller Will be used for making the requests
+     * @param serviceConfiguration [Optional] Service configuration for the restarted downloads
+     * @return The number of downloads restarted
+     */
+    public static synchronized int resumeJournaledDownloads(HttpServiceCaller serviceCaller, ServiceConfiguration serviceConfiguration) {
+        int resumed = 0;
+        for (DownloadTracker tracker : downloadTracker.values()) {
+            String[] urls = tracker.pendingUrls;
+            if (urls == null || tracker.getProgress() == Progression.INPROGRESS) {
+                continue;
+            }
+
+            try {
+                tracker.startTrack(new ServiceDownloadManager(urls, serviceCaller, Executors.newCachedThreadPool(), serviceConfiguration));
+                resumed++;
+            } catch (Exception e) {
+                LogFactory.getLog(DownloadTracker.class).error("Unable to resume download for " + tracker.email, e);
+            }
+        }
+        return resumed;
+    }
+
+    /**
+     * The number of downloads waiting for a free worker
+     * @return
+     */
+    public static int getQueueDepth() {
+        return jobExecutor.getQueue().size();
+    }
+
+    /**
+     * The number of downloads currently running
+     * @return
+     */
+    public static int getActiveJobCount() {
+        return jobExecutor.getActiveCount();
+    }
+
+    /**
+     * The mean time (in milliseconds) that downloads have waited in the queue before starting
+     * @return
+     */
+    public static long getMeanQueueWaitTime() {
+        long count = startedJobCount.get();
+        return count == 0 ? 0 : totalQueueWaitTime.get() / count;
+    }
+
+    /**
+     * Returns true if this tracker's download is waiting in the queue for a free worker
+     * @return
+     */
+    public synchronized boolean isQueued() {
+        return downloadProgress == Progression.INPROGRESS && startedTime == 0;
+    }
+
+    /**
+     * How long (in milliseconds) this tracker's most recent download has waited (or did wait) in the queue. 0 if it hasn't been queued
+     * @return
+     */
+    public synchronized long getQueueWaitTime() {
+        if (queuedTime == 0) {
+            return 0;
+        }
+        return (startedTime == 0 ? System.currentTimeMillis() : startedTime) - queuedTime;
+    }
+
+    private synchronized void setStarted() {
+        this.startedTime = System.currentTimeMillis();
+        totalQueueWaitTime.addAndGet(startedTime - queuedTime);
+        startedJobCount.incrementAndGet();
+    }
+
+    private void writeJournal(String[] urls) {
+        DownloadJournal currentJournal = journal;
+        if (currentJournal == null) {
+            return;
+        }
+
+        try {
+            currentJournal.write(new DownloadJournal.Entry(email, getProgress(), file, lastCompletedTime, urls));
+        } catch (IOException e) {
+            logger.warn("Unable to journal download tracker for " + email + ": " + e.getMessage());
+            logger.debug("Exception:", e);
+        }
     }
 
     /**
@@ -131,6 +423,23 @@ public class DownloadTracker {
         }
     }
 
+    /**
+     * Writes the completed download to response as a zip attachment. Any Range/If-Range/If-None-Match
+     * headers in request will be honoured so that large downloads can be resumed.
+     * @param fileName The name of the file as presented to the client
+     * @param request [Optional] The request for the download
+     * @param response Will receive the download
+     * @throws InCompleteDownloadException {@link InCompleteDownloadException}
+     * @throws IOException
+     */
+    public synchronized void handleFileDownload(String fileName, HttpServletRequest request, HttpServletResponse response) throws InCompleteDownloadException, IOException {
+        if(getProgress()==Progression.COMPLETED){
+            FileDownloadUtil.writeFile(this.file, fileName, "application/zip", request, response);
+        }else{
+            throw new InCompleteDownloadException("that that download has complete using getDownloadComplete() before requesting file");
+        }
+    }
+
     /**
      * Retrieve the file after download as a file handle
      * @return
@@ -159,6 +468,7 @@ public class DownloadTracker {
     public synchronized void setDownloadComplete() {
         this.lastCompletedTime=System.currentTimeMillis();
         this.downloadProgress = Progression.COMPLETED;
+        writeJournal(null);
     }
 
     /**
@@ -169,6 +479,15 @@ public class DownloadTracker {
         return this.downloadProgress;
     }
 
+    /**
+     * Gets the live (per URL) progress of the current download. This can be polled whilst the download
+     * is in progress and will also report which URLs FAILED once it is COMPLETED.
+     * @return The progress or null if the download was served from the cache (or restored from the journal)
+     */
+    public DownloadProgress getDownloadProgress() {
+        return this.liveProgress;
+    }
+
     /**
      * A runnable thread to executed in the background to perform download
      * @author tey006
@@ -185,28 +504,30 @@ public class DownloadTracker {
 
         @Override
         public void run() {
+            DownloadTracker.this.setStarted();
 
-            FileOutputStream fos;
-            ZipOutputStream zout;
+            ParallelZipWriter zip = null;
 
             try {
                 // in the event that a user makes another request we want to
                 // ensure the old file reference is deleted
                 // and a file one is created in its place.
-                if (file.exists()) {
-                    file.delete();
-                    file = File.createTempFile("APT_TRACKER", ".zip");
-                    file.deleteOnExit();
+                OutputStream os;
+                synchronized (DownloadTracker.this) {
+                    if (file == null || file.exists()) {
+                        createFile();
+                    }
+                    os = openFile();
+                }
+                zip = new ParallelZipWriter(new BufferedOutputStream(os));
+                boolean successful = sdm.downloadAllToZip(zip);
+                zip.close();
+                zip = null;
+
+                //Only cache downloads that didn't have any failures
+                if (successful) {
+                    addToCache(sdm.getUrls());
                 }
-                fos = new FileOutputStream(file);
-                zout = new ZipOutputStream(fos);
-                ArrayList<DownloadResponse> gmlDownloads = sdm.downloadAll();
-                FileIOUtil.writeResponseToZip(gmlDownloads, zout);
-                zout.finish();
-                zout.flush();
-                zout.close();
-                fos.flush();
-                fos.close();
 
             } catch (FileNotFoundException e) {
                 logger.error("Unable to write to file", e);
@@ -215,6 +536,8 @@ public class DownloadTracker {
                 logger.error("Error with the serviceDownloadManager", e);
                 e.printStackTrace();
             } finally {
+                //Ensures the workers of an unfinished zip are shut down
+                FileIOUtil.closeQuietly(zip);
                 // VT : No matter what happens we have to give it a completion.
                 DownloadTracker.this.setDownloadComplete();
             }
@@ -223,4 +546,22 @@ public class DownloadTracker {
 
     }
 
+    /**
+     * Creates named daemon threads (so our workers never hold up a shutdown)
+     */
+    private static class DaemonThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        public DaemonThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, prefix + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
 }
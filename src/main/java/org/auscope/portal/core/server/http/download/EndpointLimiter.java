@@ -0,0 +1,186 @@
+package org.auscope.portal.core.server.http.download;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An adaptive concurrency limit for requests made against a single endpoint.
+ *
+ * The limit is adjusted using AIMD (additive increase, multiplicative decrease) on the observed
+ * latency and errors of requests. Every healthy sample increases the limit by 1/limit (ie roughly +1 per
+ * "window" of requests), a sample whose latency exceeds latencyTolerance times the best observed latency
+ * (which is never considered to be less than MIN_BASELINE_LATENCY) reduces it by LATENCY_BACKOFF and an
+ * error reduces it by ERROR_BACKOFF. The limit is always kept within [minLimit, maxLimit].
+ *
+ * Every limiter signals the same permitReleased condition whenever a permit is returned so that callers
+ * waiting on several permits at once (see ServiceDownloadManager) can wait on a single condition.
+ */
+public class EndpointLimiter {
+
+    /** Default initial limit for an endpoint with no configuration */
+    public static final int DEFAULT_INITIAL_LIMIT = 1;
+    /** Default maximum limit for an endpoint with no configuration */
+    public static final int DEFAULT_MAX_LIMIT = 4;
+    /** Default ratio of a sample's latency to the best observed latency before the limit is reduced */
+    public static final double DEFAULT_LATENCY_TOLERANCE = 2.0;
+
+    /** Multiplier applied to the limit after a slow sample */
+    static final double LATENCY_BACKOFF = 0.9;
+    /** Multiplier applied to the limit after a failed sample */
+    static final double ERROR_BACKOFF = 0.5;
+    /** How quickly the best observed latency drifts towards recent samples (so it can recover from a lucky sample) */
+    static final double BASELINE_DRIFT = 0.01;
+    /** The smallest best observed latency (in milliseconds). Stops a near instant sample from making every subsequent sample slow */
+    static final double MIN_BASELINE_LATENCY = 10;
+
+    /** Guards waiting for permits (from any limiter) */
+    static final ReentrantLock permitLock = new ReentrantLock(true);
+    /** Signalled (under permitLock) whenever a permit is returned to any limiter */
+    static final Condition permitReleased = permitLock.newCondition();
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final double latencyTolerance;
+    private double limit;
+    private double baselineLatency = -1;
+    private int inFlight;
+
+    /**
+     * Creates a new limiter with DEFAULT_LATENCY_TOLERANCE and a minimum limit of 1
+     * @param initialLimit The starting limit
+     * @param maxLimit The largest the limit can grow to
+     */
+    public EndpointLimiter(int initialLimit, int maxLimit) {
+        this(initialLimit, 1, maxLimit, DEFAULT_LATENCY_TOLERANCE);
+    }
+
+    /**
+     * Creates a new limiter
+     * @param initialLimit The starting limit
+     * @param minLimit The smallest the limit can shrink to (must be at least 1)
+     * @param maxLimit The largest the limit can grow to
+     * @param latencyTolerance The ratio of a sample's latency to the best observed latency before the limit is reduced
+     */
+    public EndpointLimiter(int initialLimit, int minLimit, int maxLimit, double latencyTolerance) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.latencyTolerance = latencyTolerance;
+        this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+    }
+
+    /**
+     * Takes a permit if the number of requests in flight is under the current limit. Never blocks.
+     * @return true if a permit was taken (it must be returned with release())
+     */
+    public synchronized boolean tryAcquire() {
+        if (inFlight < getLimit()) {
+            inFlight++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Takes a permit, waiting up to timeout for the number of requests in flight to fall under the current limit.
+     * @param timeout The maximum time to wait
+     * @param unit The unit of timeout
+     * @return true if a permit was taken (it must be returned with release()), false if timeout elapsed
+     * @throws InterruptedException
+     */
+    public boolean acquire(long timeout, TimeUnit unit) throws InterruptedException {
+        long remainingNanos = unit.toNanos(timeout);
+        permitLock.lock();
+        try {
+            while (!tryAcquire()) {
+                if (remainingNanos <= 0) {
+                    return false;
+                }
+                remainingNanos = permitReleased.awaitNanos(remainingNanos);
+            }
+            return true;
+        } finally {
+            permitLock.unlock();
+        }
+    }
+
+    /**
+     * Returns a permit taken with tryAcquire or acquire
+     */
+    public void release() {
+        synchronized (this) {
+            if (inFlight > 0) {
+                inFlight--;
+            }
+        }
+        signalPermitReleased();
+    }
+
+    /**
+     * Wakes every thread waiting on permitReleased
+     */
+    static void signalPermitReleased() {
+        permitLock.lock();
+        try {
+            permitReleased.signalAll();
+        } finally {
+            permitLock.unlock();
+        }
+    }
+
+    /**
+     * Records the outcome of a single request against this endpoint, adjusting the limit.
+     * @param latencyMillis How long the endpoint took to respond
+     * @param success false if the request failed
+     */
+    public synchronized void onSample(long latencyMillis, boolean success) {
+        if (!success) {
+            limit = Math.max(minLimit, limit * ERROR_BACKOFF);
+            return;
+        }
+
+        if (baselineLatency < 0 || latencyMillis < baselineLatency) {
+            baselineLatency = Math.max(MIN_BASELINE_LATENCY, latencyMillis);
+        } else {
+            baselineLatency += (latencyMillis - baselineLatency) * BASELINE_DRIFT;
+        }
+
+        if (latencyMillis > baselineLatency * latencyTolerance) {
+            limit = Math.max(minLimit, limit * LATENCY_BACKOFF);
+        } else {
+            limit = Math.min(maxLimit, limit + 1.0 / limit);
+        }
+    }
+
+    /**
+     * The current number of requests that can be made concurrently
+     * @return
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * The number of permits currently taken
+     * @return
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * The smallest the limit can shrink to
+     * @return
+     */
+    public int getMinLimit() {
+        return minLimit;
+    }
+
+    /**
+     * The largest the limit can grow to
+     * @return
+     */
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+}
@@ -0,0 +1,44 @@
+package org.auscope.portal.core.server.http.download;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.io.input.ProxyInputStream;
+
+/**
+ * An InputStream that records every byte read through it against a DownloadProgress.UrlProgress
+ */
+public class ProgressInputStream extends ProxyInputStream {
+
+    private final DownloadProgress.UrlProgress progress;
+    private final boolean finishOnEnd;
+
+    /**
+     * @param in The stream being downloaded
+     * @param progress Will receive the count of every byte read
+     * @param finishOnEnd If true, progress will be marked as FINISHED when the end of in is reached (or FAILED if in can't be read).
+     *                    Closing this stream before the end of in is reached will not change the state of progress
+     */
+    public ProgressInputStream(InputStream in, DownloadProgress.UrlProgress progress, boolean finishOnEnd) {
+        super(in);
+        this.progress = progress;
+        this.finishOnEnd = finishOnEnd;
+    }
+
+    @Override
+    protected void afterRead(int n) {
+        if (n > 0) {
+            progress.addBytes(n);
+        } else if (n < 0 && finishOnEnd) {
+            progress.setFinished();
+        }
+    }
+
+    @Override
+    protected void handleIOException(IOException e) throws IOException {
+        if (finishOnEnd) {
+            progress.setFailed();
+        }
+        throw e;
+    }
+}
@@ -1,30 +1,22 @@
 package org.auscope.portal.core.server.http.download;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
-import java.util.zip.ZipEntry;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.ZipOutputStream;
 
-import javax.xml.namespace.NamespaceContext;
-
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.http.Header;
@@ -33,10 +25,9 @@ import org.apache.http.client.methods.HttpGet;
 import org.auscope.portal.core.configuration.ServiceConfiguration;
 import org.auscope.portal.core.configuration.ServiceConfigurationItem;
 import org.auscope.portal.core.server.http.HttpServiceCaller;
-import org.auscope.portal.core.services.namespaces.IterableNamespace;
-import org.auscope.portal.core.util.DOMResponseUtil;
 import org.auscope.portal.core.util.FileIOUtil;
-import org.auscope.portal.core.util.MimeUtil;
+import org.auscope.portal.core.util.ParallelZipWriter;
+import org.auscope.portal.core.util.SpoolingPipe;
 
 
 /**
@@ -47,19 +38,18 @@ import org.auscope.portal.core.util.MimeUtil;
  */
 public class ServiceDownloadManager {
     protected final Log logger = LogFactory.getLog(getClass());
-    private final int maxThreadPerEndpoint = 1;
     private final int maxThreadPerSession = 2;
     // VT: the individual download controllers should decided on the length of time we allow each download
     // as they should be handled on a case by case basic rather then 1 length of time to set all.
     // 120 minutes is a huge time as a final catch all safety net.
     public static final int MAX_WAIT_TIME_MINUTE = 360;
-    private static ConcurrentHashMap<String, Semaphore> endpointSemaphores;
+    private static ConcurrentHashMap<String, EndpointLimiter> endpointLimiters;
     private static int globalId;
     private int callerId;
     private ExecutorService pool;
 
     static{
-        endpointSemaphores = new ConcurrentHashMap<String, Semaphore>();
+        endpointLimiters = new ConcurrentHashMap<String, EndpointLimiter>();
     }
 
     // VT do not directly access entryCount due to multi threading. Access it
@@ -68,6 +58,7 @@ public class ServiceDownloadManager {
     private String[] urls;
     private HttpServiceCaller serviceCaller;
     private ServiceConfiguration serviceConfiguration;
+    private DownloadProgress progress;
 
     public ServiceDownloadManager(String[] urls,
             HttpServiceCaller serviceCaller, ExecutorService executer)
@@ -83,32 +74,95 @@ public class ServiceDownloadManager {
         this.urls = urls;
         this.serviceCaller = serviceCaller;
         this.pool = executer;
+        this.progress = new DownloadProgress(urls);
         callerId = globalId++;
         for (int i = 0; i < urls.length; i++) {
-            String host = this.getHost(urls[i]);
-            if (!endpointSemaphores.containsKey(host)) {
-                endpointSemaphores.put(host, new Semaphore(
-                        maxThreadPerEndpoint, true));
+            this.getHost(urls[i]);
+        }
+    }
+
+    /**
+     * Gets the (shared) limiter for all requests made to the endpoint of url, creating it if it doesn't exist.
+     * A newly created limiter will be configured from serviceConfigurationItem, with the EndpointLimiter defaults
+     * applying to anything that isn't configured.
+     * @param url The download URL
+     * @param serviceConfigurationItem [Optional] The configuration for the service at url
+     * @return
+     * @throws URISyntaxException
+     */
+    protected EndpointLimiter getEndpointLimiter(String url, ServiceConfigurationItem serviceConfigurationItem) throws URISyntaxException {
+        String host = this.getHost(url);
+        EndpointLimiter limiter = endpointLimiters.get(host);
+        if (limiter == null) {
+            int initialLimit = EndpointLimiter.DEFAULT_INITIAL_LIMIT;
+            int maxLimit = EndpointLimiter.DEFAULT_MAX_LIMIT;
+            if (serviceConfigurationItem != null) {
+                if (serviceConfigurationItem.getInitialConcurrentRequests() != ServiceConfigurationItem.UNSET) {
+                    initialLimit = serviceConfigurationItem.getInitialConcurrentRequests();
+                }
+                if (serviceConfigurationItem.getMaxConcurrentRequests() != ServiceConfigurationItem.UNSET) {
+                    maxLimit = serviceConfigurationItem.getMaxConcurrentRequests();
+                }
+            }
+            limiter = new EndpointLimiter(initialLimit, maxLimit);
+            EndpointLimiter existing = endpointLimiters.putIfAbsent(host, limiter);
+            if (existing != null) {
+                limiter = existing;
             }
         }
+        return limiter;
     }
 
-    public synchronized ArrayList<DownloadResponse> downloadAll()
-            throws URISyntaxException, InterruptedException,
-            InCompleteDownloadException {
+    private ServiceConfigurationItem getServiceConfigurationItem(String url) {
+        if (serviceConfiguration == null) {
+            return null;
+        }
+        return serviceConfiguration.getServiceConfigurationItem(url);
+    }
 
+    /**
+     * Starts a GMLDownload for every url (sharing a single session limit) on pool.
+     *
+     * pool is shut down once the last GMLDownload finishes so that paging downloads can run their page
+     * requests on it.
+     */
+    private ArrayList<GMLDownload> startDownloads(BlockingQueue<GMLDownload> completionQueue) throws URISyntaxException {
         Semaphore processSemaphore = new Semaphore(this.maxThreadPerSession,
                 true);
         ArrayList<GMLDownload> gmlDownloads = new ArrayList<GMLDownload>();
+        final AtomicInteger running = new AtomicInteger(urls.length);
 
         for (int i = 0; i < urls.length; i++) {
-            Semaphore sem = endpointSemaphores.get(this.getHost(urls[i]));
-            GMLDownload gmlDownload = new GMLDownload(urls[i], sem, i,
-                    processSemaphore);
+            ServiceConfigurationItem serviceConfigurationItem = getServiceConfigurationItem(urls[i]);
+            EndpointLimiter limiter = getEndpointLimiter(urls[i], serviceConfigurationItem);
+            final GMLDownload gmlDownload = new GMLDownload(urls[i], limiter, i,
+                    processSemaphore, serviceConfigurationItem, completionQueue);
             gmlDownloads.add(gmlDownload);
-            pool.execute(gmlDownload);
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        gmlDownload.run();
+                    } finally {
+                        if (running.decrementAndGet() == 0) {
+                            pool.shutdown();
+                        }
+                    }
+                }
+            });
+        }
+        if (urls.length == 0) {
+            pool.shutdown();
         }
-        pool.shutdown();
+
+        return gmlDownloads;
+    }
+
+    public synchronized ArrayList<DownloadResponse> downloadAll()
+            throws URISyntaxException, InterruptedException,
+            InCompleteDownloadException {
+
+        ArrayList<GMLDownload> gmlDownloads = startDownloads(null);
         pool.awaitTermination(ServiceDownloadManager.MAX_WAIT_TIME_MINUTE,
                 TimeUnit.MINUTES);
 
@@ -120,6 +174,160 @@ public class ServiceDownloadManager {
         return responses;
     }
 
+    /**
+     * Downloads every URL (in the same manner as downloadAll) writing each response into zout the moment
+     * it completes. Entries will be written in completion order (named after the index of their URL) so
+     * the zip can be streamed to a client whilst the remaining downloads are in progress.
+     *
+     * Failed downloads are written as per entry error files, unsuccessful JSON responses are collected into
+     * a downloadInfo.txt entry (see FileIOUtil.writeResponseToZip). zout will NOT be closed or finished.
+     *
+     * @param zout Receives a zip entry for every download
+     * @return true if every download completed successfully
+     * @throws URISyntaxException
+     * @throws InterruptedException
+     * @throws IOException If zout cannot be written to
+     */
+    public synchronized boolean downloadAllToZip(final ZipOutputStream zout)
+            throws URISyntaxException, InterruptedException, IOException {
+        return downloadAllToZip(new ZipTarget() {
+            @Override
+            public void write(DownloadResponse response, int index, StringBuilder jsonErrors) throws IOException {
+                FileIOUtil.writeResponseToZip(response, index, zout, jsonErrors);
+                zout.flush();
+            }
+
+            @Override
+            public void writeDownloadInfo(StringBuilder jsonErrors) throws IOException {
+                FileIOUtil.writeDownloadInfoToZip(jsonErrors, zout);
+            }
+        });
+    }
+
+    /**
+     * Downloads every URL in the same manner as downloadAllToZip(ZipOutputStream) except that entries will be
+     * compressed concurrently by zip's workers (and written in completion order). zip will NOT be finished.
+     *
+     * ParallelZipWriter buffers each entry in full before writing it, so this is only suited to archives that
+     * are written to a file (see DownloadTracker). Use downloadAllToZip(ZipOutputStream) when streaming to a client.
+     *
+     * @param zip Receives a zip entry for every download
+     * @return true if every download completed successfully
+     * @throws URISyntaxException
+     * @throws InterruptedException
+     * @throws IOException If zip cannot be written to
+     */
+    public synchronized boolean downloadAllToZip(final ParallelZipWriter zip)
+            throws URISyntaxException, InterruptedException, IOException {
+        return downloadAllToZip(new ZipTarget() {
+            @Override
+            public void write(DownloadResponse response, int index, StringBuilder jsonErrors) throws IOException {
+                FileIOUtil.writeResponseToZip(response, index, zip, jsonErrors);
+                zip.flush();
+            }
+
+            @Override
+            public void writeDownloadInfo(StringBuilder jsonErrors) throws IOException {
+                FileIOUtil.writeDownloadInfoToZip(jsonErrors, zip);
+            }
+        });
+    }
+
+    /**
+     * Runs every download writing each response to target in completion order (see downloadAllToZip)
+     */
+    private boolean downloadAllToZip(ZipTarget target)
+            throws URISyntaxException, InterruptedException, IOException {
+
+        BlockingQueue<GMLDownload> completedDownloads = new LinkedBlockingQueue<GMLDownload>();
+        ArrayList<GMLDownload> gmlDownloads = startDownloads(completedDownloads);
+
+        StringBuilder jsonErrors = new StringBuilder();
+        boolean successful = true;
+        long deadline = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(MAX_WAIT_TIME_MINUTE);
+        GMLDownload gmlDownload;
+        while ((gmlDownload = pollCompleted(completedDownloads, gmlDownloads, deadline)) != null) {
+            target.write(gmlDownload.response, gmlDownload.id, jsonErrors);
+            //Checked after writing as streamed (paging) responses can fail whilst they're being read
+            if (gmlDownload.response.hasException()) {
+                successful = false;
+                gmlDownload.urlProgress.setFailed();
+            } else {
+                //The response has been consumed even if its reader stopped short of the end of the stream
+                gmlDownload.urlProgress.setFinished();
+            }
+        }
+
+        //Anything left over has exceeded MAX_WAIT_TIME_MINUTE
+        for (GMLDownload incomplete : gmlDownloads) {
+            successful = false;
+            target.write(createTimedOutResponse(incomplete), incomplete.id, jsonErrors);
+        }
+        target.writeDownloadInfo(jsonErrors);
+        return successful && jsonErrors.length() == 0;
+    }
+
+    /**
+     * The zip that downloadAllToZip writes responses into
+     */
+    private interface ZipTarget {
+        /**
+         * Writes response as the entry for index (see FileIOUtil.writeResponseToZip), flushing it to the client
+         */
+        void write(DownloadResponse response, int index, StringBuilder jsonErrors) throws IOException;
+
+        /**
+         * Writes the accumulated JSON failures (see FileIOUtil.writeDownloadInfoToZip)
+         */
+        void writeDownloadInfo(StringBuilder jsonErrors) throws IOException;
+    }
+
+    /**
+     * Waits (until deadline) for the next download to complete, removing it from remainingDownloads.
+     * @return The completed download or null if there are no more downloads or the deadline has passed
+     */
+    private GMLDownload pollCompleted(BlockingQueue<GMLDownload> completedDownloads, List<GMLDownload> remainingDownloads, long deadline)
+            throws InterruptedException {
+        if (remainingDownloads.isEmpty()) {
+            return null;
+        }
+
+        GMLDownload gmlDownload = completedDownloads.poll(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        if (gmlDownload == null) {
+            return null;
+        }
+        remainingDownloads.remove(gmlDownload);
+
+        DownloadResponse response = gmlDownload.response;
+        if (!gmlDownload.isDownloadComplete() && !response.hasException()) {
+            response.setException(new InCompleteDownloadException("The download terminated unexpectedly"));
+        }
+        return gmlDownload;
+    }
+
+    private DownloadResponse createTimedOutResponse(GMLDownload gmlDownload) {
+        gmlDownload.urlProgress.setFailed();
+        DownloadResponse response = new DownloadResponse(gmlDownload.response.getRequestURL());
+        response.setException(new InCompleteDownloadException("The download did not complete in time"));
+        return response;
+    }
+
+    /**
+     * The URLs that this manager will download
+     * @return
+     */
+    public String[] getUrls() {
+        return urls;
+    }
+
+    /**
+     * The live progress of the downloads of this manager (indexed in the same order as getUrls)
+     * @return
+     */
+    public DownloadProgress getDownloadProgress() {
+        return progress;
+    }
+
     public String getHost(String url) throws URISyntaxException {
         URI uri = new URI(url);
         String query = uri.getQuery();
@@ -147,71 +355,133 @@ public class ServiceDownloadManager {
     public class GMLDownload implements Runnable {
         private String url;
         DownloadResponse response;
-        private boolean downloadComplete = false;
-        private Semaphore endPointSem, processSem;
+        private volatile boolean downloadComplete = false;
+        private final AtomicBoolean published = new AtomicBoolean(false);
+        private Semaphore processSem;
+        private EndpointLimiter limiter;
+        private boolean holdsEndpointPermit;
+        private ServiceConfigurationItem serviceConfigurationItem;
         private int id;
+        private BlockingQueue<GMLDownload> completionQueue;
+        private DownloadProgress.UrlProgress urlProgress;
 
-        public GMLDownload(String url, Semaphore sem, int id,
+        public GMLDownload(String url, EndpointLimiter limiter, int id,
                 Semaphore processSem) throws URISyntaxException {
-            this.endPointSem = sem;
+            this(url, limiter, id, processSem, null, null);
+        }
+
+        /**
+         * @param serviceConfigurationItem [Optional] The configuration for the service at url
+         * @param completionQueue [Optional] This download will be added to this queue once it finishes (successfully or otherwise)
+         */
+        public GMLDownload(String url, EndpointLimiter limiter, int id,
+                Semaphore processSem, ServiceConfigurationItem serviceConfigurationItem,
+                BlockingQueue<GMLDownload> completionQueue) throws URISyntaxException {
+            this.limiter = limiter;
             this.url = url;
             this.id = id;
             this.processSem = processSem;
+            this.serviceConfigurationItem = serviceConfigurationItem;
+            this.completionQueue = completionQueue;
+            this.urlProgress = id >= 0 && id < urls.length && urls[id].equals(url) ? progress.getUrlProgress(id) : new DownloadProgress.UrlProgress(url);
             response=new DownloadResponse(getHost(url));
         }
 
+        /**
+         * Waits until both a session and an endpoint permit can be taken together. We never hold one
+         * permit while waiting on the other to ensure we don't generate
+         * a) too much process thread which will create server load
+         * b) too much endpoint request thread which will create endpoint service load
+         * without a busy endpoint blocking downloads from the same session to other endpoints.
+         *
+         * Waiting is done on EndpointLimiter.permitReleased (which is signalled whenever any permit is returned)
+         * @return false if the permits could not be acquired within MAX_WAIT_TIME_MINUTE
+         */
+        private boolean acquirePermits() throws InterruptedException {
+            long remainingNanos = TimeUnit.MINUTES.toNanos(ServiceDownloadManager.MAX_WAIT_TIME_MINUTE);
+            EndpointLimiter.permitLock.lock();
+            try {
+                while (true) {
+                    if (processSem.tryAcquire()) {
+                        if (limiter.tryAcquire()) {
+                            holdsEndpointPermit = true;
+                            return true;
+                        }
+                        processSem.release();
+                    }
+
+                    if (remainingNanos <= 0) {
+                        return false;
+                    }
+                    remainingNanos = EndpointLimiter.permitReleased.awaitNanos(remainingNanos);
+                }
+            } finally {
+                EndpointLimiter.permitLock.unlock();
+            }
+        }
+
+        /**
+         * Returns the endpoint permit early (if still held). Used by downloads that take a permit per request.
+         */
+        private void releaseEndpointPermit() {
+            if (holdsEndpointPermit) {
+                holdsEndpointPermit = false;
+                limiter.release();
+            }
+        }
+
+        private void releasePermits() {
+            processSem.release();
+            if (holdsEndpointPermit) {
+                releaseEndpointPermit();
+            } else {
+                EndpointLimiter.signalPermitReleased();
+            }
+        }
+
         @Override
         public void run() {
 
             try {
+                if (!acquirePermits()) {
+                    logger.error(callerId + "->Unable to acquire a download permit for: " + id + " " + url);
+                    response.setException(new InCompleteDownloadException("Timed out waiting for the service to become available"));
+                    return;
+                }
 
-                boolean secondLockAquired = false;
-                boolean firstLockAquired = false;
-                // the while loop checks and waits until we acquire both
-                // locks process and endpoints to ensure we don't generate
-                // a) too much process thread which will create server load
-                // b) too much endpoint request thread which will create
-                // endpoint service load
-                // I have given it 10 minutes to acquire lock for the process
-                // and within 5 seconds if a endpoint lock is not acquired,
-                // release the process lock so that other threads can attempt to
-                // run and later we try again.
-                // if the first lock never gets acquired, houston we have a
-                // problem.
-                while (true) {
-                    firstLockAquired = processSem.tryAcquire(
-                            ServiceDownloadManager.MAX_WAIT_TIME_MINUTE,
-                            TimeUnit.MINUTES);
-
-                    if (firstLockAquired) {
-                        secondLockAquired = endPointSem.tryAcquire(5,
-                                TimeUnit.SECONDS);
-                    }
-                    if (!secondLockAquired) {
-                        processSem.release();
-                        secondLockAquired = false;
-                        firstLockAquired = false;
-                        logger.warn(callerId + " Attempt to acquire both lock failed. Trying again");
-                    } else {
-                        break;
-                    }
+                urlProgress.setRunning();
+                try {
+                    logger.info((callerId + "->Calling service: " + id +" " + url));
+                    this.download(response, url, serviceConfigurationItem);
+                    this.downloadComplete = true;
+                    logger.info(callerId + "->Download Complete: " + id + " " + url);
+                } finally {
+                    releasePermits();
+                    logger.debug(callerId + "->permits released: " + id);
                 }
-                logger.info((callerId + "->Calling service: " + id +" " + url));
-                this.download(response,url);
-                this.downloadComplete = true;
-                logger.info(callerId + "->Download Complete: " + id + " " + url);
             } catch (InterruptedException e) {
                 logger.error("No reason for this thread to be interrupted", e);
             } catch(Exception e){
                 e.printStackTrace();
             }finally {
-                endPointSem.release();
-                processSem.release();
-                logger.debug(callerId + "->semaphore release: " + id);
+                if (response.hasException() || !downloadComplete) {
+                    urlProgress.setFailed();
+                }
+                publish();
             }
 
         }
 
+        /**
+         * Adds this download to completionQueue (if set) so its response can be consumed. Streamed responses
+         * are published before they have been fully produced, every call after the first is ignored.
+         */
+        private void publish() {
+            if (completionQueue != null && published.compareAndSet(false, true)) {
+                completionQueue.add(this);
+            }
+        }
+
         public DownloadResponse getGMLDownload() throws InCompleteDownloadException {
             if (downloadComplete) {
                 return response;
@@ -221,32 +491,42 @@ public class ServiceDownloadManager {
             }
         }
 
+        /**
+         * Returns true once the response is available. Paging responses are streamed so they may still be
+         * in progress (and can subsequently fail).
+         * @return
+         */
         public boolean isDownloadComplete() {
             return downloadComplete;
         }
 
         public void download(DownloadResponse response, String url) {
-            if(ServiceDownloadManager.this.serviceConfiguration != null){
-                ServiceConfigurationItem serviceConfigurationItem = ServiceDownloadManager.this.serviceConfiguration.getServiceConfigurationItem(url);
+            this.download(response, url, getServiceConfigurationItem(url));
+        }
 
-                if(serviceConfigurationItem != null && serviceConfigurationItem.doesPaging()){
-                    this.downloadPaging(response, url);
-                }else{
-                    this.downloadNormal(response, url);
-                }
+        private void download(DownloadResponse response, String url, ServiceConfigurationItem serviceConfigurationItem) {
+            if(serviceConfigurationItem != null && serviceConfigurationItem.doesPaging()){
+                this.downloadPaging(response, url);
             }else{
                 this.downloadNormal(response, url);
             }
-
         }
 
         public void downloadNormal(DownloadResponse response, String url) {
             HttpGet  method = new HttpGet(url);
             try {
                 // Our request may fail (due to timeout or otherwise)
-                HttpResponse httpResponse=serviceCaller.getMethodResponseAsHttpResponse(method);
+                long startTime = System.currentTimeMillis();
+                HttpResponse httpResponse;
+                try {
+                    httpResponse=serviceCaller.getMethodResponseAsHttpResponse(method);
+                } catch (Exception ex) {
+                    limiter.onSample(System.currentTimeMillis() - startTime, false);
+                    throw ex;
+                }
+                limiter.onSample(System.currentTimeMillis() - startTime, true);
 
-                response.setResponseStream(httpResponse.getEntity().getContent());
+                response.setResponseStream(new ProgressInputStream(httpResponse.getEntity().getContent(), urlProgress, true));
                 Header header=httpResponse.getEntity().getContentType();
                 if(header != null && header.getValue().length() > 0){
                     response.setContentType(httpResponse.getEntity().getContentType().getValue());
@@ -264,91 +544,34 @@ public class ServiceDownloadManager {
             //http%3A%2F%2Fauscope-services-test.arrc.csiro.au%3A80%2Fgsq-earthresource%2Fwfs&bbox=%7B%22westBoundLongitude%22%3A%22144%22%2C%22
             //southBoundLatitude%22%3A%22-27%22%2C%22eastBoundLongitude%22%3A%22148%22%2C%22northBoundLatitude%22%3A%22-25%22%2C%22crs%22%3A%22EPSG%3A4326%22%7D&
             //serviceUrl=http%3A%2F%2Fauscope-services-test.arrc.csiro.au%3A80%2Fgsq-earthresource%2Fwfs&typeName=er%3AMiningFeatureOccurrence&maxFeatures=200
-            File tempDir = null;
-            FileInputStream zipStream=null;
-            try{
-                tempDir = Files.createTempDirectory("APT_PAGING").toFile();
-                tempDir.deleteOnExit();
-
-                int index = 0;
 
-                while(true){
-                    HttpGet  method = new HttpGet(url+"&startIndex=" + index);
-                    HttpResponse httpResponse=serviceCaller.getMethodResponseAsHttpResponse(method);
-
-                    Header header=httpResponse.getEntity().getContentType();
-                    String fileExtension=".xml";//VT: Default to xml as we will mostly be dealing with xml files
-                    if(header != null && header.getValue().length() > 0){
-                        fileExtension = "." + MimeUtil.mimeToFileExtension(httpResponse.getEntity().getContentType().getValue());
-
-                    }
-                    File f=new File(tempDir,"ResultIndexed-" + index + fileExtension);
-                    f.deleteOnExit();
-                    FileIOUtil.writeStreamToFile(httpResponse.getEntity().getContent(), f, true);
-                    int numberOfFeatures= this.getNumberOfFeature(f);
-                    if(numberOfFeatures != 0){
-                        index += numberOfFeatures;
-                    }else{
-                        //VT: Delete file since it has 0 number of features;break out of this while loop
-                        f.delete();
-                        break;
-                    }
-                }
-                zipStream = new FileInputStream(this.zipDirectory(tempDir));
-                //VT: Zip up tempDir and we are good to go.
-                response.setResponseStream(zipStream);
-                response.setContentType("application/zip");
+            //Pages are zipped straight into the pipe as they arrive - they will only touch the disk if
+            //the consumer of the response can't keep up with the service. The response is published before
+            //any pages are requested so the consumer can start reading whilst the pages are produced.
+            SpoolingPipe pipe = new SpoolingPipe();
+            ZipOutputStream zout = new ZipOutputStream(pipe.getOutputStream());
+            response.setResponseStream(pipe.getInputStream());
+            response.setContentType("application/zip");
+            if (response == this.response) {
+                this.downloadComplete = true;
+                publish();
+            }
 
+            //Every page request takes its own endpoint permit
+            releaseEndpointPermit();
 
-            }catch(Exception e){
+            try {
+                WFSPagingDownloader pagingDownloader = new WFSPagingDownloader(serviceCaller, limiter, pool);
+                pagingDownloader.setProgress(urlProgress);
+                pagingDownloader.download(url, zout);
+                zout.close();
+                urlProgress.setFinished();
+            } catch (Exception e) {
                 logger.error(e, e);
+                //The exception is recorded before the consumer can see the pipe fail
                 response.setException(e);
-            }finally{
-                //Clean up
-                if(tempDir != null){
-                    FileIOUtil.deleteFilesRecursive(tempDir);
-                }
+                pipe.fail(e);
             }
-
         }
-
-        private int getNumberOfFeature(File f) throws Exception{
-            InputStream br= new BufferedInputStream(new FileInputStream(f));
-            NamespaceContext ns = new NumberOfFeatureNamespace();
-            return DOMResponseUtil.getNumberOfFeatures(br, ns);
-        }
-
-        private File zipDirectory(File zipDir) throws Exception{
-
-            File tempZip = File.createTempFile("APT_", ".zip");
-            ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(tempZip));
-
-            try{
-
-                // get a listing of the directory content
-                String[] dirList = zipDir.list();
-
-                // loop through dirList, and zip the files
-                for (int i = 0; i < dirList.length; i++) {
-                    File f = new File(zipDir, dirList[i]);
-
-                    FileInputStream fis = new FileInputStream(f);
-                    try {
-                        ZipEntry anEntry = new ZipEntry(f.getName());
-                        zos.putNextEntry(anEntry);
-                        IOUtils.copy(fis, zos);
-                        zos.closeEntry();
-                    } finally {
-                        fis.close();
-                    }
-                }
-                return tempZip;
-            }catch(Exception e){
-                throw e;
-            }finally{
-                zos.close();
-            }
-        }
-
     }
 }
@@ -0,0 +1,525 @@
+package org.auscope.portal.core.server.http.download;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.auscope.portal.core.server.http.HttpServiceCaller;
+import org.auscope.portal.core.services.responses.ows.OWSExceptionParser;
+import org.auscope.portal.core.util.FeatureCountUtil;
+import org.auscope.portal.core.util.MimeUtil;
+import org.auscope.portal.core.util.ScratchOutputStream;
+
+/**
+ * Downloads every feature from a paging WFS request (one that accepts a startIndex parameter) into a zip stream,
+ * one zip entry per page.
+ *
+ * If the request specifies a page size (maxFeatures or count) the total number of features is requested up front with
+ * resultType=hits and then every startIndex window is requested concurrently (up to a maximum number of concurrent
+ * requests). Pages are written into the zip in page order. The next page in order is streamed straight into the zip
+ * as it arrives, only pages that arrive ahead of their turn are buffered (see getPageMemoryThreshold) until every
+ * preceding page has been written.
+ *
+ * Concurrent page requests run on the calling thread and on an optional executor (typically the executor that is
+ * running the download). The calling thread keeps requesting pages whilst the executor is busy, so a saturated
+ * executor only reduces the concurrency of a download rather than blocking it.
+ *
+ * If the page size or total is unavailable, pages are requested sequentially until an empty page is returned.
+ *
+ * If an EndpointLimiter is supplied, every page request will hold one of its permits and the latency/success of
+ * every request will be reported to it. If a DownloadProgress.UrlProgress is supplied, it will receive the bytes and features received for every page.
+ */
+public class WFSPagingDownloader {
+
+    /** The default number of bytes of a single page that will be buffered in memory */
+    public static final int DEFAULT_PAGE_MEMORY_THRESHOLD = 1024 * 1024;
+
+    private final Log log = LogFactory.getLog(getClass());
+
+    private HttpServiceCaller serviceCaller;
+    private Executor executor;
+    private int maxConcurrentRequests;
+    private EndpointLimiter limiter;
+    private int pageMemoryThreshold = DEFAULT_PAGE_MEMORY_THRESHOLD;
+    private DownloadProgress.UrlProgress progress;
+
+    /**
+     * Creates a new instance
+     * @param serviceCaller Used for making all page requests
+     * @param maxConcurrentRequests The maximum number of page requests that can be in flight at any one time
+     * @param executor [Optional] Runs page requests alongside the calling thread. If null, every page will be requested by the calling thread
+     */
+    public WFSPagingDownloader(HttpServiceCaller serviceCaller, int maxConcurrentRequests, Executor executor) {
+        this.serviceCaller = serviceCaller;
+        this.maxConcurrentRequests = Math.max(1, maxConcurrentRequests);
+        this.executor = executor;
+    }
+
+    /**
+     * Creates a new instance whose concurrency is bound by the permits of limiter. Every page request will wait
+     * for a permit from limiter (for up to ServiceDownloadManager.MAX_WAIT_TIME_MINUTE).
+     * @param serviceCaller Used for making all page requests
+     * @param limiter The limiter for the endpoint being paged. Will receive the outcome of every request
+     * @param executor [Optional] Runs page requests alongside the calling thread. If null, every page will be requested by the calling thread
+     */
+    public WFSPagingDownloader(HttpServiceCaller serviceCaller, EndpointLimiter limiter, Executor executor) {
+        this(serviceCaller, limiter.getMaxLimit(), executor);
+        this.limiter = limiter;
+    }
+
+    /**
+     * The number of bytes of a single page that will be buffered in memory whilst it waits to be written into the zip.
+     * Larger pages will be spooled to a ScratchSpace file.
+     * @return
+     */
+    public int getPageMemoryThreshold() {
+        return pageMemoryThreshold;
+    }
+
+    /**
+     * The number of bytes of a single page that will be buffered in memory whilst it waits to be written into the zip.
+     * Larger pages will be spooled to a ScratchSpace file.
+     * @param pageMemoryThreshold
+     */
+    public void setPageMemoryThreshold(int pageMemoryThreshold) {
+        this.pageMemoryThreshold = pageMemoryThreshold;
+    }
+
+    /**
+     * [Optional] Will receive the bytes and features received for every page
+     * @param progress
+     */
+    public void setProgress(DownloadProgress.UrlProgress progress) {
+        this.progress = progress;
+    }
+
+    /**
+     * Downloads every page of url into zout. Each page will be written as a zip entry named
+     * ResultIndexed-[startIndex].[extension]. zout will NOT be closed.
+     *
+     * @param url The GetFeature request (without startIndex or resultType parameters)
+     * @param zout Receives the downloaded pages
+     * @return The number of features that were downloaded
+     * @throws Exception If any page fails to download
+     */
+    public int download(String url, ZipOutputStream zout) throws Exception {
+        Integer pageSize = getPageSize(url);
+        Integer hits = pageSize == null ? null : requestHits(url);
+        if (hits == null) {
+            return downloadSequential(url, zout);
+        }
+
+        return downloadConcurrent(url, zout, hits, pageSize);
+    }
+
+    /**
+     * Extracts the maxFeatures (or WFS 2.0 count) parameter from url. Returns null if it's unavailable.
+     */
+    private Integer getPageSize(String url) throws URISyntaxException {
+        String query = new URI(url).getRawQuery();
+        if (query == null) {
+            return null;
+        }
+
+        for (String param : query.split("&")) {
+            String[] kvp = param.split("=", 2);
+            if (kvp.length == 2 && ("maxFeatures".equalsIgnoreCase(kvp[0]) || "count".equalsIgnoreCase(kvp[0]))) {
+                try {
+                    int pageSize = Integer.parseInt(kvp[1].trim());
+                    return pageSize > 0 ? pageSize : null;
+                } catch (NumberFormatException ex) {
+                    return null;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Makes a resultType=hits request for url. Returns null if the service doesn't support the request.
+     */
+    private Integer requestHits(String url) {
+        HttpGet method = new HttpGet(url + "&resultType=hits");
+        try {
+            HttpResponse httpResponse = serviceCaller.getMethodResponseAsHttpResponse(method);
+            return FeatureCountUtil.getHitsCount(httpResponse.getEntity().getContent());
+        } catch (Exception ex) {
+            log.debug(String.format("Unable to request hits for '%1$s', falling back to sequential paging: %2$s", url, ex.getMessage()));
+            return null;
+        } finally {
+            method.releaseConnection();
+        }
+    }
+
+    private int downloadConcurrent(String url, ZipOutputStream zout, int hits, int pageSize) throws Exception {
+        int pageCount = (hits + pageSize - 1) / pageSize;
+        if (progress != null) {
+            progress.setFeaturesExpected(hits);
+        }
+        if (pageCount == 0) {
+            return 0;
+        }
+
+        ConcurrentPages pages = new ConcurrentPages(url, zout, hits, pageSize, pageCount);
+        try {
+            //The calling thread is always one of the workers so a busy (or shut down) executor can't stall the download
+            int workers = Math.min(maxConcurrentRequests, pageCount);
+            for (int i = 1; i < workers && executor != null; i++) {
+                try {
+                    executor.execute(pages);
+                } catch (RejectedExecutionException ex) {
+                    log.debug("Executor rejected page requests, continuing on the calling thread: " + ex.getMessage());
+                    break;
+                }
+            }
+            pages.run();
+            pages.awaitCompletion();
+            return hits;
+        } finally {
+            pages.close();
+        }
+    }
+
+    private int downloadSequential(String url, ZipOutputStream zout) throws Exception {
+        int index = 0;
+
+        while (true) {
+            HttpGet method = new HttpGet(url + "&startIndex=" + index);
+            ScratchOutputStream page = createPage();
+            try {
+                String entryName;
+                acquirePermit();
+                try {
+                    HttpResponse httpResponse = execute(method);
+                    entryName = getEntryName(httpResponse.getEntity(), index);
+                    InputStream content = trackProgress(httpResponse.getEntity().getContent());
+                    try {
+                        IOUtils.copy(content, page);
+                    } finally {
+                        IOUtils.closeQuietly(content);
+                    }
+                } finally {
+                    page.close();
+                    method.releaseConnection();
+                    releasePermit();
+                }
+
+                //VT: A page with 0 features marks the end of the results
+                int numberOfFeatures = FeatureCountUtil.getNumberOfFeatures(page.openInputStream());
+                if (numberOfFeatures == 0) {
+                    return index;
+                }
+
+                writePage(page, entryName, zout);
+                index += numberOfFeatures;
+                if (progress != null) {
+                    progress.addFeatures(numberOfFeatures);
+                }
+            } finally {
+                page.delete();
+            }
+        }
+    }
+
+    /**
+     * Waits for a permit from limiter (if set)
+     */
+    private void acquirePermit() throws InterruptedException, InCompleteDownloadException {
+        if (limiter != null && !limiter.acquire(ServiceDownloadManager.MAX_WAIT_TIME_MINUTE, TimeUnit.MINUTES)) {
+            throw new InCompleteDownloadException("Timed out waiting for the service to become available");
+        }
+    }
+
+    /**
+     * Returns a permit taken with acquirePermit
+     */
+    private void releasePermit() {
+        if (limiter != null) {
+            limiter.release();
+        }
+    }
+
+    /**
+     * Makes a request, reporting the outcome to limiter (if set)
+     */
+    private HttpResponse execute(HttpGet method) throws Exception {
+        long startTime = System.currentTimeMillis();
+        try {
+            HttpResponse httpResponse = serviceCaller.getMethodResponseAsHttpResponse(method);
+            if (limiter != null) {
+                limiter.onSample(System.currentTimeMillis() - startTime, true);
+            }
+            return httpResponse;
+        } catch (Exception ex) {
+            if (limiter != null) {
+                limiter.onSample(System.currentTimeMillis() - startTime, false);
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Counts the bytes of content against progress (if set)
+     */
+    private InputStream trackProgress(InputStream content) {
+        return progress == null ? content : new ProgressInputStream(content, progress, false);
+    }
+
+    /**
+     * Writes a page into zout as a new entry, streaming it from content
+     */
+    private void writePage(InputStream content, String entryName, ZipOutputStream zout) throws IOException {
+        zout.putNextEntry(new ZipEntry(entryName));
+        IOUtils.copy(content, zout);
+        zout.closeEntry();
+    }
+
+    private ScratchOutputStream createPage() {
+        return new ScratchOutputStream(pageMemoryThreshold, "APT_PAGE", ".tmp");
+    }
+
+    /**
+     * Writes a buffered page into zout as a new entry
+     */
+    private void writePage(ScratchOutputStream page, String entryName, ZipOutputStream zout) throws IOException {
+        InputStream pageContent = page.openInputStream();
+        try {
+            writePage(pageContent, entryName, zout);
+        } finally {
+            IOUtils.closeQuietly(pageContent);
+        }
+    }
+
+    private String getEntryName(HttpEntity entity, int startIndex) {
+        Header header = entity.getContentType();
+        String fileExtension = ".xml"; //VT: Default to xml as we will mostly be dealing with xml files
+        if (header != null && header.getValue().length() > 0) {
+            fileExtension = "." + MimeUtil.mimeToFileExtension(header.getValue());
+        }
+
+        return "ResultIndexed-" + startIndex + fileExtension;
+    }
+
+    /**
+     * The state of a single concurrent download. Each run takes pages (in order) until there are none left. Pages
+     * are written into zout in page order - the next page in order is streamed straight into zout, pages that
+     * arrive ahead of their turn are buffered until it comes.
+     */
+    private class ConcurrentPages implements Runnable {
+        private final String url;
+        private final ZipOutputStream zout;
+        private final int hits;
+        private final int pageSize;
+        private final int pageCount;
+        //The following are all synchronized on this
+        private int nextRequest = 0;
+        private int nextWrite = 0;
+        private int inFlight = 0;
+        private boolean writing = false;
+        private boolean closed = false;
+        private Exception failure;
+        private final Map<Integer, BufferedPage> buffered = new HashMap<Integer, BufferedPage>();
+
+        public ConcurrentPages(String url, ZipOutputStream zout, int hits, int pageSize, int pageCount) {
+            this.url = url;
+            this.zout = zout;
+            this.hits = hits;
+            this.pageSize = pageSize;
+            this.pageCount = pageCount;
+        }
+
+        @Override
+        public void run() {
+            for (int page = takePage(); page >= 0; page = takePage()) {
+                Exception error = null;
+                try {
+                    downloadPage(page);
+                } catch (Exception ex) {
+                    error = ex;
+                } catch (Throwable t) {
+                    error = new Exception(t);
+                }
+                pageFinished(error);
+            }
+        }
+
+        /**
+         * Waits for every page to be written (or for any page to fail)
+         * @throws Exception The first failure of a page
+         */
+        public synchronized void awaitCompletion() throws Exception {
+            while (inFlight > 0 || (failure == null && nextRequest < pageCount)) {
+                wait();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        /**
+         * Discards any buffered pages (and any pages that are buffered from now on)
+         */
+        public void close() {
+            Map<Integer, BufferedPage> discarded;
+            synchronized (this) {
+                closed = true;
+                discarded = new HashMap<Integer, BufferedPage>(buffered);
+                buffered.clear();
+            }
+            for (BufferedPage page : discarded.values()) {
+                page.data.delete();
+            }
+        }
+
+        /**
+         * @return The next page to request or -1 if there are none left
+         */
+        private synchronized int takePage() {
+            if (closed || failure != null || nextRequest >= pageCount) {
+                return -1;
+            }
+            inFlight++;
+            return nextRequest++;
+        }
+
+        private synchronized void pageFinished(Exception error) {
+            inFlight--;
+            if (error != null && failure == null) {
+                failure = error;
+            }
+            notifyAll();
+        }
+
+        private void downloadPage(int page) throws Exception {
+            int startIndex = page * pageSize;
+            HttpGet method = new HttpGet(url + "&startIndex=" + startIndex);
+            acquirePermit();
+            try {
+                HttpResponse httpResponse = execute(method);
+                String entryName = getEntryName(httpResponse.getEntity(), startIndex);
+                InputStream content = OWSExceptionParser.checkForExceptionResponse(trackProgress(httpResponse.getEntity().getContent()));
+                try {
+                    writePage(page, entryName, content);
+                } finally {
+                    IOUtils.closeQuietly(content);
+                }
+            } finally {
+                method.releaseConnection();
+                releasePermit();
+            }
+
+            if (progress != null) {
+                progress.addFeatures(Math.min(pageSize, hits - startIndex));
+            }
+        }
+
+        /**
+         * Streams page into zout if it's next in order, otherwise buffers it until its turn
+         */
+        private void writePage(int page, String entryName, InputStream content) throws IOException {
+            boolean inOrder;
+            synchronized (this) {
+                if (failure != null || closed) {
+                    return;
+                }
+                inOrder = !writing && page == nextWrite;
+                writing |= inOrder;
+            }
+
+            if (!inOrder) {
+                bufferPage(page, entryName, content);
+                return;
+            }
+
+            //If this fails, writing is never cleared so nothing else is written into the broken zip
+            WFSPagingDownloader.this.writePage(content, entryName, zout);
+            synchronized (this) {
+                nextWrite++;
+            }
+            writeBuffered();
+        }
+
+        private void bufferPage(int page, String entryName, InputStream content) throws IOException {
+            ScratchOutputStream data = createPage();
+            boolean copied = false;
+            try {
+                IOUtils.copy(content, data);
+                copied = true;
+            } finally {
+                data.close();
+                if (!copied) {
+                    data.delete();
+                }
+            }
+
+            synchronized (this) {
+                if (failure != null || closed) {
+                    data.delete();
+                    return;
+                }
+                buffered.put(page, new BufferedPage(entryName, data));
+                if (writing || page != nextWrite) {
+                    return;
+                }
+                writing = true;
+            }
+
+            writeBuffered();
+        }
+
+        /**
+         * Writes buffered pages (in order) until the next page in order hasn't arrived. Must only be called by
+         * the thread that set writing.
+         */
+        private void writeBuffered() throws IOException {
+            while (true) {
+                BufferedPage page;
+                synchronized (this) {
+                    page = failure == null && !closed ? buffered.remove(nextWrite) : null;
+                    if (page == null) {
+                        writing = false;
+                        return;
+                    }
+                }
+
+                try {
+                    WFSPagingDownloader.this.writePage(page.data, page.entryName, zout);
+                } finally {
+                    page.data.delete();
+                }
+                synchronized (this) {
+                    nextWrite++;
+                }
+            }
+        }
+    }
+
+    /**
+     * A page that has arrived ahead of its turn
+     */
+    private static class BufferedPage {
+        private final String entryName;
+        private final ScratchOutputStream data;
+
+        public BufferedPage(String entryName, ScratchOutputStream data) {
+            this.entryName = entryName;
+            this.data = data;
+        }
+    }
+}
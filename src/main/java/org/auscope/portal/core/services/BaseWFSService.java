@@ -17,6 +17,7 @@ import org.auscope.portal.core.services.responses.wfs.WFSCountResponse;
 import org.auscope.portal.core.services.responses.wfs.WFSGetCapabilitiesResponse;
 import org.auscope.portal.core.services.responses.wfs.WFSTransformedResponse;
 import org.auscope.portal.core.util.DOMUtil;
+import org.auscope.portal.core.util.FeatureCountUtil;
 import org.auscope.portal.core.xslt.PortalXSLTTransformer;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
@@ -110,14 +111,9 @@ public abstract class BaseWFSService {
      */
     protected WFSCountResponse getWfsFeatureCount(HttpRequestBase method) throws PortalServiceException {
         try {
-            //Make the request and parse the response
+            //Make the request and stream the count from the root element
             InputStream responseStream = httpServiceCaller.getMethodResponseAsStream(method);
-            Document responseDoc = DOMUtil.buildDomFromStream(responseStream);
-            OWSExceptionParser.checkForExceptionResponse(responseDoc);
-
-            XPathExpression xPath = DOMUtil.compileXPathExpr("wfs:FeatureCollection/@numberOfFeatures", new WFSNamespaceContext());
-            Node numNode = (Node) xPath.evaluate(responseDoc, XPathConstants.NODE);
-            int numNodeValue = Integer.parseInt(numNode.getTextContent());
+            int numNodeValue = FeatureCountUtil.getNumberOfFeatures(responseStream);
 
             return new WFSCountResponse(numNodeValue);
         } catch (Exception ex) {
@@ -152,6 +148,27 @@ public abstract class BaseWFSService {
         }
     }
 
+    /**
+     * Executes a method that returns GML wrapped in a WFS response and returns the raw response stream
+     * (after checking it for OWS exceptions) so that it can be transformed/streamed without being read into memory.
+     *
+     * The caller is responsible for closing the returned stream and calling method.releaseConnection()
+     * @param method a WFS GetFeature request
+     * @return
+     * @throws PortalServiceException If the request fails or the response is an OWS exception (the connection will be released)
+     */
+    protected InputStream getWFSResponseStream(HttpRequestBase method) throws PortalServiceException {
+        try {
+            InputStream responseStream = httpServiceCaller.getMethodResponseAsStream(method);
+            return OWSExceptionParser.checkForExceptionResponse(responseStream);
+        } catch (Exception ex) {
+            if (method != null) {
+                method.releaseConnection();
+            }
+            throw new PortalServiceException(method, ex);
+        }
+    }
+
     public WFSGetCapabilitiesResponse getCapabilitiesResponse(String wfsUrl) throws PortalServiceException {
         HttpRequestBase method = null;
 
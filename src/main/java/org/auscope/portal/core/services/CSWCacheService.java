@@ -8,15 +8,21 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.auscope.portal.core.server.http.HttpServiceCaller;
+import org.auscope.portal.core.services.csw.CSWCacheChangeEvent;
+import org.auscope.portal.core.services.csw.CSWCacheChangeListener;
 import org.auscope.portal.core.services.csw.CSWServiceItem;
 import org.auscope.portal.core.services.responses.csw.AbstractCSWOnlineResource;
 import org.auscope.portal.core.services.responses.csw.AbstractCSWOnlineResource.OnlineResourceType;
@@ -80,6 +86,12 @@ public class CSWCacheService {
     /** If true, this class will force the usage of HTTP GetMethods instead of POST methods (where possible). Useful workaround for some CSW services */
     protected boolean forceGetMethods = false;
     protected Date lastCacheUpdate;
+    /** recordCache (and all child records) keyed by file identifier. Lazily generated, access must be synchronized*/
+    private Map<String, CSWRecord> recordIndex;
+    /** Listeners (wrapped in their dispatchers) to be notified whenever a new snapshot is published*/
+    private List<ChangeListenerDispatcher> changeListeners = new CopyOnWriteArrayList<ChangeListenerDispatcher>();
+    /** Held by an update from clearing updateRunning until its change event is queued for every listener*/
+    private final Object publishLock = new Object();
 
     /**
      * Creates a new instance of a CSWKeywordCacheService. This constructor is normally autowired
@@ -158,20 +170,82 @@ public class CSWCacheService {
      *
      * if newKeywordCache is NOT null it will update the internal cache.
      * if newRecordCache is NOT null it will update the internal cache.
+     *
+     * Once the internal cache is updated, any registered CSWCacheChangeListeners will
+     * be notified (asynchronously) of the differences.
      */
-    private synchronized void updateFinished(Map<String, Set<CSWRecord>> newKeywordCache, List<CSWRecord> newRecordCache) {
-        this.updateRunning = false;
-        if (newKeywordCache != null) {
-            this.keywordCache = newKeywordCache;
+    private void updateFinished(Map<String, Set<CSWRecord>> newKeywordCache, List<CSWRecord> newRecordCache) {
+        Map<String, Set<CSWRecord>> oldKeywordCache;
+        List<CSWRecord> oldRecordCache;
+        synchronized (this) {
+            oldKeywordCache = this.keywordCache;
+            oldRecordCache = this.recordCache;
+
+            if (newKeywordCache != null) {
+                this.keywordCache = newKeywordCache;
+            }
+            if (newRecordCache != null) {
+                this.recordCache = newRecordCache;
+                this.recordIndex = null;
+            }
+
+            this.lastCacheUpdate = new Date();
+
+            log.info(String.format("Keyword cache updated! Cache now has '%1$d' unique keyword names", this.keywordCache.size()));
+            log.info(String.format("Record cache updated! Cache now has '%1$d' records", this.recordCache.size()));
         }
-        if (newRecordCache != null) {
-            this.recordCache = newRecordCache;
+
+        //The diff is calculated outside of the lock (the snapshots are no longer modified). updateRunning is cleared
+        //before the event is queued so that listeners can immediately start another update. That update can't queue
+        //its own event until publishLock is released so events will always be queued in publication order
+        synchronized (publishLock) {
+            CSWCacheChangeEvent event = null;
+            try {
+                if (!changeListeners.isEmpty() && (newKeywordCache != null || newRecordCache != null)) {
+                    event = CSWCacheChangeEvent.fromSnapshots(oldRecordCache, oldKeywordCache,
+                            newRecordCache == null ? oldRecordCache : newRecordCache,
+                            newKeywordCache == null ? oldKeywordCache : newKeywordCache);
+                    log.debug(String.format("Publishing cache change: %1$d added, %2$d removed, %3$d modified, %4$d keywords changed",
+                            event.getAddedRecords().size(), event.getRemovedRecords().size(),
+                            event.getModifiedRecords().size(), event.getChangedKeywords().size()));
+                }
+            } finally {
+                synchronized (this) {
+                    this.updateRunning = false;
+                }
+            }
+
+            if (event != null) {
+                for (ChangeListenerDispatcher dispatcher : changeListeners) {
+                    dispatcher.publish(event);
+                }
+            }
         }
+    }
 
-        this.lastCacheUpdate = new Date();
+    /**
+     * Registers a listener to be notified (asynchronously) every time this cache publishes a new snapshot.
+     *
+     * Listeners are NOT notified of the snapshot that is current at the time of registration, they should
+     * instead call getRecordCache/getKeywordCache to initialise themselves.
+     *
+     * @param listener
+     */
+    public void addChangeListener(CSWCacheChangeListener listener) {
+        changeListeners.add(new ChangeListenerDispatcher(listener));
+    }
 
-        log.info(String.format("Keyword cache updated! Cache now has '%1$d' unique keyword names", this.keywordCache.size()));
-        log.info(String.format("Record cache updated! Cache now has '%1$d' records", this.recordCache.size()));
+    /**
+     * Unregisters a listener previously added with addChangeListener. Events that have already
+     * been queued for the listener may still be delivered.
+     * @param listener
+     */
+    public void removeChangeListener(CSWCacheChangeListener listener) {
+        for (ChangeListenerDispatcher dispatcher : changeListeners) {
+            if (dispatcher.listener == listener) {
+                changeListeners.remove(dispatcher);
+            }
+        }
     }
 
     /**
@@ -206,6 +280,41 @@ public class CSWCacheService {
         return Collections.unmodifiableList(this.recordCache);
     }
 
+    /**
+     * Looks up a single record (or child record) from the record cache by its file identifier. If multiple
+     * records share the same file identifier, top level records take precedence over child records and
+     * earlier records take precedence over later ones.
+     *
+     * This function may trigger a cache update to begin on a seperate thread.
+     * @param fileIdentifier The file identifier to lookup
+     * @return The matching record or null if it DNE
+     */
+    public synchronized CSWRecord getRecordByFileIdentifier(String fileIdentifier) {
+        updateCacheIfRequired();
+
+        if (recordIndex == null) {
+            Map<String, CSWRecord> index = new HashMap<String, CSWRecord>();
+            List<CSWRecord> toIndex = this.recordCache;
+            while (!toIndex.isEmpty()) {
+                List<CSWRecord> children = new ArrayList<CSWRecord>();
+                for (CSWRecord rec : toIndex) {
+                    //Duplicates (and their children) are skipped - this also protects against cyclic child records
+                    if (rec.getFileIdentifier() == null || index.containsKey(rec.getFileIdentifier())) {
+                        continue;
+                    }
+                    index.put(rec.getFileIdentifier(), rec);
+                    if (rec.hasChildRecords()) {
+                        children.addAll(Arrays.asList(rec.getChildRecords()));
+                    }
+                }
+                toIndex = children;
+            }
+            recordIndex = index;
+        }
+
+        return recordIndex.get(fileIdentifier);
+    }
+
     /**
      * Updates the internal keyword/record cache by querying all known CSW's
      *
@@ -306,6 +415,61 @@ public class CSWCacheService {
         return Collections.unmodifiableList(records);
     }
 
+    /**
+     * Delivers change events to a single listener on the executor. Events for a given listener are
+     * delivered one at a time and in publication order so that a slow listener never delays publication
+     * (or any other listener) and never sees snapshots out of order.
+     */
+    private class ChangeListenerDispatcher implements Runnable {
+        private CSWCacheChangeListener listener;
+        private Queue<CSWCacheChangeEvent> pendingEvents = new LinkedList<CSWCacheChangeEvent>();
+        private boolean scheduled = false; //synchronized on pendingEvents
+
+        public ChangeListenerDispatcher(CSWCacheChangeListener listener) {
+            this.listener = listener;
+        }
+
+        public void publish(CSWCacheChangeEvent event) {
+            synchronized (pendingEvents) {
+                pendingEvents.add(event);
+                if (scheduled) {
+                    return;
+                }
+                scheduled = true;
+            }
+
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException ex) {
+                //This will typically only occur if the executor is shutting down
+                log.debug("Executor rejected cache change event, delivering synchronously: " + ex.getMessage());
+                run();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                CSWCacheChangeEvent event;
+                synchronized (pendingEvents) {
+                    event = pendingEvents.poll();
+                    if (event == null) {
+                        scheduled = false;
+                        return;
+                    }
+                }
+
+                try {
+                    listener.handleCacheChange(event);
+                } catch (Exception ex) {
+                    //Simply log it if the event handler fails and move on
+                    log.error("An error has occurred while handling cache change event: " + ex.getMessage());
+                    log.debug("Exception: ", ex);
+                }
+            }
+        }
+    }
+
     /**
      * Our worker class for updating our CSW cache
      */
@@ -1,26 +1,51 @@
 package org.auscope.portal.core.services;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.auscope.portal.core.services.csw.CSWCacheChangeEvent;
+import org.auscope.portal.core.services.csw.CSWCacheChangeListener;
 import org.auscope.portal.core.services.responses.csw.CSWRecord;
 import org.auscope.portal.core.view.knownlayer.KnownLayer;
 import org.auscope.portal.core.view.knownlayer.KnownLayerAndRecords;
 import org.auscope.portal.core.view.knownlayer.KnownLayerGrouping;
 import org.auscope.portal.core.view.knownlayer.KnownLayerSelector;
+import org.auscope.portal.core.view.knownlayer.KnownLayerSelector.RelationType;
+import org.auscope.portal.core.view.knownlayer.KnownLayerSelectorIndex;
 
 /**
  * A service class performing that groups CSWRecord objects (from a CSWCacheService) according
  * to a configured list of KnownLayers
  *
+ * The grouping is materialized whenever the CSWCacheService publishes a new snapshot. Only records
+ * that have been added or modified since the previous snapshot will be tested against the known layers.
+ * Known layer selectors are compiled into a KnownLayerSelectorIndex so each record is classified against
+ * every known layer in a single pass.
+ *
  * @author Josh Vote
  *
  */
-public class KnownLayerService {
+public class KnownLayerService implements CSWCacheChangeListener {
+    private final Log log = LogFactory.getLog(getClass());
+
+    /** Used as the groupings key when no class filter is specified*/
+    private static final Object NO_CLASS_FILTER = new Object();
+
     private List<KnownLayer> knownLayers;
     private CSWCacheService cswCacheService;
+    /** The most recently materialized grouping, null until first requested/published. */
+    private volatile MaterializedGrouping materializedGrouping;
+    /** Ensures that only a single grouping is being materialized at a time*/
+    private final Object materializeLock = new Object();
 
     /**
      * Creates a new instance of this class from an untyped list. All objects in knownTypes that
@@ -38,6 +63,7 @@ public class KnownLayerService {
         }
 
         this.cswCacheService = cswCacheService;
+        this.cswCacheService.addChangeListener(this);
     }
 
     /**
@@ -46,14 +72,15 @@ public class KnownLayerService {
      * objects.
      *
      * The resulting bundle of grouped/ungrouped records and known layers will
-     * then be returned.
-     * 
-     * This overload does not impose a filter for the type of class that is 
+     * then be returned. The returned lists are shared between callers and cannot
+     * be modified.
+     *
+     * This overload does not impose a filter for the type of class that is
      * allowed and therefore won't exclude anything from the list.
-     * 
+     *
      * @return
-     *      An instance of KnownLayerGrouping that encapsulates all the known 
-     *      layers, as well as any unmapped records and the original record 
+     *      An instance of KnownLayerGrouping that encapsulates all the known
+     *      layers, as well as any unmapped records and the original record
      *      list.
      */
     public KnownLayerGrouping groupKnownLayerRecords() {
@@ -66,10 +93,11 @@ public class KnownLayerService {
      * objects.
      *
      * The resulting bundle of grouped/ungrouped records and known layers will
-     * then be returned.
-     * 
+     * then be returned. The returned lists are shared between callers and cannot
+     * be modified.
+     *
      * This overload allows you explicitly state which classes should be included.
-     * 
+     *
      * @param classFilters
      *      An array of classes that should be included. You can use this to
      *      restrict the output to only include items that are of a particular
@@ -80,69 +108,233 @@ public class KnownLayerService {
      *      record list.
      */
     public <T extends KnownLayer> KnownLayerGrouping groupKnownLayerRecords(Class<T>... classFilters) {
+        //This will also kick off a cache update (if required)
         List<CSWRecord> originalRecordList = this.cswCacheService.getRecordCache();
-        List<KnownLayerAndRecords> knownLayerAndRecords = new ArrayList<KnownLayerAndRecords>();
-        Map<String, Object> mappedRecordIDs = new HashMap<String, Object>();
 
-        //Figure out what records belong to which known layers (could be multiple)
-        for (KnownLayer knownLayer : knownLayers) {
-            // We have to do this part regardless of the classFilters because
-            // if not, the results for unmappedRecords will be incorrect.
-            // (I.e.: they'll include related features from things that have
-            // been put in Research Data tab).
-            KnownLayerSelector selector = knownLayer.getKnownLayerSelector();
-            List<CSWRecord> relatedRecords = new ArrayList<CSWRecord>();
-            List<CSWRecord> belongingRecords = new ArrayList<CSWRecord>();
-
-            //For each record, mark it as being added to a known layer (if appropriate)
-            //We also need to mark the record as being mapped using mappedRecordIDs
-            for (CSWRecord record : originalRecordList) {
-                switch (selector.isRelatedRecord(record)) {
-                case Related:
-                    relatedRecords.add(record);
-                    mappedRecordIDs.put(record.getFileIdentifier(), null);
-                                            
-                    break;
-                case Belongs:
-                    belongingRecords.add(record);
-                    mappedRecordIDs.put(record.getFileIdentifier(), null);
-                    break;
+        MaterializedGrouping grouping = materializedGrouping;
+        if (grouping == null) {
+            synchronized (materializeLock) {
+                //We may have raced with a cache change event
+                if (materializedGrouping == null) {
+                    materializedGrouping = new MaterializedGrouping(originalRecordList, null, null);
                 }
+                grouping = materializedGrouping;
             }
-            
-            // The include flag will indicate whether or not this particular layer 
-            // should be included in the output.
-            boolean include = false;
-        
-            // If no filters have been set then we just check that the KnownLayer is not a derived type:
-            if (classFilters == null) {
-                include = knownLayer.getClass().equals(KnownLayer.class);
-            }
-            else {
-                // Otherwise we have to see if this particular known layer matches 
-                // any of the filters:
-                for (Class<T> classFilter : classFilters) {
-                    if (classFilter.isAssignableFrom(knownLayer.getClass())) {
-                        include = true;
-                        break;
-                    }               
+        }
+
+        return grouping.getGrouping(classFilters);
+    }
+
+    /**
+     * Rematerializes the known layer grouping from the newly published snapshot. Only added or
+     * modified records will be tested against the known layers.
+     */
+    @Override
+    public void handleCacheChange(CSWCacheChangeEvent event) {
+        Set<String> changedIds = new HashSet<String>();
+        for (CSWRecord rec : event.getAddedRecords()) {
+            changedIds.add(rec.getFileIdentifier());
+        }
+        for (CSWRecord rec : event.getModifiedRecords()) {
+            changedIds.add(rec.getFileIdentifier());
+        }
+
+        synchronized (materializeLock) {
+            materializedGrouping = new MaterializedGrouping(event.getRecords(), materializedGrouping, changedIds);
+        }
+
+        log.debug(String.format("Known layer grouping materialized from %1$d records (%2$d reclassified)", event.getRecords().size(), changedIds.size()));
+    }
+
+    /**
+     * Tests record against every known layer (via a compiled selector index), returning the indexes of every
+     * known layer that the record is related to.
+     * @param selectorIndex The known layer selectors compiled in the same order as knownLayers
+     * @param record
+     * @return
+     */
+    private RecordRelations classifyRecord(KnownLayerSelectorIndex selectorIndex, CSWRecord record) {
+        List<Integer> belongs = null;
+        List<Integer> related = null;
+
+        for (Map.Entry<Integer, RelationType> entry : selectorIndex.classify(record).entrySet()) {
+            switch (entry.getValue()) {
+            case Related:
+                if (related == null) {
+                    related = new ArrayList<Integer>();
+                }
+                related.add(entry.getKey());
+                break;
+            case Belongs:
+                if (belongs == null) {
+                    belongs = new ArrayList<Integer>();
                 }
+                belongs.add(entry.getKey());
+                break;
+            default:
+                break;
+            }
+        }
+
+        if (belongs == null && related == null) {
+            return RecordRelations.UNMAPPED;
+        }
+        return new RecordRelations(belongs, related);
+    }
+
+    /**
+     * Compiles the selectors of every known layer into a single index
+     * @return
+     */
+    private KnownLayerSelectorIndex compileSelectors() {
+        List<KnownLayerSelector> selectors = new ArrayList<KnownLayerSelector>(knownLayers.size());
+        for (KnownLayer knownLayer : knownLayers) {
+            selectors.add(knownLayer.getKnownLayerSelector());
+        }
+        return new KnownLayerSelectorIndex(selectors);
+    }
+
+    /**
+     * The indexes of all known layers that a particular record belongs to or is related to
+     */
+    private static class RecordRelations {
+        static final RecordRelations UNMAPPED = new RecordRelations(null, null);
+
+        final int[] belongs;
+        final int[] related;
+
+        RecordRelations(List<Integer> belongs, List<Integer> related) {
+            this.belongs = toArray(belongs);
+            this.related = toArray(related);
+        }
+
+        private static int[] toArray(List<Integer> list) {
+            if (list == null) {
+                return new int[0];
             }
-            
-            // If the include flag got set then we can add this record:
-            if (include) {
-                knownLayerAndRecords.add(new KnownLayerAndRecords(knownLayer, belongingRecords, relatedRecords));
+            int[] arr = new int[list.size()];
+            for (int i = 0; i < arr.length; i++) {
+                arr[i] = list.get(i);
             }
+            return arr;
+        }
+
+        boolean isMapped() {
+            return belongs.length > 0 || related.length > 0;
         }
+    }
+
+    /**
+     * An immutable grouping of a single record snapshot against every known layer.
+     */
+    private class MaterializedGrouping {
+        private List<CSWRecord> records;
+        /** Record relations keyed by file identifier*/
+        private Map<String, RecordRelations> relations;
+        private List<List<CSWRecord>> belongingRecords;
+        private List<List<CSWRecord>> relatedRecords;
+        private List<CSWRecord> unmappedRecords;
+        /** Groupings (lazily) generated for each set of class filters*/
+        private ConcurrentHashMap<Object, KnownLayerGrouping> groupings = new ConcurrentHashMap<Object, KnownLayerGrouping>();
+
+        /**
+         * Materializes a grouping for records.
+         *
+         * @param records The record snapshot to group
+         * @param previous [Optional] a previous grouping whose relations can be reused
+         * @param reclassifyIds [Optional] The file identifiers that cannot reuse a relation from previous
+         */
+        public MaterializedGrouping(List<CSWRecord> records, MaterializedGrouping previous, Set<String> reclassifyIds) {
+            this.records = records;
+            this.relations = new HashMap<String, RecordRelations>();
+            this.unmappedRecords = new ArrayList<CSWRecord>();
+
+            List<List<CSWRecord>> belonging = new ArrayList<List<CSWRecord>>(knownLayers.size());
+            List<List<CSWRecord>> related = new ArrayList<List<CSWRecord>>(knownLayers.size());
+            for (int i = 0; i < knownLayers.size(); i++) {
+                belonging.add(new ArrayList<CSWRecord>());
+                related.add(new ArrayList<CSWRecord>());
+            }
+
+            KnownLayerSelectorIndex selectorIndex = null;
+            for (CSWRecord record : records) {
+                String id = record.getFileIdentifier();
+                RecordRelations relation = relations.get(id);
+                if (relation == null) {
+                    if (previous != null && reclassifyIds != null && !reclassifyIds.contains(id)) {
+                        relation = previous.relations.get(id);
+                    }
+                    if (relation == null) {
+                        if (selectorIndex == null) {
+                            selectorIndex = compileSelectors();
+                        }
+                        relation = classifyRecord(selectorIndex, record);
+                    }
+                    relations.put(id, relation);
+                }
 
-        //Finally work out which records do NOT belong to a known layer
-        List<CSWRecord> unmappedRecords = new ArrayList<CSWRecord>();
-        for (CSWRecord record : originalRecordList) {
-            if (!mappedRecordIDs.containsKey(record.getFileIdentifier())) {
-                unmappedRecords.add(record);
+                for (int i : relation.belongs) {
+                    belonging.get(i).add(record);
+                }
+                for (int i : relation.related) {
+                    related.get(i).add(record);
+                }
+                if (!relation.isMapped()) {
+                    unmappedRecords.add(record);
+                }
+            }
+
+            for (int i = 0; i < knownLayers.size(); i++) {
+                belonging.set(i, Collections.unmodifiableList(belonging.get(i)));
+                related.set(i, Collections.unmodifiableList(related.get(i)));
             }
+            this.belongingRecords = belonging;
+            this.relatedRecords = related;
+            this.unmappedRecords = Collections.unmodifiableList(unmappedRecords);
         }
 
-        return new KnownLayerGrouping(knownLayerAndRecords, unmappedRecords, originalRecordList);   
+        /**
+         * Gets the grouping (containing only the known layers that pass classFilters)
+         * @param classFilters
+         * @return
+         */
+        public <T extends KnownLayer> KnownLayerGrouping getGrouping(Class<T>[] classFilters) {
+            Object key = classFilters == null ? NO_CLASS_FILTER : Arrays.asList(classFilters);
+            KnownLayerGrouping grouping = groupings.get(key);
+            if (grouping != null) {
+                return grouping;
+            }
+
+            List<KnownLayerAndRecords> knownLayerAndRecords = new ArrayList<KnownLayerAndRecords>();
+            for (int i = 0; i < knownLayers.size(); i++) {
+                KnownLayer knownLayer = knownLayers.get(i);
+
+                // The include flag will indicate whether or not this particular layer
+                // should be included in the output.
+                boolean include = false;
+
+                // If no filters have been set then we just check that the KnownLayer is not a derived type:
+                if (classFilters == null) {
+                    include = knownLayer.getClass().equals(KnownLayer.class);
+                } else {
+                    // Otherwise we have to see if this particular known layer matches
+                    // any of the filters:
+                    for (Class<T> classFilter : classFilters) {
+                        if (classFilter.isAssignableFrom(knownLayer.getClass())) {
+                            include = true;
+                            break;
+                        }
+                    }
+                }
+
+                if (include) {
+                    knownLayerAndRecords.add(new KnownLayerAndRecords(knownLayer, belongingRecords.get(i), relatedRecords.get(i)));
+                }
+            }
+
+            grouping = new KnownLayerGrouping(Collections.unmodifiableList(knownLayerAndRecords), unmappedRecords, records);
+            KnownLayerGrouping existing = groupings.putIfAbsent(key, grouping);
+            return existing == null ? grouping : existing;
+        }
     }
-}
\ No newline at end of file
+}
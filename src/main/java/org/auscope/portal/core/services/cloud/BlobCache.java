@@ -0,0 +1,275 @@
+package org.auscope.portal.core.services.cloud;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.auscope.portal.core.util.ScratchSpace;
+import org.auscope.portal.core.util.ScratchSpace.ScratchFile;
+
+/**
+ * A bounded, least recently used, local disk cache of blobs. Entries are keyed by blob key and will only be
+ * served whilst the ETag they were stored with matches the ETag currently reported by storage.
+ *
+ * Cached files are allocated from a ScratchSpace. Blobs that don't fit within the per entry limit (or the
+ * ScratchSpace quotas) are simply not cached.
+ */
+public class BlobCache {
+
+    /** The default maximum number of bytes the cache will hold */
+    public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+    /** The default maximum size of a single cached blob */
+    public static final long DEFAULT_MAX_ENTRY_BYTES = 4L * 1024 * 1024;
+
+    private final Log log = LogFactory.getLog(getClass());
+    private final ScratchSpace scratchSpace;
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    /** Access ordered so that the eldest entry is the least recently used */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long totalBytes;
+
+    /**
+     * Creates a new cache in the default ScratchSpace with the default limits
+     */
+    public BlobCache() {
+        this(null, DEFAULT_MAX_BYTES, DEFAULT_MAX_ENTRY_BYTES);
+    }
+
+    /**
+     * Creates a new cache
+     * @param scratchSpace Where cached blobs will be written. If null, the default ScratchSpace will be used
+     * @param maxBytes The maximum number of bytes the cache will hold
+     * @param maxEntryBytes The maximum size of a single cached blob
+     */
+    public BlobCache(ScratchSpace scratchSpace, long maxBytes, long maxEntryBytes) {
+        this.scratchSpace = scratchSpace;
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxEntryBytes;
+    }
+
+    private ScratchSpace getScratchSpace() {
+        return scratchSpace == null ? ScratchSpace.getDefault() : scratchSpace;
+    }
+
+    /**
+     * The maximum number of bytes the cache will hold
+     * @return
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * The maximum size of a single cached blob
+     * @return
+     */
+    public long getMaxEntryBytes() {
+        return maxEntryBytes;
+    }
+
+    /**
+     * The number of bytes currently cached
+     * @return
+     */
+    public synchronized long getSize() {
+        return totalBytes;
+    }
+
+    /**
+     * The number of blobs currently cached
+     * @return
+     */
+    public synchronized int getCount() {
+        return entries.size();
+    }
+
+    /**
+     * Returns true if a blob of the specified length can be cached
+     * @param length
+     * @return
+     */
+    public boolean accepts(long length) {
+        return length >= 0 && length <= maxEntryBytes && length <= maxBytes;
+    }
+
+    /**
+     * Returns true if there is a cached blob for key (regardless of its ETag)
+     * @param key
+     * @return
+     */
+    public synchronized boolean contains(String key) {
+        return entries.containsKey(key);
+    }
+
+    /**
+     * Opens a cached blob.
+     * @param key The blob key
+     * @param eTag The ETag currently reported by storage. A cached blob with a different ETag will be evicted.
+     * @return The cached blob or null if it isn't cached (or is stale)
+     * @throws IOException
+     */
+    public InputStream open(String key, String eTag) throws IOException {
+        return open(key, eTag, 0, -1);
+    }
+
+    /**
+     * Opens a range of a cached blob.
+     * @param key The blob key
+     * @param eTag The ETag currently reported by storage. A cached blob with a different ETag will be evicted.
+     * @param offset The first byte to read
+     * @param length The maximum number of bytes to read (or -1 to read to the end of the blob)
+     * @return The cached range or null if the blob isn't cached (or is stale)
+     * @throws IOException
+     */
+    public synchronized InputStream open(String key, String eTag, long offset, long length) throws IOException {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+
+        if (eTag == null || !eTag.equals(entry.eTag)) {
+            remove(key);
+            return null;
+        }
+
+        //Opening whilst holding the lock ensures the file can't be evicted out from underneath us
+        FileInputStream fis = new FileInputStream(entry.file.getFile());
+        try {
+            fis.getChannel().position(offset);
+        } catch (IOException ex) {
+            IOUtils.closeQuietly(fis);
+            throw ex;
+        }
+        return length < 0 ? fis : new BoundedInputStream(fis, length);
+    }
+
+    /**
+     * Writes a blob to the cache (replacing any existing entry for key), evicting the least recently used blobs
+     * until the cache fits within its limit. The data stream will be fully read but NOT closed.
+     *
+     * @param key The blob key
+     * @param eTag The ETag reported by storage for the blob
+     * @param length The length of the blob
+     * @param data The blob data
+     * @return The cached file or null if the blob couldn't be cached (in which case data will be unread)
+     * @throws IOException If data can't be read or doesn't match length
+     */
+    public File put(String key, String eTag, long length, InputStream data) throws IOException {
+        if (eTag == null || !accepts(length)) {
+            return null;
+        }
+
+        ScratchFile file = getScratchSpace().createFile(null, "APT_BLOB", ".cache");
+        boolean cached = false;
+        try {
+            if (!file.tryAllocate(length)) {
+                log.debug(String.format("Not caching '%1$s'. Scratch quota is exhausted", key));
+                return null;
+            }
+
+            OutputStream os = new FileOutputStream(file.getFile());
+            long copied;
+            try {
+                copied = IOUtils.copyLarge(new BoundedInputStream(data, length + 1), os);
+            } finally {
+                os.close();
+            }
+            if (copied != length) {
+                throw new IOException(String.format("Expected %1$d bytes for '%2$s' but read %3$d", length, key, copied));
+            }
+
+            synchronized (this) {
+                remove(key);
+                entries.put(key, new Entry(file, eTag, length));
+                totalBytes += length;
+                evict();
+            }
+            cached = true;
+            return file.getFile();
+        } finally {
+            if (!cached) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Removes the cached blob for key (if any)
+     * @param key
+     */
+    public synchronized void invalidate(String key) {
+        remove(key);
+    }
+
+    /**
+     * Removes every cached blob whose key starts with prefix
+     * @param prefix
+     */
+    public synchronized void invalidatePrefix(String prefix) {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Entry> mapEntry = it.next();
+            if (mapEntry.getKey().startsWith(prefix)) {
+                it.remove();
+                discard(mapEntry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Removes every cached blob
+     */
+    public synchronized void clear() {
+        for (Entry entry : entries.values()) {
+            discard(entry);
+        }
+        entries.clear();
+    }
+
+    private void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            discard(entry);
+        }
+    }
+
+    private void discard(Entry entry) {
+        totalBytes -= entry.length;
+        entry.file.delete();
+    }
+
+    /**
+     * Removes least recently used entries until the cache fits within maxBytes
+     */
+    private void evict() {
+        Iterator<Entry> it = entries.values().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Entry entry = it.next();
+            it.remove();
+            discard(entry);
+        }
+    }
+
+    private static class Entry {
+        private final ScratchFile file;
+        private final String eTag;
+        private final long length;
+
+        public Entry(ScratchFile file, String eTag, long length) {
+            this.file = file;
+            this.eTag = eTag;
+            this.length = length;
+        }
+    }
+}
@@ -1,12 +1,23 @@
 package org.auscope.portal.core.services.cloud;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -18,17 +29,35 @@ import org.jclouds.blobstore.BlobStore;
 import org.jclouds.blobstore.BlobStoreContext;
 import org.jclouds.blobstore.KeyNotFoundException;
 import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.BlobMetadata;
 import org.jclouds.blobstore.domain.PageSet;
 import org.jclouds.blobstore.domain.StorageMetadata;
 import org.jclouds.blobstore.domain.internal.BlobMetadataImpl;
 import org.jclouds.blobstore.domain.internal.MutableBlobMetadataImpl;
+import org.jclouds.blobstore.options.GetOptions;
 import org.jclouds.blobstore.options.ListContainerOptions;
+import org.jclouds.blobstore.options.PutOptions;
 import org.jclouds.io.ContentMetadata;
 import org.jclouds.rest.AuthorizationException;
 
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
 /**
  * Service for providing storage of objects (blobs) in a cloud using the JClouds library
  *
+ * Job files are uploaded concurrently (see setUploadParallelism). Files larger than the multipart threshold are
+ * uploaded using the provider's multipart upload (split into parts of the size specified at construction), all other
+ * files are verified against their MD5. Failed uploads are retried (see setUploadRetries).
+ *
+ * Job file listings are cached for a short time (see setListingCacheTtl) and concurrent listings of the same job
+ * share a single request to the blob store. Uploading or deleting a job's files invalidates its cached listing.
+ *
+ * If a BlobCache is configured (see setBlobCache), small job files are cached on local disk and served from there
+ * whilst their ETag is unchanged. Ranges of job files (eg the tail of a log) can be read with the provider's
+ * ranged GET.
+ *
  * @author Josh Vote
  *
  */
@@ -36,6 +65,16 @@ public class CloudStorageService {
 
     /** The bucket name used when no bucket is specified*/
     public static final String DEFAULT_BUCKET = "portal-core-storage-service";
+    /** The default size (in bytes) of the parts of a multipart upload */
+    public static final long DEFAULT_MULTIPART_PART_SIZE = 32L * 1024 * 1024;
+    /** The default number of files that will be uploaded simultaneously */
+    public static final int DEFAULT_UPLOAD_PARALLELISM = 4;
+    /** The default number of times a failed file upload will be retried */
+    public static final int DEFAULT_UPLOAD_RETRIES = 2;
+    /** The default time (in milliseconds) that a job's file listing will be cached for */
+    public static final long DEFAULT_LISTING_CACHE_TTL = 5000;
+    /** The delay before the first retry of a failed upload (increasing with every subsequent retry) */
+    private static final long RETRY_BACKOFF_MILLIS = 250;
 
     private final Log log = LogFactory.getLog(getClass());
 
@@ -64,6 +103,19 @@ public class CloudStorageService {
      */
     private String bucket = DEFAULT_BUCKET;
 
+    /** Files larger than this (in bytes) will be uploaded using multipart upload */
+    private long multipartThreshold = DEFAULT_MULTIPART_PART_SIZE;
+    /** The number of files that will be uploaded simultaneously */
+    private int uploadParallelism = DEFAULT_UPLOAD_PARALLELISM;
+    /** The number of times a failed file upload will be retried */
+    private int uploadRetries = DEFAULT_UPLOAD_RETRIES;
+    /** How long (in milliseconds) a job's file listing will be cached for */
+    private volatile long listingCacheTtl = DEFAULT_LISTING_CACHE_TTL;
+    /** Cached (or in progress) job file listings keyed by job base key */
+    private final ConcurrentHashMap<String, CachedListing> listingCache = new ConcurrentHashMap<String, CachedListing>();
+    /** Local cache of job files (null if disabled) */
+    private volatile BlobCache blobCache;
+
     private BlobStoreContext blobStoreContext;
 
     /**
@@ -125,6 +177,21 @@ public class CloudStorageService {
      * @param stripExpectHeader Whether to remove HTTP Expect header from requests; set to true for blobstores that do not support 100-Continue
      */
     public CloudStorageService(String endpoint, String provider, String accessKey, String secretKey, String regionName, boolean relaxHostName, boolean stripExpectHeader) {
+        this(endpoint, provider, accessKey, secretKey, regionName, relaxHostName, stripExpectHeader, DEFAULT_MULTIPART_PART_SIZE);
+    }
+
+    /**
+     * Creates a new instance for connecting to the specified parameters
+     * @param endpoint The URL endpoint for the cloud storage service
+     * @param provider A unique identifier identifying the type of storage API used to store this job's files - eg 'swift'
+     * @param accessKey Username credential for accessing the storage service
+     * @param secretKey Password credentials for accessing the storage service
+     * @param regionName The region identifier string for this service (if any). Can be null/empty.
+     * @param relaxHostName Whether security certs are required to strictly match the host
+     * @param stripExpectHeader Whether to remove HTTP Expect header from requests; set to true for blobstores that do not support 100-Continue
+     * @param multipartPartSize The size (in bytes) of the parts of a multipart upload. Also used as the initial multipart threshold.
+     */
+    public CloudStorageService(String endpoint, String provider, String accessKey, String secretKey, String regionName, boolean relaxHostName, boolean stripExpectHeader, long multipartPartSize) {
         super();
 
         this.endpoint = endpoint;
@@ -143,6 +210,8 @@ public class CloudStorageService {
         Properties properties = new Properties();
         properties.setProperty("jclouds.relax-hostname", relaxHostName ? "true" : "false");
         properties.setProperty("jclouds.strip-expect-header", stripExpectHeader ? "true" : "false");
+        properties.setProperty("jclouds.mpu.parts.size", Long.toString(multipartPartSize));
+        this.multipartThreshold = multipartPartSize;
 
         if (regionName != null) {
             properties.setProperty("jclouds.region", regionName);
@@ -293,6 +362,89 @@ public class CloudStorageService {
         this.regionName = regionName;
     }
 
+    /**
+     * Files larger than this (in bytes) will be uploaded using multipart upload
+     * @return
+     */
+    public long getMultipartThreshold() {
+        return multipartThreshold;
+    }
+
+    /**
+     * Files larger than this (in bytes) will be uploaded using multipart upload
+     * @param multipartThreshold
+     */
+    public void setMultipartThreshold(long multipartThreshold) {
+        this.multipartThreshold = multipartThreshold;
+    }
+
+    /**
+     * The number of files that will be uploaded simultaneously
+     * @return
+     */
+    public int getUploadParallelism() {
+        return uploadParallelism;
+    }
+
+    /**
+     * The number of files that will be uploaded simultaneously
+     * @param uploadParallelism
+     */
+    public void setUploadParallelism(int uploadParallelism) {
+        this.uploadParallelism = Math.max(1, uploadParallelism);
+    }
+
+    /**
+     * The number of times a failed file upload will be retried
+     * @return
+     */
+    public int getUploadRetries() {
+        return uploadRetries;
+    }
+
+    /**
+     * The number of times a failed file upload will be retried
+     * @param uploadRetries
+     */
+    public void setUploadRetries(int uploadRetries) {
+        this.uploadRetries = Math.max(0, uploadRetries);
+    }
+
+    /**
+     * How long (in milliseconds) a job's file listing will be cached for. 0 disables caching.
+     * @return
+     */
+    public long getListingCacheTtl() {
+        return listingCacheTtl;
+    }
+
+    /**
+     * How long (in milliseconds) a job's file listing will be cached for. 0 disables caching.
+     * @param listingCacheTtl
+     */
+    public void setListingCacheTtl(long listingCacheTtl) {
+        this.listingCacheTtl = listingCacheTtl;
+        if (listingCacheTtl <= 0) {
+            listingCache.clear();
+        }
+    }
+
+    /**
+     * The local cache of job files (null if disabled)
+     * @return
+     */
+    public BlobCache getBlobCache() {
+        return blobCache;
+    }
+
+    /**
+     * The local cache of job files (null to disable)
+     * @param blobCache
+     */
+    public void setBlobCache(BlobCache blobCache) {
+        this.blobCache = blobCache;
+    }
+
     /**
      * Utility for allowing only whitelisted characters
      * @param s
@@ -357,6 +509,8 @@ public class CloudStorageService {
      *
      * Ensure the resulting InputStream is closed
      *
+     * If a BlobCache is configured, the file will be served from (or written to) the cache.
+     *
      * @param job The job whose storage space will be queried
      * @param key The file name (no prefixes)
      * @return
@@ -365,8 +519,23 @@ public class CloudStorageService {
     public InputStream getJobFile(CloudJob job, String key) throws PortalServiceException {
         try {
             BlobStore bs = blobStoreContext.getBlobStore();
-            Blob blob = bs.getBlob(bucket, keyForJobFile(job, key));
-            return blob.getPayload().getInput();
+            String fullKey = keyForJobFile(job, key);
+            BlobCache cache = blobCache;
+            if (cache == null) {
+                Blob blob = bs.getBlob(bucket, fullKey);
+                return blob.getPayload().openStream();
+            }
+
+            //Only pay for the extra metadata request if there is something to validate
+            if (cache.contains(fullKey)) {
+                BlobMetadata metadata = bs.blobMetadata(bucket, fullKey);
+                InputStream cached = metadata == null ? null : cache.open(fullKey, metadata.getETag());
+                if (cached != null) {
+                    return cached;
+                }
+            }
+
+            return cacheBlob(bs, cache, fullKey, bs.getBlob(bucket, fullKey));
         } catch (Exception ex) {
             log.error(String.format("Unable to get job file '%1$s' for job %2$s:", key, job));
             log.debug("error:", ex);
@@ -375,17 +544,185 @@ public class CloudStorageService {
     }
 
     /**
-     * Gets information about every file in the job's cloud storage space
+     * Gets the input stream for a range of bytes from a job file identified by key using the provider's ranged GET
+     * (or the BlobCache if the file is cached).
+     *
+     * Ensure the resulting InputStream is closed
+     *
+     * @param job The job whose storage space will be queried
+     * @param key The file name (no prefixes)
+     * @param offset The first byte to read
+     * @param length The number of bytes to read
+     * @return
+     * @throws PortalServiceException
+     */
+    public InputStream getJobFile(CloudJob job, String key, long offset, long length) throws PortalServiceException {
+        return getJobFileRange(job, key, offset, length, false);
+    }
+
+    /**
+     * Gets the input stream for (up to) the last bytes of a job file identified by key using the provider's ranged
+     * GET (or the BlobCache if the file is cached). Useful for previewing the end of large log files.
+     *
+     * Ensure the resulting InputStream is closed
+     *
+     * @param job The job whose storage space will be queried
+     * @param key The file name (no prefixes)
+     * @param bytes The maximum number of bytes to read from the end of the file
+     * @return
+     * @throws PortalServiceException
+     */
+    public InputStream getJobFileTail(CloudJob job, String key, long bytes) throws PortalServiceException {
+        return getJobFileRange(job, key, 0, bytes, true);
+    }
+
+    private InputStream getJobFileRange(CloudJob job, String key, long offset, long length, boolean tail) throws PortalServiceException {
+        if (length <= 0) {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+
+        try {
+            BlobStore bs = blobStoreContext.getBlobStore();
+            String fullKey = keyForJobFile(job, key);
+            BlobCache cache = blobCache;
+            if (cache != null && cache.contains(fullKey)) {
+                BlobMetadata metadata = bs.blobMetadata(bucket, fullKey);
+                Long size = metadata == null ? null : metadata.getContentMetadata().getContentLength();
+                if (size != null) {
+                    long start = tail ? Math.max(0, size - length) : offset;
+                    InputStream cached = cache.open(fullKey, metadata.getETag(), start, length);
+                    if (cached != null) {
+                        return cached;
+                    }
+                }
+            }
+
+            GetOptions options = tail ? new GetOptions().tail(length) : new GetOptions().range(offset, offset + length - 1);
+            Blob blob = bs.getBlob(bucket, fullKey, options);
+            return blob.getPayload().openStream();
+        } catch (Exception ex) {
+            log.error(String.format("Unable to get range of job file '%1$s' for job %2$s:", key, job));
+            log.debug("error:", ex);
+            throw new PortalServiceException("Error retriving output file details", ex);
+        }
+    }
+
+    /**
+     * Writes blob to cache (if it's small enough) and returns a stream to its contents
+     */
+    private InputStream cacheBlob(BlobStore bs, BlobCache cache, String fullKey, Blob blob) throws IOException {
+        InputStream data = blob.getPayload().openStream();
+        BlobMetadata metadata = blob.getMetadata();
+        Long length = metadata == null ? null : metadata.getContentMetadata().getContentLength();
+        if (length == null) {
+            return data;
+        }
+
+        try {
+            if (cache.put(fullKey, metadata.getETag(), length, data) == null) {
+                return data; //Not cached and still unread
+            }
+        } catch (IOException ex) {
+            data.close();
+            throw ex;
+        }
+        data.close();
+
+        InputStream cached = cache.open(fullKey, metadata.getETag());
+        if (cached == null) {
+            //Evicted before we could open it
+            return bs.getBlob(bucket, fullKey).getPayload().openStream();
+        }
+        return cached;
+    }
+
+    /**
+     * Gets information about every file in the job's cloud storage space. Listings are cached for listingCacheTtl
+     * and concurrent requests for the same job will share a single listing. Every call returns its own copy of
+     * the (cached) file information.
      * @param job The job whose storage space will be queried
      * @return
      * @throws PortalServiceException
      */
-    public CloudFileInformation[] listJobFiles(CloudJob job) throws PortalServiceException {
+    public CloudFileInformation[] listJobFiles(final CloudJob job) throws PortalServiceException {
+        final String baseKey = generateBaseKey(job);
+        long ttl = listingCacheTtl;
+        if (ttl <= 0) {
+            return listJobFiles(job, baseKey);
+        }
+
+        while (true) {
+            CachedListing listing = listingCache.get(baseKey);
+            if (listing == null || listing.isExpired(ttl)) {
+                purgeExpiredListings(ttl);
+                CachedListing newListing = new CachedListing(new Callable<CloudFileInformation[]>() {
+                    @Override
+                    public CloudFileInformation[] call() throws Exception {
+                        return listJobFiles(job, baseKey);
+                    }
+                });
+
+                boolean added = listing == null ? listingCache.putIfAbsent(baseKey, newListing) == null : listingCache.replace(baseKey, listing, newListing);
+                if (!added) {
+                    continue; //Someone else has started a listing
+                }
+                listing = newListing;
+                listing.task.run();
+            }
 
+            try {
+                return copyOf(listing.task.get());
+            } catch (ExecutionException ex) {
+                listingCache.remove(baseKey, listing);
+                if (ex.getCause() instanceof PortalServiceException) {
+                    throw (PortalServiceException) ex.getCause();
+                }
+                throw new PortalServiceException("Error retriving output file details", ex.getCause());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new PortalServiceException("Interrupted whilst listing job files", ex);
+            }
+        }
+    }
+
+    /**
+     * Removes every expired listing from the cache (so listings of jobs that are never queried again don't linger)
+     */
+    private void purgeExpiredListings(long ttl) {
+        for (Map.Entry<String, CachedListing> entry : listingCache.entrySet()) {
+            if (entry.getValue().isExpired(ttl)) {
+                listingCache.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Copies every element of a cached listing so callers can't modify the cache
+     */
+    private static CloudFileInformation[] copyOf(CloudFileInformation[] listing) {
+        CloudFileInformation[] copy = new CloudFileInformation[listing.length];
+        for (int i = 0; i < listing.length; i++) {
+            copy[i] = new CloudFileInformation(listing[i].getCloudKey(), listing[i].getSize(), listing[i].getPublicUrl());
+        }
+        return copy;
+    }
 
+    /**
+     * Removes any cached listing for job
+     */
+    private void invalidateListing(CloudJob job) {
+        listingCache.remove(generateBaseKey(job));
+        if (job.getStorageBaseKey() != null) {
+            listingCache.remove(job.getStorageBaseKey());
+        }
+    }
+
+    /**
+     * Lists every file under baseKey directly from the blob store
+     */
+    private CloudFileInformation[] listJobFiles(CloudJob job, String baseKey) throws PortalServiceException {
         try {
             BlobStore bs = blobStoreContext.getBlobStore();
-            String baseKey = generateBaseKey(job);
 
             //Paging is a little awkward - this list method may return an incomplete list requiring followup queries
             PageSet<? extends StorageMetadata> currentMetadataPage = bs.list(bucket, ListContainerOptions.Builder.inDirectory(baseKey));
@@ -423,7 +760,8 @@ public class CloudStorageService {
     }
 
     /**
-     * Uploads an array of local files into the specified job's storage space
+     * Uploads an array of local files into the specified job's storage space. Up to uploadParallelism files
+     * will be uploaded simultaneously.
      * @param job The job whose storage space will be used
      * @param files The local files to upload
      * @throws PortalServiceException
@@ -431,17 +769,48 @@ public class CloudStorageService {
     public void uploadJobFiles(CloudJob job, File[] files) throws PortalServiceException {
 
         try {
-            BlobStore bs = blobStoreContext.getBlobStore();
+            final BlobStore bs = blobStoreContext.getBlobStore();
 
-            for (File file : files) {
+            //Keys are generated up front as they may update the job
+            final String[] keys = new String[files.length];
+            for (int i = 0; i < files.length; i++) {
+                keys[i] = keyForJobFile(job, files[i].getName());
+            }
 
-                Blob newBlob = bs.blobBuilder(keyForJobFile(job, file.getName()))
-                        .payload(file)
-                        .build();
+            if (files.length <= 1 || uploadParallelism <= 1) {
+                for (int i = 0; i < files.length; i++) {
+                    uploadJobFile(bs, keys[i], files[i]);
+                }
+                return;
+            }
 
-                bs.putBlob(bucket, newBlob);
+            ExecutorService executor = Executors.newFixedThreadPool(Math.min(uploadParallelism, files.length));
+            try {
+                CompletionService<Void> completionService = new ExecutorCompletionService<Void>(executor);
+                for (int i = 0; i < files.length; i++) {
+                    final String key = keys[i];
+                    final File file = files[i];
+                    completionService.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws Exception {
+                            uploadJobFile(bs, key, file);
+                            return null;
+                        }
+                    });
+                }
 
-                log.debug(file.getName() + " uploaded to '" + bucket + "' container");
+                for (int i = 0; i < files.length; i++) {
+                    try {
+                        completionService.take().get();
+                    } catch (ExecutionException ex) {
+                        if (ex.getCause() instanceof Exception) {
+                            throw (Exception) ex.getCause();
+                        }
+                        throw ex;
+                    }
+                }
+            } finally {
+                executor.shutdownNow();
             }
         } catch (AuthorizationException ex) {
             log.error("Storage credentials are not valid for job: " + job, ex);
@@ -452,6 +821,78 @@ public class CloudStorageService {
         } catch (Exception ex) {
             log.error("Unable to upload files for job: " + job, ex);
             throw new PortalServiceException("An unexpected error has occurred while uploading file(s) to storage.", "Please report it to cg-admin@csiro.au.");
+        } finally {
+            invalidateListing(job);
+        }
+    }
+
+    /**
+     * Uploads a single file (retrying up to uploadRetries times). Files larger than multipartThreshold are uploaded
+     * with multipart upload and verified by length, all others are sent (and verified) with their MD5.
+     */
+    private void uploadJobFile(BlobStore bs, String key, File file) throws Exception {
+        long length = file.length();
+        boolean multipart = length > multipartThreshold;
+        HashCode md5 = multipart ? null : Files.hash(file, Hashing.md5());
+
+        for (int attempt = 0; ; attempt++) {
+            try {
+                if (multipart) {
+                    Blob newBlob = bs.blobBuilder(key)
+                            .payload(Files.asByteSource(file))
+                            .contentLength(length)
+                            .build();
+                    bs.putBlob(bucket, newBlob, PutOptions.Builder.multipart());
+                    verifyLength(bs, key, length);
+                } else {
+                    Blob newBlob = bs.blobBuilder(key)
+                            .payload(Files.asByteSource(file))
+                            .contentLength(length)
+                            .contentMD5(md5)
+                            .build();
+                    verifyETag(key, md5, bs.putBlob(bucket, newBlob));
+                }
+
+                log.debug(file.getName() + " uploaded to '" + bucket + "' container");
+                return;
+            } catch (AuthorizationException ex) {
+                throw ex;
+            } catch (KeyNotFoundException ex) {
+                throw ex;
+            } catch (Exception ex) {
+                if (attempt >= uploadRetries) {
+                    throw ex;
+                }
+                log.warn(String.format("Upload of '%1$s' failed (attempt %2$d), retrying: %3$s", key, attempt + 1, ex.getMessage()));
+                log.debug("error:", ex);
+                Thread.sleep(RETRY_BACKOFF_MILLIS * (attempt + 1));
+            }
+        }
+    }
+
+    /**
+     * Compares an ETag returned for an upload against the MD5 of the uploaded file. ETags that aren't an MD5 (which
+     * some providers return) are ignored.
+     */
+    private void verifyETag(String key, HashCode md5, String eTag) throws IOException {
+        if (eTag == null) {
+            return;
+        }
+
+        String normalised = eTag.replace("\"", "").toLowerCase();
+        if (normalised.matches("[0-9a-f]{32}") && !normalised.equals(md5.toString())) {
+            throw new IOException(String.format("MD5 mismatch for '%1$s'. Expected %2$s but storage reported %3$s", key, md5, normalised));
+        }
+    }
+
+    /**
+     * Checks that a multipart upload (whose ETag isn't an MD5) stored the expected number of bytes
+     */
+    private void verifyLength(BlobStore bs, String key, long length) throws IOException {
+        BlobMetadata metadata = bs.blobMetadata(bucket, key);
+        Long storedLength = metadata == null ? null : metadata.getContentMetadata().getContentLength();
+        if (storedLength == null || storedLength != length) {
+            throw new IOException(String.format("Length mismatch for '%1$s'. Expected %2$d but storage reported %3$s", key, length, storedLength));
         }
     }
 
@@ -467,6 +908,31 @@ public class CloudStorageService {
         } catch (Exception ex) {
             log.error("Error in removing job files or storage key.", ex);
             throw new PortalServiceException("An unexpected error has occurred while removing job files from S3 storage", ex);
+        } finally {
+            invalidateListing(job);
+            BlobCache cache = blobCache;
+            if (cache != null) {
+                cache.invalidatePrefix(keyForJobFile(job, ""));
+            }
+        }
+    }
+
+    /**
+     * A (possibly in progress) job file listing
+     */
+    private static class CachedListing {
+        private final FutureTask<CloudFileInformation[]> task;
+        private final long created = System.currentTimeMillis();
+
+        public CachedListing(Callable<CloudFileInformation[]> listing) {
+            this.task = new FutureTask<CloudFileInformation[]>(listing);
+        }
+
+        /**
+         * In progress listings never expire
+         */
+        public boolean isExpired(long ttl) {
+            return task.isDone() && System.currentTimeMillis() - created > ttl;
         }
     }
 }
\ No newline at end of file
@@ -9,6 +9,7 @@ import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.logging.Log;
@@ -17,6 +18,7 @@ import org.auscope.portal.core.cloud.StagedFile;
 import org.auscope.portal.core.cloud.StagingInformation;
 import org.auscope.portal.core.cloud.StagedFileOwner;
 import org.auscope.portal.core.services.PortalServiceException;
+import org.auscope.portal.core.util.FileDownloadUtil;
 import org.auscope.portal.core.util.FileIOUtil;
 import org.springframework.web.multipart.MultipartFile;
 import org.springframework.web.multipart.MultipartHttpServletRequest;
@@ -387,7 +389,20 @@ public class FileStagingService {
      * @throws IOException
      */
     public void handleFileDownload(StagedFile stagedFile, HttpServletResponse response) throws PortalServiceException {
-        handleFileDownload(stagedFile.getOwner(), stagedFile.getName(), response);
+        handleFileDownload(stagedFile.getOwner(), stagedFile.getName(), null, response);
+    }
+
+    /**
+     * This function will attempt to download fileName from job's staging directory by writing
+     * directly to the output stream of response. Any Range/If-Range/If-None-Match headers in
+     * request will be honoured (allowing interrupted downloads to resume).
+     *
+     * @param stagedFile Must have owner and name set
+     * @param request [Optional] The request for the file
+     * @throws IOException
+     */
+    public void handleFileDownload(StagedFile stagedFile, HttpServletRequest request, HttpServletResponse response) throws PortalServiceException {
+        handleFileDownload(stagedFile.getOwner(), stagedFile.getName(), request, response);
     }
 
     /**
@@ -401,6 +416,19 @@ public class FileStagingService {
      * @throws IOException
      */
     public void handleFileDownload(StagedFileOwner job, String fileName, HttpServletResponse response) throws PortalServiceException {
+        handleFileDownload(job, fileName, null, response);
+    }
+
+    /**
+     * This function will attempt to download fileName from job's staging directory by writing
+     * directly to the output stream of response. Any Range/If-Range/If-None-Match headers in
+     * request will be honoured (allowing interrupted downloads to resume).
+     *
+     * @param job Must have its fileStorageId parameter set
+     * @param request [Optional] The request for the file. If null the entire file will be sent
+     * @throws IOException
+     */
+    public void handleFileDownload(StagedFileOwner job, String fileName, HttpServletRequest request, HttpServletResponse response) throws PortalServiceException {
         String directory = pathConcat(stagingInformation.getStageInDirectory(), getBaseFolderForJob(job));
         String filePath = pathConcat(directory, fileName);
 
@@ -412,29 +440,12 @@ public class FileStagingService {
             throw new PortalServiceException("File "+f.getPath()+" not readable!");
         }
 
-        //Start configuring our response for a download stream
-        response.setContentType("application/octet-stream");
-        response.setHeader("Content-Disposition",
-                "attachment; filename=\""+fileName+"\"");
-
-        //Then push all data down
-        byte[] buffer = new byte[4096];
-        int count = 0;
-        OutputStream out = null;
-        FileInputStream fin = null;
         try {
-            out = response.getOutputStream();
-            fin = new FileInputStream(f);
-            while ((count = fin.read(buffer)) != -1) {
-                out.write(buffer, 0, count);
-            }
-            out.flush();
+            FileDownloadUtil.writeFile(f, fileName, "application/octet-stream", request, response);
         } catch (IOException ex) {
             logger.error("Failure during download:" + ex.getMessage());
             logger.debug("error:", ex);
             throw new PortalServiceException("Failure during transfer", ex);
-        } finally {
-            FileIOUtil.closeQuietly(fin);
         }
     }
 }
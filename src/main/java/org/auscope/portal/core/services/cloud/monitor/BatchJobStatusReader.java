@@ -0,0 +1,19 @@
+package org.auscope.portal.core.services.cloud.monitor;
+
+import java.util.List;
+
+import org.auscope.portal.core.cloud.CloudJob;
+
+/**
+ * A JobStatusReader that can read the status of many jobs with a single request. JobStatusMonitor will
+ * prefer getJobStatuses when polling collections of jobs.
+ */
+public interface BatchJobStatusReader extends JobStatusReader {
+    /**
+     * Calculates the latest status of every job in cloudJobs.
+     *
+     * @param cloudJobs The CloudJobs whose status will be calculated
+     * @return The statuses in the same order as cloudJobs. A null status indicates that no status is available.
+     */
+    public List<String> getJobStatuses(List<CloudJob> cloudJobs);
+}
@@ -2,7 +2,17 @@ package org.auscope.portal.core.services.cloud.monitor;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -12,13 +22,55 @@ import org.auscope.portal.core.cloud.CloudJob;
  * A simple class containing event listeners and the ability to poll CloudJob instances for information about their
  * current status
  * 
+ * Collections of jobs are polled concurrently (see setPollThreads). If the JobStatusReader is a BatchJobStatusReader
+ * jobs will be polled in batches (see setBatchSize). Status change listeners are always notified from the calling
+ * thread, in the order of the polled collection.
+ * 
+ * statusPoll will only poll jobs that are due. Jobs are polled every minPollInterval until their status stays the
+ * same, after which their interval doubles with every unchanged poll (up to maxPollInterval). Jobs submitted within
+ * recentJobAge are always polled every minPollInterval.
+ * 
+ * Concurrent polls run on an executor that lives as long as the monitor. If one isn't supplied, the monitor creates
+ * (and owns) a pool of daemon threads that is released by shutdown.
+ * 
  * @author Josh Vote
  *
  */
 public class JobStatusMonitor {
     
+    /** The default number of threads used to poll a collection of jobs */
+    public static final int DEFAULT_POLL_THREADS = 8;
+    /** The default maximum number of jobs passed to a BatchJobStatusReader at once */
+    public static final int DEFAULT_BATCH_SIZE = 50;
+    /** The default shortest interval between polls of a job in statusPoll */
+    public static final long DEFAULT_MIN_POLL_INTERVAL = 30 * 1000L;
+    /** The default longest interval between polls of a job in statusPoll */
+    public static final long DEFAULT_MAX_POLL_INTERVAL = 15 * 60 * 1000L;
+    /** The default age below which a job is considered recently submitted */
+    public static final long DEFAULT_RECENT_JOB_AGE = 15 * 60 * 1000L;
+    
+    /** A Clock backed by System.currentTimeMillis */
+    public static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+    
     protected final Log log = LogFactory.getLog(getClass());
     
+    private int pollThreads = DEFAULT_POLL_THREADS;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private long minPollInterval = DEFAULT_MIN_POLL_INTERVAL;
+    private long maxPollInterval = DEFAULT_MAX_POLL_INTERVAL;
+    private long recentJobAge = DEFAULT_RECENT_JOB_AGE;
+    /** Polling schedules keyed by job ID */
+    private final ConcurrentHashMap<Integer, PollSchedule> schedules = new ConcurrentHashMap<Integer, PollSchedule>();
+    private volatile JobStatusSweepMetrics lastSweep;
+    private Clock clock = SYSTEM_CLOCK;
+    /** Runs concurrent polls. Created on demand (and owned by this monitor) if not supplied */
+    private ExecutorService executor;
+    private final boolean ownsExecutor;
     
     /** An object for reading status information about a particular job*/
     private JobStatusReader jobStatusReader;
@@ -31,11 +83,158 @@ public class JobStatusMonitor {
      * @param jobStatusChangeListeners
      */
     public JobStatusMonitor(JobStatusReader jobStatusReader, JobStatusChangeListener[] jobStatusChangeListeners) {
+        this(jobStatusReader, jobStatusChangeListeners, null);
+    }
+    
+    /**
+     * Creates a new instance of this class
+     * @param jobStatusReader
+     * @param jobStatusChangeListeners
+     * @param executor [Optional] Used to run concurrent polls. Its lifecycle is managed by the caller. If null, the monitor will create its own pool.
+     */
+    public JobStatusMonitor(JobStatusReader jobStatusReader, JobStatusChangeListener[] jobStatusChangeListeners, ExecutorService executor) {
         super();
         this.jobStatusReader = jobStatusReader;
         this.jobStatusChangeListeners = jobStatusChangeListeners;
+        this.executor = executor;
+        this.ownsExecutor = executor == null;
     }
     
+    /**
+     * The number of threads used to poll a collection of jobs
+     * @return
+     */
+    public int getPollThreads() {
+        return pollThreads;
+    }
+
+    /**
+     * The number of threads used to poll a collection of jobs. 1 will poll jobs sequentially on the calling thread.
+     * @param pollThreads
+     */
+    public void setPollThreads(int pollThreads) {
+        this.pollThreads = pollThreads;
+    }
+
+    /**
+     * The source of time used for polling schedules and sweep metrics
+     * @return
+     */
+    public Clock getClock() {
+        return clock;
+    }
+
+    /**
+     * The source of time used for polling schedules and sweep metrics
+     * @param clock
+     */
+    public void setClock(Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * The maximum number of jobs passed to a BatchJobStatusReader at once
+     * @return
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * The maximum number of jobs passed to a BatchJobStatusReader at once
+     * @param batchSize
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * The shortest interval (in milliseconds) between polls of a job in statusPoll
+     * @return
+     */
+    public long getMinPollInterval() {
+        return minPollInterval;
+    }
+
+    /**
+     * The shortest interval (in milliseconds) between polls of a job in statusPoll
+     * @param minPollInterval
+     */
+    public void setMinPollInterval(long minPollInterval) {
+        this.minPollInterval = minPollInterval;
+    }
+
+    /**
+     * The longest interval (in milliseconds) between polls of a job in statusPoll
+     * @return
+     */
+    public long getMaxPollInterval() {
+        return maxPollInterval;
+    }
+
+    /**
+     * The longest interval (in milliseconds) between polls of a job in statusPoll
+     * @param maxPollInterval
+     */
+    public void setMaxPollInterval(long maxPollInterval) {
+        this.maxPollInterval = maxPollInterval;
+    }
+
+    /**
+     * Jobs submitted within this many milliseconds will always be polled every minPollInterval
+     * @return
+     */
+    public long getRecentJobAge() {
+        return recentJobAge;
+    }
+
+    /**
+     * Jobs submitted within this many milliseconds will always be polled every minPollInterval
+     * @param recentJobAge
+     */
+    public void setRecentJobAge(long recentJobAge) {
+        this.recentJobAge = recentJobAge;
+    }
+
+    /**
+     * Gets the metrics of the most recently completed sweep (statusUpdate or statusPoll of a collection of jobs)
+     * @return null if no sweep has completed
+     */
+    public JobStatusSweepMetrics getLastSweepMetrics() {
+        return lastSweep;
+    }
+    
+    /**
+     * Releases the poll threads if they are owned by this monitor. An executor supplied to the constructor
+     * is left untouched. Subsequent concurrent polls will create a new pool.
+     */
+    public void shutdown() {
+        ExecutorService toShutdown = null;
+        synchronized (this) {
+            if (ownsExecutor && executor != null) {
+                toShutdown = executor;
+                executor = null;
+            }
+        }
+        
+        if (toShutdown != null) {
+            toShutdown.shutdownNow();
+        }
+    }
+    
+    private synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "APT_JOB_STATUS_POLL");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return executor;
+    }
     
     private void statusChanged(CloudJob job, String newStatus, String oldStatus) {
         for (JobStatusChangeListener l : jobStatusChangeListeners) {
@@ -57,7 +256,6 @@ public class JobStatusMonitor {
      * @throws JobStatusException 
      */
     public void statusUpdate(CloudJob job) throws JobStatusException  {
-        String oldStatus = job.getStatus();
         String newStatus;
         
         try {
@@ -66,10 +264,21 @@ public class JobStatusMonitor {
             throw new JobStatusException(ex, job);
         }
         
+        applyStatus(job, newStatus);
+    }
+    
+    /**
+     * Notifies listeners if newStatus represents a change for job
+     * @return true if the status changed
+     */
+    private boolean applyStatus(CloudJob job, String newStatus) {
+        String oldStatus = job.getStatus();
         if (newStatus != null && !newStatus.equals(oldStatus)) {
             statusChanged(job, newStatus, oldStatus);
+            return true;
         } else {
             log.trace("Skip bad or status quo job. Job id: " + job.getId());
+            return false;
         }
     }
     
@@ -84,21 +293,224 @@ public class JobStatusMonitor {
      * @throws JobStatusException If and only if one or more job status updates fail
      */
     public void statusUpdate(Collection<? extends CloudJob> jobs) throws JobStatusException {
-        List<Throwable> exceptions = new ArrayList<Throwable>();
-        List<CloudJob> failedUpdates = new ArrayList<CloudJob>();
+        sweep(new ArrayList<CloudJob>(jobs), 0, clock.currentTimeMillis());
+    }
+    
+    /**
+     * Performs a status update of the jobs in a collection that are due to be polled (according to their polling
+     * schedule). This is a blocking method with the same semantics as statusUpdate(Collection).
+     * 
+     * The collection is expected to contain every job being monitored, the schedules of jobs that aren't
+     * in the collection will be discarded.
+     * 
+     * @param jobs The job collection to update - may have its member fields modified by status change listeners
+     * @throws JobStatusException If and only if one or more job status updates fail
+     */
+    public void statusPoll(Collection<? extends CloudJob> jobs) throws JobStatusException {
+        long now = clock.currentTimeMillis();
+        List<CloudJob> due = new ArrayList<CloudJob>();
+        Set<Integer> ids = new HashSet<Integer>();
         
         for (CloudJob job : jobs) {
-            //Do all updates before throwing exceptions
+            PollSchedule schedule = null;
+            if (job.getId() != null) {
+                ids.add(job.getId());
+                schedule = schedules.get(job.getId());
+            }
+            
+            if (schedule == null || schedule.nextPoll <= now) {
+                due.add(job);
+            }
+        }
+        schedules.keySet().retainAll(ids);
+        
+        sweep(due, jobs.size() - due.size(), now);
+    }
+    
+    /**
+     * Polls every job (concurrently) before notifying listeners and rescheduling in the order of jobs
+     */
+    private void sweep(final List<CloudJob> jobs, int skipped, long startTime) throws JobStatusException {
+        final String[] statuses = new String[jobs.size()];
+        final Throwable[] errors = new Throwable[jobs.size()];
+        final List<Callable<Long>> requests = createRequests(jobs, statuses, errors);
+        long slowestRequest = 0;
+        
+        int threads = Math.min(pollThreads, requests.size());
+        if (threads <= 1) {
+            for (Callable<Long> request : requests) {
+                slowestRequest = Math.max(slowestRequest, runRequest(request));
+            }
+        } else {
+            //Each worker takes requests until none remain, bounding this sweep to pollThreads regardless of the executor
+            final AtomicInteger nextRequest = new AtomicInteger();
+            List<Callable<Long>> workers = new ArrayList<Callable<Long>>();
+            for (int i = 0; i < threads; i++) {
+                workers.add(new Callable<Long>() {
+                    @Override
+                    public Long call() {
+                        long slowest = 0;
+                        for (int j = nextRequest.getAndIncrement(); j < requests.size(); j = nextRequest.getAndIncrement()) {
+                            slowest = Math.max(slowest, runRequest(requests.get(j)));
+                        }
+                        return slowest;
+                    }
+                });
+            }
+            
             try {
-                statusUpdate(job);
-            } catch (Throwable t) {
+                List<Future<Long>> futures = getExecutor().invokeAll(workers);
+                for (Future<Long> future : futures) {
+                    slowestRequest = Math.max(slowestRequest, future.get());
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                nextRequest.set(requests.size());
+                for (int i = 0; i < jobs.size(); i++) {
+                    if (errors[i] == null && statuses[i] == null) {
+                        errors[i] = new JobStatusException(ex, jobs.get(i));
+                    }
+                }
+            } catch (ExecutionException ex) {
+                //Requests record their own errors
+            }
+        }
+        
+        List<Throwable> exceptions = new ArrayList<Throwable>();
+        List<CloudJob> failedUpdates = new ArrayList<CloudJob>();
+        int changed = 0;
+        for (int i = 0; i < jobs.size(); i++) {
+            CloudJob job = jobs.get(i);
+            if (errors[i] != null) {
                 failedUpdates.add(job);
-                exceptions.add(t);
+                exceptions.add(errors[i]);
+                if (job.getId() != null) {
+                    schedules.remove(job.getId());
+                }
+                continue;
+            }
+            
+            boolean statusChanged = applyStatus(job, statuses[i]);
+            if (statusChanged) {
+                changed++;
             }
+            reschedule(job, statusChanged, startTime);
         }
         
+        lastSweep = new JobStatusSweepMetrics(startTime, clock.currentTimeMillis() - startTime, jobs.size(), skipped,
+                changed, exceptions.size(), requests.size(), slowestRequest);
+        log.debug(lastSweep);
+        
         if (!exceptions.isEmpty()) {
             throw new JobStatusException(exceptions, failedUpdates);
         }
     }
+    
+    /**
+     * Runs a request created by createRequests, returning its duration
+     */
+    private long runRequest(Callable<Long> request) {
+        try {
+            return request.call();
+        } catch (Exception ex) {
+            //Requests record their own errors
+            return 0;
+        }
+    }
+    
+    /**
+     * Creates the reader requests for polling jobs. Each request writes into statuses/errors at the indexes of the
+     * jobs it polls and returns its duration in milliseconds. Any Throwable raised by the reader is recorded as an
+     * error (rather than escaping the request) so that failures are handled the same whether or not polls run concurrently.
+     */
+    private List<Callable<Long>> createRequests(final List<CloudJob> jobs, final String[] statuses, final Throwable[] errors) {
+        List<Callable<Long>> requests = new ArrayList<Callable<Long>>();
+        
+        if (jobStatusReader instanceof BatchJobStatusReader) {
+            final BatchJobStatusReader batchReader = (BatchJobStatusReader) jobStatusReader;
+            int size = Math.max(1, batchSize);
+            for (int i = 0; i < jobs.size(); i += size) {
+                final int from = i;
+                final int to = Math.min(jobs.size(), i + size);
+                requests.add(new Callable<Long>() {
+                    @Override
+                    public Long call() {
+                        long start = clock.currentTimeMillis();
+                        List<CloudJob> batch = jobs.subList(from, to);
+                        try {
+                            List<String> batchStatuses = batchReader.getJobStatuses(batch);
+                            if (batchStatuses == null || batchStatuses.size() != batch.size()) {
+                                throw new IllegalStateException(String.format("Expected %1$d statuses but received %2$s", batch.size(),
+                                        batchStatuses == null ? null : batchStatuses.size()));
+                            }
+                            for (int j = from; j < to; j++) {
+                                statuses[j] = batchStatuses.get(j - from);
+                            }
+                        } catch (Throwable ex) {
+                            for (int j = from; j < to; j++) {
+                                errors[j] = new JobStatusException(ex, jobs.get(j));
+                            }
+                        }
+                        return clock.currentTimeMillis() - start;
+                    }
+                });
+            }
+        } else {
+            for (int i = 0; i < jobs.size(); i++) {
+                final int index = i;
+                requests.add(new Callable<Long>() {
+                    @Override
+                    public Long call() {
+                        long start = clock.currentTimeMillis();
+                        try {
+                            statuses[index] = jobStatusReader.getJobStatus(jobs.get(index));
+                        } catch (Throwable ex) {
+                            errors[index] = new JobStatusException(ex, jobs.get(index));
+                        }
+                        return clock.currentTimeMillis() - start;
+                    }
+                });
+            }
+        }
+        
+        return requests;
+    }
+    
+    /**
+     * Calculates when job should next be polled by statusPoll
+     */
+    private void reschedule(CloudJob job, boolean statusChanged, long now) {
+        if (job.getId() == null) {
+            return;
+        }
+        
+        PollSchedule previous = schedules.get(job.getId());
+        long interval = minPollInterval;
+        boolean recent = job.getSubmitDate() != null && now - job.getSubmitDate().getTime() < recentJobAge;
+        if (previous != null && !statusChanged && !recent) {
+            interval = Math.min(maxPollInterval, Math.max(minPollInterval, previous.interval * 2));
+        }
+        
+        schedules.put(job.getId(), new PollSchedule(interval, now + interval));
+    }
+    
+    /**
+     * A source of the current time (in milliseconds since the epoch)
+     */
+    public interface Clock {
+        long currentTimeMillis();
+    }
+    
+    /**
+     * When a job is next due to be polled
+     */
+    private static class PollSchedule {
+        private final long interval;
+        private final long nextPoll;
+        
+        public PollSchedule(long interval, long nextPoll) {
+            this.interval = interval;
+            this.nextPoll = nextPoll;
+        }
+    }
 }
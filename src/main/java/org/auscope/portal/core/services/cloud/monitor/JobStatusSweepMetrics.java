@@ -0,0 +1,107 @@
+package org.auscope.portal.core.services.cloud.monitor;
+
+/**
+ * Timing and outcome information about a single sweep of job status updates by a JobStatusMonitor
+ */
+public class JobStatusSweepMetrics {
+    private final long startTime;
+    private final long elapsedMillis;
+    private final int polled;
+    private final int skipped;
+    private final int changed;
+    private final int failed;
+    private final int requests;
+    private final long slowestRequestMillis;
+
+    /**
+     * @param startTime When the sweep started (in milliseconds since epoch)
+     * @param elapsedMillis How long the entire sweep took (including status change listeners)
+     * @param polled The number of jobs that were polled
+     * @param skipped The number of jobs that weren't due to be polled
+     * @param changed The number of jobs whose status changed
+     * @param failed The number of jobs whose status couldn't be read
+     * @param requests The number of calls made to the JobStatusReader
+     * @param slowestRequestMillis The duration of the slowest call to the JobStatusReader
+     */
+    public JobStatusSweepMetrics(long startTime, long elapsedMillis, int polled, int skipped, int changed, int failed,
+            int requests, long slowestRequestMillis) {
+        this.startTime = startTime;
+        this.elapsedMillis = elapsedMillis;
+        this.polled = polled;
+        this.skipped = skipped;
+        this.changed = changed;
+        this.failed = failed;
+        this.requests = requests;
+        this.slowestRequestMillis = slowestRequestMillis;
+    }
+
+    /**
+     * When the sweep started (in milliseconds since epoch)
+     * @return
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * How long the entire sweep took (including status change listeners)
+     * @return
+     */
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    /**
+     * The number of jobs that were polled
+     * @return
+     */
+    public int getPolled() {
+        return polled;
+    }
+
+    /**
+     * The number of jobs that weren't due to be polled
+     * @return
+     */
+    public int getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * The number of jobs whose status changed
+     * @return
+     */
+    public int getChanged() {
+        return changed;
+    }
+
+    /**
+     * The number of jobs whose status couldn't be read
+     * @return
+     */
+    public int getFailed() {
+        return failed;
+    }
+
+    /**
+     * The number of calls made to the JobStatusReader
+     * @return
+     */
+    public int getRequests() {
+        return requests;
+    }
+
+    /**
+     * The duration of the slowest call to the JobStatusReader
+     * @return
+     */
+    public long getSlowestRequestMillis() {
+        return slowestRequestMillis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("JobStatusSweepMetrics [elapsedMillis=%1$d, polled=%2$d, skipped=%3$d, changed=%4$d, failed=%5$d, requests=%6$d, slowestRequestMillis=%7$d]",
+                elapsedMillis, polled, skipped, changed, failed, requests, slowestRequestMillis);
+    }
+}
@@ -0,0 +1,309 @@
+package org.auscope.portal.core.services.csw;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.lang.ObjectUtils;
+import org.auscope.portal.core.services.responses.csw.AbstractCSWOnlineResource;
+import org.auscope.portal.core.services.responses.csw.CSWContact;
+import org.auscope.portal.core.services.responses.csw.CSWGeographicElement;
+import org.auscope.portal.core.services.responses.csw.CSWRecord;
+import org.auscope.portal.core.services.responses.csw.CSWResponsibleParty;
+
+/**
+ * Describes a newly published CSWCacheService snapshot along with a record level diff against
+ * the snapshot that it replaced.
+ *
+ * Records are compared by file identifier. A record is considered modified if a record with the same
+ * file identifier exists in both snapshots but any of its metadata differs.
+ */
+public class CSWCacheChangeEvent {
+    private List<CSWRecord> records;
+    private Map<String, Set<CSWRecord>> keywordCache;
+    private List<CSWRecord> addedRecords;
+    private List<CSWRecord> removedRecords;
+    private List<CSWRecord> modifiedRecords;
+    private Set<String> changedKeywords;
+
+    /**
+     * Creates a new instance of this class
+     * @param records The full record list of the newly published snapshot
+     * @param keywordCache The full keyword cache of the newly published snapshot
+     * @param addedRecords Records whose file identifier was not in the previous snapshot
+     * @param removedRecords Records (from the previous snapshot) whose file identifier is not in the new snapshot
+     * @param modifiedRecords Records (from the new snapshot) whose metadata has changed since the previous snapshot
+     * @param changedKeywords Keywords whose associated record set has changed in any way
+     */
+    public CSWCacheChangeEvent(List<CSWRecord> records, Map<String, Set<CSWRecord>> keywordCache,
+            List<CSWRecord> addedRecords, List<CSWRecord> removedRecords, List<CSWRecord> modifiedRecords,
+            Set<String> changedKeywords) {
+        this.records = Collections.unmodifiableList(records);
+        this.keywordCache = Collections.unmodifiableMap(keywordCache);
+        this.addedRecords = Collections.unmodifiableList(addedRecords);
+        this.removedRecords = Collections.unmodifiableList(removedRecords);
+        this.modifiedRecords = Collections.unmodifiableList(modifiedRecords);
+        this.changedKeywords = Collections.unmodifiableSet(changedKeywords);
+    }
+
+    /**
+     * Calculates the difference between two CSWCacheService snapshots.
+     *
+     * @param oldRecords The record list being replaced
+     * @param oldKeywordCache The keyword cache being replaced
+     * @param newRecords The record list being published
+     * @param newKeywordCache The keyword cache being published
+     * @return
+     */
+    public static CSWCacheChangeEvent fromSnapshots(List<CSWRecord> oldRecords, Map<String, Set<CSWRecord>> oldKeywordCache,
+            List<CSWRecord> newRecords, Map<String, Set<CSWRecord>> newKeywordCache) {
+        Map<String, CSWRecord> oldById = indexByFileIdentifier(oldRecords);
+        Map<String, CSWRecord> newById = indexByFileIdentifier(newRecords);
+
+        List<CSWRecord> added = new ArrayList<CSWRecord>();
+        List<CSWRecord> removed = new ArrayList<CSWRecord>();
+        List<CSWRecord> modified = new ArrayList<CSWRecord>();
+
+        for (CSWRecord newRecord : newById.values()) {
+            CSWRecord oldRecord = oldById.get(newRecord.getFileIdentifier());
+            if (oldRecord == null) {
+                added.add(newRecord);
+            } else if (isModified(oldRecord, newRecord)) {
+                modified.add(newRecord);
+            }
+        }
+
+        for (CSWRecord oldRecord : oldById.values()) {
+            if (!newById.containsKey(oldRecord.getFileIdentifier())) {
+                removed.add(oldRecord);
+            }
+        }
+
+        //A keyword has changed if its membership differs OR if one of its members was modified
+        Set<String> changedKeywords = new HashSet<String>();
+        Set<CSWRecord> modifiedSet = new HashSet<CSWRecord>(modified);
+        for (Map.Entry<String, Set<CSWRecord>> entry : newKeywordCache.entrySet()) {
+            Set<CSWRecord> oldSet = oldKeywordCache.get(entry.getKey());
+            if (oldSet == null || !oldSet.equals(entry.getValue())) {
+                changedKeywords.add(entry.getKey());
+                continue;
+            }
+
+            if (!modifiedSet.isEmpty()) {
+                for (CSWRecord rec : entry.getValue()) {
+                    if (modifiedSet.contains(rec)) {
+                        changedKeywords.add(entry.getKey());
+                        break;
+                    }
+                }
+            }
+        }
+        for (String keyword : oldKeywordCache.keySet()) {
+            if (!newKeywordCache.containsKey(keyword)) {
+                changedKeywords.add(keyword);
+            }
+        }
+
+        return new CSWCacheChangeEvent(newRecords, newKeywordCache, added, removed, modified, changedKeywords);
+    }
+
+    /**
+     * Records may be duplicated (by file identifier) across multiple CSW's - the first instance wins
+     */
+    private static Map<String, CSWRecord> indexByFileIdentifier(List<CSWRecord> records) {
+        Map<String, CSWRecord> index = new LinkedHashMap<String, CSWRecord>();
+        for (CSWRecord rec : records) {
+            if (!index.containsKey(rec.getFileIdentifier())) {
+                index.put(rec.getFileIdentifier(), rec);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Returns true if any of the metadata in newRecord differs from oldRecord. Child records are
+     * compared by file identifier only (they will be diffed as records in their own right).
+     * @param oldRecord
+     * @param newRecord
+     * @return
+     */
+    public static boolean isModified(CSWRecord oldRecord, CSWRecord newRecord) {
+        if (!ObjectUtils.equals(oldRecord.getServiceName(), newRecord.getServiceName()) ||
+            !ObjectUtils.equals(oldRecord.getResourceProvider(), newRecord.getResourceProvider()) ||
+            !ObjectUtils.equals(oldRecord.getParentIdentifier(), newRecord.getParentIdentifier()) ||
+            !ObjectUtils.equals(oldRecord.getRecordInfoUrl(), newRecord.getRecordInfoUrl()) ||
+            !ObjectUtils.equals(oldRecord.getDataIdentificationAbstract(), newRecord.getDataIdentificationAbstract()) ||
+            !ObjectUtils.equals(oldRecord.getSupplementalInformation(), newRecord.getSupplementalInformation()) ||
+            !ObjectUtils.equals(oldRecord.getLanguage(), newRecord.getLanguage()) ||
+            !ObjectUtils.equals(oldRecord.getDataQualityStatement(), newRecord.getDataQualityStatement()) ||
+            !ObjectUtils.equals(oldRecord.getDate(), newRecord.getDate()) ||
+            oldRecord.getNoCache() != newRecord.getNoCache()) {
+            return true;
+        }
+
+        if (!Arrays.equals(oldRecord.getConstraints(), newRecord.getConstraints()) ||
+            !ObjectUtils.equals(asSet(oldRecord.getDescriptiveKeywords()), asSet(newRecord.getDescriptiveKeywords())) ||
+            !contactsEqual(oldRecord.getContact(), newRecord.getContact())) {
+            return true;
+        }
+
+        if (!onlineResourcesEqual(oldRecord.getOnlineResources(), newRecord.getOnlineResources()) ||
+            !geographicElementsEqual(oldRecord.getCSWGeographicElements(), newRecord.getCSWGeographicElements())) {
+            return true;
+        }
+
+        return !Arrays.equals(oldRecord.getChildRecords(), newRecord.getChildRecords());
+    }
+
+    private static Set<String> asSet(String[] arr) {
+        return arr == null ? null : new HashSet<String>(Arrays.asList(arr));
+    }
+
+    private static boolean contactsEqual(CSWResponsibleParty a, CSWResponsibleParty b) {
+        if (a == null || b == null) {
+            return a == b;
+        }
+
+        if (!ObjectUtils.equals(a.getIndividualName(), b.getIndividualName()) ||
+            !ObjectUtils.equals(a.getOrganisationName(), b.getOrganisationName()) ||
+            !ObjectUtils.equals(a.getPositionName(), b.getPositionName())) {
+            return false;
+        }
+
+        CSWContact ac = a.getContactInfo();
+        CSWContact bc = b.getContactInfo();
+        if (ac == null || bc == null) {
+            return ac == bc;
+        }
+
+        return ObjectUtils.equals(ac.getTelephone(), bc.getTelephone()) &&
+               ObjectUtils.equals(ac.getFacsimile(), bc.getFacsimile()) &&
+               ObjectUtils.equals(ac.getAddressDeliveryPoint(), bc.getAddressDeliveryPoint()) &&
+               ObjectUtils.equals(ac.getAddressCity(), bc.getAddressCity()) &&
+               ObjectUtils.equals(ac.getAddressAdministrativeArea(), bc.getAddressAdministrativeArea()) &&
+               ObjectUtils.equals(ac.getAddressPostalCode(), bc.getAddressPostalCode()) &&
+               ObjectUtils.equals(ac.getAddressCountry(), bc.getAddressCountry()) &&
+               ObjectUtils.equals(ac.getAddressEmail(), bc.getAddressEmail()) &&
+               onlineResourcesEqual(new AbstractCSWOnlineResource[] {ac.getOnlineResource()},
+                       new AbstractCSWOnlineResource[] {bc.getOnlineResource()});
+    }
+
+    private static boolean onlineResourcesEqual(AbstractCSWOnlineResource[] a, AbstractCSWOnlineResource[] b) {
+        if (a == null || b == null) {
+            return a == b;
+        }
+        if (a.length != b.length) {
+            return false;
+        }
+
+        for (int i = 0; i < a.length; i++) {
+            if (a[i] == null || b[i] == null) {
+                if (a[i] != b[i]) {
+                    return false;
+                }
+                continue;
+            }
+
+            if (a[i].getType() != b[i].getType() ||
+                !ObjectUtils.equals(a[i].getName(), b[i].getName()) ||
+                !ObjectUtils.equals(a[i].getDescription(), b[i].getDescription()) ||
+                !ObjectUtils.equals(a[i].getProtocol(), b[i].getProtocol()) ||
+                !ObjectUtils.equals(a[i].getApplicationProfile(), b[i].getApplicationProfile()) ||
+                !ObjectUtils.equals(a[i].getVersion(), b[i].getVersion()) ||
+                !ObjectUtils.equals(String.valueOf(a[i].getLinkage()), String.valueOf(b[i].getLinkage()))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static boolean geographicElementsEqual(CSWGeographicElement[] a, CSWGeographicElement[] b) {
+        if (a == null || b == null) {
+            return a == b;
+        }
+        if (a.length != b.length) {
+            return false;
+        }
+
+        for (int i = 0; i < a.length; i++) {
+            if (a[i] == null || b[i] == null) {
+                if (a[i] != b[i]) {
+                    return false;
+                }
+                continue;
+            }
+
+            if (Double.compare(a[i].getWestBoundLongitude(), b[i].getWestBoundLongitude()) != 0 ||
+                Double.compare(a[i].getEastBoundLongitude(), b[i].getEastBoundLongitude()) != 0 ||
+                Double.compare(a[i].getSouthBoundLatitude(), b[i].getSouthBoundLatitude()) != 0 ||
+                Double.compare(a[i].getNorthBoundLatitude(), b[i].getNorthBoundLatitude()) != 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Gets the full (unmodifiable) record list of the newly published snapshot
+     * @return
+     */
+    public List<CSWRecord> getRecords() {
+        return records;
+    }
+
+    /**
+     * Gets the full (unmodifiable) keyword cache of the newly published snapshot
+     * @return
+     */
+    public Map<String, Set<CSWRecord>> getKeywordCache() {
+        return keywordCache;
+    }
+
+    /**
+     * Gets the records whose file identifier did not exist in the previous snapshot
+     * @return
+     */
+    public List<CSWRecord> getAddedRecords() {
+        return addedRecords;
+    }
+
+    /**
+     * Gets the records (from the previous snapshot) whose file identifier no longer exists
+     * @return
+     */
+    public List<CSWRecord> getRemovedRecords() {
+        return removedRecords;
+    }
+
+    /**
+     * Gets the records (from the new snapshot) whose metadata differs from the previous snapshot
+     * @return
+     */
+    public List<CSWRecord> getModifiedRecords() {
+        return modifiedRecords;
+    }
+
+    /**
+     * Gets every keyword that was added, removed or whose associated records have changed
+     * @return
+     */
+    public Set<String> getChangedKeywords() {
+        return changedKeywords;
+    }
+
+    /**
+     * Returns true if the new snapshot differs in any way from the previous snapshot
+     * @return
+     */
+    public boolean hasChanges() {
+        return !addedRecords.isEmpty() || !removedRecords.isEmpty() ||
+                !modifiedRecords.isEmpty() || !changedKeywords.isEmpty();
+    }
+}
@@ -0,0 +1,21 @@
+package org.auscope.portal.core.services.csw;
+
+import java.util.EventListener;
+
+/**
+ * All listeners interested in changes to the contents of a CSWCacheService should
+ * implement this interface.
+ */
+public interface CSWCacheChangeListener extends EventListener {
+    /**
+     * This is an asynchronous event raised after a CSWCacheService has finished
+     * refreshing and has published a new snapshot of records.
+     *
+     * Events are delivered to a given listener one at a time and in the order that
+     * the snapshots were published. Implementors should ensure that this method is thread safe
+     * with respect to any other methods they expose.
+     *
+     * @param event Describes the new snapshot and how it differs from the previous snapshot
+     */
+    public void handleCacheChange(CSWCacheChangeEvent event);
+}
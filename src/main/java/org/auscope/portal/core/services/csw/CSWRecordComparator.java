@@ -0,0 +1,95 @@
+package org.auscope.portal.core.services.csw;
+
+import java.util.Comparator;
+import java.util.Date;
+
+import org.auscope.portal.core.services.responses.csw.CSWRecord;
+
+/**
+ * Compares CSWRecords by one of their (view) fields. Records that are equal according to the sort field will be
+ * ordered by file identifier so the resulting order is always stable. Null values are ordered last.
+ */
+public class CSWRecordComparator implements Comparator<CSWRecord> {
+
+    /**
+     * The fields that records can be sorted by. The names match the keys generated by ViewCSWRecordFactory
+     */
+    public enum SortField {
+        name,
+        resourceProvider,
+        id,
+        recordInfoUrl,
+        date
+    }
+
+    private SortField sortField;
+    private boolean ascending;
+
+    /**
+     * @param sortField The field to sort by
+     * @param ascending If false, the order will be reversed (null values will still be ordered last)
+     */
+    public CSWRecordComparator(SortField sortField, boolean ascending) {
+        this.sortField = sortField;
+        this.ascending = ascending;
+    }
+
+    /**
+     * Parses a sort field name (as per ViewCSWRecordFactory) into a comparator
+     * @param sortField The name of the field to sort by
+     * @param ascending If false, the order will be reversed
+     * @return
+     * @throws IllegalArgumentException if sortField cannot be sorted on
+     */
+    public static CSWRecordComparator fromFieldName(String sortField, boolean ascending) {
+        return new CSWRecordComparator(SortField.valueOf(sortField), ascending);
+    }
+
+    private static <T extends Comparable<T>> int compareNullsLast(T a, T b, boolean ascending) {
+        if (a == null || b == null) {
+            if (a == b) {
+                return 0;
+            }
+            return a == null ? 1 : -1;
+        }
+
+        return ascending ? a.compareTo(b) : b.compareTo(a);
+    }
+
+    private static int compareStrings(String a, String b, boolean ascending) {
+        if (a == null || b == null) {
+            return compareNullsLast(a, b, ascending);
+        }
+
+        int result = String.CASE_INSENSITIVE_ORDER.compare(a, b);
+        return ascending ? result : -result;
+    }
+
+    @Override
+    public int compare(CSWRecord a, CSWRecord b) {
+        int result;
+        switch (sortField) {
+        case name:
+            result = compareStrings(a.getServiceName(), b.getServiceName(), ascending);
+            break;
+        case resourceProvider:
+            result = compareStrings(a.getResourceProvider(), b.getResourceProvider(), ascending);
+            break;
+        case recordInfoUrl:
+            result = compareStrings(a.getRecordInfoUrl(), b.getRecordInfoUrl(), ascending);
+            break;
+        case date:
+            result = CSWRecordComparator.<Date>compareNullsLast(a.getDate(), b.getDate(), ascending);
+            break;
+        default:
+            result = 0;
+            break;
+        }
+
+        if (result == 0) {
+            result = compareNullsLast(a.getFileIdentifier(), b.getFileIdentifier(), ascending);
+        }
+
+        return result;
+    }
+}
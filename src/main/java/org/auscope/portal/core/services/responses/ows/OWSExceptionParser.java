@@ -1,11 +1,23 @@
 package org.auscope.portal.core.services.responses.ows;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
 import java.util.Iterator;
 
 import javax.xml.namespace.NamespaceContext;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.xpath.XPathConstants;
 import javax.xml.xpath.XPathExpressionException;
 
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.auscope.portal.core.util.DOMUtil;
@@ -25,6 +37,23 @@ public class OWSExceptionParser {
     /** The Constant log. */
     private static final Log log = LogFactory.getLog(OWSExceptionParser.class);
 
+    /** The local name of the root element of every OWS exception response */
+    private static final String EXCEPTION_REPORT_ELEMENT = "ExceptionReport";
+
+    /** The maximum number of bytes that will be buffered whilst looking for the root element of a stream */
+    public static final int STREAM_SNIFF_LIMIT = 1024 * 1024;
+
+    /** Used for sniffing root elements - DTD's are NOT processed */
+    private static final XMLInputFactory inputFactory = createInputFactory();
+
+    private static XMLInputFactory createInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        return factory;
+    }
+
     /**
      * Returns an XPath object that is configured to read the ows:Namespace.
      *
@@ -55,15 +84,61 @@ public class OWSExceptionParser {
         };
     }
 
+    /**
+     * Returns true if the root element read by reader is an ExceptionReport. Only the XML up to
+     * (and including) the first start element will be read.
+     *
+     * @param reader Will be closed by this method (its underlying source will NOT be closed)
+     * @return
+     * @throws XMLStreamException If the XML preceding the root element is malformed
+     */
+    private static boolean isExceptionReportRoot(XMLStreamReader reader) throws XMLStreamException {
+        try {
+            while (reader.hasNext()) {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+                    return EXCEPTION_REPORT_ELEMENT.equals(reader.getLocalName());
+                }
+            }
+            throw new XMLStreamException("No root element found");
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Returns true if xmlString has an ExceptionReport element at its root. The root element is
+     * sniffed without parsing the remainder of the document.
+     *
+     * @param xmlString a string containing XML
+     * @return
+     * @throws OWSException If the XML preceding the root element cannot be parsed
+     */
+    public static boolean isExceptionResponse(String xmlString) throws OWSException {
+        Reader reader = new StringReader(xmlString);
+        try {
+            return isExceptionReportRoot(inputFactory.createXMLStreamReader(reader));
+        } catch (XMLStreamException ex) {
+            log.debug("Error whilst attempting to sniff xmlString for errors", ex);
+            throw new OWSException("Unable to parse xmlString", ex);
+        }
+    }
+
     /**
      * Will attempt to parse an <ows:Exception> element where ows will be http://www.opengis.net/ows.
      *
      * Will throw an OWSException if document does contain an <ows:ExceptionReport>, otherwise it will do nothing
      *
-     * @param doc a string containing valid XML, this will be parsed into a W3C DOM document
+     * Only the root element of xmlString will be read unless it is an ExceptionReport (in which case it will be parsed
+     * into a W3C DOM document)
+     *
+     * @param doc a string containing valid XML
      * @throws OWSException the oWS exception
      */
     public static void checkForExceptionResponse(String xmlString) throws OWSException {
+        if (!isExceptionResponse(xmlString)) {
+            return;
+        }
+
         Document doc = null;
         try {
             doc = DOMUtil.buildDomFromString(xmlString);
@@ -76,6 +151,63 @@ public class OWSExceptionParser {
         checkForExceptionResponse(doc);
     }
 
+    /**
+     * Will attempt to parse an <ows:Exception> element where ows will be http://www.opengis.net/ows.
+     *
+     * Will throw an OWSException if xmlStream does contain an <ows:ExceptionReport>, otherwise it will return a
+     * stream that will read the (unconsumed) contents of xmlStream from the start. Callers MUST use the returned stream
+     * in place of xmlStream.
+     *
+     * Only the bytes up to and including the root element will be buffered (up to STREAM_SNIFF_LIMIT) unless the root is an ExceptionReport.
+     * If the root element cannot be found within STREAM_SNIFF_LIMIT bytes (or the prolog is malformed) the stream will be returned
+     * unchecked so that the caller's own parser can report the problem.
+     *
+     * @param xmlStream a stream of XML - this stream will be closed if it contains an ExceptionReport
+     * @return
+     * @throws OWSException the oWS exception
+     * @throws IOException
+     */
+    public static InputStream checkForExceptionResponse(InputStream xmlStream) throws OWSException, IOException {
+        BufferedInputStream bufferedStream = new BufferedInputStream(xmlStream);
+        bufferedStream.mark(STREAM_SNIFF_LIMIT);
+
+        boolean isException;
+        try {
+            BoundedInputStream sniffStream = new BoundedInputStream(bufferedStream, STREAM_SNIFF_LIMIT);
+            sniffStream.setPropagateClose(false);
+            isException = isExceptionReportRoot(inputFactory.createXMLStreamReader(sniffStream));
+        } catch (XMLStreamException ex) {
+            log.debug("Unable to sniff root element of stream: " + ex.getMessage());
+            isException = false;
+        }
+        bufferedStream.reset();
+
+        if (!isException) {
+            return bufferedStream;
+        }
+
+        //Exception reports are small so we can afford to hold onto the raw bytes
+        byte[] responseBytes;
+        try {
+            responseBytes = IOUtils.toByteArray(bufferedStream);
+        } finally {
+            IOUtils.closeQuietly(bufferedStream);
+        }
+
+        Document doc = null;
+        try {
+            doc = DOMUtil.buildDomFromStream(new ByteArrayInputStream(responseBytes));
+        } catch (Exception ex) {
+            log.error("Error whilst attempting to parse xmlStream for errors", ex);
+            throw new OWSException("Unable to parse xmlStream", ex);
+        }
+
+        checkForExceptionResponse(doc);
+
+        //An ExceptionReport that isn't in the ows namespace will be treated as a regular response
+        return new ByteArrayInputStream(responseBytes);
+    }
+
     /**
      * Will attempt to parse an <ows:Exception> element where ows will be http://www.opengis.net/ows.
      *
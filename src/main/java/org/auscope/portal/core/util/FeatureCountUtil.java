@@ -0,0 +1,209 @@
+package org.auscope.portal.core.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.io.IOUtils;
+import org.auscope.portal.core.services.responses.ows.OWSException;
+import org.auscope.portal.core.services.responses.ows.OWSExceptionParser;
+
+/**
+ * Utility functions for extracting feature counts from WFS GetFeature responses without
+ * building a DOM.
+ */
+public class FeatureCountUtil {
+
+    /** The attribute on a wfs:FeatureCollection containing the number of features in the response */
+    public static final String NUMBER_OF_FEATURES_ATTRIBUTE = "numberOfFeatures";
+    /** The attribute on a WFS 2.0 wfs:FeatureCollection containing the number of features matching a query */
+    public static final String NUMBER_MATCHED_ATTRIBUTE = "numberMatched";
+
+    private static final String FEATURE_MEMBER = "featureMember";
+    private static final String FEATURE_MEMBERS = "featureMembers";
+    private static final String WFS2_MEMBER = "member";
+    private static final String GML_NAMESPACE_PREFIX = "http://www.opengis.net/gml";
+    private static final String WFS2_NAMESPACE = "http://www.opengis.net/wfs/2.0";
+
+    /** DTD's are NOT processed */
+    private static final XMLInputFactory inputFactory = createInputFactory();
+
+    private static XMLInputFactory createInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        return factory;
+    }
+
+    /**
+     * Streams through a WFS response extracting the number of features it contains.
+     *
+     * If the root element contains a numberOfFeatures attribute it will be returned immediately
+     * (no further XML will be read). Otherwise every feature member in the response will be counted
+     * as it is streamed.
+     *
+     * @param wfsResponse The response to read - will be closed by this method
+     * @return
+     * @throws OWSException If the response is an ows:ExceptionReport
+     * @throws XMLStreamException If the response cannot be parsed
+     * @throws IOException
+     */
+    public static int getNumberOfFeatures(InputStream wfsResponse) throws OWSException, XMLStreamException, IOException {
+        try {
+            InputStream checkedResponse = OWSExceptionParser.checkForExceptionResponse(wfsResponse);
+            XMLStreamReader reader = inputFactory.createXMLStreamReader(checkedResponse);
+            try {
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+                        break;
+                    }
+                }
+                if (!reader.isStartElement()) {
+                    throw new XMLStreamException("No root element found");
+                }
+
+                String numberOfFeatures = reader.getAttributeValue(null, NUMBER_OF_FEATURES_ATTRIBUTE);
+                if (numberOfFeatures != null) {
+                    try {
+                        return Integer.parseInt(numberOfFeatures.trim());
+                    } catch (NumberFormatException ex) {
+                        //Fall through to counting features
+                    }
+                }
+
+                return countFeatureMembers(reader);
+            } finally {
+                reader.close();
+            }
+        } finally {
+            IOUtils.closeQuietly(wfsResponse);
+        }
+    }
+
+    /**
+     * Extracts the total number of matching features from the response to a resultType=hits GetFeature request.
+     *
+     * Services that don't support resultType=hits will typically ignore it and return features instead. Any response
+     * containing feature members will be treated as "unsupported" (a null response) as the count will only describe
+     * a single page of results.
+     *
+     * @param hitsResponse The response to read - will be closed by this method
+     * @return The total number of features matching the request or null if the response isn't a valid hits response
+     * @throws OWSException If the response is an ows:ExceptionReport
+     * @throws XMLStreamException If the response cannot be parsed
+     * @throws IOException
+     */
+    public static Integer getHitsCount(InputStream hitsResponse) throws OWSException, XMLStreamException, IOException {
+        try {
+            InputStream checkedResponse = OWSExceptionParser.checkForExceptionResponse(hitsResponse);
+            XMLStreamReader reader = inputFactory.createXMLStreamReader(checkedResponse);
+            try {
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+                        break;
+                    }
+                }
+                if (!reader.isStartElement()) {
+                    throw new XMLStreamException("No root element found");
+                }
+
+                String count = reader.getAttributeValue(null, NUMBER_MATCHED_ATTRIBUTE);
+                if (count == null) {
+                    count = reader.getAttributeValue(null, NUMBER_OF_FEATURES_ATTRIBUTE);
+                }
+                if (count == null) {
+                    return null;
+                }
+
+                Integer hits;
+                try {
+                    hits = Integer.valueOf(count.trim());
+                } catch (NumberFormatException ex) {
+                    return null;
+                }
+
+                //Stop at the first element under the root - any feature member means resultType was ignored
+                int depth = 0;
+                while (reader.hasNext()) {
+                    switch (reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        depth++;
+                        if (depth == 1 && (isFeatureMember(reader) ||
+                                (FEATURE_MEMBERS.equals(reader.getLocalName()) && isGmlNamespace(reader.getNamespaceURI())))) {
+                            return null;
+                        }
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        depth--;
+                        break;
+                    default:
+                        break;
+                    }
+                }
+
+                return hits;
+            } finally {
+                reader.close();
+            }
+        } finally {
+            IOUtils.closeQuietly(hitsResponse);
+        }
+    }
+
+    /**
+     * Counts every gml:featureMember, every child of gml:featureMembers and every wfs:member (WFS 2.0)
+     * that is a direct child of the root element. reader should be positioned at the root element.
+     */
+    private static int countFeatureMembers(XMLStreamReader reader) throws XMLStreamException {
+        int count = 0;
+        int depth = 0; //The root element is at depth 0
+        boolean inFeatureMembers = false;
+
+        while (reader.hasNext()) {
+            switch (reader.next()) {
+            case XMLStreamConstants.START_ELEMENT:
+                depth++;
+                if (depth == 1) {
+                    if (isFeatureMember(reader)) {
+                        count++;
+                    } else if (FEATURE_MEMBERS.equals(reader.getLocalName()) && isGmlNamespace(reader.getNamespaceURI())) {
+                        inFeatureMembers = true;
+                    }
+                } else if (depth == 2 && inFeatureMembers) {
+                    count++;
+                }
+                break;
+            case XMLStreamConstants.END_ELEMENT:
+                if (depth == 1) {
+                    inFeatureMembers = false;
+                }
+                depth--;
+                break;
+            default:
+                break;
+            }
+        }
+
+        return count;
+    }
+
+    private static boolean isFeatureMember(XMLStreamReader reader) {
+        String localName = reader.getLocalName();
+        String namespace = reader.getNamespaceURI();
+        if (FEATURE_MEMBER.equals(localName)) {
+            return isGmlNamespace(namespace);
+        } else if (WFS2_MEMBER.equals(localName)) {
+            return WFS2_NAMESPACE.equals(namespace);
+        }
+        return false;
+    }
+
+    private static boolean isGmlNamespace(String namespace) {
+        return namespace != null && namespace.startsWith(GML_NAMESPACE_PREFIX);
+    }
+}
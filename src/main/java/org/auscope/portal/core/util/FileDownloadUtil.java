@@ -0,0 +1,295 @@
+package org.auscope.portal.core.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Utility functions for serving local files over HTTP with support for conditional and ranged requests
+ * (Range, If-Range, If-None-Match) so that large downloads can be resumed.
+ *
+ * File content is copied with FileChannel.transferTo. If the container advertises Tomcat's sendfile support,
+ * the transfer is handed off to the container entirely.
+ */
+public class FileDownloadUtil {
+
+    /** Request attribute set (to Boolean.TRUE) by containers that support sendfile */
+    public static final String SENDFILE_SUPPORT_ATTRIBUTE = "org.apache.tomcat.sendfile.support";
+    /** Request attribute for the absolute path of the file to send */
+    public static final String SENDFILE_FILENAME_ATTRIBUTE = "org.apache.tomcat.sendfile.filename";
+    /** Request attribute for the (inclusive) start offset of the file to send */
+    public static final String SENDFILE_START_ATTRIBUTE = "org.apache.tomcat.sendfile.start";
+    /** Request attribute for the (exclusive) end offset of the file to send */
+    public static final String SENDFILE_END_ATTRIBUTE = "org.apache.tomcat.sendfile.end";
+
+    /** Requests for more ranges than this will be served the entire file */
+    public static final int MAX_RANGES = 16;
+
+    private static final String MULTIPART_BOUNDARY = "APT_BYTERANGES_BOUNDARY";
+    private static final Charset HEADER_CHARSET = Charset.forName("ISO-8859-1");
+
+    /**
+     * A single (inclusive) byte range of a file
+     */
+    static class ByteRange {
+        final long start;
+        final long end;
+
+        ByteRange(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        long length() {
+            return end - start + 1;
+        }
+
+        String toContentRange(long fileLength) {
+            return "bytes " + start + "-" + end + "/" + fileLength;
+        }
+    }
+
+    /**
+     * Generates a strong ETag for a file based on its length and modification date
+     * @param file
+     * @return
+     */
+    public static String createETag(File file) {
+        return "\"" + Long.toHexString(file.length()) + "-" + Long.toHexString(file.lastModified()) + "\"";
+    }
+
+    /**
+     * Writes file to response as an attachment, honouring any Range, If-Range or If-None-Match headers
+     * in request. The response will always include Content-Length, ETag, Last-Modified and Accept-Ranges headers.
+     *
+     * @param file The file to send
+     * @param fileName The name of the file as presented to the client
+     * @param contentType The content type of file
+     * @param request [Optional] The request being responded to. If null the entire file will be sent
+     * @param response Will receive the file
+     * @throws IOException
+     */
+    public static void writeFile(File file, String fileName, String contentType, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        long length = file.length();
+        long lastModified = file.lastModified();
+        String etag = createETag(file);
+
+        response.setHeader("Content-Disposition", "attachment; filename=\"" + fileName + "\"");
+        response.setHeader("Accept-Ranges", "bytes");
+        response.setHeader("ETag", etag);
+        response.setDateHeader("Last-Modified", lastModified);
+
+        List<ByteRange> ranges = null;
+        if (request != null) {
+            if (matchesETag(request.getHeader("If-None-Match"), etag)) {
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return;
+            }
+
+            String rangeHeader = request.getHeader("Range");
+            if (rangeHeader != null && isIfRangeSatisfied(request, etag, lastModified)) {
+                ranges = parseRanges(rangeHeader, length);
+                if (ranges != null && ranges.isEmpty()) {
+                    response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                    response.setHeader("Content-Range", "bytes */" + length);
+                    return;
+                }
+            }
+        }
+
+        if (ranges == null) {
+            response.setContentType(contentType);
+            response.setHeader("Content-Length", Long.toString(length));
+            sendRange(file, new ByteRange(0, length - 1), request, response);
+        } else if (ranges.size() == 1) {
+            ByteRange range = ranges.get(0);
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            response.setContentType(contentType);
+            response.setHeader("Content-Range", range.toContentRange(length));
+            response.setHeader("Content-Length", Long.toString(range.length()));
+            sendRange(file, range, request, response);
+        } else {
+            sendMultipleRanges(file, ranges, contentType, response);
+        }
+    }
+
+    /**
+     * Returns true if ifNoneMatch (an If-None-Match header value) matches etag
+     */
+    private static boolean matchesETag(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.equals("*") || candidate.equals(etag) || candidate.equals("W/" + etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if the If-Range header is missing or still matches the file
+     */
+    private static boolean isIfRangeSatisfied(HttpServletRequest request, String etag, long lastModified) {
+        String ifRange = request.getHeader("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            //Weak validators can never satisfy If-Range
+            return ifRange.equals(etag);
+        }
+
+        try {
+            long ifRangeDate = request.getDateHeader("If-Range");
+            return ifRangeDate >= 0 && lastModified / 1000 <= ifRangeDate / 1000;
+        } catch (IllegalArgumentException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Parses a Range header against a file of the specified length.
+     *
+     * @return null if the header is malformed (and should be ignored), an empty list if no range is satisfiable,
+     *         otherwise the list of satisfiable ranges
+     */
+    static List<ByteRange> parseRanges(String rangeHeader, long length) {
+        rangeHeader = rangeHeader.trim();
+        if (!rangeHeader.startsWith("bytes=")) {
+            return null;
+        }
+
+        String[] specs = rangeHeader.substring("bytes=".length()).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+
+        List<ByteRange> ranges = new ArrayList<ByteRange>();
+        for (String spec : specs) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+
+            String startString = spec.substring(0, dash).trim();
+            String endString = spec.substring(dash + 1).trim();
+            long start, end;
+            try {
+                if (startString.isEmpty()) {
+                    //Suffix range - the last N bytes
+                    long suffixLength = Long.parseLong(endString);
+                    if (suffixLength <= 0) {
+                        continue;
+                    }
+                    start = Math.max(0, length - suffixLength);
+                    end = length - 1;
+                } else {
+                    start = Long.parseLong(startString);
+                    end = endString.isEmpty() ? Long.MAX_VALUE : Long.parseLong(endString);
+                    if (end < start) {
+                        return null;
+                    }
+                    end = Math.min(length - 1, end);
+                }
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+
+            if (start < 0) {
+                return null;
+            }
+            if (start < length && start <= end) {
+                ranges.add(new ByteRange(start, end));
+            }
+        }
+
+        return ranges;
+    }
+
+    private static void sendRange(File file, ByteRange range, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (range.length() <= 0) {
+            return;
+        }
+
+        //Let the container do a zero copy transfer if it can
+        if (request != null && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT_ATTRIBUTE))) {
+            request.setAttribute(SENDFILE_FILENAME_ATTRIBUTE, file.getAbsolutePath());
+            request.setAttribute(SENDFILE_START_ATTRIBUTE, Long.valueOf(range.start));
+            request.setAttribute(SENDFILE_END_ATTRIBUTE, Long.valueOf(range.end + 1));
+            return;
+        }
+
+        OutputStream out = response.getOutputStream();
+        FileInputStream fin = new FileInputStream(file);
+        try {
+            transfer(fin.getChannel(), range, Channels.newChannel(out));
+            out.flush();
+        } finally {
+            FileIOUtil.closeQuietly(fin);
+        }
+    }
+
+    private static void sendMultipleRanges(File file, List<ByteRange> ranges, String contentType, HttpServletResponse response) throws IOException {
+        long length = file.length();
+        List<byte[]> partHeaders = new ArrayList<byte[]>();
+        long contentLength = 0;
+        for (ByteRange range : ranges) {
+            byte[] header = ("\r\n--" + MULTIPART_BOUNDARY + "\r\n" +
+                    "Content-Type: " + contentType + "\r\n" +
+                    "Content-Range: " + range.toContentRange(length) + "\r\n\r\n").getBytes(HEADER_CHARSET);
+            partHeaders.add(header);
+            contentLength += header.length + range.length();
+        }
+        byte[] trailer = ("\r\n--" + MULTIPART_BOUNDARY + "--\r\n").getBytes(HEADER_CHARSET);
+        contentLength += trailer.length;
+
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        response.setContentType("multipart/byteranges; boundary=" + MULTIPART_BOUNDARY);
+        response.setHeader("Content-Length", Long.toString(contentLength));
+
+        OutputStream out = response.getOutputStream();
+        WritableByteChannel outChannel = Channels.newChannel(out);
+        FileInputStream fin = new FileInputStream(file);
+        try {
+            FileChannel channel = fin.getChannel();
+            for (int i = 0; i < ranges.size(); i++) {
+                out.write(partHeaders.get(i));
+                transfer(channel, ranges.get(i), outChannel);
+            }
+            out.write(trailer);
+            out.flush();
+        } finally {
+            FileIOUtil.closeQuietly(fin);
+        }
+    }
+
+    private static void transfer(FileChannel channel, ByteRange range, WritableByteChannel out) throws IOException {
+        long position = range.start;
+        long remaining = range.length();
+        while (remaining > 0) {
+            long transferred = channel.transferTo(position, remaining, out);
+            if (transferred <= 0) {
+                throw new IOException("File truncated whilst transferring");
+            }
+            position += transferred;
+            remaining -= transferred;
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package org.auscope.portal.core.util;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.Closeable;
@@ -10,8 +11,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.io.Writer;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
@@ -19,9 +22,7 @@ import java.util.List;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
-import net.sf.json.JSONNull;
-import net.sf.json.JSONObject;
-
+import org.apache.commons.io.input.ProxyInputStream;
 import org.apache.commons.lang.exception.ExceptionUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -31,6 +32,11 @@ public class FileIOUtil {
 
     protected final static Log log = LogFactory.getLog(FileIOUtil.class);
 
+    /** The maximum number of leading bytes that will be read when checking if a download response is JSON */
+    private static final int JSON_SNIFF_LENGTH = 1024;
+    /** The number of bytes of GML extracted from a JSON response that will be held in memory before moving to a temporary file */
+    private static final int GML_MEMORY_THRESHOLD = 1024 * 1024;
+
     public static String convertExceptionToString(Exception ex,String debugQuery) {
         StringWriter sw = null;
         PrintWriter pw = null;
@@ -246,23 +252,114 @@ public class FileIOUtil {
      */
     public static void writeResponseToZip(List<DownloadResponse> gmlDownloads, ZipOutputStream zout, boolean closeInputs) throws IOException {
         for (int i = 0; i < gmlDownloads.size(); i++) {
-            DownloadResponse download = gmlDownloads.get(i);
-            String entryName = new SimpleDateFormat((i + 1) + "_yyyyMMdd_HHmmss").format(new Date()) + "." + MimeUtil.mimeToFileExtension(gmlDownloads.get(i).getContentType());
-            //TODO: VT - this method can be further improved if we thread this method as we are processing each stream one by one.
-            // Check that attempt to request is successful
-            if (!download.hasException()) {
-                InputStream stream = download.getResponseAsStream();
-
-                //Write stream into the zip entry
-                zout.putNextEntry(new ZipEntry(entryName));
-                writeInputToOutputStream(stream, zout, 8 * 1024, closeInputs);
-                zout.closeEntry();
-            } else {
-                writeErrorToZip(zout, download.getRequestURL(), download.getException(), entryName + ".error");
+            writeResponseToZip(gmlDownloads.get(i), i, zout, closeInputs);
+        }
+    }
+
+    /**
+     * Writes a single DownloadResponse to a zip stream as a separate zip entry. A failed download will
+     * be written as an error entry instead.
+     *
+     * @param download The download response
+     * @param index The (zero based) index of download in its batch of downloads. Used for naming the entry
+     * @param zout The stream to receive the zip entry
+     * @param closeInput true to close the input stream in download
+     */
+    public static void writeResponseToZip(DownloadResponse download, int index, ZipOutputStream zout, boolean closeInput) throws IOException {
+        String entryName = getEntryName(index);
+        // Check that attempt to request is successful
+        if (!download.hasException()) {
+            InputStream stream = download.getResponseAsStream();
+
+            //Write stream into the zip entry
+            zout.putNextEntry(new ZipEntry(entryName + "." + MimeUtil.mimeToFileExtension(download.getContentType())));
+            writeInputToOutputStream(stream, zout, 8 * 1024, closeInput);
+            zout.closeEntry();
+        } else {
+            writeErrorToZip(zout, download.getRequestURL(), download.getException(), entryName + ".error.txt");
+        }
+    }
+
+    /**
+     * Writes a single DownloadResponse to a zip stream choosing how to handle the response based on its content.
+     * Text and zip responses are written as is, responses that look like JSON are assumed to be wrapping GML
+     * (see writeResponseJSONToZip) and anything else is written as is. Failed downloads are written as an error entry.
+     *
+     * Unsuccessful JSON responses will be appended to jsonErrors (see writeDownloadInfoToZip)
+     *
+     * @param download The download response (its input stream will be closed)
+     * @param index The (zero based) index of download in its batch of downloads. Used for naming the entry
+     * @param zout The stream to receive the zip entry
+     * @param jsonErrors Receives the details of unsuccessful JSON responses
+     */
+    public static void writeResponseToZip(DownloadResponse download, int index, ZipOutputStream zout, StringBuilder jsonErrors) throws IOException {
+        String contentType = download.getContentType();
+        if (download.hasException() || contentType.contains("text") || contentType.contains("zip")) {
+            writeResponseToZip(download, index, zout, true);
+            return;
+        }
+
+        if (isJSONResponse(download)) {
+            writeResponseJSONToZip(download, index, zout, jsonErrors);
+        } else {
+            writeResponseToZip(download, index, zout, true);
+        }
+    }
+
+    /**
+     * Adds a single DownloadResponse to a ParallelZipWriter choosing how to handle the response in the same
+     * manner as writeResponseToZip(DownloadResponse, int, ZipOutputStream, StringBuilder). The entry will be
+     * compressed on one of zip's workers.
+     *
+     * @param download The download response (its input stream will be closed)
+     * @param index The (zero based) index of download in its batch of downloads. Used for naming the entry
+     * @param zip Receives the zip entry
+     * @param jsonErrors Receives the details of unsuccessful JSON responses
+     */
+    public static void writeResponseToZip(DownloadResponse download, int index, ParallelZipWriter zip, StringBuilder jsonErrors) throws IOException {
+        String entryName = getEntryName(index);
+        if (download.hasException()) {
+            zip.addEntry(entryName + ".error.txt", "text/plain",
+                    getErrorMessage(download.getRequestURL(), download.getException()).getBytes());
+            return;
+        }
+
+        String contentType = download.getContentType();
+        if (contentType.contains("text") || contentType.contains("zip") || !isJSONResponse(download)) {
+            zip.addEntry(entryName + "." + MimeUtil.mimeToFileExtension(contentType), contentType, download.getResponseAsStream());
+        } else {
+            ScratchOutputStream gml = extractGmlFromJSON(download, jsonErrors);
+            if (gml != null) {
+                zip.addEntry(entryName + ".xml", "text/xml", openSpool(gml));
             }
         }
     }
 
+    /**
+     * Peeks at the start of download's response to see if it's JSON (some services misreport their content type).
+     * The response stream of download will be replaced with a buffered equivalent.
+     */
+    private static boolean isJSONResponse(DownloadResponse download) throws IOException {
+        InputStream stream = new BufferedInputStream(download.getResponseAsStream());
+        download.setResponseStream(stream);
+        stream.mark(JSON_SNIFF_LENGTH);
+        int b;
+        int read = 0;
+        do {
+            b = stream.read();
+        } while (b >= 0 && Character.isWhitespace(b) && ++read < JSON_SNIFF_LENGTH);
+        stream.reset();
+
+        return b == '{';
+    }
+
+    /**
+     * Generates the (extensionless) name of the zip entry for the download at index in its batch
+     */
+    private static String getEntryName(int index) {
+        return new SimpleDateFormat((index + 1) + "_yyyyMMdd_HHmmss").format(new Date());
+    }
+
     /**
      * Writes an error to a zip stream.
      * This are the same code as those in BasePortalController
@@ -272,25 +369,31 @@ public class FileIOUtil {
      * @param errorFileName The name of the error file in the zip (defaults to 'error.txt')
      */
     public static void writeErrorToZip(ZipOutputStream zout, String debugQuery, Exception exceptionToPrint, String errorFileName) {
-        String message = null;
+        String message = getErrorMessage(debugQuery, exceptionToPrint);
+
+        try {
+            zout.putNextEntry(new ZipEntry(errorFileName == null ? "error.txt" : errorFileName));
+            zout.write(message.getBytes());
+        } catch (IOException ex) {
+            log.error("Couldnt create debug error.txt in output", ex);
+        }
+    }
+
+    /**
+     * Generates the content of an error entry (see writeErrorToZip)
+     */
+    private static String getErrorMessage(String debugQuery, Exception exceptionToPrint) {
         StringWriter sw = null;
         PrintWriter pw = null;
         try {
             sw = new StringWriter();
             pw = new PrintWriter(sw);
             exceptionToPrint.printStackTrace(pw);
-            message = String.format("An exception occured whilst requesting/parsing your download.\r\n%1$s\r\nMessage=%2$s\r\n%3$s", debugQuery, exceptionToPrint.getMessage(), sw.toString());
+            return String.format("An exception occured whilst requesting/parsing your download.\r\n%1$s\r\nMessage=%2$s\r\n%3$s", debugQuery, exceptionToPrint.getMessage(), sw.toString());
         } finally {
             FileIOUtil.closeQuietly(pw);
             FileIOUtil.closeQuietly(sw);
         }
-
-        try {
-            zout.putNextEntry(new ZipEntry(errorFileName == null ? errorFileName : "error.txt"));
-            zout.write(message.getBytes());
-        } catch (IOException ex) {
-            log.error("Couldnt create debug error.txt in output", ex);
-        }
     }
 
     /**
@@ -333,44 +436,129 @@ public class FileIOUtil {
         StringBuilder errorMsg = new StringBuilder();
 
         for (int i = 0; i<gmlDownloads.size(); i++) {
-            DownloadResponse download=gmlDownloads.get(i);
-            //Check that attempt to request is successful
-            if (!download.hasException()) {
-                JSONObject jsonObject = JSONObject.fromObject(download.getResponseAsString());
-                //check that JSON reply is successful
-                if (jsonObject.get("success").toString().equals("false")) {
-                    errorMsg.append("Unsuccessful JSON reply from: " + download.getRequestURL() + "\n");
-
-                    Object messageObject = jsonObject.get("msg");
-                    if (messageObject==null || messageObject.toString().length()==0) {
-                        errorMsg.append("No error message\n\n");
-                    } else {
-                        errorMsg.append(messageObject.toString() + "\n\n");
-                    }
-                } else {
-                    byte[] gmlBytes = new byte[] {};
-                    Object dataObject = jsonObject.get("data");
-                    if (dataObject != null && !JSONNull.getInstance().equals(dataObject)) {
-                        Object gmlResponseObject = JSONObject.fromObject(dataObject)
-                                .get("gml");
-
-                        if (gmlResponseObject != null) {
-                            gmlBytes = gmlResponseObject.toString().getBytes();
+            writeResponseJSONToZip(gmlDownloads.get(i), i, zout, errorMsg);
+        }
+        writeDownloadInfoToZip(errorMsg, zout);
+    }
+
+    /**
+     * Writes the GML from a single JSON DownloadResponse to a zip stream. Any failures will be appended to errorMsg
+     * instead of being written to the zip stream.
+     *
+     * @param download The JSON download response
+     * @param index The (zero based) index of download in its batch of downloads. Used for naming the entry
+     * @param zout the ZipOutputStream to write the response
+     * @param errorMsg Receives the details of any failure
+     * @throws IOException
+     */
+    public static void writeResponseJSONToZip(DownloadResponse download, int index, ZipOutputStream zout, StringBuilder errorMsg) throws IOException {
+        ScratchOutputStream gml = extractGmlFromJSON(download, errorMsg);
+        if (gml != null) {
+            try {
+                zout.putNextEntry(new ZipEntry(getEntryName(index) + ".xml"));
+                gml.writeTo(zout);
+                zout.closeEntry();
+            } finally {
+                gml.delete();
+            }
+        }
+    }
+
+    /**
+     * Extracts the GML wrapped by a JSON DownloadResponse (ie {"success":true, "data":{"gml":"..."}}) without loading
+     * the response into memory. The GML is streamed into a spool (as the success flag may follow it) that will only
+     * hold GML_MEMORY_THRESHOLD bytes in memory before moving to a ScratchSpace file.
+     *
+     * @return The (closed) spooled GML or null if the download failed (in which case the details will be appended to errorMsg).
+     *         The spool must be disposed with ScratchOutputStream.delete.
+     */
+    private static ScratchOutputStream extractGmlFromJSON(DownloadResponse download, StringBuilder errorMsg) {
+        //Check that attempt to request is successful
+        if (download.hasException()) {
+            errorMsg.append("Exception thrown while attempting to download from: " + download.getRequestURL() + "\n");
+            errorMsg.append(download.getExceptionAsString() + "\n\n");
+            return null;
+        }
+
+        ScratchOutputStream gml = new ScratchOutputStream(GML_MEMORY_THRESHOLD, "APT_GML", ".xml");
+        String success = null;
+        String message = null;
+        JSONStreamReader json = null;
+        try {
+            json = new JSONStreamReader(new InputStreamReader(download.getResponseAsStream(), "UTF-8"));
+            json.beginObject();
+            while (json.hasNext()) {
+                String name = json.nextName();
+                if ("success".equals(name)) {
+                    success = json.nextScalar();
+                } else if ("msg".equals(name)) {
+                    message = json.nextScalar();
+                } else if ("data".equals(name) && json.peek() == '{') {
+                    json.beginObject();
+                    while (json.hasNext()) {
+                        if ("gml".equals(json.nextName()) && json.peek() == '"') {
+                            Writer gmlWriter = new OutputStreamWriter(gml, "UTF-8");
+                            json.copyString(gmlWriter);
+                            gmlWriter.flush();
+                        } else {
+                            json.skipValue();
                         }
                     }
-
-                    zout.putNextEntry(new ZipEntry(new SimpleDateFormat(
-                            (i + 1) + "_yyyyMMdd_HHmmss").format(new Date())
-                            + ".xml"));
-                    zout.write(gmlBytes);
-                    zout.closeEntry();
+                    json.endObject();
+                } else {
+                    json.skipValue();
                 }
+            }
+        } catch (IOException ex) {
+            FileIOUtil.closeQuietly(gml);
+            gml.delete();
+            errorMsg.append("Unable to read JSON reply from: " + download.getRequestURL() + "\n");
+            errorMsg.append(ex.getMessage() + "\n\n");
+            return null;
+        } finally {
+            FileIOUtil.closeQuietly(json);
+            FileIOUtil.closeQuietly(gml);
+        }
 
+        //check that JSON reply is successful
+        if ("false".equals(success)) {
+            gml.delete();
+            errorMsg.append("Unsuccessful JSON reply from: " + download.getRequestURL() + "\n");
+            if (message == null || message.length() == 0) {
+                errorMsg.append("No error message\n\n");
             } else {
-                errorMsg.append("Exception thrown while attempting to download from: " + download.getRequestURL() + "\n");
-                errorMsg.append(download.getExceptionAsString() + "\n\n");
+                errorMsg.append(message + "\n\n");
             }
+            return null;
         }
+
+        return gml;
+    }
+
+    /**
+     * Opens a (closed) spool for reading. The spool will be deleted when the returned stream is closed.
+     */
+    private static InputStream openSpool(final ScratchOutputStream spool) throws IOException {
+        return new ProxyInputStream(spool.openInputStream()) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    spool.delete();
+                }
+            }
+        };
+    }
+
+    /**
+     * Writes the accumulated failures from writeResponseJSONToZip to the downloadInfo.txt entry of zout. Nothing will be
+     * written if there are no failures.
+     * @param errorMsg The accumulated failures
+     * @param zout the ZipOutputStream to write the failures
+     * @throws IOException
+     */
+    public static void writeDownloadInfoToZip(StringBuilder errorMsg, ZipOutputStream zout) throws IOException {
         if (errorMsg.length()!=0) {
             zout.putNextEntry(new ZipEntry("downloadInfo.txt"));
             zout.write(errorMsg.toString().getBytes());
@@ -378,6 +566,19 @@ public class FileIOUtil {
         }
     }
 
+    /**
+     * Adds the accumulated failures from writeResponseToZip to the downloadInfo.txt entry of zip. Nothing will be
+     * written if there are no failures.
+     * @param errorMsg The accumulated failures
+     * @param zip the ParallelZipWriter to receive the failures
+     * @throws IOException
+     */
+    public static void writeDownloadInfoToZip(StringBuilder errorMsg, ParallelZipWriter zip) throws IOException {
+        if (errorMsg.length()!=0) {
+            zip.addEntry("downloadInfo.txt", "text/plain", errorMsg.toString().getBytes());
+        }
+    }
+
     /**
      * VT: Have to think of a better way to handle exception rather then just encapsulating the error in xml
      * @param e
@@ -436,12 +637,23 @@ public class FileIOUtil {
         }
     }
 
+    /**
+     * Writes ins to a new file in the default ScratchSpace. The write is subject to the scratch quotas but the file is
+     * released from tracking once written - the caller should delete it when finished (otherwise it will be reaped
+     * once it's orphaned).
+     * @param ins The data to write
+     * @param identifier The file name prefix
+     * @param fileSuffix The file name suffix
+     * @param closeIns Whether ins should be closed afterwards
+     * @return
+     * @throws IOException
+     */
     public static File writeStreamToFileTemporary(InputStream ins,String identifier,String fileSuffix,boolean closeIns) throws IOException {
         BufferedOutputStream out=null;
-        File f=null;
+        ScratchSpace.ScratchFile scratchFile = ScratchSpace.getDefault().createFile(null, identifier, fileSuffix);
+        File f=scratchFile.getFile();
         try{
-            f = File.createTempFile(identifier, fileSuffix);
-            out= new BufferedOutputStream(new FileOutputStream(f));
+            out= new BufferedOutputStream(scratchFile.openOutputStream());
             FileIOUtil.writeInputToOutputStream(ins, out, 8 * 1024, false);
             out.flush();
             out.close();
@@ -451,9 +663,12 @@ public class FileIOUtil {
             return f;
 
         }catch(IOException e){
+            FileIOUtil.closeQuietly(out);
+            scratchFile.delete();
             throw e;
         }finally{
-            out.close();
+            FileIOUtil.closeQuietly(out);
+            scratchFile.release();
             if(closeIns){
                 ins.close();
             }
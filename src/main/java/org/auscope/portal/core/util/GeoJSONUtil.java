@@ -0,0 +1,659 @@
+package org.auscope.portal.core.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.io.IOUtils;
+import org.auscope.portal.core.view.JSONStringWriter;
+
+/**
+ * Utility functions for converting WFS GetFeature responses (GML 3.1/3.2 feature collections) into
+ * GeoJSON without building a DOM.
+ *
+ * Features are read one at a time and written to the output as soon as they have been parsed so
+ * only a single feature is ever held in memory. The following geometries are supported:
+ *
+ * Point, LineString, LinearRing, Curve, Polygon, PolygonPatch, Surface, MultiPoint, MultiLineString,
+ * MultiCurve, MultiPolygon, MultiSurface and MultiGeometry
+ *
+ * Every other child element of a feature is written as a property keyed by its local name. Properties
+ * with child elements are written as nested objects and repeated properties are written as arrays.
+ * Features with more than one geometry will have a GeometryCollection.
+ *
+ * GeoJSON coordinates are always longitude/latitude (x/y). Geometries whose srsName uses an EPSG URN/URI
+ * (eg urn:ogc:def:crs:EPSG::4326) with a geographic CRS code (4000-4999) are assumed to be in EPSG axis order
+ * (latitude/longitude) and will have their axes swapped. Every other srsName (eg EPSG:4326) is assumed to be x/y.
+ */
+public class GeoJSONUtil {
+
+    private static final String GML_NAMESPACE_PREFIX = "http://www.opengis.net/gml";
+    private static final String WFS2_NAMESPACE = "http://www.opengis.net/wfs/2.0";
+    private static final String XLINK_NAMESPACE = "http://www.w3.org/1999/xlink";
+
+    private static final Set<String> GEOMETRY_ELEMENTS = new HashSet<String>(Arrays.asList(
+            "Point", "LineString", "LinearRing", "Curve", "Polygon", "PolygonPatch", "Surface", "MultiPoint",
+            "MultiLineString", "MultiCurve", "MultiPolygon", "MultiSurface", "MultiGeometry"));
+
+    /** The min/max EPSG codes that are (approximately) reserved for geographic CRS's - these use lat/lon axis order*/
+    private static final int EPSG_GEOGRAPHIC_MIN = 4000;
+    private static final int EPSG_GEOGRAPHIC_MAX = 4999;
+
+    /** DTD's are NOT processed */
+    private static final XMLInputFactory inputFactory = createInputFactory();
+
+    private static XMLInputFactory createInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        return factory;
+    }
+
+    /**
+     * Streams through a WFS response writing every feature to output as a GeoJSON FeatureCollection.
+     *
+     * If the response cannot be parsed, the features written so far will be terminated as a valid FeatureCollection
+     * (with an additional "error" member) before the exception is thrown.
+     *
+     * @param wfsResponse The response to read (should already be checked for OWS exceptions) - will be closed by this method
+     * @param output Will receive the GeoJSON (will not be flushed/closed)
+     * @return The number of features written
+     * @throws XMLStreamException If the response cannot be parsed
+     * @throws IOException
+     */
+    public static int writeFeatureCollection(InputStream wfsResponse, Writer output) throws XMLStreamException, IOException {
+        int count = 0;
+        output.write("{\"type\":\"FeatureCollection\",\"features\":[");
+        try {
+            XMLStreamReader reader = inputFactory.createXMLStreamReader(wfsResponse);
+            try {
+                if (reader.nextTag() != XMLStreamConstants.START_ELEMENT) {
+                    throw new XMLStreamException("No root element found");
+                }
+
+                //Iterate the feature members of the root element
+                while (nextChildElement(reader)) {
+                    if (isFeatureMember(reader)) {
+                        while (nextChildElement(reader)) {
+                            Feature feature = parseFeature(reader);
+                            if (count > 0) {
+                                output.write(',');
+                            }
+                            writeFeature(feature, output);
+                            count++;
+                        }
+                    } else {
+                        skipElement(reader);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException ex) {
+            output.write("],\"error\":\"");
+            writeEscaped(ex.getMessage() == null ? ex.toString() : ex.getMessage(), output);
+            output.write("\"}");
+            throw ex;
+        } finally {
+            IOUtils.closeQuietly(wfsResponse);
+        }
+
+        output.write("]}");
+        return count;
+    }
+
+    private static boolean isGmlNamespace(String namespace) {
+        return namespace != null && namespace.startsWith(GML_NAMESPACE_PREFIX);
+    }
+
+    private static boolean isFeatureMember(XMLStreamReader reader) {
+        String localName = reader.getLocalName();
+        String namespace = reader.getNamespaceURI();
+        if ("featureMember".equals(localName) || "featureMembers".equals(localName)) {
+            return isGmlNamespace(namespace);
+        } else if ("member".equals(localName)) {
+            return WFS2_NAMESPACE.equals(namespace);
+        }
+        return false;
+    }
+
+    private static boolean isGeometry(XMLStreamReader reader) {
+        return isGmlNamespace(reader.getNamespaceURI()) && GEOMETRY_ELEMENTS.contains(reader.getLocalName());
+    }
+
+    /**
+     * Advances reader to the next child element of the current element (ignoring any text). Returns false (with reader positioned
+     * at the end element of the current element) if there are no more child elements.
+     */
+    private static boolean nextChildElement(XMLStreamReader reader) throws XMLStreamException {
+        while (true) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                return true;
+            } else if (event == XMLStreamConstants.END_ELEMENT || event == XMLStreamConstants.END_DOCUMENT) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Skips the current element (and all of its children). reader will be positioned at the end element.
+     */
+    private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    private static String getGmlAttribute(XMLStreamReader reader, String localName) {
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            if (localName.equals(reader.getAttributeLocalName(i)) && isGmlNamespace(reader.getAttributeNamespace(i))) {
+                return reader.getAttributeValue(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parses a single feature. reader should be positioned at the feature's start element and will be left at its end element.
+     */
+    private static Feature parseFeature(XMLStreamReader reader) throws XMLStreamException {
+        Feature feature = new Feature();
+        feature.id = getGmlAttribute(reader, "id");
+        if (feature.id == null) {
+            feature.id = reader.getAttributeValue(null, "fid");
+        }
+
+        while (nextChildElement(reader)) {
+            if (isGmlNamespace(reader.getNamespaceURI()) && "boundedBy".equals(reader.getLocalName())) {
+                skipElement(reader);
+                continue;
+            }
+
+            String name = reader.getLocalName();
+            Object value = parseProperty(reader, feature);
+            if (value != GEOMETRY_ONLY) {
+                addProperty(feature.properties, name, value);
+            }
+        }
+
+        return feature;
+    }
+
+    /** Returned by parseProperty for elements that contained nothing but geometry*/
+    private static final Object GEOMETRY_ONLY = new Object();
+
+    private static void addProperty(Map<String, Object> properties, String name, Object value) {
+        if (!properties.containsKey(name)) {
+            properties.put(name, value);
+            return;
+        }
+
+        //Repeated properties are collected into a list
+        Object existing = properties.get(name);
+        if (existing instanceof RepeatedValues) {
+            ((RepeatedValues) existing).add(value);
+        } else {
+            RepeatedValues values = new RepeatedValues();
+            values.add(existing);
+            values.add(value);
+            properties.put(name, values);
+        }
+    }
+
+    /**
+     * Parses a property value (a String, Map, null or GEOMETRY_ONLY). Any geometries will be added to feature.
+     * reader should be positioned at the property's start element and will be left at its end element.
+     */
+    private static Object parseProperty(XMLStreamReader reader, Feature feature) throws XMLStreamException {
+        if (isGeometry(reader)) {
+            feature.geometries.add(parseGeometry(reader, null, null));
+            return GEOMETRY_ONLY;
+        }
+
+        String href = reader.getAttributeValue(XLINK_NAMESPACE, "href");
+        StringBuilder text = new StringBuilder();
+        Map<String, Object> children = null;
+        boolean containsGeometry = false;
+
+        while (true) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                break;
+            } else if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA) {
+                text.append(reader.getText());
+            } else if (event == XMLStreamConstants.START_ELEMENT) {
+                String name = reader.getLocalName();
+                Object value = parseProperty(reader, feature);
+                if (value == GEOMETRY_ONLY) {
+                    containsGeometry = true;
+                } else {
+                    if (children == null) {
+                        children = new LinkedHashMap<String, Object>();
+                    }
+                    addProperty(children, name, value);
+                }
+            }
+        }
+
+        if (children != null) {
+            return children;
+        } else if (containsGeometry) {
+            return GEOMETRY_ONLY;
+        }
+
+        String value = text.toString().trim();
+        if (value.isEmpty()) {
+            return href;
+        }
+        return value;
+    }
+
+    /**
+     * Returns true if srsName is expected to have its coordinates ordered lat/lon
+     */
+    static boolean isLatLonOrder(String srsName) {
+        if (srsName == null) {
+            return false;
+        }
+
+        String code;
+        String srs = srsName.trim();
+        if (srs.startsWith("urn:ogc:def:crs:EPSG:") || srs.startsWith("urn:x-ogc:def:crs:EPSG:")) {
+            code = srs.substring(srs.lastIndexOf(':') + 1);
+        } else if (srs.startsWith("http://www.opengis.net/def/crs/EPSG/")) {
+            code = srs.substring(srs.lastIndexOf('/') + 1);
+        } else {
+            return false; //EPSG:XXXX and http://www.opengis.net/gml/srs/epsg.xml#XXXX are always x/y
+        }
+
+        try {
+            int epsg = Integer.parseInt(code);
+            return epsg >= EPSG_GEOGRAPHIC_MIN && epsg <= EPSG_GEOGRAPHIC_MAX;
+        } catch (NumberFormatException ex) {
+            return false;
+        }
+    }
+
+    private static Integer parseDimension(String srsDimension, Integer inherited) {
+        if (srsDimension != null) {
+            try {
+                return Integer.valueOf(srsDimension.trim());
+            } catch (NumberFormatException ex) {
+                //Fall through to inherited dimension
+            }
+        }
+        return inherited;
+    }
+
+    /**
+     * Parses a geometry. reader should be positioned at the geometry's start element and will be left at its end element.
+     * @param inheritedSrs The srsName of the nearest parent geometry (if any)
+     * @param inheritedDimension The srsDimension of the nearest parent geometry (if any)
+     */
+    private static Geometry parseGeometry(XMLStreamReader reader, String inheritedSrs, Integer inheritedDimension) throws XMLStreamException {
+        String localName = reader.getLocalName();
+        String srsName = reader.getAttributeValue(null, "srsName");
+        String srs = srsName == null ? inheritedSrs : srsName;
+        Integer dimension = parseDimension(reader.getAttributeValue(null, "srsDimension"), inheritedDimension);
+        boolean swapAxes = isLatLonOrder(srs);
+
+        if ("Point".equals(localName)) {
+            List<double[]> positions = readPositions(reader, dimension, swapAxes);
+            return new Geometry("Point", positions.isEmpty() ? null : positions.get(0));
+        } else if ("LineString".equals(localName) || "LinearRing".equals(localName) || "Curve".equals(localName)) {
+            return new Geometry("LineString", readPositions(reader, dimension, swapAxes));
+        } else if ("Polygon".equals(localName) || "PolygonPatch".equals(localName)) {
+            return new Geometry("Polygon", readRings(reader, dimension, swapAxes));
+        }
+
+        //Everything else is a collection of member geometries
+        List<Geometry> members = new ArrayList<Geometry>();
+        readMemberGeometries(reader, srs, dimension, members);
+
+        if ("MultiPoint".equals(localName)) {
+            return new Geometry("MultiPoint", collectCoordinates(members, "Point"));
+        } else if ("MultiLineString".equals(localName) || "MultiCurve".equals(localName)) {
+            return new Geometry("MultiLineString", collectCoordinates(members, "LineString"));
+        } else if ("Surface".equals(localName) && members.size() == 1 && "Polygon".equals(members.get(0).type)) {
+            return members.get(0);
+        } else if ("Surface".equals(localName) || "MultiSurface".equals(localName) || "MultiPolygon".equals(localName)) {
+            List<Object> polygons = new ArrayList<Object>();
+            for (Geometry member : members) {
+                if ("Polygon".equals(member.type)) {
+                    polygons.add(member.coordinates);
+                } else if ("MultiPolygon".equals(member.type)) {
+                    polygons.addAll((List<?>) member.coordinates);
+                }
+            }
+            return new Geometry("MultiPolygon", polygons);
+        } else {
+            return new Geometry(members);
+        }
+    }
+
+    private static List<Object> collectCoordinates(List<Geometry> members, String type) {
+        List<Object> coordinates = new ArrayList<Object>();
+        for (Geometry member : members) {
+            if (type.equals(member.type) && member.coordinates != null) {
+                coordinates.add(member.coordinates);
+            } else if (("Multi" + type).equals(member.type)) {
+                coordinates.addAll((List<?>) member.coordinates);
+            }
+        }
+        return coordinates;
+    }
+
+    /**
+     * Reads every descendant geometry of the current element into members
+     */
+    private static void readMemberGeometries(XMLStreamReader reader, String srs, Integer dimension, List<Geometry> members) throws XMLStreamException {
+        while (nextChildElement(reader)) {
+            if (isGeometry(reader)) {
+                members.add(parseGeometry(reader, srs, dimension));
+            } else {
+                readMemberGeometries(reader, srs, dimension, members);
+            }
+        }
+    }
+
+    /**
+     * Reads the exterior and interior rings of a polygon (exterior first)
+     */
+    private static List<List<double[]>> readRings(XMLStreamReader reader, Integer dimension, boolean swapAxes) throws XMLStreamException {
+        List<double[]> exterior = null;
+        List<List<double[]>> interiors = new ArrayList<List<double[]>>();
+        while (nextChildElement(reader)) {
+            String localName = reader.getLocalName();
+            if ("exterior".equals(localName) || "outerBoundaryIs".equals(localName)) {
+                exterior = readPositions(reader, dimension, swapAxes);
+            } else if ("interior".equals(localName) || "innerBoundaryIs".equals(localName)) {
+                interiors.add(readPositions(reader, dimension, swapAxes));
+            } else {
+                skipElement(reader);
+            }
+        }
+
+        List<List<double[]>> rings = new ArrayList<List<double[]>>();
+        if (exterior != null) {
+            rings.add(exterior);
+        }
+        rings.addAll(interiors);
+        return rings;
+    }
+
+    /**
+     * Reads every position (gml:pos, gml:posList, gml:coordinates and gml:coord) that is a descendant of the current element
+     */
+    private static List<double[]> readPositions(XMLStreamReader reader, Integer dimension, boolean swapAxes) throws XMLStreamException {
+        List<double[]> positions = new ArrayList<double[]>();
+        readPositions(reader, dimension, swapAxes, positions);
+        return positions;
+    }
+
+    private static void readPositions(XMLStreamReader reader, Integer dimension, boolean swapAxes, List<double[]> positions) throws XMLStreamException {
+        while (nextChildElement(reader)) {
+            String localName = reader.getLocalName();
+            Integer elementDimension = parseDimension(reader.getAttributeValue(null, "srsDimension"), dimension);
+            if ("pos".equals(localName)) {
+                double[] position = parseNumbers(reader.getElementText().trim().split("\\s+"));
+                if (position.length > 0) {
+                    positions.add(swap(position, swapAxes));
+                }
+            } else if ("posList".equals(localName)) {
+                int dim = elementDimension == null ? 2 : elementDimension;
+                double[] values = parseNumbers(reader.getElementText().trim().split("\\s+"));
+                for (int i = 0; i + dim <= values.length; i += dim) {
+                    positions.add(swap(Arrays.copyOfRange(values, i, i + dim), swapAxes));
+                }
+            } else if ("coordinates".equals(localName)) {
+                readCoordinates(reader, swapAxes, positions);
+            } else if ("coord".equals(localName)) {
+                readCoord(reader, swapAxes, positions);
+            } else {
+                readPositions(reader, elementDimension, swapAxes, positions);
+            }
+        }
+    }
+
+    /**
+     * Parses a GML 2 style gml:coordinates element (with optional cs, ts and decimal attributes)
+     */
+    private static void readCoordinates(XMLStreamReader reader, boolean swapAxes, List<double[]> positions) throws XMLStreamException {
+        String cs = reader.getAttributeValue(null, "cs");
+        String ts = reader.getAttributeValue(null, "ts");
+        String decimal = reader.getAttributeValue(null, "decimal");
+        String text = reader.getElementText().trim();
+        if (text.isEmpty()) {
+            return;
+        }
+
+        String tupleRegex = ts == null ? "\\s+" : Pattern.quote(ts);
+        String coordRegex = cs == null ? "," : Pattern.quote(cs);
+        for (String tuple : text.split(tupleRegex)) {
+            if (tuple.trim().isEmpty()) {
+                continue;
+            }
+            String[] coords = tuple.trim().split(coordRegex);
+            if (decimal != null && !decimal.equals(".")) {
+                for (int i = 0; i < coords.length; i++) {
+                    coords[i] = coords[i].replace(decimal, ".");
+                }
+            }
+            positions.add(swap(parseNumbers(coords), swapAxes));
+        }
+    }
+
+    /**
+     * Parses a GML 2 style gml:coord element (with X, Y and optional Z children)
+     */
+    private static void readCoord(XMLStreamReader reader, boolean swapAxes, List<double[]> positions) throws XMLStreamException {
+        List<String> values = new ArrayList<String>();
+        while (nextChildElement(reader)) {
+            values.add(reader.getElementText().trim());
+        }
+        positions.add(swap(parseNumbers(values.toArray(new String[values.size()])), swapAxes));
+    }
+
+    private static double[] parseNumbers(String[] values) throws XMLStreamException {
+        if (values.length == 1 && values[0].isEmpty()) {
+            return new double[0];
+        }
+
+        double[] result = new double[values.length];
+        for (int i = 0; i < values.length; i++) {
+            try {
+                result[i] = Double.parseDouble(values[i].trim());
+            } catch (NumberFormatException ex) {
+                throw new XMLStreamException("Invalid coordinate: " + values[i]);
+            }
+            if (Double.isNaN(result[i]) || Double.isInfinite(result[i])) {
+                throw new XMLStreamException("Invalid coordinate: " + values[i]);
+            }
+        }
+        return result;
+    }
+
+    private static double[] swap(double[] position, boolean swapAxes) {
+        if (swapAxes && position.length >= 2) {
+            double tmp = position[0];
+            position[0] = position[1];
+            position[1] = tmp;
+        }
+        return position;
+    }
+
+    private static void writeEscaped(String s, Writer output) throws IOException {
+        JSONStringWriter writer = new JSONStringWriter(output);
+        writer.write(s);
+    }
+
+    private static void writeString(String s, Writer output) throws IOException {
+        if (s == null) {
+            output.write("null");
+            return;
+        }
+
+        output.write('"');
+        writeEscaped(s, output);
+        output.write('"');
+    }
+
+    private static void writeFeature(Feature feature, Writer output) throws IOException {
+        output.write("{\"type\":\"Feature\",");
+        if (feature.id != null) {
+            output.write("\"id\":");
+            writeString(feature.id, output);
+            output.write(',');
+        }
+
+        output.write("\"geometry\":");
+        if (feature.geometries.isEmpty()) {
+            output.write("null");
+        } else if (feature.geometries.size() == 1) {
+            writeGeometry(feature.geometries.get(0), output);
+        } else {
+            writeGeometry(new Geometry(feature.geometries), output);
+        }
+
+        output.write(",\"properties\":");
+        writePropertyValue(feature.properties, output);
+        output.write('}');
+    }
+
+    private static void writePropertyValue(Object value, Writer output) throws IOException {
+        if (value instanceof Map) {
+            output.write('{');
+            boolean first = true;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (!first) {
+                    output.write(',');
+                }
+                first = false;
+                writeString((String) entry.getKey(), output);
+                output.write(':');
+                writePropertyValue(entry.getValue(), output);
+            }
+            output.write('}');
+        } else if (value instanceof List) {
+            output.write('[');
+            List<?> list = (List<?>) value;
+            for (int i = 0; i < list.size(); i++) {
+                if (i > 0) {
+                    output.write(',');
+                }
+                writePropertyValue(list.get(i), output);
+            }
+            output.write(']');
+        } else {
+            writeString((String) value, output);
+        }
+    }
+
+    private static void writeGeometry(Geometry geometry, Writer output) throws IOException {
+        output.write("{\"type\":\"");
+        output.write(geometry.type);
+        output.write('"');
+        if (geometry.geometries != null) {
+            output.write(",\"geometries\":[");
+            for (int i = 0; i < geometry.geometries.size(); i++) {
+                if (i > 0) {
+                    output.write(',');
+                }
+                writeGeometry(geometry.geometries.get(i), output);
+            }
+            output.write(']');
+        } else {
+            output.write(",\"coordinates\":");
+            writeCoordinates(geometry.coordinates, output);
+        }
+        output.write('}');
+    }
+
+    private static void writeCoordinates(Object coordinates, Writer output) throws IOException {
+        if (coordinates == null) {
+            output.write("[]");
+        } else if (coordinates instanceof double[]) {
+            double[] position = (double[]) coordinates;
+            output.write('[');
+            for (int i = 0; i < position.length; i++) {
+                if (i > 0) {
+                    output.write(',');
+                }
+                output.write(Double.toString(position[i]));
+            }
+            output.write(']');
+        } else {
+            List<?> list = (List<?>) coordinates;
+            output.write('[');
+            for (int i = 0; i < list.size(); i++) {
+                if (i > 0) {
+                    output.write(',');
+                }
+                writeCoordinates(list.get(i), output);
+            }
+            output.write(']');
+        }
+    }
+
+    /**
+     * A single parsed feature
+     */
+    private static class Feature {
+        String id;
+        List<Geometry> geometries = new ArrayList<Geometry>();
+        Map<String, Object> properties = new LinkedHashMap<String, Object>();
+    }
+
+    /**
+     * Marker class for distinguishing repeated properties from other lists
+     */
+    private static class RepeatedValues extends ArrayList<Object> {
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * A parsed geometry - coordinates will be a position (double[]) or nested lists of positions
+     */
+    private static class Geometry {
+        final String type;
+        final Object coordinates;
+        final List<Geometry> geometries;
+
+        Geometry(String type, Object coordinates) {
+            this.type = type;
+            this.coordinates = coordinates;
+            this.geometries = null;
+        }
+
+        /**
+         * Creates a GeometryCollection
+         */
+        Geometry(List<Geometry> geometries) {
+            this.type = "GeometryCollection";
+            this.coordinates = null;
+            this.geometries = geometries;
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package org.auscope.portal.core.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+
+/**
+ * A minimal pull parser for JSON that can navigate a document without loading it into memory.
+ *
+ * Names and scalar values are read into Strings, but string values can also be streamed (decoded) straight into
+ * a Writer with copyString so that arbitrarily large values can be extracted with constant memory. Values that aren't
+ * of interest can be skipped with skipValue.
+ *
+ * The parser is lenient about commas and doesn't validate the document beyond what it needs to navigate it.
+ */
+public class JSONStreamReader implements Closeable {
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private final Reader reader;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int pos = 0;
+    private int limit = 0;
+
+    /**
+     * Creates a new parser
+     * @param reader The JSON document (should be buffered by the caller if it's expensive to read from)
+     */
+    public JSONStreamReader(Reader reader) {
+        this.reader = reader;
+    }
+
+    private boolean fill() throws IOException {
+        if (pos < limit) {
+            return true;
+        }
+        limit = reader.read(buffer, 0, buffer.length);
+        pos = 0;
+        if (limit < 0) {
+            limit = 0;
+            return false;
+        }
+        return true;
+    }
+
+    private char nextChar() throws IOException {
+        if (!fill()) {
+            throw new IOException("Unexpected end of JSON document");
+        }
+        return buffer[pos++];
+    }
+
+    private void expect(char expected) throws IOException {
+        char c = (char) peek();
+        if (c != expected) {
+            throw new IOException(String.format("Expected '%1$s' but found '%2$s'", expected, c));
+        }
+        pos++;
+    }
+
+    /**
+     * Returns the next non whitespace character without consuming it (or -1 at the end of the document).
+     * Separating commas are skipped.
+     * @return
+     * @throws IOException
+     */
+    public int peek() throws IOException {
+        while (fill()) {
+            char c = buffer[pos];
+            if (Character.isWhitespace(c) || c == ',') {
+                pos++;
+            } else {
+                return c;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Consumes the opening brace of an object
+     * @throws IOException
+     */
+    public void beginObject() throws IOException {
+        expect('{');
+    }
+
+    /**
+     * Consumes the closing brace of an object
+     * @throws IOException
+     */
+    public void endObject() throws IOException {
+        expect('}');
+    }
+
+    /**
+     * Returns true if the current object/array has another member
+     * @return
+     * @throws IOException
+     */
+    public boolean hasNext() throws IOException {
+        int c = peek();
+        return c != '}' && c != ']' && c != -1;
+    }
+
+    /**
+     * Reads the name of the next member of the current object (and its separating colon)
+     * @return
+     * @throws IOException
+     */
+    public String nextName() throws IOException {
+        String name = nextString();
+        expect(':');
+        return name;
+    }
+
+    /**
+     * Reads a string value into memory
+     * @return
+     * @throws IOException
+     */
+    public String nextString() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        expect('"');
+        readString(sb);
+        return sb.toString();
+    }
+
+    /**
+     * Reads the next value as a String. Strings are returned unquoted, other scalars (numbers, true, false, null)
+     * are returned as written. Objects and arrays will be skipped and null returned.
+     * @return
+     * @throws IOException
+     */
+    public String nextScalar() throws IOException {
+        int c = peek();
+        if (c == '"') {
+            return nextString();
+        } else if (c == '{' || c == '[') {
+            skipValue();
+            return null;
+        }
+
+        StringBuilder sb = new StringBuilder();
+        while (fill()) {
+            char ch = buffer[pos];
+            if (ch == ',' || ch == '}' || ch == ']' || Character.isWhitespace(ch)) {
+                break;
+            }
+            sb.append(ch);
+            pos++;
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Decodes the next string value directly into out without buffering it in memory.
+     * @param out Receives the decoded string
+     * @throws IOException
+     */
+    public void copyString(Writer out) throws IOException {
+        expect('"');
+        readString(out);
+    }
+
+    /**
+     * Skips the next value (including any nested objects/arrays)
+     * @throws IOException
+     */
+    public void skipValue() throws IOException {
+        int depth = 0;
+        do {
+            int c = peek();
+            if (c == -1) {
+                throw new IOException("Unexpected end of JSON document");
+            } else if (c == '{' || c == '[') {
+                depth++;
+                pos++;
+            } else if (c == '}' || c == ']') {
+                depth--;
+                pos++;
+            } else if (c == '"') {
+                pos++;
+                readString(null);
+                if (depth > 0 && peek() == ':') {
+                    pos++;
+                    continue;
+                }
+            } else {
+                nextScalar();
+            }
+        } while (depth > 0);
+    }
+
+    /**
+     * Reads the remainder of a string (after its opening quote) decoding escapes into out (if not null)
+     */
+    private void readString(Appendable out) throws IOException {
+        while (true) {
+            if (!fill()) {
+                throw new IOException("Unterminated JSON string");
+            }
+
+            //Copy runs of unescaped characters in bulk
+            int start = pos;
+            while (pos < limit && buffer[pos] != '"' && buffer[pos] != '\\') {
+                pos++;
+            }
+            if (out != null && pos > start) {
+                if (out instanceof Writer) {
+                    ((Writer) out).write(buffer, start, pos - start);
+                } else {
+                    out.append(new String(buffer, start, pos - start));
+                }
+            }
+            if (pos == limit) {
+                continue;
+            }
+
+            char c = buffer[pos++];
+            if (c == '"') {
+                return;
+            }
+
+            char escaped = nextChar();
+            char decoded;
+            switch (escaped) {
+            case 'b': decoded = '\b'; break;
+            case 'f': decoded = '\f'; break;
+            case 'n': decoded = '\n'; break;
+            case 'r': decoded = '\r'; break;
+            case 't': decoded = '\t'; break;
+            case 'u':
+                char[] hex = new char[] {nextChar(), nextChar(), nextChar(), nextChar()};
+                try {
+                    decoded = (char) Integer.parseInt(new String(hex), 16);
+                } catch (NumberFormatException ex) {
+                    throw new IOException("Invalid unicode escape in JSON string: " + new String(hex));
+                }
+                break;
+            default:
+                decoded = escaped;
+                break;
+            }
+            if (out != null) {
+                out.append(decoded);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
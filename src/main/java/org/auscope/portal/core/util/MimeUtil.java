@@ -1,6 +1,9 @@
 package org.auscope.portal.core.util;
 
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
  * Utilities for MIME types
@@ -10,6 +13,12 @@ public class MimeUtil {
 
     private static HashMap<String,String> table;
 
+    /** Mime types whose content is already compressed (and gains nothing from being deflated again) */
+    private static final Set<String> COMPRESSED_TYPES = new HashSet<String>(Arrays.asList(
+            "image/png", "image/png8", "image/jpeg", "image/gif",
+            "application/zip", "application/x-zip-compressed", "application/gzip", "application/x-gzip",
+            "application/x-netcdf", "application/netcdf", "kmz", "application/vnd.google-earth.kmz"));
+
     static{
 
         table= new HashMap<String,String>();
@@ -29,6 +38,8 @@ public class MimeUtil {
         table.put("rss", "rss");
         table.put("kml", "kml");
         table.put("kmz", "kmz");
+        table.put("application/x-netcdf", "nc");
+        table.put("application/netcdf", "nc");
 
     }
     /**
@@ -66,4 +77,19 @@ public class MimeUtil {
 
         return "";
     }
+
+    /**
+     * Returns true if content of the specified mime type is already compressed (eg PNG, ZIP or NetCDF)
+     * and should be stored rather than deflated when added to an archive.
+     *
+     * @param mime The mime to examine (can be null)
+     */
+    public static boolean isCompressed(String mime) {
+        if (mime == null || mime.length() == 0) {
+            return false;
+        }
+
+        String baseMime = mime.split(";")[0].trim().toLowerCase();
+        return COMPRESSED_TYPES.contains(baseMime) || baseMime.contains("netcdf");
+    }
 }
@@ -0,0 +1,487 @@
+package org.auscope.portal.core.util;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipException;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CountingOutputStream;
+
+/**
+ * Writes a zip archive whose entries are compressed concurrently on a worker pool.
+ *
+ * The content of an entry is read in full by the thread calling addEntry and then compressed by one of the workers,
+ * so the workers only ever do CPU bound work and a slow input (eg a network response) can't tie up the pool. Entries
+ * are written to the underlying stream in the order they were added (the moment every preceding entry has been
+ * written). Content whose mime type is already compressed (see MimeUtil.isCompressed) is stored rather than deflated.
+ *
+ * Entries are buffered twice: the uncompressed content whilst it waits for a worker and the compressed content
+ * whilst it waits to be written. Both buffers are held in memory up to MEMORY_THRESHOLD before spilling to a
+ * ScratchSpace file (see ScratchOutputStream). This means nothing of an entry reaches the underlying stream until it has been completely read
+ * and compressed - use a java.util.zip.ZipOutputStream if bytes must be forwarded as they arrive.
+ *
+ * The archive is written without ZIP64 extensions, so individual entries and the archive itself are limited
+ * to 4GB and 65535 entries. This class is NOT thread safe - entries should be added from a single thread.
+ */
+public class ParallelZipWriter implements Closeable {
+
+    /** Entry buffers larger than this (in bytes) will spill to a temporary file */
+    public static final int MEMORY_THRESHOLD = 1024 * 1024;
+    /** Default number of entries that can be compressing at once before addEntry will block */
+    public static final int DEFAULT_MAX_PENDING_ENTRIES = Runtime.getRuntime().availableProcessors() * 2;
+
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+    private static final int VERSION = 20;
+    private static final int FLAG_UTF8 = 0x0800;
+    private static final long LOCAL_HEADER_SIG = 0x04034b50L;
+    private static final long CENTRAL_HEADER_SIG = 0x02014b50L;
+    private static final long END_SIG = 0x06054b50L;
+    private static final long MAX_32 = 0xFFFFFFFFL;
+    private static final int MAX_16 = 0xFFFF;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final OutputStream out;
+    private final ExecutorService executor;
+    private final boolean ownsExecutor;
+    private final ScratchSpace scratchSpace;
+    private final int maxPendingEntries;
+    private int level = Deflater.DEFAULT_COMPRESSION;
+    private long offset = 0;
+    private boolean finished = false;
+    private final LinkedList<CompressEntry> pending = new LinkedList<CompressEntry>();
+    private final List<CompressedEntry> written = new ArrayList<CompressedEntry>();
+    private final Set<String> names = new HashSet<String>();
+
+    /**
+     * Creates a new writer compressing on its own pool (one thread per processor). The pool will be shut down
+     * when the archive is finished or closed.
+     * @param out Will receive the archive
+     */
+    public ParallelZipWriter(OutputStream out) {
+        this(out, createExecutor(), true, DEFAULT_MAX_PENDING_ENTRIES, null);
+    }
+
+    /**
+     * Creates a new writer
+     * @param out Will receive the archive
+     * @param executor Used for compressing entries. It will NOT be shut down by this writer
+     * @param maxPendingEntries The number of entries that can be compressing before addEntry blocks
+     */
+    public ParallelZipWriter(OutputStream out, ExecutorService executor, int maxPendingEntries) {
+        this(out, executor, false, maxPendingEntries, null);
+    }
+
+    /**
+     * Creates a new writer
+     * @param out Will receive the archive
+     * @param executor Used for compressing entries. It will NOT be shut down by this writer
+     * @param maxPendingEntries The number of entries that can be compressing before addEntry blocks
+     * @param scratchSpace [Optional] Where entry buffers will spill. If null, the default ScratchSpace will be used
+     */
+    public ParallelZipWriter(OutputStream out, ExecutorService executor, int maxPendingEntries, ScratchSpace scratchSpace) {
+        this(out, executor, false, maxPendingEntries, scratchSpace);
+    }
+
+    private ParallelZipWriter(OutputStream out, ExecutorService executor, boolean ownsExecutor, int maxPendingEntries, ScratchSpace scratchSpace) {
+        this.out = new BufferedOutputStream(out);
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+        this.maxPendingEntries = Math.max(1, maxPendingEntries);
+        this.scratchSpace = scratchSpace == null ? ScratchSpace.getDefault() : scratchSpace;
+    }
+
+    private static ExecutorService createExecutor() {
+        return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ParallelZipWriter-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * The deflate level used for entries that aren't already compressed
+     * @return
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Sets the deflate level (see java.util.zip.Deflater) used for subsequently added entries that aren't
+     * already compressed. Deflater.NO_COMPRESSION will store every entry.
+     * @param level
+     */
+    public void setLevel(int level) {
+        if ((level < 0 || level > 9) && level != Deflater.DEFAULT_COMPRESSION) {
+            throw new IllegalArgumentException("invalid compression level: " + level);
+        }
+        this.level = level;
+    }
+
+    /**
+     * Adds an entry whose content will be read from input (by the calling thread) and then compressed on a
+     * worker thread. input will be closed.
+     *
+     * Errors reading input will be written into the entry (see FileIOUtil.writeInputToOutputStream)
+     *
+     * @param name The name of the entry
+     * @param contentType [Optional] The mime type of the content. Used for deciding whether to deflate
+     * @param input The content of the entry
+     * @throws IOException If a preceding entry could not be written
+     */
+    public void addEntry(String name, String contentType, InputStream input) throws IOException {
+        if (finished) {
+            throw new IOException("Archive has already been finished");
+        }
+        if (!names.add(name)) {
+            throw new ZipException("duplicate entry: " + name);
+        }
+
+        ScratchOutputStream content = new ScratchOutputStream(MEMORY_THRESHOLD, scratchSpace, null, "APT_ZIP", ".tmp");
+        try {
+            FileIOUtil.writeInputToOutputStream(input, content, 64 * 1024, true);
+        } finally {
+            FileIOUtil.closeQuietly(input);
+            content.close();
+        }
+
+        boolean store = level == Deflater.NO_COMPRESSION || MimeUtil.isCompressed(contentType);
+        CompressEntry task = new CompressEntry(name, content, store, level, scratchSpace);
+        pending.add(task);
+        task.future = executor.submit(task);
+
+        writeCompleted(false);
+        while (pending.size() > maxPendingEntries) {
+            writeNext();
+        }
+    }
+
+    /**
+     * Adds an entry whose content is data
+     * @param name The name of the entry
+     * @param contentType [Optional] The mime type of the content. Used for deciding whether to deflate
+     * @param data The content of the entry
+     * @throws IOException If a preceding entry could not be written
+     */
+    public void addEntry(String name, String contentType, byte[] data) throws IOException {
+        addEntry(name, contentType, new ByteArrayInputStream(data));
+    }
+
+    /**
+     * Writes every entry that has finished compressing (and has no preceding entry still compressing)
+     * and then flushes the underlying stream.
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        writeCompleted(false);
+        out.flush();
+    }
+
+    /**
+     * Waits for all entries to be compressed and written and then writes the archive's central directory.
+     * The underlying stream will NOT be closed.
+     * @throws IOException
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+
+        writeCompleted(true);
+        finished = true;
+
+        long centralOffset = offset;
+        for (CompressedEntry entry : written) {
+            writeCentralHeader(entry);
+        }
+        long centralSize = offset - centralOffset;
+        if (written.size() > MAX_16 || centralOffset > MAX_32) {
+            throw new ZipException("Archive exceeds the limits of a non ZIP64 archive");
+        }
+
+        writeInt(END_SIG);
+        writeShort(0);
+        writeShort(0);
+        writeShort(written.size());
+        writeShort(written.size());
+        writeInt(centralSize);
+        writeInt(centralOffset);
+        writeShort(0);
+        out.flush();
+
+        if (ownsExecutor) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Finishes the archive and closes the underlying stream. Any entries that can't be written will be discarded
+     * (entries that are still compressing will discard their buffers once they finish).
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            for (CompressEntry task : pending) {
+                task.abandon();
+            }
+            pending.clear();
+            if (ownsExecutor) {
+                executor.shutdownNow();
+            }
+            out.close();
+        }
+    }
+
+    private void writeCompleted(boolean wait) throws IOException {
+        while (!pending.isEmpty() && (wait || pending.getFirst().future.isDone())) {
+            writeNext();
+        }
+    }
+
+    private void writeNext() throws IOException {
+        //The task stays pending until it has been compressed so that close can discard it if this fails
+        CompressEntry task = pending.getFirst();
+        CompressedEntry entry;
+        try {
+            entry = task.future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted whilst compressing entry", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException("Unable to compress entry", ex.getCause());
+        }
+        pending.removeFirst();
+
+        try {
+            if (entry.size > MAX_32 || entry.compressedSize > MAX_32 || offset > MAX_32) {
+                throw new ZipException("Entry '" + entry.name + "' exceeds the limits of a non ZIP64 archive");
+            }
+
+            entry.offset = offset;
+            writeInt(LOCAL_HEADER_SIG);
+            writeShort(VERSION);
+            writeShort(FLAG_UTF8);
+            writeShort(entry.method);
+            writeInt(entry.dosTime);
+            writeInt(entry.crc);
+            writeInt(entry.compressedSize);
+            writeInt(entry.size);
+            writeShort(entry.nameBytes.length);
+            writeShort(0);
+            writeBytes(entry.nameBytes);
+
+            entry.data.writeTo(out);
+            offset += entry.compressedSize;
+            written.add(entry);
+        } finally {
+            entry.dispose();
+        }
+    }
+
+    private void writeCentralHeader(CompressedEntry entry) throws IOException {
+        writeInt(CENTRAL_HEADER_SIG);
+        writeShort(VERSION);
+        writeShort(VERSION);
+        writeShort(FLAG_UTF8);
+        writeShort(entry.method);
+        writeInt(entry.dosTime);
+        writeInt(entry.crc);
+        writeInt(entry.compressedSize);
+        writeInt(entry.size);
+        writeShort(entry.nameBytes.length);
+        writeShort(0); //extra length
+        writeShort(0); //comment length
+        writeShort(0); //disk number
+        writeShort(0); //internal attributes
+        writeInt(0); //external attributes
+        writeInt(entry.offset);
+        writeBytes(entry.nameBytes);
+    }
+
+    private void writeShort(int v) throws IOException {
+        out.write(v & 0xff);
+        out.write((v >>> 8) & 0xff);
+        offset += 2;
+    }
+
+    private void writeInt(long v) throws IOException {
+        out.write((int) (v & 0xff));
+        out.write((int) ((v >>> 8) & 0xff));
+        out.write((int) ((v >>> 16) & 0xff));
+        out.write((int) ((v >>> 24) & 0xff));
+        offset += 4;
+    }
+
+    private void writeBytes(byte[] b) throws IOException {
+        out.write(b);
+        offset += b.length;
+    }
+
+    /**
+     * Converts a java time into the MS-DOS date/time format used by zip entries
+     */
+    private static long toDosTime(long time) {
+        Calendar c = Calendar.getInstance();
+        c.setTimeInMillis(time);
+        int year = c.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return ((year - 1980) << 25) | ((c.get(Calendar.MONTH) + 1) << 21) | (c.get(Calendar.DAY_OF_MONTH) << 16)
+                | (c.get(Calendar.HOUR_OF_DAY) << 11) | (c.get(Calendar.MINUTE) << 5) | (c.get(Calendar.SECOND) >> 1);
+    }
+
+    /**
+     * An entry that has been compressed (but not yet written)
+     */
+    private static class CompressedEntry {
+        String name;
+        byte[] nameBytes;
+        int method;
+        long dosTime;
+        long crc;
+        long size;
+        long compressedSize;
+        long offset;
+        ScratchOutputStream data;
+
+        void dispose() {
+            if (data != null) {
+                data.delete();
+            }
+            data = null;
+        }
+    }
+
+    /**
+     * Compresses the (already read) content of a single entry
+     */
+    private static class CompressEntry implements Callable<CompressedEntry> {
+        private final String name;
+        private final ScratchOutputStream content;
+        private final boolean store;
+        private final int level;
+        private final ScratchSpace scratchSpace;
+        private Future<CompressedEntry> future;
+        private boolean abandoned = false; //synchronized on this
+        private CompressedEntry result; //synchronized on this
+
+        /**
+         * @param content The (closed) uncompressed content. It will be deleted once compressed
+         * @param store true if the entry should be stored rather than deflated
+         * @param level The deflate level (ignored if store is true)
+         * @param scratchSpace Where the compressed content will spill
+         */
+        public CompressEntry(String name, ScratchOutputStream content, boolean store, int level, ScratchSpace scratchSpace) {
+            this.name = name;
+            this.content = content;
+            this.store = store;
+            this.level = level;
+            this.scratchSpace = scratchSpace;
+        }
+
+        /**
+         * Deletes the uncompressed content
+         */
+        void dispose() {
+            content.delete();
+        }
+
+        /**
+         * Discards this entry. Cancelling the future won't stop a compression that is already running, so such
+         * a compression will delete its own buffers when it finishes.
+         */
+        void abandon() {
+            CompressedEntry entry;
+            synchronized (this) {
+                abandoned = true;
+                entry = result;
+                result = null;
+            }
+            future.cancel(true);
+            dispose();
+            if (entry != null) {
+                entry.dispose();
+            }
+        }
+
+        @Override
+        public CompressedEntry call() throws Exception {
+            CompressedEntry entry = new CompressedEntry();
+            entry.name = name;
+            entry.nameBytes = name.getBytes(UTF8);
+            entry.dosTime = toDosTime(System.currentTimeMillis());
+            entry.method = store ? METHOD_STORED : METHOD_DEFLATED;
+            entry.data = new ScratchOutputStream(MEMORY_THRESHOLD, scratchSpace, null, "APT_ZIP", ".tmp");
+
+            Deflater deflater = store ? null : new Deflater(level, true);
+            CRC32 crc = new CRC32();
+            InputStream input = null;
+            boolean completed = false;
+            try {
+                input = content.openInputStream();
+                OutputStream compressed = deflater == null ? entry.data : new DeflaterOutputStream(entry.data, deflater, 64 * 1024);
+                CountingOutputStream uncompressed = new CountingOutputStream(new CheckedOutputStream(compressed, crc));
+                try {
+                    IOUtils.copyLarge(input, uncompressed, new byte[64 * 1024]);
+                } finally {
+                    uncompressed.close();
+                }
+
+                entry.crc = crc.getValue();
+                entry.size = uncompressed.getByteCount();
+                entry.compressedSize = entry.data.getByteCount();
+                synchronized (this) {
+                    if (abandoned) {
+                        throw new IOException("Entry '" + name + "' was discarded whilst compressing");
+                    }
+                    result = entry;
+                }
+                completed = true;
+                return entry;
+            } finally {
+                if (!completed) {
+                    entry.dispose();
+                }
+                FileIOUtil.closeQuietly(input);
+                dispose();
+                if (deflater != null) {
+                    deflater.end();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package org.auscope.portal.core.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.ThresholdingOutputStream;
+
+/**
+ * An output stream that buffers in memory until a threshold is reached and then spills everything to a
+ * ScratchSpace file. This is the ScratchSpace equivalent of commons-io's DeferredFileOutputStream - the spilled
+ * bytes count against the scratch quotas (writes will block whilst they're exhausted, see ScratchSpace) and the
+ * file will be reaped if it's leaked.
+ *
+ * The content can be read back (with openInputStream or writeTo) once the stream has been closed. delete should
+ * be called once the content is no longer required.
+ */
+public class ScratchOutputStream extends ThresholdingOutputStream {
+
+    private final ScratchSpace scratchSpace;
+    private final String owner;
+    private final String prefix;
+    private final String suffix;
+    private ByteArrayOutputStream memoryOutputStream = new ByteArrayOutputStream();
+    private OutputStream currentOutputStream = memoryOutputStream;
+    private ScratchSpace.ScratchFile scratchFile;
+    private boolean closed;
+
+    /**
+     * Creates a new stream that will spill into the default ScratchSpace (without an owner)
+     * @param threshold The number of bytes that will be held in memory before spilling to a file
+     * @param prefix The file name prefix (at least 3 characters)
+     * @param suffix [Optional] The file name suffix
+     */
+    public ScratchOutputStream(int threshold, String prefix, String suffix) {
+        this(threshold, ScratchSpace.getDefault(), null, prefix, suffix);
+    }
+
+    /**
+     * Creates a new stream
+     * @param threshold The number of bytes that will be held in memory before spilling to a file
+     * @param scratchSpace Where the file (if any) will be created
+     * @param owner [Optional] The owner of the file (for scratch quotas)
+     * @param prefix The file name prefix (at least 3 characters)
+     * @param suffix [Optional] The file name suffix
+     */
+    public ScratchOutputStream(int threshold, ScratchSpace scratchSpace, String owner, String prefix, String suffix) {
+        super(threshold);
+        this.scratchSpace = scratchSpace;
+        this.owner = owner;
+        this.prefix = prefix;
+        this.suffix = suffix;
+    }
+
+    @Override
+    protected OutputStream getStream() throws IOException {
+        return currentOutputStream;
+    }
+
+    @Override
+    protected void thresholdReached() throws IOException {
+        ScratchSpace.ScratchFile file = scratchSpace.createFile(owner, prefix, suffix);
+        OutputStream fileOutputStream = null;
+        try {
+            fileOutputStream = file.openOutputStream();
+            memoryOutputStream.writeTo(fileOutputStream);
+        } catch (IOException ex) {
+            IOUtils.closeQuietly(fileOutputStream);
+            file.delete();
+            throw ex;
+        }
+
+        scratchFile = file;
+        currentOutputStream = fileOutputStream;
+        memoryOutputStream = null;
+    }
+
+    /**
+     * Returns true if the content is held in memory (ie the threshold hasn't been exceeded)
+     * @return
+     */
+    public boolean isInMemory() {
+        return scratchFile == null;
+    }
+
+    /**
+     * The content held in memory or null if it has spilled to a file
+     * @return
+     */
+    public byte[] getData() {
+        return memoryOutputStream == null ? null : memoryOutputStream.toByteArray();
+    }
+
+    /**
+     * The file holding the content or null if it's held in memory
+     * @return
+     */
+    public File getFile() {
+        return scratchFile == null ? null : scratchFile.getFile();
+    }
+
+    @Override
+    public void close() throws IOException {
+        super.close();
+        closed = true;
+    }
+
+    /**
+     * Opens the content for reading
+     * @return
+     * @throws IOException If this stream hasn't been closed
+     */
+    public InputStream openInputStream() throws IOException {
+        if (!closed) {
+            throw new IOException("Stream not closed");
+        }
+        if (isInMemory()) {
+            return new ByteArrayInputStream(memoryOutputStream.toByteArray());
+        }
+        return new FileInputStream(scratchFile.getFile());
+    }
+
+    /**
+     * Writes the content to out
+     * @param out
+     * @throws IOException If this stream hasn't been closed
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        if (!closed) {
+            throw new IOException("Stream not closed");
+        }
+        if (isInMemory()) {
+            memoryOutputStream.writeTo(out);
+        } else {
+            InputStream is = openInputStream();
+            try {
+                IOUtils.copyLarge(is, out);
+            } finally {
+                IOUtils.closeQuietly(is);
+            }
+        }
+    }
+
+    /**
+     * Closes this stream (if required) and discards the content, returning any file bytes to the scratch quotas
+     */
+    public void delete() {
+        IOUtils.closeQuietly(this);
+        memoryOutputStream = null;
+        if (scratchFile != null) {
+            scratchFile.delete();
+        }
+    }
+}
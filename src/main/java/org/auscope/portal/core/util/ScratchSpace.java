@@ -0,0 +1,619 @@
+package org.auscope.portal.core.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.ProxyOutputStream;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Manages the temporary (scratch) files used for spooling downloads, enforcing a quota on the total number of
+ * bytes in use and the number of bytes in use by any single owner (eg a user's email).
+ *
+ * Every instance works in its own locked sub directory of a root directory. Writes to a ScratchFile (via
+ * openOutputStream or allocate) will block whilst the relevant quota is exhausted, failing with an IOException
+ * if space doesn't free up within the maximum wait time.
+ *
+ * Instead of relying on File.deleteOnExit, files are reaped on a schedule:
+ * <ul>
+ * <li>Files whose ScratchFile was garbage collected without being deleted (or released)</li>
+ * <li>Untracked files in this instance's directory that haven't been modified within the orphan age</li>
+ * <li>The directories of instances that are no longer running (eg after a crash). These are left in place until
+ * the first reap so that files can be recovered with adopt</li>
+ * </ul>
+ */
+public class ScratchSpace {
+
+    /** Quota value for no limit */
+    public static final long UNLIMITED = Long.MAX_VALUE;
+    /** The default time a write will wait for quota to become available */
+    public static final long DEFAULT_MAX_WAIT_MILLIS = 5 * 60 * 1000L;
+    /** The default interval between reaping orphaned files */
+    public static final long DEFAULT_REAP_INTERVAL_MILLIS = 10 * 60 * 1000L;
+    /** The default age after which an untracked file is considered orphaned */
+    public static final long DEFAULT_ORPHAN_AGE_MILLIS = 24 * 60 * 60 * 1000L;
+
+    private static final String LOCK_FILE = ".lock";
+    private static final String INSTANCE_PREFIX = "instance-";
+    private static volatile ScratchSpace defaultSpace;
+
+    private final Log log = LogFactory.getLog(getClass());
+    private final File root;
+    private final File directory;
+    private final long maxTotalBytes;
+    private final long maxBytesPerOwner;
+    private volatile long maxWaitMillis = DEFAULT_MAX_WAIT_MILLIS;
+    private volatile long orphanAgeMillis = DEFAULT_ORPHAN_AGE_MILLIS;
+
+    private final Map<File, Allocation> allocations = new HashMap<File, Allocation>();
+    private final Map<String, Long> ownerBytes = new HashMap<String, Long>();
+    private final ReferenceQueue<ScratchFile> leaked = new ReferenceQueue<ScratchFile>();
+    private final List<File> abandonedDirectories;
+    private long totalBytes;
+
+    private final RandomAccessFile lockFile;
+    private final FileLock lock;
+    private final ScheduledExecutorService reaper;
+
+    /**
+     * Creates a new instance with the default reap interval
+     * @param root The root scratch directory. Will be created if it doesn't exist.
+     * @param maxTotalBytes The maximum number of bytes that can be in use (or UNLIMITED)
+     * @param maxBytesPerOwner The maximum number of bytes that a single owner can have in use (or UNLIMITED)
+     * @throws IOException If the scratch directory can't be created
+     */
+    public ScratchSpace(File root, long maxTotalBytes, long maxBytesPerOwner) throws IOException {
+        this(root, maxTotalBytes, maxBytesPerOwner, DEFAULT_REAP_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Creates a new instance
+     * @param root The root scratch directory. Will be created if it doesn't exist.
+     * @param maxTotalBytes The maximum number of bytes that can be in use (or UNLIMITED)
+     * @param maxBytesPerOwner The maximum number of bytes that a single owner can have in use (or UNLIMITED)
+     * @param reapIntervalMillis How often orphaned files will be reaped. If not positive, reap will need to be called manually.
+     * @throws IOException If the scratch directory can't be created
+     */
+    public ScratchSpace(File root, long maxTotalBytes, long maxBytesPerOwner, long reapIntervalMillis) throws IOException {
+        this.root = root;
+        this.maxTotalBytes = maxTotalBytes;
+        this.maxBytesPerOwner = maxBytesPerOwner;
+        if (!root.exists() && !root.mkdirs()) {
+            throw new IOException("Unable to create scratch directory: " + root.getPath());
+        }
+
+        //Find the directories of dead instances before creating our own
+        this.abandonedDirectories = findAbandonedDirectories();
+
+        this.directory = Files.createTempDirectory(root.toPath(), INSTANCE_PREFIX).toFile();
+        this.lockFile = new RandomAccessFile(new File(directory, LOCK_FILE), "rw");
+        this.lock = lockFile.getChannel().lock();
+
+        if (reapIntervalMillis > 0) {
+            reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "APT_SCRATCH_REAPER");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            reaper.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        reap();
+                    } catch (Exception e) {
+                        log.warn("Error reaping scratch files", e);
+                    }
+                }
+            }, reapIntervalMillis, reapIntervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            reaper = null;
+        }
+    }
+
+    /**
+     * Gets the shared instance, creating it (with no quotas) in the system temp directory if it hasn't been set.
+     * @return
+     */
+    public static ScratchSpace getDefault() {
+        ScratchSpace space = defaultSpace;
+        if (space == null) {
+            synchronized (ScratchSpace.class) {
+                space = defaultSpace;
+                if (space == null) {
+                    try {
+                        space = new ScratchSpace(new File(System.getProperty("java.io.tmpdir"), "portal-scratch"), UNLIMITED, UNLIMITED);
+                    } catch (IOException e) {
+                        throw new IllegalStateException("Unable to create the default scratch space", e);
+                    }
+                    defaultSpace = space;
+                }
+            }
+        }
+        return space;
+    }
+
+    /**
+     * Sets the shared instance. Files of any previous instance remain managed by it.
+     * @param scratchSpace
+     */
+    public static void setDefault(ScratchSpace scratchSpace) {
+        synchronized (ScratchSpace.class) {
+            defaultSpace = scratchSpace;
+        }
+    }
+
+    /**
+     * The directory where this instance creates its files. Untracked files created here (eg by a
+     * DeferredFileOutputStream) will be reaped if they're orphaned. ScratchOutputStream
+     * should be preferred as its files count against the quotas.
+     * @return
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * How long (in milliseconds) a write will wait for quota before failing
+     * @return
+     */
+    public long getMaxWaitMillis() {
+        return maxWaitMillis;
+    }
+
+    /**
+     * How long (in milliseconds) a write will wait for quota before failing
+     * @param maxWaitMillis
+     */
+    public void setMaxWaitMillis(long maxWaitMillis) {
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    /**
+     * How long (in milliseconds) an untracked file can go unmodified before it's reaped
+     * @return
+     */
+    public long getOrphanAgeMillis() {
+        return orphanAgeMillis;
+    }
+
+    /**
+     * How long (in milliseconds) an untracked file can go unmodified before it's reaped
+     * @param orphanAgeMillis
+     */
+    public void setOrphanAgeMillis(long orphanAgeMillis) {
+        this.orphanAgeMillis = orphanAgeMillis;
+    }
+
+    /**
+     * Creates a new empty file
+     * @param owner [Optional] Who the file is being created for. Files without an owner only count against the total quota.
+     * @param prefix The file name prefix (at least 3 characters)
+     * @param suffix [Optional] The file name suffix
+     * @return
+     * @throws IOException
+     */
+    public ScratchFile createFile(String owner, String prefix, String suffix) throws IOException {
+        File f = File.createTempFile(prefix, suffix, directory);
+        return track(owner, f, 0);
+    }
+
+    /**
+     * Takes over management of an existing file in this instance's directory or the directory of a dead
+     * instance (eg a file recorded in a journal before a restart). The file will be moved into this
+     * instance's directory if necessary - use ScratchFile.getFile for its new location. Adopted files count
+     * against the quotas (without blocking) immediately.
+     *
+     * @param owner [Optional] Who the file belongs to
+     * @param existing The file to adopt
+     * @return The managed file or null if existing doesn't exist or can't be adopted
+     */
+    public synchronized ScratchFile adopt(String owner, File existing) {
+        if (existing == null || !existing.isFile()) {
+            return null;
+        }
+
+        File parent = existing.getAbsoluteFile().getParentFile();
+        File target = existing;
+        try {
+            if (!parent.equals(directory.getAbsoluteFile())) {
+                if (!abandonedDirectories.contains(parent)) {
+                    return null;
+                }
+                target = new File(directory, existing.getName());
+                if (target.exists()) {
+                    target = File.createTempFile("APT_ADOPT", "_" + existing.getName(), directory);
+                }
+                Files.move(existing.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } else if (allocations.containsKey(existing.getAbsoluteFile())) {
+                return null;
+            }
+        } catch (IOException e) {
+            log.warn("Unable to adopt scratch file " + existing.getPath() + ": " + e.getMessage());
+            return null;
+        }
+
+        return track(owner, target, target.length());
+    }
+
+    private synchronized ScratchFile track(String owner, File f, long bytes) {
+        ScratchFile scratchFile = new ScratchFile();
+        Allocation allocation = new Allocation(scratchFile, leaked, f.getAbsoluteFile(), owner);
+        scratchFile.allocation = allocation;
+        allocations.put(allocation.file, allocation);
+        add(allocation, bytes);
+        return scratchFile;
+    }
+
+    /**
+     * The total number of bytes in use
+     * @return
+     */
+    public synchronized long getUsage() {
+        return totalBytes;
+    }
+
+    /**
+     * The number of bytes in use by owner
+     * @param owner
+     * @return
+     */
+    public synchronized long getUsage(String owner) {
+        Long bytes = ownerBytes.get(owner);
+        return bytes == null ? 0 : bytes;
+    }
+
+    /**
+     * The number of files being tracked
+     * @return
+     */
+    public synchronized int getFileCount() {
+        return allocations.size();
+    }
+
+    /**
+     * Deletes orphaned files (see class description)
+     * @return The number of files and directories that were deleted
+     */
+    public int reap() {
+        int count;
+        List<File> candidates = new ArrayList<File>();
+        synchronized (this) {
+            count = pollLeaked();
+            for (File dir : abandonedDirectories) {
+                FileIOUtil.deleteFilesRecursive(dir);
+                count++;
+            }
+            abandonedDirectories.clear();
+
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    if (!f.getName().equals(LOCK_FILE) && !allocations.containsKey(f.getAbsoluteFile())) {
+                        candidates.add(f);
+                    }
+                }
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        for (File f : candidates) {
+            if (now - f.lastModified() > orphanAgeMillis && f.delete()) {
+                log.debug("Reaped orphaned scratch file: " + f.getPath());
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Stops the reaper and deletes this instance's directory (including every file in it)
+     */
+    public void close() {
+        if (reaper != null) {
+            reaper.shutdownNow();
+        }
+        synchronized (this) {
+            for (Allocation allocation : allocations.values()) {
+                allocation.clear();
+            }
+            allocations.clear();
+            ownerBytes.clear();
+            totalBytes = 0;
+            notifyAll();
+        }
+        try {
+            lock.release();
+        } catch (IOException e) {
+            log.debug("Unable to release scratch lock: " + e.getMessage());
+        }
+        IOUtils.closeQuietly(lockFile);
+        FileIOUtil.deleteFilesRecursive(directory);
+    }
+
+    /**
+     * Finds the directories of instances (under root) that are no longer running.
+     */
+    private List<File> findAbandonedDirectories() {
+        List<File> abandoned = new ArrayList<File>();
+        File[] dirs = root.listFiles();
+        if (dirs == null) {
+            return abandoned;
+        }
+
+        for (File dir : dirs) {
+            if (!dir.isDirectory() || !dir.getName().startsWith(INSTANCE_PREFIX)) {
+                continue;
+            }
+
+            File f = new File(dir, LOCK_FILE);
+            if (!f.exists()) {
+                //Either a crash during startup or an instance that is starting right now
+                if (System.currentTimeMillis() - dir.lastModified() > DEFAULT_MAX_WAIT_MILLIS) {
+                    abandoned.add(dir.getAbsoluteFile());
+                }
+                continue;
+            }
+
+            RandomAccessFile raf = null;
+            try {
+                raf = new RandomAccessFile(f, "rw");
+                FileChannel channel = raf.getChannel();
+                FileLock otherLock = channel.tryLock();
+                if (otherLock != null) {
+                    otherLock.release();
+                    abandoned.add(dir.getAbsoluteFile());
+                }
+            } catch (OverlappingFileLockException e) {
+                //Locked by another instance in this JVM
+            } catch (IOException e) {
+                log.debug("Unable to check scratch directory " + dir.getPath() + ": " + e.getMessage());
+            } finally {
+                IOUtils.closeQuietly(raf);
+            }
+        }
+        return abandoned;
+    }
+
+    /**
+     * Deletes the files of any ScratchFile that was garbage collected without being deleted
+     * @return The number of files deleted
+     */
+    private synchronized int pollLeaked() {
+        int count = 0;
+        Reference<? extends ScratchFile> ref;
+        while ((ref = leaked.poll()) != null) {
+            Allocation allocation = (Allocation) ref;
+            if (allocations.get(allocation.file) != allocation) {
+                continue;
+            }
+            log.debug("Reaping leaked scratch file: " + allocation.file.getPath());
+            remove(allocation);
+            if (allocation.file.delete()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private boolean fits(Allocation allocation, long bytes) {
+        if (totalBytes + bytes > maxTotalBytes || totalBytes + bytes < 0) {
+            return false;
+        }
+        if (allocation.owner != null) {
+            long used = getUsage(allocation.owner);
+            return used + bytes <= maxBytesPerOwner && used + bytes >= 0;
+        }
+        return true;
+    }
+
+    private boolean canEverFit(Allocation allocation, long bytes) {
+        return bytes <= maxTotalBytes && (allocation.owner == null || bytes <= maxBytesPerOwner);
+    }
+
+    private void add(Allocation allocation, long bytes) {
+        allocation.bytes += bytes;
+        totalBytes += bytes;
+        if (allocation.owner != null) {
+            long used = getUsage(allocation.owner) + bytes;
+            if (used == 0) {
+                ownerBytes.remove(allocation.owner);
+            } else {
+                ownerBytes.put(allocation.owner, used);
+            }
+        }
+    }
+
+    private void remove(Allocation allocation) {
+        allocations.remove(allocation.file);
+        allocation.clear();
+        add(allocation, -allocation.bytes);
+        notifyAll();
+    }
+
+    private synchronized boolean allocate(Allocation allocation, long bytes, boolean block) throws IOException {
+        if (allocations.get(allocation.file) != allocation) {
+            throw new IOException("Scratch file has been deleted: " + allocation.file.getPath());
+        }
+        if (bytes <= 0) {
+            return true;
+        }
+
+        long deadline = System.currentTimeMillis() + maxWaitMillis;
+        while (!fits(allocation, bytes)) {
+            pollLeaked();
+            if (fits(allocation, bytes)) {
+                break;
+            }
+
+            long remaining = deadline - System.currentTimeMillis();
+            if (!block) {
+                return false;
+            } else if (remaining <= 0 || !canEverFit(allocation, bytes)) {
+                throw new IOException(String.format("Scratch space quota exceeded allocating %1$d bytes for '%2$s'", bytes, allocation.owner));
+            }
+
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted whilst waiting for scratch space", e);
+            }
+            if (allocations.get(allocation.file) != allocation) {
+                throw new IOException("Scratch file has been deleted: " + allocation.file.getPath());
+            }
+        }
+
+        add(allocation, bytes);
+        return true;
+    }
+
+    private synchronized void free(Allocation allocation, long bytes) {
+        if (allocations.get(allocation.file) == allocation) {
+            add(allocation, -Math.min(bytes, allocation.bytes));
+            notifyAll();
+        }
+    }
+
+    private synchronized void release(Allocation allocation, boolean delete) {
+        if (allocations.get(allocation.file) == allocation) {
+            remove(allocation);
+        }
+        if (delete && allocation.file.exists() && !allocation.file.delete()) {
+            log.warn("Unable to delete scratch file: " + allocation.file.getPath());
+        }
+    }
+
+    /**
+     * The accounting for a single file. Weakly references its ScratchFile so leaked files can be reaped.
+     */
+    private static class Allocation extends WeakReference<ScratchFile> {
+        private final File file;
+        private final String owner;
+        private long bytes;
+
+        public Allocation(ScratchFile referent, ReferenceQueue<ScratchFile> queue, File file, String owner) {
+            super(referent, queue);
+            this.file = file;
+            this.owner = owner;
+        }
+    }
+
+    /**
+     * A file managed by a ScratchSpace. The file will be reaped if this object is garbage collected without
+     * delete or release being called.
+     */
+    public class ScratchFile {
+        private Allocation allocation;
+
+        private ScratchFile() {
+        }
+
+        /**
+         * The underlying file
+         * @return
+         */
+        public File getFile() {
+            return allocation.file;
+        }
+
+        /**
+         * Who this file belongs to (can be null)
+         * @return
+         */
+        public String getOwner() {
+            return allocation.owner;
+        }
+
+        /**
+         * The number of bytes allocated to this file
+         * @return
+         */
+        public long getAllocated() {
+            synchronized (ScratchSpace.this) {
+                return allocation.bytes;
+            }
+        }
+
+        /**
+         * Allocates bytes to this file, blocking until they fit within the quotas
+         * @param bytes
+         * @throws IOException If the bytes can't be allocated within the maximum wait time
+         */
+        public void allocate(long bytes) throws IOException {
+            ScratchSpace.this.allocate(allocation, bytes, true);
+        }
+
+        /**
+         * Allocates bytes to this file if they fit within the quotas right now
+         * @param bytes
+         * @return false if the bytes don't fit
+         * @throws IOException If this file has been deleted
+         */
+        public boolean tryAllocate(long bytes) throws IOException {
+            return ScratchSpace.this.allocate(allocation, bytes, false);
+        }
+
+        /**
+         * Returns bytes allocated to this file to the quotas
+         * @param bytes
+         */
+        public void free(long bytes) {
+            ScratchSpace.this.free(allocation, bytes);
+        }
+
+        /**
+         * Opens the file for writing (truncating it). Every byte written will be allocated to this file (blocking
+         * whilst the quotas are exhausted).
+         * @return
+         * @throws IOException
+         */
+        public OutputStream openOutputStream() throws IOException {
+            free(getAllocated());
+            return new ProxyOutputStream(new FileOutputStream(allocation.file)) {
+                @Override
+                protected void beforeWrite(int n) throws IOException {
+                    allocate(n);
+                }
+            };
+        }
+
+        /**
+         * Deletes the file and returns its bytes to the quotas
+         */
+        public void delete() {
+            ScratchSpace.this.release(allocation, true);
+        }
+
+        /**
+         * Stops managing the file (returning its bytes to the quotas) without deleting it. The file will
+         * be treated as untracked and reaped if it goes unmodified for the orphan age.
+         */
+        public void release() {
+            ScratchSpace.this.release(allocation, false);
+        }
+    }
+}
@@ -0,0 +1,309 @@
+package org.auscope.portal.core.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.LinkedList;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * A pipe connecting a single producer thread (writing to getOutputStream()) with a single consumer thread
+ * (reading from getInputStream()).
+ *
+ * Unlike java.io.PipedOutputStream, writes don't wait for the consumer whilst there is space to buffer them.
+ * Unread bytes are buffered in memory up to a threshold, anything beyond that is spooled to a temporary file until
+ * the consumer catches up. This means a temporary file is only ever created when the consumer falls behind the
+ * producer.
+ *
+ * The temporary file (if any) is a ScratchSpace file that is deleted when the input stream is closed or reaches
+ * end of stream. If the scratch quota is exhausted:
+ * <ul>
+ * <li>If the consumer has started reading, writes will block until it catches up (allowing the spool to be reused)
+ * or space is freed elsewhere - failing if neither happens within the scratch space's maximum wait time.</li>
+ * <li>If the consumer hasn't started reading, writes will fail immediately (there is nothing to wait for).</li>
+ * </ul>
+ */
+public class SpoolingPipe {
+
+    /** The default number of unread bytes that will be buffered in memory before spooling to disk */
+    public static final int DEFAULT_MEMORY_THRESHOLD = 1024 * 1024;
+
+    /** How often a write blocked on scratch quota will recheck for space */
+    private static final long QUOTA_POLL_MILLIS = 100;
+
+    private final int memoryThreshold;
+    private final ScratchSpace scratchSpace;
+    private final String owner;
+    private final LinkedList<byte[]> chunks = new LinkedList<byte[]>();
+    private int chunkOffset;
+    private int memoryBytes;
+
+    private ScratchSpace.ScratchFile spoolFile;
+    private RandomAccessFile spool;
+    private long spoolWritePosition;
+    private long spoolReadPosition;
+
+    private boolean writerClosed;
+    private boolean readerClosed;
+    private boolean readerAttached;
+    private IOException writerFailure;
+
+    private final OutputStream outputStream = new PipeOutputStream();
+    private final InputStream inputStream = new PipeInputStream();
+
+    /**
+     * Creates a new pipe with DEFAULT_MEMORY_THRESHOLD
+     */
+    public SpoolingPipe() {
+        this(DEFAULT_MEMORY_THRESHOLD);
+    }
+
+    /**
+     * Creates a new pipe
+     * @param memoryThreshold The number of unread bytes that will be buffered in memory before spooling to disk
+     */
+    public SpoolingPipe(int memoryThreshold) {
+        this(memoryThreshold, ScratchSpace.getDefault(), null);
+    }
+
+    /**
+     * Creates a new pipe
+     * @param memoryThreshold The number of unread bytes that will be buffered in memory before spooling to disk
+     * @param scratchSpace Where the spool file (if any) will be created
+     * @param owner [Optional] The owner of the spool file (for scratch quotas)
+     */
+    public SpoolingPipe(int memoryThreshold, ScratchSpace scratchSpace, String owner) {
+        this.memoryThreshold = memoryThreshold;
+        this.scratchSpace = scratchSpace;
+        this.owner = owner;
+    }
+
+    /**
+     * The stream that the producer should write to. Closing it will signal end of stream to the consumer.
+     * @return
+     */
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    /**
+     * The stream that the consumer should read from. Reads will block until data is available or the producer
+     * closes/fails the pipe.
+     * @return
+     */
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    /**
+     * Closes the producer end of this pipe with an error. The consumer will receive the error (as an IOException)
+     * once it has read all data written before the failure.
+     * @param cause
+     */
+    public synchronized void fail(Throwable cause) {
+        writerFailure = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        writerClosed = true;
+        notifyAll();
+    }
+
+    /**
+     * Returns true if a temporary file has been created for spooling unread bytes
+     * @return
+     */
+    public synchronized boolean isSpooled() {
+        return spoolFile != null;
+    }
+
+    private synchronized void write(byte[] b, int off, int len) throws IOException {
+        if (readerClosed) {
+            throw new IOException("The pipe has been closed by the consumer");
+        }
+        if (writerClosed) {
+            throw new IOException("The pipe has already been closed");
+        }
+        if (len == 0) {
+            return;
+        }
+
+        long deadline = 0;
+        while (true) {
+            //Once we start spooling, keep spooling until the consumer has caught up (to preserve byte ordering)
+            if (spoolReadPosition >= spoolWritePosition && memoryBytes + len <= memoryThreshold) {
+                byte[] chunk = new byte[len];
+                System.arraycopy(b, off, chunk, 0, len);
+                chunks.add(chunk);
+                memoryBytes += len;
+                break;
+            }
+
+            if (reserveSpool(spoolWritePosition + len)) {
+                spool.seek(spoolWritePosition);
+                spool.write(b, off, len);
+                spoolWritePosition += len;
+                break;
+            }
+
+            //The scratch quota is exhausted - wait for the consumer to catch up (or for space to be freed elsewhere)
+            if (!readerAttached) {
+                throw new IOException("Scratch space quota exceeded whilst spooling (the pipe has no consumer)");
+            }
+            long now = System.currentTimeMillis();
+            if (deadline == 0) {
+                deadline = now + scratchSpace.getMaxWaitMillis();
+            }
+            if (now >= deadline) {
+                throw new IOException("Scratch space quota exceeded whilst spooling");
+            }
+            try {
+                wait(Math.min(QUOTA_POLL_MILLIS, deadline - now));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted whilst waiting for scratch space", ex);
+            }
+            if (readerClosed) {
+                throw new IOException("The pipe has been closed by the consumer");
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * Ensures the spool file exists and has at least length bytes allocated to it
+     * @return false if the scratch quota doesn't allow the spool to grow to length
+     */
+    private boolean reserveSpool(long length) throws IOException {
+        if (spool == null) {
+            spoolFile = scratchSpace.createFile(owner, "APT_PIPE", ".tmp");
+            spool = new RandomAccessFile(spoolFile.getFile(), "rw");
+        }
+        long extra = length - spoolFile.getAllocated();
+        return extra <= 0 || spoolFile.tryAllocate(extra);
+    }
+
+    private synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (!readerAttached) {
+            readerAttached = true;
+            notifyAll();
+        }
+        if (len == 0) {
+            return 0;
+        }
+
+        while (true) {
+            if (readerClosed) {
+                throw new IOException("The pipe has been closed");
+            }
+
+            if (!chunks.isEmpty()) {
+                byte[] chunk = chunks.getFirst();
+                int read = Math.min(len, chunk.length - chunkOffset);
+                System.arraycopy(chunk, chunkOffset, b, off, read);
+                chunkOffset += read;
+                memoryBytes -= read;
+                if (chunkOffset == chunk.length) {
+                    chunks.removeFirst();
+                    chunkOffset = 0;
+                }
+                return read;
+            }
+
+            if (spoolReadPosition < spoolWritePosition) {
+                spool.seek(spoolReadPosition);
+                int read = spool.read(b, off, (int) Math.min(len, spoolWritePosition - spoolReadPosition));
+                spoolReadPosition += read;
+
+                //The consumer has caught up, the spool file can be reused from the start
+                if (spoolReadPosition == spoolWritePosition) {
+                    spoolReadPosition = 0;
+                    spoolWritePosition = 0;
+                }
+                return read;
+            }
+
+            if (writerClosed) {
+                discardSpool();
+                if (writerFailure != null) {
+                    throw writerFailure;
+                }
+                return -1;
+            }
+
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted whilst waiting for data", ex);
+            }
+        }
+    }
+
+    private synchronized int available() {
+        return memoryBytes + (int) Math.min(Integer.MAX_VALUE - memoryBytes, spoolWritePosition - spoolReadPosition);
+    }
+
+    private synchronized void closeWriter() {
+        writerClosed = true;
+        notifyAll();
+    }
+
+    private synchronized void closeReader() {
+        readerClosed = true;
+        chunks.clear();
+        memoryBytes = 0;
+        discardSpool();
+        notifyAll();
+    }
+
+    private void discardSpool() {
+        IOUtils.closeQuietly(spool);
+        spool = null;
+        spoolReadPosition = 0;
+        spoolWritePosition = 0;
+        if (spoolFile != null) {
+            spoolFile.delete();
+        }
+    }
+
+    private class PipeOutputStream extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            SpoolingPipe.this.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            closeWriter();
+        }
+    }
+
+    private class PipeInputStream extends InputStream {
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int read = read(b, 0, 1);
+            return read < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return SpoolingPipe.this.read(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            return SpoolingPipe.this.available();
+        }
+
+        @Override
+        public void close() {
+            closeReader();
+        }
+    }
+}
@@ -0,0 +1,426 @@
+package org.auscope.portal.core.view;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.sf.json.JsonConfig;
+import net.sf.json.util.CycleDetectionStrategy;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.auscope.portal.core.services.CSWCacheService;
+import org.auscope.portal.core.services.csw.CSWCacheChangeEvent;
+import org.auscope.portal.core.services.csw.CSWCacheChangeListener;
+import org.auscope.portal.core.services.responses.csw.CSWRecord;
+import org.auscope.portal.core.view.knownlayer.KnownLayer;
+import org.auscope.portal.core.view.knownlayer.KnownLayerAndRecords;
+import org.springframework.ui.ModelMap;
+
+/**
+ * A cache of pre-serialized JSON fragments for CSWRecord and KnownLayer views. Responses are assembled by
+ * concatenating fragments and will be identical to serializing the equivalent ModelMap views with JSONView.
+ *
+ * Record fragments are keyed by file identifier and are only valid for the record instance that generated
+ * them. When registered with a CSWCacheService, fragments for unmodified records are carried over to each
+ * newly published snapshot and fragments for modified/removed records are discarded.
+ *
+ * Once a snapshot is known (either from a CSWCacheService or a change event), only records belonging to that
+ * snapshot will be cached - ad-hoc records (eg from CSWFilterService) are serialized on every request. The number
+ * of cached records is also capped (see setMaxRecordFragments), arbitrary records are evicted when it is reached.
+ *
+ * Known layer fragments are never invalidated (known layers are not expected to change after
+ * configuration) - use clear if this is not the case.
+ */
+public class JSONFragmentCache implements CSWCacheChangeListener {
+    private final Log log = LogFactory.getLog(getClass());
+
+    /** The maximum number of assembled responses that will be kept for reuse*/
+    private static final int MAX_CACHED_RESPONSES = 8;
+    /** The maximum number of distinct field projections that will be cached for a single record*/
+    private static final int MAX_CACHED_PROJECTIONS = 4;
+    /** The default maximum number of records whose fragments will be cached*/
+    public static final int DEFAULT_MAX_RECORD_FRAGMENTS = 10000;
+    /** The projection key for a record view containing every field*/
+    private static final Object ALL_FIELDS = new Object();
+
+    private ViewCSWRecordFactory viewCSWRecordFactory;
+    private ViewKnownLayerFactory viewKnownLayerFactory;
+    private JsonConfig jsonConfig;
+    private boolean gzipEnabled = false;
+    private volatile int maxRecordFragments = DEFAULT_MAX_RECORD_FRAGMENTS;
+
+    private ConcurrentHashMap<String, RecordFragments> recordFragments = new ConcurrentHashMap<String, RecordFragments>();
+    private ConcurrentHashMap<String, Fragment<KnownLayer>> knownLayerFragments = new ConcurrentHashMap<String, Fragment<KnownLayer>>();
+    /** The first record instance (for each file identifier) from the most recently published snapshot*/
+    private volatile Map<String, CSWRecord> snapshotRecords;
+    /** Recently assembled responses keyed by ETag (so their compressed content can be reused). Access must be synchronized*/
+    private Map<String, SerializedJSONView> responses = new LinkedHashMap<String, SerializedJSONView>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SerializedJSONView> eldest) {
+            return size() > MAX_CACHED_RESPONSES;
+        }
+    };
+
+    /**
+     * Creates a new cache whose fragments are validated against the record instance (but not carried over between snapshots)
+     * @param viewCSWRecordFactory Used for generating record views
+     * @param viewKnownLayerFactory Used for generating known layer views
+     */
+    public JSONFragmentCache(ViewCSWRecordFactory viewCSWRecordFactory, ViewKnownLayerFactory viewKnownLayerFactory) {
+        this.viewCSWRecordFactory = viewCSWRecordFactory;
+        this.viewKnownLayerFactory = viewKnownLayerFactory;
+        this.jsonConfig = new JsonConfig();
+        this.jsonConfig.setCycleDetectionStrategy(CycleDetectionStrategy.LENIENT);
+    }
+
+    /**
+     * Creates a new cache that will be kept up to date with the change events of cswCacheService
+     * @param viewCSWRecordFactory Used for generating record views
+     * @param viewKnownLayerFactory Used for generating known layer views
+     * @param cswCacheService The service whose records will be cached
+     */
+    public JSONFragmentCache(ViewCSWRecordFactory viewCSWRecordFactory, ViewKnownLayerFactory viewKnownLayerFactory, CSWCacheService cswCacheService) {
+        this(viewCSWRecordFactory, viewKnownLayerFactory);
+        this.snapshotRecords = indexRecords(cswCacheService.getRecordCache());
+        cswCacheService.addChangeListener(this);
+    }
+
+    /**
+     * Gets the maximum number of records whose fragments will be cached
+     * @return
+     */
+    public int getMaxRecordFragments() {
+        return maxRecordFragments;
+    }
+
+    /**
+     * Sets the maximum number of records whose fragments will be cached
+     * @param maxRecordFragments
+     */
+    public void setMaxRecordFragments(int maxRecordFragments) {
+        this.maxRecordFragments = maxRecordFragments;
+    }
+
+    /**
+     * Gets the number of records whose fragments are currently cached
+     * @return
+     */
+    public int getRecordFragmentCount() {
+        return recordFragments.size();
+    }
+
+    /**
+     * Gets whether assembled responses will offer a precompressed gzip variant
+     * @return
+     */
+    public boolean isGzipEnabled() {
+        return gzipEnabled;
+    }
+
+    /**
+     * Sets whether assembled responses will offer a precompressed gzip variant
+     * @param gzipEnabled
+     */
+    public void setGzipEnabled(boolean gzipEnabled) {
+        this.gzipEnabled = gzipEnabled;
+    }
+
+    /**
+     * Discards every cached fragment and response
+     */
+    public void clear() {
+        recordFragments.clear();
+        knownLayerFragments.clear();
+        synchronized (responses) {
+            responses.clear();
+        }
+    }
+
+    private String serialize(Object view) {
+        StringWriter writer = new StringWriter();
+        try {
+            new StreamingJSONSerializer(jsonConfig).write(view, writer);
+        } catch (IOException ex) {
+            //A StringWriter will never throw an IOException
+            throw new IllegalStateException(ex);
+        }
+        return writer.toString();
+    }
+
+    /**
+     * Gets the serialized form of ViewCSWRecordFactory.toView(record)
+     * @param record
+     * @return
+     */
+    public String getRecordJSON(CSWRecord record) {
+        return getRecordJSON(record, null);
+    }
+
+    /**
+     * Gets the serialized form of ViewCSWRecordFactory.toView(record, fields)
+     * @param record
+     * @param fields [Optional] The view fields to include, null will include every field
+     * @return
+     */
+    public String getRecordJSON(CSWRecord record, Set<String> fields) {
+        String id = record.getFileIdentifier();
+        RecordFragments fragments = id == null ? null : recordFragments.get(id);
+        if (fragments == null || fragments.source != record) {
+            fragments = new RecordFragments(record, new ConcurrentHashMap<Object, String>());
+            if (isCacheable(id, record)) {
+                makeRoom();
+                recordFragments.put(id, fragments);
+            }
+        }
+
+        Object key = fields == null ? ALL_FIELDS : fields;
+        String json = fragments.jsonByFields.get(key);
+        if (json == null) {
+            json = serialize(viewCSWRecordFactory.toView(record, fields));
+            if (fragments.jsonByFields.size() < MAX_CACHED_PROJECTIONS) {
+                fragments.jsonByFields.put(fields == null ? ALL_FIELDS : new HashSet<String>(fields), json);
+            }
+        }
+        return json;
+    }
+
+    /**
+     * Records are only cached if they belong to the current snapshot (or no snapshot is known)
+     */
+    private boolean isCacheable(String id, CSWRecord record) {
+        if (id == null) {
+            return false;
+        }
+
+        Map<String, CSWRecord> snapshot = snapshotRecords;
+        return snapshot == null || snapshot.get(id) == record;
+    }
+
+    /**
+     * Evicts arbitrary record fragments until there is room for another
+     */
+    private void makeRoom() {
+        Iterator<String> it = recordFragments.keySet().iterator();
+        while (recordFragments.size() >= maxRecordFragments && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    /**
+     * Gets the serialized form of ViewKnownLayerFactory.toView(knownLayer) with the closing brace removed
+     */
+    private String getKnownLayerPrefix(KnownLayer knownLayer) {
+        String id = knownLayer.getId();
+        Fragment<KnownLayer> fragment = id == null ? null : knownLayerFragments.get(id);
+        if (fragment != null && fragment.source == knownLayer) {
+            return fragment.json;
+        }
+
+        String json = serialize(viewKnownLayerFactory.toView(knownLayer));
+        String prefix = json.substring(0, json.length() - 1);
+        if (id != null) {
+            knownLayerFragments.put(id, new Fragment<KnownLayer>(knownLayer, prefix));
+        }
+        return prefix;
+    }
+
+    private void appendRecords(StringBuilder sb, List<CSWRecord> records, Set<String> fields) {
+        sb.append('[');
+        boolean first = true;
+        for (CSWRecord record : records) {
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            sb.append(getRecordJSON(record, fields));
+        }
+        sb.append(']');
+    }
+
+    /**
+     * Gets the serialized JSON array of records (as per ViewCSWRecordFactory.toView)
+     * @param records The records to serialize
+     * @return
+     */
+    public String getRecordsJSON(List<CSWRecord> records) {
+        return getRecordsJSON(records, null);
+    }
+
+    /**
+     * Gets the serialized JSON array of records (as per ViewCSWRecordFactory.toView)
+     * @param records The records to serialize
+     * @param fields [Optional] The view fields to include for each record, null will include every field
+     * @return
+     */
+    public String getRecordsJSON(List<CSWRecord> records, Set<String> fields) {
+        StringBuilder sb = new StringBuilder();
+        appendRecords(sb, records, fields);
+        return sb.toString();
+    }
+
+    /**
+     * Gets the serialized JSON array of known layers. Each known layer will be serialized as per ViewKnownLayerFactory.toView
+     * with the additional cswRecords and relatedRecords arrays. Hidden known layers will be skipped.
+     * @param knownLayers The known layers to serialize
+     * @return
+     */
+    public String getKnownLayersJSON(List<KnownLayerAndRecords> knownLayers) {
+        return getKnownLayersJSON(knownLayers, null);
+    }
+
+    /**
+     * Gets the serialized JSON array of known layers. Each known layer will be serialized as per ViewKnownLayerFactory.toView
+     * with the additional cswRecords and relatedRecords arrays. Hidden known layers will be skipped.
+     * @param knownLayers The known layers to serialize
+     * @param recordFields [Optional] The view fields to include for each record, null will include every field
+     * @return
+     */
+    public String getKnownLayersJSON(List<KnownLayerAndRecords> knownLayers, Set<String> recordFields) {
+        StringBuilder sb = new StringBuilder();
+        sb.append('[');
+        boolean first = true;
+        for (KnownLayerAndRecords knownLayerAndRecords : knownLayers) {
+            KnownLayer kl = knownLayerAndRecords.getKnownLayer();
+            if (kl.isHidden()) {
+                continue; //any hidden layers will NOT be sent to the view
+            }
+
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+
+            String prefix = getKnownLayerPrefix(kl);
+            sb.append(prefix);
+            if (prefix.length() > 1) {
+                sb.append(',');
+            }
+            sb.append("\"cswRecords\":");
+            appendRecords(sb, knownLayerAndRecords.getBelongingRecords(), recordFields);
+            sb.append(",\"relatedRecords\":");
+            appendRecords(sb, knownLayerAndRecords.getRelatedRecords(), recordFields);
+            sb.append('}');
+        }
+        sb.append(']');
+        return sb.toString();
+    }
+
+    /**
+     * Wraps pre-serialized data in the standard response model (see BasePortalController.generateResponseModel) and
+     * returns a view for rendering it. Views for recently generated responses will be reused.
+     *
+     * @param success The result of the operation
+     * @param dataJson The pre-serialized data
+     * @param matchedResults [Optional] The total amount of data available
+     * @param message [Optional] A string indicating more information about status of information
+     * @return
+     */
+    public SerializedJSONView generateResponseView(boolean success, String dataJson, Integer matchedResults, String message) {
+        //data is always the first key in the response model
+        ModelMap envelope = new ModelMap();
+        envelope.put("success", success);
+        if (matchedResults != null) {
+            envelope.put("totalResults", matchedResults);
+        }
+        envelope.put("msg", message);
+
+        String envelopeJson = serialize(envelope);
+        String json = "{\"data\":" + dataJson + "," + envelopeJson.substring(1);
+
+        String eTag = SerializedJSONView.generateETag(json);
+        synchronized (responses) {
+            SerializedJSONView view = responses.get(eTag);
+            if (view == null || view.isGzipEnabled() != gzipEnabled) {
+                view = new SerializedJSONView(json, gzipEnabled);
+                responses.put(eTag, view);
+            }
+            return view;
+        }
+    }
+
+    /**
+     * Carries over the fragments of unmodified records to the new snapshot and discards everything else
+     */
+    @Override
+    public void handleCacheChange(CSWCacheChangeEvent event) {
+        Set<String> changedIds = new HashSet<String>();
+        for (CSWRecord rec : event.getModifiedRecords()) {
+            changedIds.add(rec.getFileIdentifier());
+        }
+
+        Map<String, CSWRecord> previousRecords = snapshotRecords;
+        Map<String, CSWRecord> newRecords = indexRecords(event.getRecords());
+
+        int carriedOver = 0;
+        for (Map.Entry<String, RecordFragments> entry : recordFragments.entrySet()) {
+            String id = entry.getKey();
+            RecordFragments fragment = entry.getValue();
+            CSWRecord newRecord = newRecords.get(id);
+            CSWRecord previousRecord = previousRecords == null ? null : previousRecords.get(id);
+
+            //A fragment can only be carried over if it was generated from the record that was compared in the diff
+            if (newRecord == null || changedIds.contains(id) || previousRecord == null || fragment.source != previousRecord) {
+                recordFragments.remove(id, fragment);
+            } else if (recordFragments.replace(id, fragment, new RecordFragments(newRecord, fragment.jsonByFields))) {
+                carriedOver++;
+            }
+        }
+
+        snapshotRecords = newRecords;
+        synchronized (responses) {
+            responses.clear();
+        }
+
+        log.debug(String.format("%1$d cached record fragments carried over to new snapshot", carriedOver));
+    }
+
+    /**
+     * Indexes the first instance of each file identifier in records
+     */
+    private static Map<String, CSWRecord> indexRecords(List<CSWRecord> records) {
+        Map<String, CSWRecord> index = new HashMap<String, CSWRecord>();
+        for (CSWRecord rec : records) {
+            if (rec.getFileIdentifier() != null && !index.containsKey(rec.getFileIdentifier())) {
+                index.put(rec.getFileIdentifier(), rec);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * The serialized JSON fragments (for each field projection) of a single record
+     */
+    private static class RecordFragments {
+        final CSWRecord source;
+        final ConcurrentHashMap<Object, String> jsonByFields;
+
+        RecordFragments(CSWRecord source, ConcurrentHashMap<Object, String> jsonByFields) {
+            this.source = source;
+            this.jsonByFields = jsonByFields;
+        }
+    }
+
+    /**
+     * A serialized JSON fragment and the object it was generated from
+     */
+    private static class Fragment<T> {
+        final T source;
+        final String json;
+
+        Fragment(T source, String json) {
+            this.source = source;
+            this.json = json;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package org.auscope.portal.core.view;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * A Writer that escapes everything written to it as the contents of a JSON string before passing it to an underlying writer.
+ * The escaping is identical to json-lib's JSONUtils.quote (for strings that aren't javascript functions).
+ *
+ * This class does NOT write the surrounding quotes - that is the responsibility of the caller.
+ */
+public class JSONStringWriter extends Writer {
+
+    private Writer out;
+    /** The last character written (needed for escaping "</")*/
+    private char previous = 0;
+    private long charsWritten = 0;
+
+    /**
+     * Creates a new writer
+     * @param out The writer to receive the escaped characters. Closing/flushing this writer will NOT close/flush out.
+     */
+    public JSONStringWriter(Writer out) {
+        this.out = out;
+    }
+
+    /**
+     * Gets the number of (unescaped) characters that have been written to this writer
+     * @return
+     */
+    public long getCharsWritten() {
+        return charsWritten;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        int end = off + len;
+        int unescapedStart = off;
+        for (int i = off; i < end; i++) {
+            char c = cbuf[i];
+            String escaped = escape(c, previous);
+            previous = c;
+            if (escaped != null) {
+                out.write(cbuf, unescapedStart, i - unescapedStart);
+                out.write(escaped);
+                unescapedStart = i + 1;
+            }
+        }
+        out.write(cbuf, unescapedStart, end - unescapedStart);
+        charsWritten += len;
+    }
+
+    /**
+     * Returns the escaped form of c (or null if c doesn't require escaping)
+     */
+    private static String escape(char c, char previous) {
+        switch (c) {
+        case '\\':
+            return "\\\\";
+        case '"':
+            return "\\\"";
+        case '/':
+            return previous == '<' ? "\\/" : null;
+        case '\b':
+            return "\\b";
+        case '\t':
+            return "\\t";
+        case '\n':
+            return "\\n";
+        case '\f':
+            return "\\f";
+        case '\r':
+            return "\\r";
+        default:
+            if (c < ' ') {
+                return String.format("\\u%1$04x", (int) c);
+            }
+            return null;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        //The underlying writer is owned by the caller
+    }
+
+    @Override
+    public void close() throws IOException {
+        //The underlying writer is owned by the caller
+    }
+}
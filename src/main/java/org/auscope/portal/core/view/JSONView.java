@@ -1,5 +1,6 @@
 package org.auscope.portal.core.view;
 
+import java.io.Writer;
 import java.util.Map;
 
 import javax.servlet.http.HttpServletRequest;
@@ -20,6 +21,8 @@ import org.springframework.web.servlet.view.AbstractView;
  * This class is a JSON spring MVC View class which takes a JSONArray and sends the actual json structure down the
  * wire on the httpResponse
  *
+ * Models are streamed straight to the response writer using a StreamingJSONSerializer
+ *
  */
 public class JSONView extends AbstractView {
     private JSONArray jsonArray;
@@ -44,11 +47,13 @@ public class JSONView extends AbstractView {
     protected void renderMergedOutputModel(Map<String, Object> model, HttpServletRequest request, HttpServletResponse response) throws Exception {
         response.setContentType(getContentType());
 
+        Writer writer = response.getWriter();
         if (jsonArray != null) { //convert just the array
-            response.getWriter().write(JSONSerializer.toJSON(jsonArray, cfg).toString());
-        } else { //send of the object
-            response.getWriter().write(JSONSerializer.toJSON(model, cfg).toString());
+            writer.write(JSONSerializer.toJSON(jsonArray, cfg).toString());
+        } else { //stream the object (avoid building an intermediate JSON tree)
+            new StreamingJSONSerializer(cfg).write(model, writer);
         }
+        writer.flush();
     }
 
 }
@@ -0,0 +1,204 @@
+package org.auscope.portal.core.view;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.web.servlet.view.AbstractView;
+
+/**
+ * A JSON spring MVC View for content that has already been serialized to a JSON string. The model is ignored.
+ *
+ * Every response is sent with a strong ETag (derived from the content) and requests with a matching
+ * If-None-Match header will receive a 304 Not Modified. If enabled, clients that accept gzip
+ * encoding will be sent a gzipped variant that is compressed once and reused for every subsequent request.
+ *
+ * Instances of this class can be safely shared between requests.
+ */
+public class SerializedJSONView extends AbstractView {
+
+    private static final String GZIP_ETAG_SUFFIX = "-gzip";
+
+    private String json;
+    private String eTag;
+    private boolean gzipEnabled;
+    /** The gzipped json (and the charset that was used to encode it) - lazily generated*/
+    private volatile GzippedContent gzippedContent;
+
+    /**
+     * Creates a new view
+     * @param json The pre-serialized JSON to send
+     * @param gzipEnabled If true, clients that accept gzip encoding will receive a gzipped response
+     */
+    public SerializedJSONView(String json, boolean gzipEnabled) {
+        super();
+        setContentType("application/json");
+        this.json = json;
+        this.gzipEnabled = gzipEnabled;
+        this.eTag = generateETag(json);
+    }
+
+    /**
+     * Generates a strong ETag (including the surrounding quotes) for the specified content
+     * @param content
+     * @return
+     */
+    public static String generateETag(String content) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            byte[] hash = digest.digest(content.getBytes("UTF-8"));
+            return String.format("\"%1$032x\"", new BigInteger(1, hash));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("MD5 is not supported", ex);
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException("UTF-8 is not supported", ex);
+        }
+    }
+
+    /**
+     * Gets the pre-serialized JSON that this view will send
+     * @return
+     */
+    public String getJson() {
+        return json;
+    }
+
+    /**
+     * Gets the ETag (including the surrounding quotes) of the uncompressed response
+     * @return
+     */
+    public String getETag() {
+        return eTag;
+    }
+
+    /**
+     * Gets whether clients that accept gzip encoding will receive a gzipped response
+     * @return
+     */
+    public boolean isGzipEnabled() {
+        return gzipEnabled;
+    }
+
+    private String getGzipETag() {
+        return eTag.substring(0, eTag.length() - 1) + GZIP_ETAG_SUFFIX + "\"";
+    }
+
+    /**
+     * Returns true if the If-None-Match header contains one of our ETags
+     */
+    private boolean isNotModified(HttpServletRequest request) {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch == null) {
+            return false;
+        }
+
+        String gzipETag = getGzipETag();
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2); //If-None-Match uses the weak comparison function
+            }
+            if (tag.equals("*") || tag.equals(eTag) || tag.equals(gzipETag)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static boolean acceptsGzip(HttpServletRequest request) {
+        String acceptEncoding = request.getHeader("Accept-Encoding");
+        if (acceptEncoding == null) {
+            return false;
+        }
+
+        for (String encoding : acceptEncoding.split(",")) {
+            String[] parts = encoding.trim().split(";");
+            if (!parts[0].trim().equalsIgnoreCase("gzip")) {
+                continue;
+            }
+            //Reject an explicit q=0
+            for (int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        return Double.parseDouble(param.substring(2)) > 0;
+                    } catch (NumberFormatException ex) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Gets (or generates) the gzipped json encoded with charset
+     */
+    private byte[] getGzipped(String charset) throws IOException {
+        GzippedContent content = gzippedContent;
+        if (content != null && content.charset.equals(charset)) {
+            return content.data;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+        gzip.write(json.getBytes(charset));
+        gzip.close();
+
+        content = new GzippedContent(charset, bytes.toByteArray());
+        gzippedContent = content;
+        return content.data;
+    }
+
+    @Override
+    protected void renderMergedOutputModel(Map<String, Object> model, HttpServletRequest request, HttpServletResponse response) throws Exception {
+        response.setContentType(getContentType());
+        if (gzipEnabled) {
+            response.setHeader("Vary", "Accept-Encoding");
+        }
+
+        boolean gzip = gzipEnabled && acceptsGzip(request);
+        response.setHeader("ETag", gzip ? getGzipETag() : eTag);
+        if (isNotModified(request)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        if (gzip) {
+            String charset = response.getCharacterEncoding() == null ? "ISO-8859-1" : response.getCharacterEncoding();
+            byte[] data = getGzipped(charset);
+            response.setHeader("Content-Encoding", "gzip");
+            response.setContentLength(data.length);
+            OutputStream os = response.getOutputStream();
+            os.write(data);
+            os.flush();
+        } else {
+            Writer writer = response.getWriter();
+            writer.write(json);
+            writer.flush();
+        }
+    }
+
+    private static class GzippedContent {
+        final String charset;
+        final byte[] data;
+
+        GzippedContent(String charset, byte[] data) {
+            this.charset = charset;
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package org.auscope.portal.core.view;
+
+import java.io.InputStream;
+import java.io.Writer;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.xml.stream.XMLStreamException;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.auscope.portal.core.util.GeoJSONUtil;
+import org.springframework.web.servlet.view.AbstractView;
+
+/**
+ * A spring MVC View that streams a WFS response directly to the client as a GeoJSON FeatureCollection
+ * (see GeoJSONUtil). The model is ignored.
+ *
+ * Because the response is committed before the WFS response has been completely parsed, a parse failure will
+ * be reported by an "error" member on the FeatureCollection (containing every feature parsed up until the failure).
+ *
+ * Instances of this class can only be rendered once. The WFS response will be closed (and method released) after rendering.
+ */
+public class StreamingGeoJSONView extends AbstractView {
+
+    private InputStream wfsResponse;
+    private HttpRequestBase method;
+
+    /**
+     * Creates a new view
+     * @param wfsResponse The raw WFS response to convert (should already be checked for OWS exceptions)
+     * @param method [Optional] The method that produced wfsResponse - it will be released after rendering
+     */
+    public StreamingGeoJSONView(InputStream wfsResponse, HttpRequestBase method) {
+        super();
+        setContentType("application/json");
+        this.wfsResponse = wfsResponse;
+        this.method = method;
+    }
+
+    @Override
+    protected void renderMergedOutputModel(Map<String, Object> model, HttpServletRequest request, HttpServletResponse response) throws Exception {
+        response.setContentType(getContentType());
+
+        try {
+            Writer writer = response.getWriter();
+            try {
+                GeoJSONUtil.writeFeatureCollection(wfsResponse, writer);
+            } catch (XMLStreamException ex) {
+                logger.error("Unable to convert WFS response to GeoJSON: " + ex.getMessage());
+                logger.debug("Exception: ", ex);
+            }
+            writer.flush();
+        } finally {
+            IOUtils.closeQuietly(wfsResponse);
+            if (method != null) {
+                method.releaseConnection();
+            }
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package org.auscope.portal.core.view;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import net.sf.json.JSON;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import net.sf.json.JsonConfig;
+import net.sf.json.util.JSONUtils;
+
+/**
+ * Serializes an object graph directly to a Writer without first building a json-lib JSON tree.
+ *
+ * The output is identical to JSONSerializer.toJSON(obj, config).toString(). Maps, collections, arrays,
+ * strings, booleans and (non floating point) numbers are written directly. Anything else (beans, enums,
+ * existing JSON objects and strings that json-lib would attempt to parse as JSON/functions) is delegated
+ * to json-lib on an element by element basis so that its quirks are preserved.
+ *
+ * Instances of this class are NOT thread safe.
+ */
+public class StreamingJSONSerializer {
+
+    /** The key used when delegating a single map value to json-lib*/
+    private static final String DELEGATE_KEY = "v";
+    private static final String DELEGATE_PREFIX = "{\"" + DELEGATE_KEY + "\":";
+
+    private JsonConfig config;
+    private Collection<?> excludedKeys;
+    /** The containers currently being written (used for cycle detection)*/
+    private Map<Object, Object> stack = new IdentityHashMap<Object, Object>();
+
+    /**
+     * Creates a new serializer
+     * @param config The config to use for all json-lib delegation. Only the default (LENIENT) cycle detection strategy is supported.
+     */
+    public StreamingJSONSerializer(JsonConfig config) {
+        this.config = config;
+        this.excludedKeys = config.getMergedExcludes();
+    }
+
+    /**
+     * Writes obj to writer in the same format as JSONSerializer.toJSON(obj, config).toString()
+     * @param obj The object to serialize, typically a Map or Collection
+     * @param writer The writer to receive the JSON (will not be flushed/closed)
+     * @throws IOException
+     */
+    public void write(Object obj, Writer writer) throws IOException {
+        stack.clear();
+        if (obj == null || obj instanceof JSON || !(obj instanceof Map || isArrayLike(obj))) {
+            JSON json = net.sf.json.JSONSerializer.toJSON(obj, config);
+            writer.write(json.toString());
+        } else if (obj instanceof Map) {
+            writeMap((Map<?, ?>) obj, writer);
+        } else {
+            writeArray(obj, writer);
+        }
+    }
+
+    private static boolean isArrayLike(Object obj) {
+        return obj instanceof Collection || obj.getClass().isArray();
+    }
+
+    /**
+     * Returns true if json-lib would attempt to parse str as JSON (or a javascript function)
+     */
+    private static boolean requiresDelegation(String str) {
+        return JSONUtils.mayBeJSON(str) || (str.startsWith("function") && JSONUtils.isFunction(str));
+    }
+
+    /**
+     * Returns true if value is a simple type that can be written without json-lib
+     */
+    private static boolean isSimpleValue(Object value) {
+        return value == null ||
+               value instanceof Boolean ||
+               value instanceof Integer ||
+               value instanceof Long ||
+               value instanceof Short ||
+               value instanceof Byte ||
+               value instanceof Double ||
+               value instanceof BigInteger ||
+               value instanceof BigDecimal ||
+               (value instanceof String && !requiresDelegation((String) value));
+    }
+
+    private void writeSimpleValue(Object value, Writer writer) throws IOException {
+        if (value == null) {
+            writer.write("null");
+        } else if (value instanceof String) {
+            writer.write(JSONUtils.quote((String) value));
+        } else if (value instanceof Boolean) {
+            writer.write(value.toString());
+        } else {
+            JSONUtils.testValidity(value);
+            writer.write(JSONUtils.numberToString((Number) value));
+        }
+    }
+
+    private void writeMap(Map<?, ?> map, Writer writer) throws IOException {
+        //We can only stream maps whose keys json-lib will write verbatim
+        for (Object key : map.keySet()) {
+            if (!(key instanceof String) || requiresDelegation((String) key)) {
+                writeDelegatedMapValue(map, writer);
+                return;
+            }
+        }
+
+        if (stack.containsKey(map)) {
+            writer.write("null"); //LENIENT cycle detection
+            return;
+        }
+        stack.put(map, map);
+
+        writer.write('{');
+        boolean first = true;
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            String key = (String) entry.getKey();
+            if (excludedKeys.contains(key)) {
+                continue;
+            }
+
+            if (!first) {
+                writer.write(',');
+            }
+            first = false;
+            writer.write(JSONUtils.quote(key));
+            writer.write(':');
+            writeValue(entry.getValue(), false, writer);
+        }
+        writer.write('}');
+
+        stack.remove(map);
+    }
+
+    private void writeArray(Object array, Writer writer) throws IOException {
+        if (stack.containsKey(array)) {
+            writer.write("[]"); //LENIENT cycle detection
+            return;
+        }
+        stack.put(array, array);
+
+        writer.write('[');
+        if (array instanceof Collection) {
+            Iterator<?> it = ((Collection<?>) array).iterator();
+            for (int i = 0; it.hasNext(); i++) {
+                if (i > 0) {
+                    writer.write(',');
+                }
+                writeValue(it.next(), true, writer);
+            }
+        } else {
+            int length = Array.getLength(array);
+            for (int i = 0; i < length; i++) {
+                if (i > 0) {
+                    writer.write(',');
+                }
+                writeValue(Array.get(array, i), true, writer);
+            }
+        }
+        writer.write(']');
+
+        stack.remove(array);
+    }
+
+    /**
+     * Writes value as either an array element or a map value
+     */
+    private void writeValue(Object value, boolean inArray, Writer writer) throws IOException {
+        if (isSimpleValue(value)) {
+            writeSimpleValue(value, writer);
+        } else if (value instanceof JSON) {
+            writeDelegated(value, inArray, writer);
+        } else if (value instanceof Map) {
+            writeMap((Map<?, ?>) value, writer);
+        } else if (isArrayLike(value)) {
+            writeArray(value, writer);
+        } else {
+            writeDelegated(value, inArray, writer);
+        }
+    }
+
+    /**
+     * json-lib will be responsible for writing map (probably because it will throw an exception)
+     */
+    private void writeDelegatedMapValue(Map<?, ?> map, Writer writer) throws IOException {
+        writer.write(JSONObject.fromObject(map, config).toString());
+    }
+
+    /**
+     * Has json-lib serialize value as if it were an element in a JSONArray (or a value in a JSONObject)
+     */
+    private void writeDelegated(Object value, boolean inArray, Writer writer) throws IOException {
+        String json;
+        if (inArray) {
+            json = JSONArray.fromObject(Collections.singletonList(value), config).toString();
+            writer.write(json, 1, json.length() - 2);
+        } else {
+            json = JSONObject.fromObject(Collections.singletonMap(DELEGATE_KEY, value), config).toString();
+            if (!json.startsWith(DELEGATE_PREFIX)) {
+                //json-lib has opted to skip this value - this will only occur for values that are excluded by the JsonConfig
+                throw new IOException("Unable to serialize value of type " + value.getClass());
+            }
+            writer.write(json, DELEGATE_PREFIX.length(), json.length() - DELEGATE_PREFIX.length() - 1);
+        }
+    }
+}
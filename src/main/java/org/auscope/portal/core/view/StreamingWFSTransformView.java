@@ -0,0 +1,176 @@
+package org.auscope.portal.core.view;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.json.JsonConfig;
+import net.sf.json.util.CycleDetectionStrategy;
+import net.sf.json.util.JSONUtils;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.TeeInputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.auscope.portal.core.util.ScratchOutputStream;
+import org.auscope.portal.core.xslt.PortalXSLTTransformer;
+import org.springframework.web.servlet.view.AbstractView;
+
+/**
+ * A JSON spring MVC View that streams a WFS response through a PortalXSLTTransformer directly to the client.
+ * The model is ignored.
+ *
+ * The response takes the same form as BasePortalController.generateJSONResponseMAV(success, gml, kml, method) except that
+ * the raw GML is optional and the transformed KML is never held in memory. If the raw GML is requested it will be
+ * spooled (to a ScratchSpace file if it exceeds a memory threshold) while it's being transformed and written after the KML.
+ *
+ * Because the response is committed before the transformation completes, a failed transformation will be reported
+ * by "success" being false (the partial KML will still be sent).
+ *
+ * Instances of this class can only be rendered once. The WFS response will be closed (and method released) after rendering.
+ */
+public class StreamingWFSTransformView extends AbstractView {
+
+    /** The default number of bytes of raw GML that will be held in memory before spooling to disk*/
+    public static final int DEFAULT_GML_MEMORY_THRESHOLD = 1024 * 1024;
+
+    private InputStream wfsResponse;
+    private PortalXSLTTransformer transformer;
+    private Properties styleSheetParams;
+    private boolean includeGml;
+    private HttpRequestBase method;
+    private Object debugInfo;
+    private String failureMessage;
+    private int gmlMemoryThreshold = DEFAULT_GML_MEMORY_THRESHOLD;
+    private JsonConfig cfg;
+
+    /**
+     * Creates a new view
+     * @param wfsResponse The raw WFS response to transform (should already be checked for OWS exceptions)
+     * @param transformer The transformer to apply to wfsResponse
+     * @param styleSheetParams [Optional] Properties to apply to the transformer
+     * @param includeGml If true, the raw GML will be included in the response as "gml"
+     * @param method [Optional] The method that produced wfsResponse - it will be released after rendering
+     * @param debugInfo [Optional] Debugging Information. Must be serialisable into a JSON object
+     * @param failureMessage The message to send if the transformation fails
+     */
+    public StreamingWFSTransformView(InputStream wfsResponse, PortalXSLTTransformer transformer, Properties styleSheetParams,
+            boolean includeGml, HttpRequestBase method, Object debugInfo, String failureMessage) {
+        super();
+        setContentType("application/json");
+        this.wfsResponse = wfsResponse;
+        this.transformer = transformer;
+        this.styleSheetParams = styleSheetParams;
+        this.includeGml = includeGml;
+        this.method = method;
+        this.debugInfo = debugInfo;
+        this.failureMessage = failureMessage;
+        this.cfg = new JsonConfig();
+        this.cfg.setCycleDetectionStrategy(CycleDetectionStrategy.LENIENT);
+    }
+
+    /**
+     * Gets the number of bytes of raw GML that will be held in memory before spooling to disk
+     * @return
+     */
+    public int getGmlMemoryThreshold() {
+        return gmlMemoryThreshold;
+    }
+
+    /**
+     * Sets the number of bytes of raw GML that will be held in memory before spooling to disk
+     * @param gmlMemoryThreshold
+     */
+    public void setGmlMemoryThreshold(int gmlMemoryThreshold) {
+        this.gmlMemoryThreshold = gmlMemoryThreshold;
+    }
+
+    /**
+     * Gets whether the raw GML will be included in the response
+     * @return
+     */
+    public boolean isIncludeGml() {
+        return includeGml;
+    }
+
+    @Override
+    protected void renderMergedOutputModel(Map<String, Object> model, HttpServletRequest request, HttpServletResponse response) throws Exception {
+        response.setContentType(getContentType());
+
+        ScratchOutputStream gmlSpool = null;
+        InputStream input = wfsResponse;
+        if (includeGml) {
+            gmlSpool = new ScratchOutputStream(gmlMemoryThreshold, "portal-wfs", ".xml");
+            input = new TeeInputStream(wfsResponse, gmlSpool);
+        }
+
+        try {
+            Writer writer = response.getWriter();
+            writer.write("{\"data\":{\"kml\":\"");
+            JSONStringWriter kmlWriter = new JSONStringWriter(writer);
+            boolean success;
+            try {
+                transformer.transform(new StreamSource(input), styleSheetParams, kmlWriter);
+                success = kmlWriter.getCharsWritten() > 0;
+                if (!success) {
+                    logger.error("Transform failed - no output produced");
+                }
+            } catch (TransformerException ex) {
+                logger.error("Transform failed: " + ex);
+                success = false;
+            }
+            writer.write('"');
+
+            if (gmlSpool != null) {
+                //The transformer may not have consumed every trailing byte
+                IOUtils.copy(input, NullOutputStream.NULL_OUTPUT_STREAM);
+                gmlSpool.close();
+
+                writer.write(",\"gml\":\"");
+                writeGml(gmlSpool, new JSONStringWriter(writer));
+                writer.write('"');
+            }
+
+            writer.write("},\"success\":");
+            writer.write(Boolean.toString(success));
+            writer.write(",\"msg\":");
+            writer.write(JSONUtils.quote(success ? "" : failureMessage));
+            if (debugInfo != null) {
+                writer.write(",\"debugInfo\":");
+                new StreamingJSONSerializer(cfg).write(debugInfo, writer);
+            }
+            writer.write('}');
+            writer.flush();
+        } finally {
+            IOUtils.closeQuietly(input);
+            if (method != null) {
+                method.releaseConnection();
+            }
+            if (gmlSpool != null) {
+                gmlSpool.delete();
+            }
+        }
+    }
+
+    /**
+     * Writes the spooled GML to writer (decoded the same way as HttpServiceCaller.getMethodResponseAsString)
+     */
+    private void writeGml(ScratchOutputStream gmlSpool, Writer writer) throws IOException {
+        Reader reader = new InputStreamReader(gmlSpool.openInputStream(), Charset.defaultCharset());
+        try {
+            IOUtils.copy(reader, writer);
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package org.auscope.portal.core.view;
+
+import java.util.Map;
+import java.util.zip.ZipOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.auscope.portal.core.server.http.download.ServiceDownloadManager;
+import org.springframework.web.servlet.view.AbstractView;
+
+/**
+ * A spring MVC View that runs every download in a ServiceDownloadManager, streaming each response to the client
+ * as a zip entry the moment it completes (see ServiceDownloadManager.downloadAllToZip). Entries are compressed
+ * as they are streamed (rather than with a ParallelZipWriter) so that the client receives bytes whilst the
+ * remaining downloads are in progress. The model is ignored.
+ *
+ * Because the response is committed before the downloads complete, failed downloads will be reported as error
+ * entries within the zip.
+ *
+ * Instances of this class can only be rendered once.
+ */
+public class StreamingZipDownloadView extends AbstractView {
+
+    private ServiceDownloadManager downloadManager;
+    private String fileName;
+
+    /**
+     * Creates a new view
+     * @param downloadManager Contains the downloads to run
+     * @param fileName The name of the zip file as presented to the client
+     */
+    public StreamingZipDownloadView(ServiceDownloadManager downloadManager, String fileName) {
+        super();
+        setContentType("application/zip");
+        this.downloadManager = downloadManager;
+        this.fileName = fileName;
+    }
+
+    @Override
+    protected void renderMergedOutputModel(Map<String, Object> model, HttpServletRequest request, HttpServletResponse response) throws Exception {
+        response.setContentType(getContentType());
+        response.setHeader("Content-Disposition", "inline; filename=" + fileName + ";");
+
+        ZipOutputStream zout = new ZipOutputStream(response.getOutputStream());
+        try {
+            downloadManager.downloadAllToZip(zout);
+        } catch (InterruptedException ex) {
+            logger.error("Interrupted whilst streaming downloads: " + ex.getMessage());
+            logger.debug("Exception: ", ex);
+            Thread.currentThread().interrupt();
+        }
+        zout.finish();
+        zout.flush();
+    }
+}
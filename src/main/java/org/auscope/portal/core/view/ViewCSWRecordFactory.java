@@ -3,8 +3,12 @@ package org.auscope.portal.core.view;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TimeZone;
 
 import org.auscope.portal.core.services.responses.csw.AbstractCSWOnlineResource;
@@ -21,84 +25,156 @@ import org.springframework.ui.ModelMap;
  */
 public class ViewCSWRecordFactory {
 
+    /** The view fields required for listing/displaying records (but not for viewing the full record details)*/
+    public static final Set<String> SUMMARY_FIELDS = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+            "name", "resourceProvider", "id", "recordInfoUrl", "noCache", "onlineResources", "descriptiveKeywords")));
+
+    /**
+     * Parses a field projection from a request parameter. The value 'summary' will return SUMMARY_FIELDS, a null/empty
+     * value or 'all' will return null (all fields) otherwise the value will be treated as a comma separated list of field names.
+     * @param fields The raw request parameter
+     * @return
+     */
+    public static Set<String> parseFields(String fields) {
+        if (fields == null || fields.trim().isEmpty() || fields.trim().equalsIgnoreCase("all")) {
+            return null;
+        }
+
+        if (fields.trim().equalsIgnoreCase("summary")) {
+            return SUMMARY_FIELDS;
+        }
+
+        Set<String> result = new HashSet<String>();
+        for (String field : fields.split(",")) {
+            if (!field.trim().isEmpty()) {
+                result.add(field.trim());
+            }
+        }
+        return Collections.unmodifiableSet(result);
+    }
+
+    private static boolean includeField(Set<String> fields, String field) {
+        return fields == null || fields.contains(field);
+    }
+
     /**
      * Converts a CSWRecord to its simplified view equivalent
      * @param record
      * @return
      */
     public ModelMap toView(CSWRecord record) {
+        return toView(record, null);
+    }
+
+    /**
+     * Converts a CSWRecord to its simplified view equivalent containing only the specified fields. Child
+     * records will be projected with the same fields.
+     *
+     * @param record
+     * @param fields [Optional] The names of the fields to include (the keys in the returned ModelMap). If null, every field will be included
+     * @return
+     */
+    public ModelMap toView(CSWRecord record, Set<String> fields) {
         ModelMap obj = new ModelMap();
 
-        obj.put("name", record.getServiceName());
-        obj.put("resourceProvider", record.getResourceProvider());
-        obj.put("id", record.getFileIdentifier());
-        obj.put("recordInfoUrl", record.getRecordInfoUrl());
-        obj.put("description", record.getDataIdentificationAbstract());
-        obj.put("noCache", record.getNoCache());
-
-        CSWResponsibleParty rp = record.getContact();
-        String adminArea = null;
-        String contactOrg = "Unknown";
-        if (rp != null) {
-            if (rp.getOrganisationName() != null && !rp.getOrganisationName().isEmpty()) {
-                contactOrg = rp.getOrganisationName();
-            }
-            adminArea = (rp.getContactInfo() == null ? null : rp.getContactInfo().getAddressAdministrativeArea());
+        if (includeField(fields, "name")) {
+            obj.put("name", record.getServiceName());
+        }
+        if (includeField(fields, "resourceProvider")) {
+            obj.put("resourceProvider", record.getResourceProvider());
+        }
+        if (includeField(fields, "id")) {
+            obj.put("id", record.getFileIdentifier());
+        }
+        if (includeField(fields, "recordInfoUrl")) {
+            obj.put("recordInfoUrl", record.getRecordInfoUrl());
+        }
+        if (includeField(fields, "description")) {
+            obj.put("description", record.getDataIdentificationAbstract());
+        }
+        if (includeField(fields, "noCache")) {
+            obj.put("noCache", record.getNoCache());
         }
-        obj.put("adminArea", adminArea);
-        obj.put("contactOrg", contactOrg);
 
-        List<Map<String, Object>> onlineResources = new ArrayList<Map<String, Object> >();
-        if (record.getOnlineResources() != null) {
-            for (AbstractCSWOnlineResource res : record.getOnlineResources()) {
-                if (res.getLinkage() != null) {
-                    onlineResources.add(this.toView(res));
+        if (includeField(fields, "adminArea") || includeField(fields, "contactOrg")) {
+            CSWResponsibleParty rp = record.getContact();
+            String adminArea = null;
+            String contactOrg = "Unknown";
+            if (rp != null) {
+                if (rp.getOrganisationName() != null && !rp.getOrganisationName().isEmpty()) {
+                    contactOrg = rp.getOrganisationName();
                 }
+                adminArea = (rp.getContactInfo() == null ? null : rp.getContactInfo().getAddressAdministrativeArea());
+            }
+            if (includeField(fields, "adminArea")) {
+                obj.put("adminArea", adminArea);
+            }
+            if (includeField(fields, "contactOrg")) {
+                obj.put("contactOrg", contactOrg);
             }
         }
-        obj.put("onlineResources", onlineResources);
 
-
-        List<Map<String, Object> > geographicElements = new ArrayList<Map<String, Object> >();
-        if (record.getCSWGeographicElements() != null) {
-            for (CSWGeographicElement geo : record.getCSWGeographicElements()) {
-                geographicElements.add(this.toView(geo));
+        if (includeField(fields, "onlineResources")) {
+            List<Map<String, Object>> onlineResources = new ArrayList<Map<String, Object> >();
+            if (record.getOnlineResources() != null) {
+                for (AbstractCSWOnlineResource res : record.getOnlineResources()) {
+                    if (res.getLinkage() != null) {
+                        onlineResources.add(this.toView(res));
+                    }
+                }
             }
+            obj.put("onlineResources", onlineResources);
         }
-        obj.put("geographicElements", geographicElements);
 
+        if (includeField(fields, "geographicElements")) {
+            List<Map<String, Object> > geographicElements = new ArrayList<Map<String, Object> >();
+            if (record.getCSWGeographicElements() != null) {
+                for (CSWGeographicElement geo : record.getCSWGeographicElements()) {
+                    geographicElements.add(this.toView(geo));
+                }
+            }
+            obj.put("geographicElements", geographicElements);
+        }
 
-        List<String> descriptiveKeywords = new ArrayList<String>();
-        if (record.getDescriptiveKeywords() != null) {
-            for (String s : record.getDescriptiveKeywords()) {
-                descriptiveKeywords.add(s);
+        if (includeField(fields, "descriptiveKeywords")) {
+            List<String> descriptiveKeywords = new ArrayList<String>();
+            if (record.getDescriptiveKeywords() != null) {
+                for (String s : record.getDescriptiveKeywords()) {
+                    descriptiveKeywords.add(s);
+                }
             }
+            obj.put("descriptiveKeywords", descriptiveKeywords);
         }
-        obj.put("descriptiveKeywords", descriptiveKeywords);
 
-        List<String> constraints = new ArrayList<String>();
-        if (record.getConstraints() != null) {
-            for (String s : record.getConstraints()) {
-                constraints.add(s);
+        if (includeField(fields, "constraints")) {
+            List<String> constraints = new ArrayList<String>();
+            if (record.getConstraints() != null) {
+                for (String s : record.getConstraints()) {
+                    constraints.add(s);
+                }
             }
+            obj.put("constraints", constraints);
         }
-        obj.put("constraints", constraints);
 
-        List<Map<String, Object>> childRecords = new ArrayList<Map<String, Object>>();
-        if (record.hasChildRecords()) {
-            for (CSWRecord childRecord : record.getChildRecords()) {
-                childRecords.add(this.toView(childRecord));
+        if (includeField(fields, "childRecords")) {
+            List<Map<String, Object>> childRecords = new ArrayList<Map<String, Object>>();
+            if (record.hasChildRecords()) {
+                for (CSWRecord childRecord : record.getChildRecords()) {
+                    childRecords.add(this.toView(childRecord, fields));
+                }
             }
+            obj.put("childRecords", childRecords);
         }
-        obj.put("childRecords", childRecords);
 
-        String dateString = "";
-        if (record.getDate() != null) {
-            DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss zzz");
-            df.setTimeZone(TimeZone.getTimeZone("UTC"));
-            dateString = df.format(record.getDate());
+        if (includeField(fields, "date")) {
+            String dateString = "";
+            if (record.getDate() != null) {
+                DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss zzz");
+                df.setTimeZone(TimeZone.getTimeZone("UTC"));
+                dateString = df.format(record.getDate());
+            }
+            obj.put("date", dateString);
         }
-        obj.put("date", dateString);
 
         return obj;
     }
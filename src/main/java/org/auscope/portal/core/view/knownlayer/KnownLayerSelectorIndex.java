@@ -0,0 +1,255 @@
+package org.auscope.portal.core.view.knownlayer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.apache.commons.lang.ObjectUtils;
+import org.auscope.portal.core.services.responses.csw.AbstractCSWOnlineResource;
+import org.auscope.portal.core.services.responses.csw.AbstractCSWOnlineResource.OnlineResourceType;
+import org.auscope.portal.core.services.responses.csw.CSWRecord;
+import org.auscope.portal.core.view.knownlayer.KnownLayerSelector.RelationType;
+
+/**
+ * A list of KnownLayerSelectors compiled into a set of hash lookups so that a CSWRecord can be
+ * classified against every selector with a single pass over its online resources (rather than
+ * a pass per selector).
+ *
+ * WMSSelector, WFSSelector and CSWRecordSelector instances are indexed by resource type, name and linkage
+ * (or by record id/keyword). Any other selector (including subclasses of the above) is evaluated
+ * directly via isRelatedRecord.
+ *
+ * The index is a snapshot of the selectors at construction time - any subsequent changes to the
+ * selectors will NOT be reflected.
+ */
+public class KnownLayerSelectorIndex {
+
+    /** Selectors that belong to any resource matching a type and name*/
+    private Map<ResourceKey, List<Integer>> belongsByName = new HashMap<ResourceKey, List<Integer>>();
+    /** Selectors that belong to only resources matching a type, name and linkage*/
+    private Map<ResourceKey, List<Integer>> belongsByLinkage = new HashMap<ResourceKey, List<Integer>>();
+    /** Selectors that belong to resources matching a type and name, excluding specific linkages*/
+    private Map<ResourceKey, List<ExcludingSelector>> belongsExcluding = new HashMap<ResourceKey, List<ExcludingSelector>>();
+    /** Selectors that are related to any resource matching a type and name*/
+    private Map<ResourceKey, List<Integer>> relatedByName = new HashMap<ResourceKey, List<Integer>>();
+    private Map<String, List<Integer>> belongsByRecordId = new HashMap<String, List<Integer>>();
+    private Map<String, List<Integer>> belongsByKeyword = new HashMap<String, List<Integer>>();
+    /** Selectors that cannot be indexed, keyed by their position in the original list*/
+    private Map<Integer, KnownLayerSelector> unindexedSelectors = new TreeMap<Integer, KnownLayerSelector>();
+
+    /**
+     * Compiles selectors into a new index. Classification results will refer to selectors by their
+     * position in this list. null selectors will never relate to any record.
+     *
+     * @param selectors The selectors to compile
+     */
+    public KnownLayerSelectorIndex(List<? extends KnownLayerSelector> selectors) {
+        for (int i = 0; i < selectors.size(); i++) {
+            KnownLayerSelector selector = selectors.get(i);
+            if (selector == null) {
+                continue;
+            }
+
+            //Subclasses may override isRelatedRecord so we can only index the exact classes
+            if (selector.getClass() == WMSSelector.class) {
+                WMSSelector wmsSelector = (WMSSelector) selector;
+                indexResourceSelector(i, OnlineResourceType.WMS, wmsSelector.getLayerName(), wmsSelector.getServiceEndpoints(),
+                        wmsSelector.includeEndpoints(), wmsSelector.getRelatedLayerNames());
+            } else if (selector.getClass() == WFSSelector.class) {
+                WFSSelector wfsSelector = (WFSSelector) selector;
+                indexResourceSelector(i, OnlineResourceType.WFS, wfsSelector.getFeatureTypeName(), wfsSelector.getServiceEndpoints(),
+                        wfsSelector.includeEndpoints(), wfsSelector.getRelatedFeatureTypeNames());
+            } else if (selector.getClass() == CSWRecordSelector.class) {
+                CSWRecordSelector cswSelector = (CSWRecordSelector) selector;
+                if (cswSelector.getRecordId() != null) {
+                    addToIndex(belongsByRecordId, cswSelector.getRecordId(), i);
+                }
+                if (cswSelector.getDescriptiveKeyword() != null) {
+                    addToIndex(belongsByKeyword, cswSelector.getDescriptiveKeyword(), i);
+                }
+            } else {
+                unindexedSelectors.put(i, selector);
+            }
+        }
+    }
+
+    private void indexResourceSelector(int index, OnlineResourceType type, String name, String[] serviceEndpoints,
+            boolean includeEndpoints, String[] relatedNames) {
+        if (name != null) {
+            if (serviceEndpoints == null || serviceEndpoints.length == 0) {
+                addToIndex(belongsByName, new ResourceKey(type, name, null), index);
+            } else if (includeEndpoints) {
+                for (String url : serviceEndpoints) {
+                    addToIndex(belongsByLinkage, new ResourceKey(type, name, url), index);
+                }
+            } else {
+                ResourceKey key = new ResourceKey(type, name, null);
+                List<ExcludingSelector> list = belongsExcluding.get(key);
+                if (list == null) {
+                    list = new ArrayList<ExcludingSelector>();
+                    belongsExcluding.put(key, list);
+                }
+                list.add(new ExcludingSelector(index, new HashSet<String>(Arrays.asList(serviceEndpoints))));
+            }
+        }
+
+        if (relatedNames != null) {
+            for (String relatedName : relatedNames) {
+                addToIndex(relatedByName, new ResourceKey(type, relatedName, null), index);
+            }
+        }
+    }
+
+    private static <K> void addToIndex(Map<K, List<Integer>> map, K key, int index) {
+        List<Integer> list = map.get(key);
+        if (list == null) {
+            list = new ArrayList<Integer>();
+            map.put(key, list);
+        }
+        if (!list.contains(index)) {
+            list.add(index);
+        }
+    }
+
+    /**
+     * Classifies record against every compiled selector. The result will be identical to calling
+     * isRelatedRecord on each of the selectors in turn.
+     *
+     * @param record The record to classify
+     * @return The position of every selector that record relates to (either Belongs or Related), mapped to
+     *         its RelationType. Selectors that are NotRelated will not be included.
+     */
+    public SortedMap<Integer, RelationType> classify(CSWRecord record) {
+        SortedMap<Integer, RelationType> result = new TreeMap<Integer, RelationType>();
+        List<Integer> related = new ArrayList<Integer>();
+
+        AbstractCSWOnlineResource[] resources = hasResourceSelectors() ? record.getOnlineResources() : null;
+        if (resources != null) {
+            for (AbstractCSWOnlineResource resource : resources) {
+                if (resource == null || resource.getName() == null) {
+                    continue;
+                }
+
+                OnlineResourceType type = resource.getType();
+                if (type != OnlineResourceType.WMS && type != OnlineResourceType.WFS) {
+                    continue;
+                }
+
+                ResourceKey nameKey = new ResourceKey(type, resource.getName(), null);
+                markAll(result, belongsByName.get(nameKey));
+
+                List<ExcludingSelector> excluding = belongsExcluding.get(nameKey);
+                List<Integer> includingLinkage = null;
+                if (!belongsByLinkage.isEmpty() || excluding != null) {
+                    String linkage = resource.getLinkage() == null ? null : resource.getLinkage().toString();
+                    includingLinkage = belongsByLinkage.get(new ResourceKey(type, resource.getName(), linkage));
+                    if (excluding != null) {
+                        for (ExcludingSelector selector : excluding) {
+                            if (!selector.excludedEndpoints.contains(linkage)) {
+                                result.put(selector.index, RelationType.Belongs);
+                            }
+                        }
+                    }
+                }
+                markAll(result, includingLinkage);
+
+                List<Integer> relatedIndexes = relatedByName.get(nameKey);
+                if (relatedIndexes != null) {
+                    related.addAll(relatedIndexes);
+                }
+            }
+        }
+
+        if (!belongsByRecordId.isEmpty()) {
+            markAll(result, belongsByRecordId.get(record.getFileIdentifier()));
+        }
+        if (!belongsByKeyword.isEmpty() && record.getDescriptiveKeywords() != null) {
+            for (String keyword : record.getDescriptiveKeywords()) {
+                markAll(result, belongsByKeyword.get(keyword));
+            }
+        }
+
+        //Related is only relevant if the selector hasn't matched with a stronger relation
+        for (Integer index : related) {
+            if (!result.containsKey(index)) {
+                result.put(index, RelationType.Related);
+            }
+        }
+
+        for (Map.Entry<Integer, KnownLayerSelector> entry : unindexedSelectors.entrySet()) {
+            RelationType relation = entry.getValue().isRelatedRecord(record);
+            if (relation != null && relation != RelationType.NotRelated) {
+                result.put(entry.getKey(), relation);
+            }
+        }
+
+        return result;
+    }
+
+    private boolean hasResourceSelectors() {
+        return !belongsByName.isEmpty() || !belongsByLinkage.isEmpty() ||
+                !belongsExcluding.isEmpty() || !relatedByName.isEmpty();
+    }
+
+    private static void markAll(Map<Integer, RelationType> result, List<Integer> indexes) {
+        if (indexes == null) {
+            return;
+        }
+        for (Integer index : indexes) {
+            result.put(index, RelationType.Belongs);
+        }
+    }
+
+    /**
+     * A selector that belongs to every resource with a particular name EXCEPT those with specific linkages
+     */
+    private static class ExcludingSelector {
+        final int index;
+        final Set<String> excludedEndpoints;
+
+        ExcludingSelector(int index, Set<String> excludedEndpoints) {
+            this.index = index;
+            this.excludedEndpoints = excludedEndpoints;
+        }
+    }
+
+    /**
+     * Lookup key for online resources - linkage is optional
+     */
+    private static class ResourceKey {
+        final OnlineResourceType type;
+        final String name;
+        final String linkage;
+
+        ResourceKey(OnlineResourceType type, String name, String linkage) {
+            this.type = type;
+            this.name = name;
+            this.linkage = linkage;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ResourceKey)) {
+                return false;
+            }
+            ResourceKey other = (ResourceKey) o;
+            return type == other.type &&
+                    ObjectUtils.equals(name, other.name) &&
+                    ObjectUtils.equals(linkage, other.linkage);
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = type == null ? 0 : type.hashCode();
+            hash = 31 * hash + (name == null ? 0 : name.hashCode());
+            hash = 31 * hash + (linkage == null ? 0 : linkage.hashCode());
+            return hash;
+        }
+    }
+}
@@ -1,10 +1,17 @@
 package org.auscope.portal.core.xslt;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.io.Writer;
+import java.net.URL;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
@@ -18,13 +25,22 @@ import org.auscope.portal.core.util.FileIOUtil;
 
 /**
  * Class for performing XSLT Transformations
+ *
+ * The XSLT is compiled into a Templates object on first use and that compiled form is shared by every
+ * PortalXSLTTransformer (of the same class) that uses the same XSLT resource. Each transformation
+ * creates its own (cheap) Transformer from the shared Templates so instances of this class are thread safe.
+ *
  * @author Josh Vote
  *
  */
 public class PortalXSLTTransformer {
     private final Log log = LogFactory.getLog(this.getClass());
 
+    /** Compiled stylesheets shared across all instances*/
+    private static final ConcurrentMap<TemplatesKey, CompiledTemplates> templatesCache = new ConcurrentHashMap<TemplatesKey, CompiledTemplates>();
+
     private String xsltResourceName;
+    private boolean reloadOnChange = false;
 
     /**
      * Creates a new instance of this class for transforming using a single XSLT
@@ -35,13 +51,38 @@ public class PortalXSLTTransformer {
     }
 
     /**
-     * Utility for creating an instance of the Transformer class
-     * @param xslt The style sheet contents that will form the basis of the transformer
-     * @param stylesheetParams [Optional] Any additional params to set for the Transformer
+     * Gets whether the XSLT resource will be checked for modifications (and recompiled) before every transformation
+     * @return
+     */
+    public boolean isReloadOnChange() {
+        return reloadOnChange;
+    }
+
+    /**
+     * Sets whether the XSLT resource will be checked for modifications (and recompiled) before every transformation.
+     *
+     * This is intended for development only - only the last modified date of the XSLT resource itself is checked (not
+     * any of its imports) and checking adds overhead to every transformation. Defaults to false.
+     * @param reloadOnChange
+     */
+    public void setReloadOnChange(boolean reloadOnChange) {
+        this.reloadOnChange = reloadOnChange;
+    }
+
+    /**
+     * Removes every compiled XSLT from the shared cache. Subsequent transformations will recompile their XSLT.
+     */
+    public static void clearTemplatesCache() {
+        templatesCache.clear();
+    }
+
+    /**
+     * Utility for compiling the XSLT resource into a Templates object
+     * @param xslt The style sheet contents that will be compiled
      * @return
      * @throws TransformerConfigurationException
      */
-    private Transformer createTransformer(InputStream xslt, Properties stylesheetParams) throws TransformerConfigurationException {
+    private Templates compileTemplates(InputStream xslt) throws TransformerConfigurationException {
         // Use the static TransformerFactory.newInstance() method:
         // TransformerFactory tFactory = TransformerFactory.newInstance();
         // to instantiate updateCSWRecords TransformerFactory.
@@ -56,12 +97,65 @@ public class PortalXSLTTransformer {
         //Ensure we resolve resources locally
         tFactory.setURIResolver(new ResourceURIResolver(getClass()));
 
-        // Use the TransformerFactory to instantiate updateCSWRecords
-        // transformer that will
-        // work with the style sheet we specify. This method call also
-        // processes
-        // the style sheet into updateCSWRecords compiled Templates object.
-        Transformer transformer = tFactory.newTransformer(new StreamSource(xslt));
+        // Process the style sheet into a compiled Templates object.
+        return tFactory.newTemplates(new StreamSource(xslt));
+    }
+
+    /**
+     * Returns the last modified time of the XSLT resource (or 0 if it cannot be determined)
+     */
+    private long getResourceLastModified() {
+        URL url = getClass().getResource(xsltResourceName);
+        if (url == null) {
+            return 0L;
+        }
+
+        try {
+            return url.openConnection().getLastModified();
+        } catch (IOException ex) {
+            log.debug("Unable to determine last modified date for " + url + ": " + ex);
+            return 0L;
+        }
+    }
+
+    /**
+     * Gets the compiled form of the XSLT resource, compiling it if it hasn't been compiled previously (or if it has
+     * changed and reloadOnChange is set).
+     * @return
+     * @throws TransformerConfigurationException
+     */
+    protected Templates getTemplates() throws TransformerConfigurationException {
+        TemplatesKey key = new TemplatesKey(getClass(), xsltResourceName);
+        CompiledTemplates compiled = templatesCache.get(key);
+        long lastModified = reloadOnChange ? getResourceLastModified() : 0L;
+        if (compiled != null && (!reloadOnChange || compiled.lastModified == lastModified)) {
+            return compiled.templates;
+        }
+
+        //Two threads may race to compile the same XSLT - the result is identical so it's not worth locking over
+        InputStream xslt = getClass().getResourceAsStream(xsltResourceName);
+        try {
+            if (compiled != null) {
+                log.info("Recompiling modified XSLT " + xsltResourceName);
+            }
+            compiled = new CompiledTemplates(compileTemplates(xslt), lastModified);
+        } finally {
+            FileIOUtil.closeQuietly(xslt);
+        }
+        templatesCache.put(key, compiled);
+        return compiled.templates;
+    }
+
+    /**
+     * Utility for creating an instance of the Transformer class. The returned Transformer must only
+     * be used by a single thread.
+     * @param stylesheetParams [Optional] Any additional params to set for the Transformer
+     * @return
+     * @throws TransformerConfigurationException
+     */
+    protected Transformer createTransformer(Properties stylesheetParams) throws TransformerConfigurationException {
+        Transformer transformer = getTemplates().newTransformer();
+        transformer.setURIResolver(new ResourceURIResolver(getClass()));
 
         // Set stylesheet parameters
         if (stylesheetParams != null) {
@@ -107,17 +201,67 @@ public class PortalXSLTTransformer {
      */
     public String convert(StreamSource xml, Properties stylesheetParams) {
         StringWriter sw = new StringWriter();
-        InputStream xslt = getClass().getResourceAsStream(xsltResourceName);
         try {
-            Transformer transformer = createTransformer(xslt, stylesheetParams);
+            Transformer transformer = createTransformer(stylesheetParams);
             transformer.transform(xml, new StreamResult(sw));
         } catch (TransformerConfigurationException tce) {
             log.error(tce);
         } catch (TransformerException e) {
             log.error("Failed to transform xml: " + e);
-        } finally {
-            FileIOUtil.closeQuietly(xslt);
         }
         return sw.toString();
     }
+
+    /**
+     * Transforms xml directly into output without buffering the result.
+     *
+     * @param xml XML Source to be transformed
+     * @param stylesheetParams [Optional] A map of properties that will be enumerated to set style sheet properties
+     * @param output Will receive the transformed output (will not be flushed/closed)
+     * @throws TransformerException If the XSLT cannot be compiled or the transformation fails
+     */
+    public void transform(Source xml, Properties stylesheetParams, Writer output) throws TransformerException {
+        Transformer transformer = createTransformer(stylesheetParams);
+        transformer.transform(xml, new StreamResult(output));
+    }
+
+    /**
+     * The cache key for a compiled XSLT. Resources are resolved relative to a class so the class forms part of the key
+     */
+    private static class TemplatesKey {
+        final Class<?> clazz;
+        final String resourceName;
+
+        TemplatesKey(Class<?> clazz, String resourceName) {
+            this.clazz = clazz;
+            this.resourceName = resourceName;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof TemplatesKey)) {
+                return false;
+            }
+            TemplatesKey other = (TemplatesKey) o;
+            return clazz.equals(other.clazz) && resourceName.equals(other.resourceName);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * clazz.hashCode() + resourceName.hashCode();
+        }
+    }
+
+    /**
+     * A compiled XSLT and the last modified date of the resource it was compiled from
+     */
+    private static class CompiledTemplates {
+        final Templates templates;
+        final long lastModified;
+
+        CompiledTemplates(Templates templates, long lastModified) {
+            this.templates = templates;
+            this.lastModified = lastModified;
+        }
+    }
 }
@@ -0,0 +1,70 @@
+package org.auscope.portal.core.server.controllers;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.auscope.portal.core.services.responses.csw.CSWRecord;
+import org.auscope.portal.core.test.PortalTestClass;
+import org.auscope.portal.core.view.ViewCSWRecordFactory;
+import org.auscope.portal.core.view.ViewKnownLayerFactory;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.ui.ModelMap;
+import org.springframework.web.servlet.ModelAndView;
+
+/**
+ * Unit tests for BaseCSWController
+ */
+public class TestBaseCSWController extends PortalTestClass {
+
+    private class BaseCSWControllerImpl extends BaseCSWController {
+        public BaseCSWControllerImpl() {
+            super(new ViewCSWRecordFactory(), new ViewKnownLayerFactory());
+        }
+    }
+
+    private BaseCSWControllerImpl baseCSWController = new BaseCSWControllerImpl();
+
+    private static CSWRecord makeRecord(String id, String name) {
+        CSWRecord record = new CSWRecord(id);
+        record.setServiceName(name);
+        return record;
+    }
+
+    /**
+     * Tests that records are sorted, paged and projected
+     */
+    @Test
+    public void testPagedSortedResponse() {
+        List<CSWRecord> records = Arrays.asList(makeRecord("id1", "d"), makeRecord("id2", "b"), makeRecord("id3", ""),
+                makeRecord("id4", "a"), makeRecord("id5", "c"));
+
+        ModelAndView mav = baseCSWController.generateCSWRecordResponse(records, 1, 2, "name", true, ViewCSWRecordFactory.SUMMARY_FIELDS);
+        ModelMap model = mav.getModelMap();
+
+        Assert.assertTrue((Boolean) model.get("success"));
+        Assert.assertEquals(4, model.get("totalResults"));
+
+        List<?> data = (List<?>) model.get("data");
+        Assert.assertEquals(2, data.size());
+        Assert.assertEquals("b", ((ModelMap) data.get(0)).get("name"));
+        Assert.assertEquals("c", ((ModelMap) data.get(1)).get("name"));
+        Assert.assertFalse(((ModelMap) data.get(0)).containsKey("geographicElements"));
+
+        //Paging past the end should return nothing
+        mav = baseCSWController.generateCSWRecordResponse(records, 10, 2, "name", false, null);
+        Assert.assertEquals(0, ((List<?>) mav.getModelMap().get("data")).size());
+        Assert.assertEquals(4, mav.getModelMap().get("totalResults"));
+    }
+
+    /**
+     * Tests that an unsupported sort field returns an unsuccessful response
+     */
+    @Test
+    public void testUnsupportedSortField() {
+        List<CSWRecord> records = Arrays.asList(makeRecord("id1", "a"));
+
+        ModelAndView mav = baseCSWController.generateCSWRecordResponse(records, 0, 0, "constraints", true, null);
+        Assert.assertFalse((Boolean) mav.getModelMap().get("success"));
+    }
+}
@@ -0,0 +1,133 @@
+package org.auscope.portal.core.server.http.download;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.auscope.portal.core.test.PortalTestClass;
+import org.auscope.portal.core.util.FileIOUtil;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for DownloadCache
+ */
+public class TestDownloadCache extends PortalTestClass {
+
+    private static final String[] URLS_A = {"http://example.org/a", "http://example.org/b"};
+    private static final String[] URLS_B = {"http://example.org/c"};
+
+    private File cacheDir;
+    private File workDir;
+
+    @Before
+    public void setUp() throws Exception {
+        cacheDir = Files.createTempDirectory("APT_CACHE_TEST").toFile();
+        workDir = Files.createTempDirectory("APT_CACHE_WORK").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        FileIOUtil.deleteFilesRecursive(cacheDir);
+        FileIOUtil.deleteFilesRecursive(workDir);
+    }
+
+    private File createArchive(String name, int length) throws Exception {
+        File f = new File(workDir, name);
+        Files.write(f.toPath(), new byte[length]);
+        return f;
+    }
+
+    /**
+     * Keys should ignore the order, duplication and surrounding whitespace of URLs
+     */
+    @Test
+    public void testCreateKey() {
+        String key = DownloadCache.createKey(URLS_A);
+        Assert.assertEquals(key, DownloadCache.createKey(new String[] {"http://example.org/b ", "http://example.org/a", "http://example.org/b"}));
+        Assert.assertFalse(key.equals(DownloadCache.createKey(URLS_B)));
+    }
+
+    /**
+     * Cached archives should be served until they're no longer fresh
+     * @throws Exception
+     */
+    @Test
+    public void testPutAndCopy() throws Exception {
+        DownloadCache cache = new DownloadCache(cacheDir, 1000, 60000);
+        File destination = new File(workDir, "destination.zip");
+        Assert.assertFalse(cache.copyTo(URLS_A, destination));
+
+        Assert.assertTrue(cache.put(URLS_A, createArchive("a.zip", 100)));
+        Assert.assertTrue(cache.copyTo(URLS_A, destination));
+        Assert.assertEquals(100, destination.length());
+        Assert.assertFalse(cache.copyTo(URLS_B, destination));
+
+        //Too big to cache
+        Assert.assertFalse(cache.put(URLS_B, createArchive("b.zip", 1001)));
+
+        DownloadCache staleCache = new DownloadCache(cacheDir, 1000, -1);
+        Assert.assertFalse(staleCache.copyTo(URLS_A, destination));
+    }
+
+    /**
+     * Least recently used archives should be evicted to fit the size limit, but never if they're in use
+     * @throws Exception
+     */
+    @Test
+    public void testEviction() throws Exception {
+        DownloadCache cache = new DownloadCache(cacheDir, 250, 60000);
+        cache.put(URLS_A, createArchive("a.zip", 100));
+        DownloadCache.Entry inUse = cache.acquire(URLS_A);
+        Assert.assertNotNull(inUse);
+
+        Thread.sleep(10);
+        cache.put(URLS_B, createArchive("b.zip", 100));
+        Thread.sleep(10);
+        cache.put(new String[] {"http://example.org/d"}, createArchive("d.zip", 100));
+
+        //URLS_A is the oldest but is in use so URLS_B should go instead
+        Assert.assertEquals(2, cache.getEntryCount());
+        Assert.assertTrue(inUse.getFile().exists());
+        Assert.assertNull(cache.acquire(URLS_B));
+
+        cache.release(inUse);
+        Assert.assertEquals(200, cache.getSize());
+    }
+
+    /**
+     * A new cache should pick up the archives of a previous cache in the same directory
+     * @throws Exception
+     */
+    @Test
+    public void testRestore() throws Exception {
+        DownloadCache cache = new DownloadCache(cacheDir, 1000, 60000);
+        cache.put(URLS_A, createArchive("a.zip", 100));
+
+        DownloadCache restored = new DownloadCache(cacheDir, 1000, 60000);
+        Assert.assertEquals(1, restored.getEntryCount());
+        Assert.assertEquals(100, restored.getSize());
+        Assert.assertTrue(restored.copyTo(URLS_A, new File(workDir, "destination.zip")));
+    }
+
+    /**
+     * Archives should be published under their final name only once completely copied. Partial copies
+     * left over from an interrupted put should be cleaned up on restore
+     * @throws Exception
+     */
+    @Test
+    public void testPartialArchives() throws Exception {
+        File partial = new File(cacheDir, DownloadCache.createKey(URLS_B) + "-123.partial");
+        Files.write(partial.toPath(), new byte[10]);
+
+        DownloadCache cache = new DownloadCache(cacheDir, 1000, 60000);
+        Assert.assertFalse(partial.exists());
+        Assert.assertEquals(0, cache.getEntryCount());
+
+        Assert.assertTrue(cache.put(URLS_A, createArchive("a.zip", 100)));
+        String[] files = cacheDir.list();
+        Assert.assertEquals(1, files.length);
+        Assert.assertTrue(files[0].endsWith(".zip"));
+    }
+}
@@ -0,0 +1,83 @@
+package org.auscope.portal.core.server.http.download;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.auscope.portal.core.test.PortalTestClass;
+import org.auscope.portal.core.util.FileIOUtil;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for DownloadJournal
+ */
+public class TestDownloadJournal extends PortalTestClass {
+
+    private File directory;
+    private DownloadJournal journal;
+
+    @Before
+    public void setup() throws Exception {
+        directory = Files.createTempDirectory("APT_JOURNAL_TEST").toFile();
+        journal = new DownloadJournal(directory);
+    }
+
+    @After
+    public void tearDown() {
+        FileIOUtil.deleteFilesRecursive(directory);
+    }
+
+    /**
+     * Entries should be read back as they were written
+     * @throws Exception
+     */
+    @Test
+    public void testWriteRead() throws Exception {
+        File download = new File(directory, "download.zip");
+        String[] urls = {"http://example.org/wfs?a=1&b=2", "http://example.org/wfs?c=3"};
+        journal.write(new DownloadJournal.Entry("user@example.org", Progression.INPROGRESS, download, 1234L, urls));
+        journal.write(new DownloadJournal.Entry("other@example.org", Progression.COMPLETED, null, 5678L, null));
+
+        //Replacing an entry
+        journal.write(new DownloadJournal.Entry("other@example.org", Progression.COMPLETED, download, 9999L, null));
+
+        List<DownloadJournal.Entry> entries = new DownloadJournal(directory).readAll();
+        Assert.assertEquals(2, entries.size());
+        for (DownloadJournal.Entry entry : entries) {
+            if (entry.getEmail().equals("user@example.org")) {
+                Assert.assertEquals(Progression.INPROGRESS, entry.getProgress());
+                Assert.assertEquals(download.getAbsoluteFile(), entry.getFile());
+                Assert.assertEquals(1234L, entry.getLastCompletedTime());
+                Assert.assertArrayEquals(urls, entry.getUrls());
+            } else {
+                Assert.assertEquals("other@example.org", entry.getEmail());
+                Assert.assertEquals(Progression.COMPLETED, entry.getProgress());
+                Assert.assertEquals(9999L, entry.getLastCompletedTime());
+                Assert.assertNull(entry.getUrls());
+            }
+        }
+
+        journal.delete("user@example.org");
+        Assert.assertEquals(1, journal.readAll().size());
+    }
+
+    /**
+     * Corrupt entries should be skipped
+     * @throws Exception
+     */
+    @Test
+    public void testCorruptEntry() throws Exception {
+        journal.write(new DownloadJournal.Entry("user@example.org", Progression.COMPLETED, null, 1234L, null));
+        FileOutputStream fos = new FileOutputStream(new File(directory, "corrupt.properties"));
+        fos.write("progress=NOT_A_PROGRESSION".getBytes());
+        fos.close();
+
+        List<DownloadJournal.Entry> entries = journal.readAll();
+        Assert.assertEquals(1, entries.size());
+        Assert.assertEquals("user@example.org", entries.get(0).getEmail());
+    }
+}
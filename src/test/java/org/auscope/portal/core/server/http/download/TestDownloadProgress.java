@@ -0,0 +1,122 @@
+package org.auscope.portal.core.server.http.download;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.auscope.portal.core.test.PortalTestClass;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for DownloadProgress and ProgressInputStream
+ */
+public class TestDownloadProgress extends PortalTestClass {
+
+    private static final String[] URLS = {"http://example.org/wfs?a=1", "http://example.com/wfs?b=2"};
+
+    /**
+     * URLs should move through their states exactly once
+     */
+    @Test
+    public void testStates() {
+        DownloadProgress progress = new DownloadProgress(URLS);
+        Assert.assertEquals(2, progress.getCount(DownloadProgress.State.QUEUED));
+        Assert.assertEquals("example.org", progress.getUrlProgress(0).getEndpoint());
+        Assert.assertEquals(-1, progress.getEstimatedTimeRemaining());
+
+        DownloadProgress.UrlProgress first = progress.getUrlProgress(0);
+        first.setRunning();
+        Assert.assertEquals(DownloadProgress.State.RUNNING, first.getState());
+        Assert.assertTrue(first.getStartTime() > 0);
+
+        first.setFailed();
+        first.setFinished();
+        first.setRunning();
+        Assert.assertEquals(DownloadProgress.State.FAILED, first.getState());
+        Assert.assertFalse(progress.isDone());
+
+        progress.getUrlProgress(1).setFinished();
+        Assert.assertTrue(progress.isDone());
+        Assert.assertEquals(1, progress.getCount(DownloadProgress.State.FAILED));
+        Assert.assertEquals(1, progress.getCount(DownloadProgress.State.FINISHED));
+        Assert.assertEquals(0, progress.getEstimatedTimeRemaining());
+    }
+
+    /**
+     * Features received against a known total should contribute partial progress
+     * @throws Exception
+     */
+    @Test
+    public void testFeatureProgress() throws Exception {
+        DownloadProgress progress = new DownloadProgress(URLS);
+        DownloadProgress.UrlProgress first = progress.getUrlProgress(0);
+        first.setRunning();
+        first.setFeaturesExpected(100);
+        first.addFeatures(50);
+        Assert.assertEquals(50, progress.getFeaturesReceived());
+        Assert.assertTrue(progress.getFractionComplete() > 0.2 && progress.getFractionComplete() < 0.25);
+
+        Thread.sleep(20);
+        Assert.assertTrue(progress.getEstimatedTimeRemaining() > 0);
+    }
+
+    /**
+     * Bytes read through a ProgressInputStream should be counted (and finish the URL at the end of the stream)
+     * @throws Exception
+     */
+    @Test
+    public void testProgressInputStream() throws Exception {
+        DownloadProgress progress = new DownloadProgress(URLS);
+        DownloadProgress.UrlProgress first = progress.getUrlProgress(0);
+        DownloadProgress.UrlProgress second = progress.getUrlProgress(1);
+        first.setRunning();
+        second.setRunning();
+
+        InputStream is = new ProgressInputStream(new ByteArrayInputStream(new byte[1000]), first, true);
+        Assert.assertEquals(0, is.read());
+        Assert.assertEquals(999, IOUtils.toByteArray(is).length);
+        Assert.assertEquals(1000, first.getBytesReceived());
+        Assert.assertEquals(DownloadProgress.State.FINISHED, first.getState());
+
+        //Pages shouldn't finish the URL
+        IOUtils.toByteArray(new ProgressInputStream(new ByteArrayInputStream(new byte[10]), second, false));
+        Assert.assertEquals(10, second.getBytesReceived());
+        Assert.assertEquals(DownloadProgress.State.RUNNING, second.getState());
+        Assert.assertEquals(1010, progress.getBytesReceived());
+    }
+
+    /**
+     * A ProgressInputStream should only finish the URL at the end of the stream and fail it if the stream can't be read
+     * @throws Exception
+     */
+    @Test
+    public void testProgressInputStreamFailure() throws Exception {
+        DownloadProgress progress = new DownloadProgress(URLS);
+        DownloadProgress.UrlProgress first = progress.getUrlProgress(0);
+        DownloadProgress.UrlProgress second = progress.getUrlProgress(1);
+        first.setRunning();
+        second.setRunning();
+
+        //Closing early isn't the end of the download
+        InputStream is = new ProgressInputStream(new ByteArrayInputStream(new byte[1000]), first, true);
+        Assert.assertEquals(0, is.read());
+        is.close();
+        Assert.assertEquals(DownloadProgress.State.RUNNING, first.getState());
+
+        is = new ProgressInputStream(new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("connection reset");
+            }
+        }, second, true);
+        try {
+            is.read();
+            Assert.fail("Expected an IOException");
+        } catch (IOException ex) {
+            Assert.assertEquals("connection reset", ex.getMessage());
+        }
+        Assert.assertEquals(DownloadProgress.State.FAILED, second.getState());
+    }
+}
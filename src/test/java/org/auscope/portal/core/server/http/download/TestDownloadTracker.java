@@ -1,8 +1,10 @@
 package org.auscope.portal.core.server.http.download;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Files;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.zip.ZipEntry;
@@ -13,6 +15,7 @@ import org.auscope.portal.core.configuration.ServiceConfiguration;
 import org.auscope.portal.core.configuration.ServiceConfigurationItem;
 import org.auscope.portal.core.server.http.HttpServiceCaller;
 import org.auscope.portal.core.test.PortalTestClass;
+import org.auscope.portal.core.util.FileIOUtil;
 import org.jmock.Expectations;
 import org.junit.Assert;
 import org.junit.Before;
@@ -250,4 +253,97 @@ public class TestDownloadTracker extends PortalTestClass  {
 
 
 
+
+    /**
+     * Completed downloads should be restored from a journal and incomplete downloads resumed
+     */
+    @Test
+    public void testJournalRestore() throws Exception {
+        final String[] serviceUrls = {"http://localhost:8088/AuScope-Portal/doBoreholeFilter.do?&serviceUrl=http://journal.example.org/wfs"};
+        final String dummyJSONResponse = "{\"data\":{\"kml\":\"<someKmlHere/>\", \"gml\":\"<gml/>\"},\"success\":true}";
+        File journalDir = Files.createTempDirectory("APT_JOURNAL_TEST").toFile();
+        File completedFile = File.createTempFile("APT_JOURNAL_TEST", ".zip");
+        try {
+            DownloadJournal journal = new DownloadJournal(journalDir);
+            journal.write(new DownloadJournal.Entry("journal-completed", Progression.COMPLETED, completedFile, System.currentTimeMillis(), null));
+            journal.write(new DownloadJournal.Entry("journal-incomplete", Progression.INPROGRESS, null, System.currentTimeMillis(), serviceUrls));
+
+            context.checking(new Expectations() {
+                {
+                    oneOf(mockServiceCaller).getMethodResponseAsHttpResponse(with(aHttpMethodBase(null, serviceUrls[0], null)));
+                    will(returnValue(new MyHttpResponse(new ByteArrayInputStream(dummyJSONResponse.getBytes()))));
+                }
+            });
+
+            DownloadTracker.setJournal(journal);
+            DownloadTracker completed = DownloadTracker.getTracker("journal-completed");
+            Assert.assertEquals(Progression.COMPLETED, completed.getProgress());
+            Assert.assertEquals(completedFile, completed.getFileHandle());
+
+            DownloadTracker incomplete = DownloadTracker.getTracker("journal-incomplete");
+            Assert.assertEquals(Progression.NOT_STARTED, incomplete.getProgress());
+            Assert.assertEquals(1, DownloadTracker.resumeJournaledDownloads(mockServiceCaller, null));
+
+            long startTime = System.currentTimeMillis();
+            while(incomplete.getProgress()!=Progression.COMPLETED && System.currentTimeMillis() < (startTime + 15000)){
+                synchronized(this){
+                    this.wait(500);
+                }
+            }
+            Assert.assertEquals(Progression.COMPLETED, incomplete.getProgress());
+            Assert.assertFalse(incomplete.isQueued());
+            Assert.assertTrue(incomplete.getQueueWaitTime() >= 0);
+
+            //The resumed download should now be journaled as complete
+            for (DownloadJournal.Entry entry : journal.readAll()) {
+                Assert.assertEquals(Progression.COMPLETED, entry.getProgress());
+            }
+        } finally {
+            DownloadTracker.setJournal(null);
+            DownloadTracker.cleanUp(-1);
+            FileIOUtil.deleteFilesRecursive(journalDir);
+        }
+    }
+
+    /**
+     * A second download of the same URLs should be served from the cache without any requests
+     */
+    @Test
+    public void testDownloadCache() throws Exception {
+        final String[] serviceUrls = {"http://localhost:8088/AuScope-Portal/doBoreholeFilter.do?&serviceUrl=http://cache.example.org/wfs"};
+        final String dummyJSONResponse = "{\"data\":{\"kml\":\"<someKmlHere/>\", \"gml\":\"<gml/>\"},\"success\":true}";
+        File cacheDir = Files.createTempDirectory("APT_CACHE_TEST").toFile();
+        try {
+            context.checking(new Expectations() {
+                {
+                    oneOf(mockServiceCaller).getMethodResponseAsHttpResponse(with(aHttpMethodBase(null, serviceUrls[0], null)));
+                    will(returnValue(new MyHttpResponse(new ByteArrayInputStream(dummyJSONResponse.getBytes()))));
+                }
+            });
+
+            DownloadCache cache = new DownloadCache(cacheDir, 1024 * 1024, 60000);
+            DownloadTracker.setDownloadCache(cache);
+
+            DownloadTracker first = DownloadTracker.getTracker("cache-first");
+            first.startTrack(new ServiceDownloadManager(serviceUrls, mockServiceCaller, threadPool));
+            long startTime = System.currentTimeMillis();
+            while(first.getProgress()!=Progression.COMPLETED && System.currentTimeMillis() < (startTime + 15000)){
+                synchronized(this){
+                    this.wait(500);
+                }
+            }
+            Assert.assertEquals(Progression.COMPLETED, first.getProgress());
+            Assert.assertEquals(1, cache.getEntryCount());
+
+            //The second tracker should complete immediately
+            DownloadTracker second = DownloadTracker.getTracker("cache-second");
+            second.startTrack(new ServiceDownloadManager(serviceUrls, mockServiceCaller, threadPool));
+            Assert.assertEquals(Progression.COMPLETED, second.getProgress());
+            Assert.assertArrayEquals(Files.readAllBytes(first.getFileHandle().toPath()), Files.readAllBytes(second.getFileHandle().toPath()));
+        } finally {
+            DownloadTracker.setDownloadCache(null);
+            DownloadTracker.cleanUp(-1);
+            FileIOUtil.deleteFilesRecursive(cacheDir);
+        }
+    }
 }
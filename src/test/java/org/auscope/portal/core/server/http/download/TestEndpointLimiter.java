@@ -0,0 +1,118 @@
+package org.auscope.portal.core.server.http.download;
+
+import java.util.concurrent.TimeUnit;
+
+import org.auscope.portal.core.test.PortalTestClass;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for EndpointLimiter
+ */
+public class TestEndpointLimiter extends PortalTestClass {
+
+    /**
+     * Permits should never exceed the current limit
+     */
+    @Test
+    public void testPermits() {
+        EndpointLimiter limiter = new EndpointLimiter(2, 4);
+        Assert.assertTrue(limiter.tryAcquire());
+        Assert.assertTrue(limiter.tryAcquire());
+        Assert.assertFalse(limiter.tryAcquire());
+        Assert.assertEquals(2, limiter.getInFlight());
+
+        limiter.release();
+        Assert.assertTrue(limiter.tryAcquire());
+    }
+
+    /**
+     * Healthy samples should additively grow the limit up to the maximum
+     */
+    @Test
+    public void testAdditiveIncrease() {
+        EndpointLimiter limiter = new EndpointLimiter(1, 3);
+        limiter.onSample(100, true);
+        Assert.assertEquals(2, limiter.getLimit());
+
+        //Growth slows to 1/limit per sample as the limit increases
+        limiter.onSample(100, true);
+        Assert.assertEquals(2, limiter.getLimit());
+        limiter.onSample(100, true);
+        Assert.assertEquals(2, limiter.getLimit());
+        limiter.onSample(100, true);
+        Assert.assertEquals(3, limiter.getLimit());
+
+        for (int i = 0; i < 10; i++) {
+            limiter.onSample(100, true);
+        }
+        Assert.assertEquals(3, limiter.getLimit());
+    }
+
+    /**
+     * Errors and slow samples should multiplicatively shrink the limit down to the minimum
+     */
+    @Test
+    public void testMultiplicativeDecrease() {
+        EndpointLimiter limiter = new EndpointLimiter(8, 1, 8, 2.0);
+        limiter.onSample(100, true);
+        Assert.assertEquals(8, limiter.getLimit());
+
+        //Latency well over the baseline
+        limiter.onSample(1000, true);
+        Assert.assertEquals(7, limiter.getLimit());
+
+        limiter.onSample(100, false);
+        Assert.assertEquals(3, limiter.getLimit());
+
+        for (int i = 0; i < 10; i++) {
+            limiter.onSample(100, false);
+        }
+        Assert.assertEquals(1, limiter.getLimit());
+    }
+
+    /**
+     * Constructor arguments should be clamped to sensible values
+     */
+    @Test
+    public void testLimitBounds() {
+        EndpointLimiter limiter = new EndpointLimiter(10, 0, 5, 2.0);
+        Assert.assertEquals(1, limiter.getMinLimit());
+        Assert.assertEquals(5, limiter.getMaxLimit());
+        Assert.assertEquals(5, limiter.getLimit());
+    }
+
+    /**
+     * A near instant first sample shouldn't make every subsequent sample count as slow
+     */
+    @Test
+    public void testZeroLatencyBaseline() {
+        EndpointLimiter limiter = new EndpointLimiter(1, 1, 4, 2.0);
+        limiter.onSample(0, true);
+        for (int i = 0; i < 10; i++) {
+            limiter.onSample(5, true);
+        }
+        Assert.assertEquals(4, limiter.getLimit());
+    }
+
+    /**
+     * acquire should wait for a released permit and give up once the timeout elapses
+     */
+    @Test
+    public void testAcquire() throws Exception {
+        final EndpointLimiter limiter = new EndpointLimiter(1, 1);
+        Assert.assertTrue(limiter.acquire(0, TimeUnit.MILLISECONDS));
+        Assert.assertFalse(limiter.acquire(10, TimeUnit.MILLISECONDS));
+
+        Thread releaser = new Thread() {
+            @Override
+            public void run() {
+                limiter.release();
+            }
+        };
+        releaser.start();
+        Assert.assertTrue(limiter.acquire(1, TimeUnit.MINUTES));
+        releaser.join();
+        Assert.assertEquals(1, limiter.getInFlight());
+    }
+}
@@ -1,8 +1,14 @@
 package org.auscope.portal.core.server.http.download;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -17,13 +23,17 @@ import java.util.concurrent.Executors;
 
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.HttpRequestBase;
 import org.auscope.portal.core.configuration.ServiceConfiguration;
 import org.auscope.portal.core.configuration.ServiceConfigurationItem;
 import org.auscope.portal.core.server.http.HttpServiceCaller;
+import org.auscope.portal.core.services.responses.ows.OWSException;
 import org.auscope.portal.core.test.PortalTestClass;
+import org.auscope.portal.core.test.ResourceUtil;
 import org.jmock.Expectations;
 import org.junit.Assert;
 import org.junit.Before;
@@ -49,15 +59,15 @@ public class TestServiceDownloadManager extends PortalTestClass  {
         final String dummyGml = "<someGmlHere/>";
         final String dummyJSONResponse = "{\"data\":{\"kml\":\"<someKmlHere/>\", \"gml\":\""
                 + dummyGml + "\"},\"success\":true}";
-        final InputStream dummyJSONResponseIS=new ByteArrayInputStream(dummyJSONResponse.getBytes());
-        final MyHttpResponse httpResponse=new MyHttpResponse(dummyJSONResponseIS);
 
 
         context.checking(new Expectations() {
             {
                 // calling the service
                 exactly(2).of(mockServiceCaller).getMethodResponseAsHttpResponse(with(any(HttpRequestBase.class)));
-                will(returnValue(httpResponse));
+                will(onConsecutiveCalls(
+                        returnValue(pageResponse(dummyJSONResponse)),
+                        returnValue(pageResponse(dummyJSONResponse))));
 
                 allowing(mockServiceConfiguration).getServiceConfigurationItem(with(any(String.class)));
                 will(returnValue(null));
@@ -67,11 +77,13 @@ public class TestServiceDownloadManager extends PortalTestClass  {
         ServiceDownloadManager sdm=new ServiceDownloadManager(serviceUrls,mockServiceCaller,threadPool,mockServiceConfiguration);
         ArrayList<DownloadResponse> gmlDownloads=sdm.downloadAll();
         for(DownloadResponse response:gmlDownloads){
-            Assert.assertEquals(dummyJSONResponseIS,response.getResponseAsStream());
+            Assert.assertEquals(dummyJSONResponse,IOUtils.toString(response.getResponseAsStream()));
             Assert.assertFalse(response.hasException());
             Assert.assertNull(response.getException());
         }
 
+        Assert.assertEquals(2 * dummyJSONResponse.length(), sdm.getDownloadProgress().getBytesReceived());
+        Assert.assertEquals(2, sdm.getDownloadProgress().getCount(DownloadProgress.State.FINISHED));
     }
 
 
@@ -150,6 +162,154 @@ public class TestServiceDownloadManager extends PortalTestClass  {
 
     }
 
+    private HttpResponse pageResponse(String content) {
+        return new MyHttpResponse(new ByteArrayInputStream(content.getBytes()));
+    }
+
+    /**
+     * When a service reports hits, every startIndex window should be requested (concurrently) and zipped in page order
+     */
+    @Test
+    public void testDownloadAllWithConcurrentPaging() throws Exception {
+        final ServiceConfigurationItem scItem = new ServiceConfigurationItem("exampleTestId","exampleTest.com/test",true);
+        final String[] serviceUrls = {"http://localhost:8088/AuScope-Portal/doBoreholeFilter.do?&serviceUrl=http://exampleTest.com/test/wfs&maxFeatures=2"};
+        final String hitsResponse = "<wfs:FeatureCollection xmlns:wfs=\"http://www.opengis.net/wfs\" numberOfFeatures=\"5\"/>";
+
+        context.checking(new Expectations() {
+            {
+                oneOf(mockServiceCaller).getMethodResponseAsHttpResponse(with(aHttpMethodBase(null, serviceUrls[0]+"&resultType=hits", null)));
+                will(returnValue(pageResponse(hitsResponse)));
+
+                oneOf(mockServiceCaller).getMethodResponseAsHttpResponse(with(aHttpMethodBase(null, serviceUrls[0]+"&startIndex=0", null)));
+                will(delayReturnValue(300, pageResponse("<page index=\"0\"/>")));
+                oneOf(mockServiceCaller).getMethodResponseAsHttpResponse(with(aHttpMethodBase(null, serviceUrls[0]+"&startIndex=2", null)));
+                will(delayReturnValue(200, pageResponse("<page index=\"2\"/>")));
+                oneOf(mockServiceCaller).getMethodResponseAsHttpResponse(with(aHttpMethodBase(null, serviceUrls[0]+"&startIndex=4", null)));
+                will(delayReturnValue(100, pageResponse("<page index=\"4\"/>")));
+
+                oneOf(mockServiceConfiguration).getServiceConfigurationItem(with(serviceUrls[0]));
+                will(returnValue(scItem));
+            }
+        });
+
+        ServiceDownloadManager sdm = new ServiceDownloadManager(serviceUrls,mockServiceCaller,threadPool,mockServiceConfiguration);
+        DownloadResponse response = sdm.downloadAll().get(0);
+        Assert.assertFalse(response.hasException());
+        Assert.assertEquals("application/zip", response.getContentType());
+
+        Map<String, String> entries = new HashMap<String, String>();
+        List<String> entryNames = new ArrayList<String>();
+        ZipInputStream zis = new ZipInputStream(response.getResponseAsStream());
+        ZipEntry entry;
+        while ((entry = zis.getNextEntry()) != null) {
+            entries.put(entry.getName(), IOUtils.toString(zis));
+            entryNames.add(entry.getName());
+        }
+        zis.close();
+
+        //Later pages arrive first but must still be written after page 0
+        Assert.assertEquals(Arrays.asList("ResultIndexed-0.xml", "ResultIndexed-2.xml", "ResultIndexed-4.xml"), entryNames);
+        Assert.assertEquals("<page index=\"0\"/>", entries.get("ResultIndexed-0.xml"));
+        Assert.assertEquals("<page index=\"2\"/>", entries.get("ResultIndexed-2.xml"));
+        Assert.assertEquals("<page index=\"4\"/>", entries.get("ResultIndexed-4.xml"));
+
+        DownloadProgress.UrlProgress progress = sdm.getDownloadProgress().getUrlProgress(0);
+        Assert.assertEquals(DownloadProgress.State.FINISHED, progress.getState());
+        Assert.assertEquals(5, progress.getFeaturesExpected());
+        Assert.assertEquals(5, progress.getFeaturesReceived());
+        Assert.assertEquals(3 * "<page index=\"0\"/>".length(), progress.getBytesReceived());
+    }
+
+    /**
+     * A single failed page should fail the entire paging download
+     */
+    @Test
+    public void testDownloadAllWithPagingError() throws Exception {
+        final ServiceConfigurationItem scItem = new ServiceConfigurationItem("exampleTestId","exampleTest.com/test",true);
+        final String[] serviceUrls = {"http://localhost:8088/AuScope-Portal/doBoreholeFilter.do?&serviceUrl=http://exampleTest.com/test/wfs&maxFeatures=2"};
+        final String hitsResponse = "<wfs:FeatureCollection xmlns:wfs=\"http://www.opengis.net/wfs\" numberOfFeatures=\"3\"/>";
+        final String owsError = ResourceUtil.loadResourceAsString("org/auscope/portal/core/test/responses/ows/OWSExceptionSample1.xml");
+
+        context.checking(new Expectations() {
+            {
+                oneOf(mockServiceCaller).getMethodResponseAsHttpResponse(with(aHttpMethodBase(null, serviceUrls[0]+"&resultType=hits", null)));
+                will(returnValue(pageResponse(hitsResponse)));
+
+                oneOf(mockServiceCaller).getMethodResponseAsHttpResponse(with(aHttpMethodBase(null, serviceUrls[0]+"&startIndex=0", null)));
+                will(returnValue(pageResponse("<page index=\"0\"/>")));
+                oneOf(mockServiceCaller).getMethodResponseAsHttpResponse(with(aHttpMethodBase(null, serviceUrls[0]+"&startIndex=2", null)));
+                will(returnValue(pageResponse(owsError)));
+
+                oneOf(mockServiceConfiguration).getServiceConfigurationItem(with(serviceUrls[0]));
+                will(returnValue(scItem));
+            }
+        });
+
+        ServiceDownloadManager sdm = new ServiceDownloadManager(serviceUrls,mockServiceCaller,threadPool,mockServiceConfiguration);
+        DownloadResponse response = sdm.downloadAll().get(0);
+        Assert.assertTrue(response.hasException());
+        Assert.assertTrue(response.getException() instanceof OWSException);
+    }
+
+    /**
+     * Responses should be written to the zip in the order they complete
+     */
+    @Test
+    public void testDownloadAllToZip() throws Exception {
+        final String[] serviceUrls = {
+                "http://localhost:8088/AuScope-Portal/doBoreholeFilter.do?&serviceUrl=http://nvclwebservices.vm.csiro.au:80/geoserverBH/wfs",
+                "http://localhost:8088/AuScope-Portal/doBoreholeFilter.do?&serviceUrl=http://www.mrt.tas.gov.au:80/web-services/wfs",
+                "http://localhost:8088/AuScope-Portal/doBoreholeFilter.do?&serviceUrl=http://example.org/wfs"};
+        final String dummyGml = "<someGmlHere/>";
+        final String dummyJSONResponse = "{\"data\":{\"kml\":\"<someKmlHere/>\", \"gml\":\"" + dummyGml + "\"},\"success\":true}";
+
+        context.checking(new Expectations() {
+            {
+                oneOf(mockServiceCaller).getMethodResponseAsHttpResponse(with(aHttpMethodBase(null, serviceUrls[0], null)));
+                will(delayReturnValue(1000, pageResponse("<slowResponse/>")));
+                oneOf(mockServiceCaller).getMethodResponseAsHttpResponse(with(aHttpMethodBase(null, serviceUrls[1], null)));
+                will(throwException(new IOException("Test exception thrown")));
+                oneOf(mockServiceCaller).getMethodResponseAsHttpResponse(with(aHttpMethodBase(null, serviceUrls[2], null)));
+                will(delayReturnValue(300, pageResponse(dummyJSONResponse)));
+
+                allowing(mockServiceConfiguration).getServiceConfigurationItem(with(any(String.class)));
+                will(returnValue(null));
+            }
+        });
+
+        ServiceDownloadManager sdm = new ServiceDownloadManager(serviceUrls,mockServiceCaller,Executors.newFixedThreadPool(3),mockServiceConfiguration);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ZipOutputStream zout = new ZipOutputStream(bos);
+        sdm.downloadAllToZip(zout);
+        zout.close();
+
+        List<String> names = new ArrayList<String>();
+        List<String> contents = new ArrayList<String>();
+        ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(bos.toByteArray()));
+        ZipEntry entry;
+        while ((entry = zis.getNextEntry()) != null) {
+            names.add(entry.getName());
+            contents.add(IOUtils.toString(zis));
+        }
+        zis.close();
+
+        Assert.assertEquals(3, names.size());
+        Assert.assertTrue(names.get(0).startsWith("2_") && names.get(0).endsWith(".error.txt"));
+        Assert.assertTrue(contents.get(0).contains("Test exception thrown"));
+        Assert.assertTrue(names.get(1).startsWith("3_") && names.get(1).endsWith(".xml"));
+        Assert.assertEquals(dummyGml, contents.get(1));
+        Assert.assertTrue(names.get(2).startsWith("1_") && names.get(2).endsWith(".xml"));
+        Assert.assertEquals("<slowResponse/>", contents.get(2));
+
+        DownloadProgress progress = sdm.getDownloadProgress();
+        Assert.assertEquals(2, progress.getCount(DownloadProgress.State.FINISHED));
+        Assert.assertEquals(1, progress.getCount(DownloadProgress.State.FAILED));
+        Assert.assertEquals(DownloadProgress.State.FAILED, progress.getUrlProgress(1).getState());
+        Assert.assertEquals("<slowResponse/>".length(), progress.getUrlProgress(0).getBytesReceived());
+        Assert.assertTrue(progress.isDone());
+        Assert.assertEquals(0, progress.getEstimatedTimeRemaining());
+    }
+
     @Test
     public void testDownloadAllException() throws Exception {
         final String[] serviceUrls = {
@@ -184,7 +344,7 @@ public class TestServiceDownloadManager extends PortalTestClass  {
                 Assert.assertNotNull(response.getException());
                 Assert.assertTrue("test exception".equals(response.getException().getMessage()));
             }else{
-                Assert.assertEquals(dummyJSONResponseIS,response.getResponseAsStream());
+                Assert.assertEquals(dummyJSONResponse,IOUtils.toString(response.getResponseAsStream()));
                 Assert.assertNull(response.getException());
             }
         }
@@ -272,6 +432,42 @@ public class TestServiceDownloadManager extends PortalTestClass  {
         }
     }
 
+    /**
+     * Tests the concurrency of an endpoint can be configured via its ServiceConfigurationItem
+     */
+    @Test
+    public void testConfiguredEndpointConcurrency() throws Exception {
+        final String[] serviceUrls = {
+                "http://localhost/portal?serviceUrl=http://configured-domain/wfs&id=1",
+                "http://localhost/portal?serviceUrl=http://configured-domain/wfs&id=2",
+        };
+        final ServiceConfigurationItem scItem = new ServiceConfigurationItem("configured", "configured-domain", false);
+        scItem.setInitialConcurrentRequests(2);
+        final long responseDelay = 500;
+
+        context.checking(new Expectations() {{
+            oneOf(mockServiceCaller).getMethodResponseAsHttpResponse(with(aHttpMethodBase(null, serviceUrls[0], null)));
+            will(delayReturnValue(responseDelay, new MyHttpResponse(new ByteArrayInputStream(new byte[0]))));
+            oneOf(mockServiceCaller).getMethodResponseAsHttpResponse(with(aHttpMethodBase(null, serviceUrls[1], null)));
+            will(delayReturnValue(responseDelay, new MyHttpResponse(new ByteArrayInputStream(new byte[0]))));
+
+            allowing(mockServiceConfiguration).getServiceConfigurationItem(with(any(String.class)));
+            will(returnValue(scItem));
+        }});
+
+        ServiceDownloadManager sdm = new ServiceDownloadManager(serviceUrls,mockServiceCaller,threadPool,mockServiceConfiguration);
+
+        //Both requests to the same endpoint should run simultaneously
+        startTimer();
+        ArrayList<DownloadResponse> gmlDownloads = sdm.downloadAll();
+        long elapsedTime = endTimer();
+
+        Assert.assertTrue(String.format("elapsedTime %1$s should be less than %2$s", elapsedTime, responseDelay * 2), elapsedTime < responseDelay * 2);
+        for (DownloadResponse dr : gmlDownloads) {
+            Assert.assertFalse(dr.hasException());
+        }
+    }
+
     /**
      * Tests a download with no service URL parameter succeeds
      * @throws Exception
@@ -298,7 +494,7 @@ public class TestServiceDownloadManager extends PortalTestClass  {
         ServiceDownloadManager sdm=new ServiceDownloadManager(serviceUrls,mockServiceCaller,threadPool,mockServiceConfiguration);
         ArrayList<DownloadResponse> gmlDownloads=sdm.downloadAll();
         for(DownloadResponse response:gmlDownloads){
-            Assert.assertEquals(dummyJSONResponseIS,response.getResponseAsStream());
+            Assert.assertEquals(dummyJSONResponse,IOUtils.toString(response.getResponseAsStream()));
             Assert.assertFalse(response.hasException());
             Assert.assertNull(response.getException());
         }
@@ -1,11 +1,13 @@
 package org.auscope.portal.core.services;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.ConnectException;
 import java.util.Properties;
 
 
+import org.apache.commons.io.IOUtils;
 import org.apache.http.client.methods.HttpRequestBase;
 import org.auscope.portal.core.server.http.HttpServiceCaller;
 import org.auscope.portal.core.services.methodmakers.WFSGetFeatureMethodMaker;
@@ -171,6 +173,31 @@ public class TestBaseWFSService extends PortalTestClass {
     }
 
 
+    @Test
+    public void testGetWFSResponseStream() throws Exception {
+        final String responseString = ResourceUtil.loadResourceAsString("org/auscope/portal/core/test/responses/wfs/commodityGetFeatureResponse.xml");
+        final InputStream responseStream = new ByteArrayInputStream(responseString.getBytes("UTF-8"));
+
+        context.checking(new Expectations() {{
+            oneOf(mockHttpServiceCaller).getMethodResponseAsStream(mockMethod);will(returnValue(responseStream));
+        }});
+
+        InputStream result = service.getWFSResponseStream(mockMethod);
+        Assert.assertEquals(responseString, IOUtils.toString(result, "UTF-8"));
+    }
+
+    @Test(expected=PortalServiceException.class)
+    public void testGetWFSResponseStreamOWSError() throws Exception {
+        final InputStream responseStream = ResourceUtil.loadResourceAsStream("org/auscope/portal/core/test/responses/ows/OWSExceptionSample1.xml");
+
+        context.checking(new Expectations() {{
+            oneOf(mockHttpServiceCaller).getMethodResponseAsStream(mockMethod);will(returnValue(responseStream));
+            oneOf(mockMethod).releaseConnection();
+        }});
+
+        service.getWFSResponseStream(mockMethod);
+    }
+
     @Test
     public void testGetCapabilities() throws Exception {
         final String responseString = ResourceUtil.loadResourceAsString("org/auscope/portal/core/test/responses/wfs/GetCapabilitiesResponse.xml");
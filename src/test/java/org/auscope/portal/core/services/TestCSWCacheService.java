@@ -3,13 +3,19 @@ package org.auscope.portal.core.services;
 import java.io.ByteArrayInputStream;
 import java.net.ConnectException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 import org.auscope.portal.core.server.http.HttpServiceCaller;
+import org.auscope.portal.core.services.csw.CSWCacheChangeEvent;
+import org.auscope.portal.core.services.csw.CSWCacheChangeListener;
 import org.auscope.portal.core.services.csw.CSWServiceItem;
 import org.auscope.portal.core.services.responses.csw.AbstractCSWOnlineResource.OnlineResourceType;
 import org.auscope.portal.core.services.responses.csw.CSWRecord;
@@ -610,4 +616,127 @@ public class TestCSWCacheService extends PortalTestClass {
         Assert.assertEquals(1, parent.getChildRecords().length);
         Assert.assertSame(child, parent.getChildRecords()[0]);
     }
+
+    /**
+     * Tests that change listeners are notified of the differences between successive snapshots
+     * @throws Exception
+     */
+    @Test
+    public void testChangeListener() throws Exception {
+        final String noMoreRecordsString = ResourceUtil.loadResourceAsString("org/auscope/portal/core/test/responses/csw/cswRecordResponse_NoMoreRecords.xml");
+        final String mergeRecordsString = ResourceUtil.loadResourceAsString("org/auscope/portal/core/test/responses/csw/cswRecordResponse_MergeRecords.xml");
+        final Sequence t1Sequence = context.sequence("t1Sequence");
+        final List<CSWCacheChangeEvent> events = new ArrayList<CSWCacheChangeEvent>();
+        final Semaphore eventsReceived = new Semaphore(0);
+
+        context.checking(new Expectations() {{
+            //Thread 1 will return different records for each update
+            oneOf(httpServiceCaller).getMethodResponseAsStream(with(aHttpMethodBase(HttpMethodType.POST, String.format(serviceUrlFormatString, 1), null)));
+            inSequence(t1Sequence);
+            will(returnValue(new ByteArrayInputStream(noMoreRecordsString.getBytes())));
+            oneOf(httpServiceCaller).getMethodResponseAsStream(with(aHttpMethodBase(HttpMethodType.POST, String.format(serviceUrlFormatString, 1), null)));
+            inSequence(t1Sequence);
+            will(returnValue(new ByteArrayInputStream(mergeRecordsString.getBytes())));
+
+            //Threads 2 and 3 will just fail
+            exactly(2).of(httpServiceCaller).getMethodResponseAsStream(with(aHttpMethodBase(HttpMethodType.POST, String.format(serviceUrlFormatString, 2), null)));
+            will(throwException(new Exception()));
+            exactly(2).of(httpServiceCaller).getMethodResponseAsStream(with(aHttpMethodBase(HttpMethodType.POST, String.format(serviceUrlFormatString, 3), null)));
+            will(throwException(new Exception()));
+        }});
+
+        cswCacheService.addChangeListener(new CSWCacheChangeListener() {
+            @Override
+            public void handleCacheChange(CSWCacheChangeEvent event) {
+                synchronized (events) {
+                    events.add(event);
+                }
+                eventsReceived.release();
+            }
+        });
+
+        //First update - everything is new
+        Assert.assertTrue(this.cswCacheService.updateCache());
+        Assert.assertTrue(eventsReceived.tryAcquire(30, TimeUnit.SECONDS));
+        List<CSWRecord> firstSnapshot = new ArrayList<CSWRecord>(cswCacheService.getRecordCache());
+        Set<CSWRecord> firstUnique = new HashSet<CSWRecord>(firstSnapshot);
+
+        //Second update - the previous records are replaced entirely
+        Assert.assertTrue(this.cswCacheService.updateCache());
+        Assert.assertTrue(eventsReceived.tryAcquire(30, TimeUnit.SECONDS));
+        threadExecutor.getExecutorService().shutdown();
+        threadExecutor.getExecutorService().awaitTermination(180, TimeUnit.SECONDS);
+
+        Assert.assertEquals(2, events.size());
+        CSWCacheChangeEvent first = events.get(0);
+        Assert.assertTrue(first.hasChanges());
+        Assert.assertEquals(firstUnique.size(), first.getAddedRecords().size());
+        Assert.assertEquals(0, first.getRemovedRecords().size());
+        Assert.assertEquals(0, first.getModifiedRecords().size());
+        Assert.assertTrue(first.getChangedKeywords().contains("gsml:MappedFeature"));
+        Assert.assertEquals(firstSnapshot, first.getRecords());
+
+        CSWCacheChangeEvent second = events.get(1);
+        Assert.assertEquals(2, second.getAddedRecords().size());
+        Assert.assertEquals(firstUnique.size(), second.getRemovedRecords().size());
+        Assert.assertEquals(0, second.getModifiedRecords().size());
+        Assert.assertTrue(second.getChangedKeywords().contains("gsml:MappedFeature"));
+        Assert.assertTrue(second.getChangedKeywords().contains("association:unique-keyword"));
+        Assert.assertEquals(cswCacheService.getRecordCache(), second.getRecords());
+    }
+
+    /**
+     * Tests that record modifications are detected when diffing snapshots
+     */
+    @Test
+    public void testChangeEventModifiedRecords() {
+        CSWRecord oldRec1 = new CSWRecord("id1");
+        CSWRecord oldRec2 = new CSWRecord("id2");
+        oldRec1.setDescriptiveKeywords(new String[] {"kw1", "kw2"});
+        oldRec2.setDescriptiveKeywords(new String[] {"kw2"});
+
+        CSWRecord newRec1 = new CSWRecord("id1");
+        CSWRecord newRec2 = new CSWRecord("id2");
+        newRec1.setDescriptiveKeywords(new String[] {"kw2", "kw1"});
+        newRec2.setDescriptiveKeywords(new String[] {"kw2"});
+        newRec2.setServiceName("changed");
+
+        Map<String, Set<CSWRecord>> oldKeywords = new HashMap<String, Set<CSWRecord>>();
+        oldKeywords.put("kw1", new HashSet<CSWRecord>(Arrays.asList(oldRec1)));
+        oldKeywords.put("kw2", new HashSet<CSWRecord>(Arrays.asList(oldRec1, oldRec2)));
+        Map<String, Set<CSWRecord>> newKeywords = new HashMap<String, Set<CSWRecord>>();
+        newKeywords.put("kw1", new HashSet<CSWRecord>(Arrays.asList(newRec1)));
+        newKeywords.put("kw2", new HashSet<CSWRecord>(Arrays.asList(newRec1, newRec2)));
+
+        CSWCacheChangeEvent event = CSWCacheChangeEvent.fromSnapshots(Arrays.asList(oldRec1, oldRec2), oldKeywords,
+                Arrays.asList(newRec1, newRec2), newKeywords);
+
+        Assert.assertTrue(event.hasChanges());
+        Assert.assertEquals(0, event.getAddedRecords().size());
+        Assert.assertEquals(0, event.getRemovedRecords().size());
+        Assert.assertEquals(Arrays.asList(newRec2), event.getModifiedRecords());
+        Assert.assertSame(newRec2, event.getModifiedRecords().get(0));
+        Assert.assertEquals(new HashSet<String>(Arrays.asList("kw2")), event.getChangedKeywords());
+    }
+
+    /**
+     * Tests that records (including children) can be looked up by file identifier
+     */
+    @Test
+    public void testGetRecordByFileIdentifier() {
+        CSWRecord parent = new CSWRecord("parent");
+        CSWRecord child = new CSWRecord("child");
+        CSWRecord duplicateChild = new CSWRecord("parent");
+        parent.addChildRecord(child);
+        child.addChildRecord(duplicateChild);
+        CSWRecord other = new CSWRecord("other");
+
+        cswCacheService.recordCache = new ArrayList<CSWRecord>(Arrays.asList(parent, other));
+        cswCacheService.lastCacheUpdate = new Date();
+
+        Assert.assertSame(parent, cswCacheService.getRecordByFileIdentifier("parent"));
+        Assert.assertSame(child, cswCacheService.getRecordByFileIdentifier("child"));
+        Assert.assertSame(other, cswCacheService.getRecordByFileIdentifier("other"));
+        Assert.assertNull(cswCacheService.getRecordByFileIdentifier("dne"));
+    }
 }
@@ -2,8 +2,13 @@ package org.auscope.portal.core.services;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
+import org.auscope.portal.core.services.csw.CSWCacheChangeEvent;
+import org.auscope.portal.core.services.csw.CSWCacheChangeListener;
 import org.auscope.portal.core.services.responses.csw.CSWRecord;
 import org.auscope.portal.core.test.PortalTestClass;
 import org.auscope.portal.core.view.knownlayer.KnownLayer;
@@ -78,6 +83,9 @@ public class TestKnownLayerService extends PortalTestClass {
         }});
 
         mockCacheService = context.mock(CSWCacheService.class);
+        context.checking(new Expectations() {{
+            allowing(mockCacheService).addChangeListener(with(any(CSWCacheChangeListener.class)));
+        }});
         knownLayerService = new KnownLayerService(mockKnownLayerList, mockCacheService);
     }
 
@@ -187,4 +195,77 @@ public class TestKnownLayerService extends PortalTestClass {
         Assert.assertEquals(1, groups.size());
         Assert.assertTrue(groups.get(0).getKnownLayer() instanceof FakeKnownLayerChild);
     }
+
+    /**
+     * Tests that the grouping is materialized once and reused between requests
+     */
+    @Test
+    public void testGroupingReused() {
+        context.checking(new Expectations() {{
+            exactly(2).of(mockCacheService).getRecordCache();will(returnValue(cswRecordList));
+
+            oneOf(mockSelector1).isRelatedRecord(cswRecordList.get(0));will(returnValue(RelationType.Belongs));
+            oneOf(mockSelector1).isRelatedRecord(cswRecordList.get(1));will(returnValue(RelationType.NotRelated));
+            oneOf(mockSelector1).isRelatedRecord(cswRecordList.get(2));will(returnValue(RelationType.NotRelated));
+
+            oneOf(mockSelector2).isRelatedRecord(cswRecordList.get(0));will(returnValue(RelationType.NotRelated));
+            oneOf(mockSelector2).isRelatedRecord(cswRecordList.get(1));will(returnValue(RelationType.NotRelated));
+            oneOf(mockSelector2).isRelatedRecord(cswRecordList.get(2));will(returnValue(RelationType.NotRelated));
+
+            oneOf(mockSelector3).isRelatedRecord(cswRecordList.get(0));will(returnValue(RelationType.NotRelated));
+            oneOf(mockSelector3).isRelatedRecord(cswRecordList.get(1));will(returnValue(RelationType.Belongs));
+            oneOf(mockSelector3).isRelatedRecord(cswRecordList.get(2));will(returnValue(RelationType.NotRelated));
+        }});
+
+        KnownLayerGrouping grouping = knownLayerService.groupKnownLayerRecords();
+        Assert.assertSame(grouping, knownLayerService.groupKnownLayerRecords());
+
+        Assert.assertEquals(2, grouping.getKnownLayers().size());
+        assertListContentsSame(Arrays.asList(cswRecordList.get(2)), grouping.getUnmappedRecords());
+    }
+
+    /**
+     * Tests that only added/modified records are reclassified when the cache publishes a change
+     */
+    @Test
+    public void testIncrementalUpdate() {
+        final CSWRecord newRecord = context.mock(CSWRecord.class, "mockRecord4");
+        final List<CSWRecord> updatedRecordList = Arrays.asList(cswRecordList.get(0), cswRecordList.get(1), newRecord);
+
+        context.checking(new Expectations() {{
+            allowing(newRecord).getFileIdentifier();will(returnValue("id4"));
+
+            oneOf(mockCacheService).getRecordCache();will(returnValue(cswRecordList));
+            oneOf(mockSelector1).isRelatedRecord(cswRecordList.get(0));will(returnValue(RelationType.Belongs));
+            oneOf(mockSelector1).isRelatedRecord(cswRecordList.get(1));will(returnValue(RelationType.NotRelated));
+            oneOf(mockSelector1).isRelatedRecord(cswRecordList.get(2));will(returnValue(RelationType.NotRelated));
+            oneOf(mockSelector2).isRelatedRecord(cswRecordList.get(0));will(returnValue(RelationType.NotRelated));
+            oneOf(mockSelector2).isRelatedRecord(cswRecordList.get(1));will(returnValue(RelationType.NotRelated));
+            oneOf(mockSelector2).isRelatedRecord(cswRecordList.get(2));will(returnValue(RelationType.Related));
+            oneOf(mockSelector3).isRelatedRecord(cswRecordList.get(0));will(returnValue(RelationType.NotRelated));
+            oneOf(mockSelector3).isRelatedRecord(cswRecordList.get(1));will(returnValue(RelationType.NotRelated));
+            oneOf(mockSelector3).isRelatedRecord(cswRecordList.get(2));will(returnValue(RelationType.NotRelated));
+
+            //Only the new record will be tested after the change event
+            oneOf(mockCacheService).getRecordCache();will(returnValue(updatedRecordList));
+            oneOf(mockSelector1).isRelatedRecord(newRecord);will(returnValue(RelationType.NotRelated));
+            oneOf(mockSelector2).isRelatedRecord(newRecord);will(returnValue(RelationType.Belongs));
+            oneOf(mockSelector3).isRelatedRecord(newRecord);will(returnValue(RelationType.NotRelated));
+        }});
+
+        KnownLayerGrouping grouping = knownLayerService.groupKnownLayerRecords();
+        assertListContentsSame(Arrays.asList(cswRecordList.get(1)), grouping.getUnmappedRecords());
+
+        knownLayerService.handleCacheChange(new CSWCacheChangeEvent(updatedRecordList, new HashMap<String, Set<CSWRecord>>(),
+                Arrays.asList(newRecord), Arrays.asList(cswRecordList.get(2)), new ArrayList<CSWRecord>(), new HashSet<String>()));
+
+        grouping = knownLayerService.groupKnownLayerRecords();
+        List<KnownLayerAndRecords> groups = grouping.getKnownLayers();
+        Assert.assertEquals(2, groups.size());
+        assertListContentsSame(Arrays.asList(cswRecordList.get(0)), groups.get(0).getBelongingRecords());
+        assertListContentsSame(Arrays.asList(newRecord), groups.get(1).getBelongingRecords());
+        assertListContentsSame(Arrays.asList(), groups.get(1).getRelatedRecords());
+        assertListContentsSame(Arrays.asList(cswRecordList.get(1)), grouping.getUnmappedRecords());
+        assertListContentsSame(updatedRecordList, grouping.getOriginalRecordSet());
+    }
 }
@@ -0,0 +1,123 @@
+package org.auscope.portal.core.services.cloud;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+
+import org.apache.commons.io.IOUtils;
+import org.auscope.portal.core.test.PortalTestClass;
+import org.auscope.portal.core.util.FileIOUtil;
+import org.auscope.portal.core.util.ScratchSpace;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for BlobCache
+ */
+public class TestBlobCache extends PortalTestClass {
+
+    private File root;
+    private ScratchSpace space;
+    private BlobCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        root = Files.createTempDirectory("APT_BLOBCACHE_TEST").toFile();
+        space = new ScratchSpace(root, ScratchSpace.UNLIMITED, ScratchSpace.UNLIMITED, 0);
+        cache = new BlobCache(space, 100, 60);
+    }
+
+    @After
+    public void tearDown() {
+        space.close();
+        FileIOUtil.deleteFilesRecursive(root);
+    }
+
+    private File put(String key, String eTag, String content) throws Exception {
+        return cache.put(key, eTag, content.length(), new ByteArrayInputStream(content.getBytes()));
+    }
+
+    private String read(InputStream is) throws Exception {
+        try {
+            return IOUtils.toString(is);
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Cached blobs should only be served whilst their ETag matches
+     * @throws Exception
+     */
+    @Test
+    public void testETagValidation() throws Exception {
+        Assert.assertNotNull(put("job/a", "etag1", "0123456789"));
+        Assert.assertTrue(cache.contains("job/a"));
+        Assert.assertEquals("0123456789", read(cache.open("job/a", "etag1")));
+        Assert.assertEquals("345", read(cache.open("job/a", "etag1", 3, 3)));
+        Assert.assertEquals("789", read(cache.open("job/a", "etag1", 7, 100)));
+
+        Assert.assertNull(cache.open("job/a", "etag2"));
+        Assert.assertFalse(cache.contains("job/a"));
+        Assert.assertEquals(0, cache.getSize());
+        Assert.assertEquals(0, space.getFileCount());
+    }
+
+    /**
+     * Least recently used blobs should be evicted to stay within the limit and oversized blobs shouldn't be cached
+     * @throws Exception
+     */
+    @Test
+    public void testEviction() throws Exception {
+        put("job/a", "a", "aaaaaaaaaaaaaaaaaaaaaaaaaaaaaa"); //30 bytes
+        put("job/b", "b", "bbbbbbbbbbbbbbbbbbbbbbbbbbbbbb");
+        read(cache.open("job/a", "a")); //b is now least recently used
+        put("job/c", "c", "cccccccccccccccccccccccccccccccccccccccccccccccccc"); //50 bytes
+
+        Assert.assertTrue(cache.contains("job/a"));
+        Assert.assertFalse(cache.contains("job/b"));
+        Assert.assertTrue(cache.contains("job/c"));
+        Assert.assertEquals(80, cache.getSize());
+
+        InputStream oversized = new ByteArrayInputStream(new byte[61]);
+        Assert.assertNull(cache.put("job/d", "d", 61, oversized));
+        Assert.assertEquals(61, oversized.available());
+        Assert.assertEquals(2, cache.getCount());
+        Assert.assertEquals(2, space.getFileCount());
+    }
+
+    /**
+     * Blobs that don't match their reported length shouldn't be cached
+     * @throws Exception
+     */
+    @Test
+    public void testLengthMismatch() throws Exception {
+        try {
+            cache.put("job/a", "a", 5, new ByteArrayInputStream("0123456789".getBytes()));
+            Assert.fail("Expected a length mismatch");
+        } catch (IOException ex) {
+            Assert.assertFalse(cache.contains("job/a"));
+            Assert.assertEquals(0, space.getFileCount());
+        }
+    }
+
+    /**
+     * Invalidating a prefix should remove every blob beneath it
+     * @throws Exception
+     */
+    @Test
+    public void testInvalidatePrefix() throws Exception {
+        put("job1/a", "a", "a");
+        put("job1/b", "b", "b");
+        put("job10/a", "a", "a");
+
+        cache.invalidatePrefix("job1/");
+        Assert.assertEquals(1, cache.getCount());
+        Assert.assertTrue(cache.contains("job10/a"));
+        Assert.assertEquals(1, cache.getSize());
+    }
+}
@@ -1,14 +1,21 @@
 package org.auscope.portal.core.services.cloud;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
 import java.util.Arrays;
 import java.util.LinkedList;
 
+import org.apache.commons.io.IOUtils;
 import org.auscope.portal.core.cloud.CloudFileInformation;
 import org.auscope.portal.core.cloud.CloudJob;
+import org.auscope.portal.core.services.PortalServiceException;
 import org.auscope.portal.core.test.PortalTestClass;
+import org.auscope.portal.core.util.FileIOUtil;
+import org.auscope.portal.core.util.ScratchSpace;
+import org.jclouds.ContextBuilder;
 import org.jclouds.blobstore.BlobStore;
 import org.jclouds.blobstore.BlobStoreContext;
 import org.jclouds.blobstore.domain.Blob;
@@ -17,15 +24,25 @@ import org.jclouds.blobstore.domain.PageSet;
 import org.jclouds.blobstore.domain.StorageMetadata;
 import org.jclouds.blobstore.domain.internal.BlobMetadataImpl;
 import org.jclouds.blobstore.domain.internal.MutableBlobMetadataImpl;
+import org.jclouds.blobstore.options.GetOptions;
 import org.jclouds.blobstore.options.ListContainerOptions;
 import org.jclouds.io.MutableContentMetadata;
 import org.jclouds.io.Payload;
+import org.hamcrest.Description;
 import org.jmock.Expectations;
 import org.jmock.Mockery;
 import org.jmock.lib.legacy.ClassImposteriser;
+import org.junit.After;
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
+import org.junit.matchers.TypeSafeMatcher;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteSource;
+import com.google.common.io.Files;
 
 public class TestCloudStorageService extends PortalTestClass {
     private Mockery context = new Mockery() {{
@@ -40,8 +57,11 @@ public class TestCloudStorageService extends PortalTestClass {
     
     private final String jobStorageBaseKey = "job/base/key";
 
+    private File tempDir;
+
     @Before
     public void initJobObject() {
+        tempDir = Files.createTempDir();
         job = new CloudJob(13);
         job.setStorageBaseKey(jobStorageBaseKey);
         service = new CloudStorageService(mockBlobStoreContext);
@@ -64,13 +84,96 @@ public class TestCloudStorageService extends PortalTestClass {
               
               oneOf(mockBlob).getPayload();will(returnValue(mockPayload));
               
-              oneOf(mockPayload).getInput();will(returnValue(mockReturnedInputStream));
+              oneOf(mockPayload).openStream();will(returnValue(mockReturnedInputStream));
           }});
 
           InputStream actualInputStream = service.getJobFile(job, myKey);
           Assert.assertSame(mockReturnedInputStream, actualInputStream);
     }
 
+    /**
+     * Tests that job files are served from the blob cache whilst their ETag is unchanged
+     * @throws Exception
+     */
+    @Test
+    public void testGetJobFileCached() throws Exception {
+        final String myKey = "my/key";
+        final String fullKey = jobStorageBaseKey + "/" + myKey;
+        final BlobStore mockBlobStore = context.mock(BlobStore.class);
+        final Blob mockBlob1 = context.mock(Blob.class, "mockBlob1");
+        final Blob mockBlob2 = context.mock(Blob.class, "mockBlob2");
+        final Payload mockPayload1 = context.mock(Payload.class, "mockPayload1");
+        final Payload mockPayload2 = context.mock(Payload.class, "mockPayload2");
+        final MutableBlobMetadataImpl mockMetadata1 = context.mock(MutableBlobMetadataImpl.class, "mockMetadata1");
+        final MutableBlobMetadataImpl mockMetadata2 = context.mock(MutableBlobMetadataImpl.class, "mockMetadata2");
+        final MutableContentMetadata mockContentMetadata = context.mock(MutableContentMetadata.class);
+
+        context.checking(new Expectations() {{
+            allowing(mockBlobStoreContext).getBlobStore();will(returnValue(mockBlobStore));
+
+            exactly(2).of(mockBlobStore).getBlob(bucket, fullKey);
+            will(onConsecutiveCalls(returnValue(mockBlob1), returnValue(mockBlob2)));
+            exactly(3).of(mockBlobStore).blobMetadata(bucket, fullKey);
+            will(onConsecutiveCalls(returnValue(mockMetadata1), returnValue(mockMetadata1), returnValue(mockMetadata2)));
+
+            allowing(mockBlob1).getPayload();will(returnValue(mockPayload1));
+            oneOf(mockPayload1).openStream();will(returnValue(new ByteArrayInputStream("v1".getBytes())));
+            allowing(mockBlob1).getMetadata();will(returnValue(mockMetadata1));
+            allowing(mockBlob2).getPayload();will(returnValue(mockPayload2));
+            oneOf(mockPayload2).openStream();will(returnValue(new ByteArrayInputStream("v2".getBytes())));
+            allowing(mockBlob2).getMetadata();will(returnValue(mockMetadata2));
+
+            allowing(mockMetadata1).getETag();will(returnValue("etag1"));
+            allowing(mockMetadata1).getContentMetadata();will(returnValue(mockContentMetadata));
+            allowing(mockMetadata2).getETag();will(returnValue("etag2"));
+            allowing(mockMetadata2).getContentMetadata();will(returnValue(mockContentMetadata));
+            allowing(mockContentMetadata).getContentLength();will(returnValue(2L));
+        }});
+
+        ScratchSpace scratchSpace = new ScratchSpace(tempDir, ScratchSpace.UNLIMITED, ScratchSpace.UNLIMITED, 0);
+        try {
+            service.setBlobCache(new BlobCache(scratchSpace, 1000, 100));
+
+            Assert.assertEquals("v1", IOUtils.toString(service.getJobFile(job, myKey)));
+            Assert.assertEquals("v1", IOUtils.toString(service.getJobFile(job, myKey)));
+            Assert.assertEquals("1", IOUtils.toString(service.getJobFileTail(job, myKey, 1)));
+            Assert.assertEquals("v2", IOUtils.toString(service.getJobFile(job, myKey)));
+            Assert.assertEquals(1, service.getBlobCache().getCount());
+            context.assertIsSatisfied();
+        } finally {
+            scratchSpace.close();
+        }
+    }
+
+    /**
+     * Tests that ranged reads use the provider's ranged GET
+     * @throws Exception
+     */
+    @Test
+    public void testGetJobFileRange() throws Exception {
+        final String myKey = "my/key";
+        final String fullKey = jobStorageBaseKey + "/" + myKey;
+        final BlobStore mockBlobStore = context.mock(BlobStore.class);
+        final Blob mockBlob = context.mock(Blob.class);
+        final Payload mockPayload = context.mock(Payload.class);
+        final InputStream mockReturnedInputStream = context.mock(InputStream.class);
+
+        context.checking(new Expectations() {{
+            allowing(mockBlobStoreContext).getBlobStore();will(returnValue(mockBlobStore));
+
+            oneOf(mockBlobStore).getBlob(bucket, fullKey, new GetOptions().range(5, 14));will(returnValue(mockBlob));
+            oneOf(mockBlobStore).getBlob(bucket, fullKey, new GetOptions().tail(10));will(returnValue(mockBlob));
+
+            allowing(mockBlob).getPayload();will(returnValue(mockPayload));
+            allowing(mockPayload).openStream();will(returnValue(mockReturnedInputStream));
+        }});
+
+        Assert.assertSame(mockReturnedInputStream, service.getJobFile(job, myKey, 5, 10));
+        Assert.assertSame(mockReturnedInputStream, service.getJobFileTail(job, myKey, 10));
+        Assert.assertEquals(-1, service.getJobFileTail(job, myKey, 0).read());
+        context.assertIsSatisfied();
+    }
+
     /**
      * Tests that requests for listing files successfully call all dependencies
      * @throws Exception
@@ -145,23 +248,24 @@ public class TestCloudStorageService extends PortalTestClass {
         final PayloadBlobBuilder mockBuilder2 = context.mock(PayloadBlobBuilder.class, "mockBuilder2");
 
         final File[] mockFiles = new File[] {
-            context.mock(File.class, "mockFile1"),
-            context.mock(File.class, "mockFile2"),
+            createFile("file1Name", "file 1 content"),
+            createFile("file2Name", "file 2 content"),
         };
 
         context.checking(new Expectations() {{
             oneOf(mockBlobStoreContext).getBlobStore();will(returnValue(mockBlobStore));
             
-            allowing(mockFiles[0]).getName();will(returnValue("file1Name"));
-            allowing(mockFiles[1]).getName();will(returnValue("file2Name"));
-            
             oneOf(mockBlobStore).blobBuilder(jobStorageBaseKey + "/file1Name");will(returnValue(mockBuilder1));
             oneOf(mockBlobStore).blobBuilder(jobStorageBaseKey + "/file2Name");will(returnValue(mockBuilder2));
             
-            oneOf(mockBuilder1).payload(mockFiles[0]);will(returnValue(mockBuilder1));
+            oneOf(mockBuilder1).payload(with(aByteSourceOf(mockFiles[0])));will(returnValue(mockBuilder1));
+            oneOf(mockBuilder1).contentLength(mockFiles[0].length());will(returnValue(mockBuilder1));
+            oneOf(mockBuilder1).contentMD5(Files.hash(mockFiles[0], Hashing.md5()));will(returnValue(mockBuilder1));
             oneOf(mockBuilder1).build();will(returnValue(mockBlob1));
             
-            oneOf(mockBuilder2).payload(mockFiles[1]);will(returnValue(mockBuilder2));
+            oneOf(mockBuilder2).payload(with(aByteSourceOf(mockFiles[1])));will(returnValue(mockBuilder2));
+            oneOf(mockBuilder2).contentLength(mockFiles[1].length());will(returnValue(mockBuilder2));
+            oneOf(mockBuilder2).contentMD5(Files.hash(mockFiles[1], Hashing.md5()));will(returnValue(mockBuilder2));
             oneOf(mockBuilder2).build();will(returnValue(mockBlob2));
             
             oneOf(mockBlobStore).putBlob(bucket, mockBlob1);
@@ -170,6 +274,108 @@ public class TestCloudStorageService extends PortalTestClass {
 
         service.uploadJobFiles(job, mockFiles);
     }
+
+    /**
+     * Failed uploads (including MD5 mismatches) should be retried
+     * @throws Exception
+     */
+    @Test
+    public void testUploadJobFilesRetry() throws Exception {
+        final BlobStore mockBlobStore = context.mock(BlobStore.class);
+        final Blob mockBlob = context.mock(Blob.class);
+        final PayloadBlobBuilder mockBuilder = context.mock(PayloadBlobBuilder.class);
+        final File file = createFile("file1Name", "file 1 content");
+        final String md5 = Files.hash(file, Hashing.md5()).toString();
+
+        context.checking(new Expectations() {{
+            oneOf(mockBlobStoreContext).getBlobStore();will(returnValue(mockBlobStore));
+
+            exactly(3).of(mockBlobStore).blobBuilder(jobStorageBaseKey + "/file1Name");will(returnValue(mockBuilder));
+            exactly(3).of(mockBuilder).payload(with(aByteSourceOf(file)));will(returnValue(mockBuilder));
+            exactly(3).of(mockBuilder).contentLength(file.length());will(returnValue(mockBuilder));
+            exactly(3).of(mockBuilder).contentMD5(with(any(HashCode.class)));will(returnValue(mockBuilder));
+            exactly(3).of(mockBuilder).build();will(returnValue(mockBlob));
+
+            exactly(3).of(mockBlobStore).putBlob(bucket, mockBlob);will(onConsecutiveCalls(
+                    throwException(new RuntimeException("Connection reset")),
+                    returnValue("\"00000000000000000000000000000000\""),
+                    returnValue("\"" + md5 + "\"")));
+        }});
+
+        service.uploadJobFiles(job, new File[] {file});
+    }
+
+    /**
+     * Uploads that keep failing should fail the whole request
+     * @throws Exception
+     */
+    @Test(expected=PortalServiceException.class)
+    public void testUploadJobFilesRetryExhausted() throws Exception {
+        final BlobStore mockBlobStore = context.mock(BlobStore.class);
+        final Blob mockBlob = context.mock(Blob.class);
+        final PayloadBlobBuilder mockBuilder = context.mock(PayloadBlobBuilder.class);
+        final File file = createFile("file1Name", "file 1 content");
+
+        context.checking(new Expectations() {{
+            oneOf(mockBlobStoreContext).getBlobStore();will(returnValue(mockBlobStore));
+
+            exactly(2).of(mockBlobStore).blobBuilder(jobStorageBaseKey + "/file1Name");will(returnValue(mockBuilder));
+            exactly(2).of(mockBuilder).payload(with(aByteSourceOf(file)));will(returnValue(mockBuilder));
+            exactly(2).of(mockBuilder).contentLength(file.length());will(returnValue(mockBuilder));
+            exactly(2).of(mockBuilder).contentMD5(with(any(HashCode.class)));will(returnValue(mockBuilder));
+            exactly(2).of(mockBuilder).build();will(returnValue(mockBlob));
+            exactly(2).of(mockBlobStore).putBlob(bucket, mockBlob);will(throwException(new RuntimeException("Connection reset")));
+        }});
+
+        service.setUploadRetries(1);
+        service.uploadJobFiles(job, new File[] {file});
+    }
+
+    /**
+     * Tests concurrent uploads (including multipart uploads) against jclouds' transient blob store
+     * @throws Exception
+     */
+    @Test
+    public void testUploadJobFilesTransient() throws Exception {
+        //jclouds 1.8 requires JAXB which newer JREs no longer bundle
+        try {
+            Class.forName("javax.xml.bind.JAXBException");
+        } catch (ClassNotFoundException ex) {
+            Assume.assumeNoException(ex);
+        }
+
+        BlobStoreContext transientContext = ContextBuilder.newBuilder("transient").build(BlobStoreContext.class);
+        try {
+            transientContext.getBlobStore().createContainerInLocation(null, bucket);
+            CloudStorageService transientService = new CloudStorageService(transientContext);
+            transientService.setBucket(bucket);
+            transientService.setMultipartThreshold(1024);
+            transientService.setUploadParallelism(3);
+
+            File[] files = new File[8];
+            StringBuilder large = new StringBuilder();
+            for (int i = 0; i < 1000; i++) {
+                large.append("large file line " + i + "\n");
+            }
+            for (int i = 0; i < files.length - 1; i++) {
+                files[i] = createFile("small" + i, "small file " + i);
+            }
+            files[files.length - 1] = createFile("large", large.toString());
+
+            transientService.uploadJobFiles(job, files);
+
+            for (File file : files) {
+                InputStream is = transientService.getJobFile(job, file.getName());
+                try {
+                    Assert.assertArrayEquals(Files.toByteArray(file), IOUtils.toByteArray(is));
+                } finally {
+                    is.close();
+                }
+            }
+        } finally {
+            transientContext.close();
+        }
+    }
     
     /**
      * Tests that requests for deleting files successfully call all dependencies
@@ -186,9 +392,162 @@ public class TestCloudStorageService extends PortalTestClass {
 
         service.deleteJobFiles(job);
     }
+
+    /**
+     * Tests that job file listings are cached until the job's files are deleted
+     * @throws Exception
+     */
+    @Test
+    public void testListJobFilesCached() throws Exception {
+        final BlobStore mockBlobStore = context.mock(BlobStore.class);
+        final PageSet<? extends StorageMetadata> mockPageSet = context.mock(PageSet.class);
+
+        context.checking(new Expectations() {{
+            allowing(mockBlobStoreContext).getBlobStore();will(returnValue(mockBlobStore));
+            exactly(2).of(mockBlobStore).list(with(equal(bucket)), with(any(ListContainerOptions.class)));will(returnValue(mockPageSet));
+            allowing(mockPageSet).getNextMarker();will(returnValue(null));
+            allowing(mockPageSet).iterator();will(returnValue(new LinkedList<StorageMetadata>().iterator()));
+            oneOf(mockBlobStore).deleteDirectory(bucket, jobStorageBaseKey);
+        }});
+
+        Assert.assertEquals(0, service.listJobFiles(job).length);
+        Assert.assertEquals(0, service.listJobFiles(job).length);
+        service.deleteJobFiles(job);
+        Assert.assertEquals(0, service.listJobFiles(job).length);
+        context.assertIsSatisfied();
+    }
+
+    /**
+     * Tests that concurrent listings of the same job share a single request
+     * @throws Exception
+     */
+    @Test
+    public void testListJobFilesCoalesced() throws Exception {
+        final BlobStore mockBlobStore = context.mock(BlobStore.class);
+        final PageSet<? extends StorageMetadata> mockPageSet = context.mock(PageSet.class);
+
+        context.checking(new Expectations() {{
+            allowing(mockBlobStoreContext).getBlobStore();will(returnValue(mockBlobStore));
+            oneOf(mockBlobStore).list(with(equal(bucket)), with(any(ListContainerOptions.class)));will(delayReturnValue(300, mockPageSet));
+            allowing(mockPageSet).getNextMarker();will(returnValue(null));
+            allowing(mockPageSet).iterator();will(returnValue(new LinkedList<StorageMetadata>().iterator()));
+        }});
+
+        final CloudFileInformation[][] results = new CloudFileInformation[2][];
+        Thread[] threads = new Thread[results.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        results[index] = service.listJobFiles(job);
+                    } catch (PortalServiceException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        Assert.assertNotNull(results[0]);
+        Assert.assertNotNull(results[1]);
+        context.assertIsSatisfied();
+    }
+
+    /**
+     * Tests that modifying a returned listing doesn't modify the cached listing
+     * @throws Exception
+     */
+    @Test
+    public void testListJobFilesCopied() throws Exception {
+        final BlobStore mockBlobStore = context.mock(BlobStore.class);
+        final BlobMetadataImpl mockStorageMetadata = context.mock(BlobMetadataImpl.class);
+        final MutableContentMetadata mockContentMetadata = context.mock(MutableContentMetadata.class);
+        final PageSet<? extends StorageMetadata> mockPageSet = context.mock(PageSet.class);
+
+        context.checking(new Expectations() {{
+            allowing(mockBlobStoreContext).getBlobStore();will(returnValue(mockBlobStore));
+            oneOf(mockBlobStore).list(with(equal(bucket)), with(any(ListContainerOptions.class)));will(returnValue(mockPageSet));
+            allowing(mockPageSet).getNextMarker();will(returnValue(null));
+            allowing(mockPageSet).iterator();will(returnValue(Arrays.asList(mockStorageMetadata).iterator()));
+            allowing(mockStorageMetadata).getName();will(returnValue("key/obj1"));
+            allowing(mockStorageMetadata).getUri();will(returnValue(new URI("bucket1")));
+            allowing(mockStorageMetadata).getContentMetadata();will(returnValue(mockContentMetadata));
+            allowing(mockContentMetadata).getContentLength();will(returnValue(1234L));
+        }});
+
+        CloudFileInformation[] first = service.listJobFiles(job);
+        String publicUrl = first[0].getPublicUrl();
+        first[0].setCloudKey("modified");
+        first[0].setPublicUrl("modified");
+
+        CloudFileInformation[] second = service.listJobFiles(job);
+        Assert.assertEquals("key/obj1", second[0].getCloudKey());
+        Assert.assertEquals(publicUrl, second[0].getPublicUrl());
+        Assert.assertEquals(1234L, second[0].getSize());
+        context.assertIsSatisfied();
+    }
+
+    /**
+     * Tests that a TTL of 0 disables listing caching
+     * @throws Exception
+     */
+    @Test
+    public void testListJobFilesUncached() throws Exception {
+        final BlobStore mockBlobStore = context.mock(BlobStore.class);
+        final PageSet<? extends StorageMetadata> mockPageSet = context.mock(PageSet.class);
+
+        context.checking(new Expectations() {{
+            allowing(mockBlobStoreContext).getBlobStore();will(returnValue(mockBlobStore));
+            exactly(2).of(mockBlobStore).list(with(equal(bucket)), with(any(ListContainerOptions.class)));will(returnValue(mockPageSet));
+            allowing(mockPageSet).getNextMarker();will(returnValue(null));
+            allowing(mockPageSet).iterator();will(returnValue(new LinkedList<StorageMetadata>().iterator()));
+        }});
+
+        service.setListingCacheTtl(0);
+        service.listJobFiles(job);
+        service.listJobFiles(job);
+        context.assertIsSatisfied();
+    }
     
     
 
+    @After
+    public void cleanup() {
+        FileIOUtil.deleteFilesRecursive(tempDir);
+    }
+
+    private File createFile(String name, String content) throws IOException {
+        File f = new File(tempDir, name);
+        Files.write(content.getBytes(), f);
+        return f;
+    }
+
+    /**
+     * Matches a ByteSource with the same content as file
+     */
+    private static TypeSafeMatcher<ByteSource> aByteSourceOf(final File file) {
+        return new TypeSafeMatcher<ByteSource>() {
+            @Override
+            public boolean matchesSafely(ByteSource source) {
+                try {
+                    return source.contentEquals(Files.asByteSource(file));
+                } catch (IOException ex) {
+                    return false;
+                }
+            }
+
+            @Override
+            public void describeTo(Description description) {
+                description.appendText(String.format("a ByteSource with the content of '%1$s'", file.getName()));
+            }
+        };
+    }
+
     /**
      * Tests that no exceptions occur during base key generation edge cases
      * @throws Exception
@@ -6,9 +6,11 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.io.IOUtils;
@@ -332,6 +334,10 @@ public class TestFileStagingService extends PortalTestClass {
             oneOf(mockResponse).getOutputStream();will(returnValue(outStream));
             oneOf(mockResponse).setContentType("application/octet-stream");
             allowing(mockResponse).setHeader("Content-Disposition", "attachment; filename=\""+fileName+"\"");
+            oneOf(mockResponse).setHeader("Content-Length", Integer.toString(data.length));
+            oneOf(mockResponse).setHeader("Accept-Ranges", "bytes");
+            oneOf(mockResponse).setHeader(with(equal("ETag")), with(any(String.class)));
+            oneOf(mockResponse).setDateHeader(with(equal("Last-Modified")), with(any(Long.class)));
          }});
 
         //'Download' the file
@@ -344,6 +350,46 @@ public class TestFileStagingService extends PortalTestClass {
         assertStagedDirectory(job, false);
     }
 
+    /**
+     * Tests that a ranged file download only returns the requested bytes
+     * @throws Exception
+     */
+    @Test
+    public void testFileDownloadRange() throws Exception {
+        final ReadableServletOutputStream outStream = new ReadableServletOutputStream();
+        final byte[] data = new byte[] {1,2,3,4,5,6,7,8,8,5,8,9,9,9,91,1,1};
+        final HttpServletRequest mockRequest = context.mock(HttpServletRequest.class);
+        final HttpServletResponse mockResponse = context.mock(HttpServletResponse.class);
+        final String fileName = "myFileName";
+
+        service.generateStageInDirectory(job);
+        OutputStream fos = service.writeFile(job, fileName);
+        fos.write(data);
+        fos.close();
+
+        context.checking(new Expectations() {{
+            allowing(mockRequest).getHeader("Range");will(returnValue("bytes=10-"));
+            allowing(mockRequest).getHeader("If-Range");will(returnValue(null));
+            allowing(mockRequest).getHeader("If-None-Match");will(returnValue(null));
+            allowing(mockRequest).getAttribute(with(any(String.class)));will(returnValue(null));
+
+            oneOf(mockResponse).getOutputStream();will(returnValue(outStream));
+            oneOf(mockResponse).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            oneOf(mockResponse).setContentType("application/octet-stream");
+            oneOf(mockResponse).setHeader("Content-Range", "bytes 10-16/17");
+            oneOf(mockResponse).setHeader("Content-Length", "7");
+            allowing(mockResponse).setHeader(with(any(String.class)), with(any(String.class)));
+            allowing(mockResponse).setDateHeader(with(any(String.class)), with(any(Long.class)));
+         }});
+
+        service.handleFileDownload(job, fileName, mockRequest, mockResponse);
+
+        Assert.assertArrayEquals(Arrays.copyOfRange(data, 10, data.length), outStream.getDataWritten());
+
+        service.deleteStageInDirectory(job);
+        assertStagedDirectory(job, false);
+    }
+
     /**
      * Tests that creating and renaming files in a job staging area works
      * @throws IOException
@@ -1,11 +1,22 @@
 package org.auscope.portal.core.services.cloud.monitor;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.auscope.portal.core.cloud.CloudJob;
 import org.auscope.portal.core.test.PortalTestClass;
 import org.jmock.Expectations;
+import org.jmock.Sequence;
+import org.junit.After;
+import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -13,6 +24,23 @@ public class TestJobStatusMonitor extends PortalTestClass {
     private JobStatusMonitor monitor;
     private JobStatusReader mockJobStatusReader;
     private JobStatusChangeListener[] mockJobStatusChangeListeners;
+    private FakeClock clock;
+    
+    /**
+     * A clock that only moves when advanced
+     */
+    private static class FakeClock implements JobStatusMonitor.Clock {
+        private final AtomicLong now = new AtomicLong(1000000000000L);
+        
+        @Override
+        public long currentTimeMillis() {
+            return now.get();
+        }
+        
+        public void advance(long millis) {
+            now.addAndGet(millis);
+        }
+    }
     
     @Before
     public void init() {
@@ -22,6 +50,14 @@ public class TestJobStatusMonitor extends PortalTestClass {
         
         //Component under test
         monitor = new JobStatusMonitor(mockJobStatusReader, mockJobStatusChangeListeners);
+        monitor.setPollThreads(1); //Mock objects aren't thread safe
+        clock = new FakeClock();
+        monitor.setClock(clock);
+    }
+    
+    @After
+    public void tearDown() {
+        monitor.shutdown();
     }
     
     /**
@@ -81,4 +117,191 @@ public class TestJobStatusMonitor extends PortalTestClass {
         
         monitor.statusUpdate(jobs);
     }
+    
+    /**
+     * A thread safe reader that reports "new" + the job ID (or fails for the failId job). Every read waits until
+     * all parties are reading at once, after which the clock is advanced by delay.
+     */
+    private static class BarrierReader implements JobStatusReader {
+        private final CyclicBarrier barrier;
+        private final Integer failId;
+        private final Throwable failure;
+        
+        public BarrierReader(int parties, final FakeClock clock, final long delay, Integer failId, Throwable failure) {
+            this.barrier = new CyclicBarrier(parties, new Runnable() {
+                @Override
+                public void run() {
+                    clock.advance(delay);
+                }
+            });
+            this.failId = failId;
+            this.failure = failure;
+        }
+        
+        @Override
+        public String getJobStatus(CloudJob cloudJob) {
+            try {
+                barrier.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException | BrokenBarrierException | TimeoutException e) {
+                throw new IllegalStateException("Jobs weren't read concurrently", e);
+            }
+            
+            if (cloudJob.getId().equals(failId)) {
+                if (failure instanceof Error) {
+                    throw (Error) failure;
+                }
+                throw (RuntimeException) failure;
+            }
+            return "new" + cloudJob.getId();
+        }
+    }
+    
+    private List<CloudJob> createJobs(int count) {
+        List<CloudJob> jobs = new ArrayList<CloudJob>();
+        for (int i = 1; i <= count; i++) {
+            CloudJob job = new CloudJob(i);
+            job.setStatus("old");
+            jobs.add(job);
+        }
+        return jobs;
+    }
+    
+    /**
+     * Tests that collections of jobs are polled concurrently whilst listeners are notified in order
+     * and failures are aggregated
+     * @throws Exception
+     */
+    @Test
+    public void testConcurrentPolling() throws Exception {
+        final List<CloudJob> jobs = createJobs(4);
+        BarrierReader reader = new BarrierReader(4, clock, 200, 3, new IllegalStateException("Failed to read job 3"));
+        monitor = new JobStatusMonitor(reader, mockJobStatusChangeListeners);
+        monitor.setPollThreads(4);
+        monitor.setClock(clock);
+        
+        final Sequence sequence = context.sequence("listeners");
+        context.checking(new Expectations() {{
+            oneOf(mockJobStatusChangeListeners[0]).handleStatusChange(jobs.get(0), "new1", "old");inSequence(sequence);
+            oneOf(mockJobStatusChangeListeners[0]).handleStatusChange(jobs.get(1), "new2", "old");inSequence(sequence);
+            oneOf(mockJobStatusChangeListeners[0]).handleStatusChange(jobs.get(3), "new4", "old");inSequence(sequence);
+        }});
+        
+        try {
+            monitor.statusUpdate(jobs);
+            Assert.fail("Expected a JobStatusException");
+        } catch (JobStatusException ex) {
+            Assert.assertEquals(Arrays.asList(jobs.get(2)), ex.getCloudJobs());
+            Assert.assertEquals(1, ex.getExceptions().size());
+        }
+        
+        JobStatusSweepMetrics metrics = monitor.getLastSweepMetrics();
+        Assert.assertEquals(200, metrics.getElapsedMillis());
+        Assert.assertEquals(4, metrics.getPolled());
+        Assert.assertEquals(4, metrics.getRequests());
+        Assert.assertEquals(3, metrics.getChanged());
+        Assert.assertEquals(1, metrics.getFailed());
+        Assert.assertEquals(200, metrics.getSlowestRequestMillis());
+    }
+    
+    /**
+     * Tests that an Error raised by the reader is recorded as a failure when polling concurrently
+     * @throws Exception
+     */
+    @Test
+    public void testConcurrentPollingError() throws Exception {
+        final List<CloudJob> jobs = createJobs(2);
+        final Error error = new AssertionError("Failed to read job 2");
+        monitor = new JobStatusMonitor(new BarrierReader(2, clock, 10, 2, error), mockJobStatusChangeListeners);
+        monitor.setPollThreads(2);
+        monitor.setClock(clock);
+        
+        context.checking(new Expectations() {{
+            oneOf(mockJobStatusChangeListeners[0]).handleStatusChange(jobs.get(0), "new1", "old");
+        }});
+        
+        try {
+            monitor.statusUpdate(jobs);
+            Assert.fail("Expected a JobStatusException");
+        } catch (JobStatusException ex) {
+            Assert.assertEquals(Arrays.asList(jobs.get(1)), ex.getCloudJobs());
+            Assert.assertSame(error, ex.getExceptions().get(0).getCause());
+        }
+        
+        Assert.assertEquals(1, monitor.getLastSweepMetrics().getChanged());
+        Assert.assertEquals(1, monitor.getLastSweepMetrics().getFailed());
+    }
+    
+    /**
+     * Tests that a BatchJobStatusReader is passed jobs in batches
+     * @throws Exception
+     */
+    @Test
+    public void testBatchPolling() throws Exception {
+        final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+        BatchJobStatusReader reader = new BatchJobStatusReader() {
+            @Override
+            public String getJobStatus(CloudJob cloudJob) {
+                throw new UnsupportedOperationException();
+            }
+            
+            @Override
+            public List<String> getJobStatuses(List<CloudJob> cloudJobs) {
+                batchSizes.add(cloudJobs.size());
+                List<String> statuses = new ArrayList<String>();
+                for (CloudJob job : cloudJobs) {
+                    statuses.add(job.getStatus());
+                }
+                return statuses;
+            }
+        };
+        monitor = new JobStatusMonitor(reader, mockJobStatusChangeListeners);
+        monitor.setBatchSize(2);
+        
+        monitor.statusUpdate(Arrays.asList(new CloudJob(1), new CloudJob(2), new CloudJob(3)));
+        
+        Collections.sort(batchSizes);
+        Assert.assertEquals(Arrays.asList(1, 2), batchSizes);
+        Assert.assertEquals(2, monitor.getLastSweepMetrics().getRequests());
+        Assert.assertEquals(3, monitor.getLastSweepMetrics().getPolled());
+    }
+    
+    /**
+     * Tests that statusPoll backs off for stable jobs but keeps polling recently submitted jobs
+     * @throws Exception
+     */
+    @Test
+    public void testAdaptivePolling() throws Exception {
+        final CloudJob recentJob = new CloudJob(1);
+        recentJob.setStatus("s1");
+        recentJob.setSubmitDate(new Date(clock.currentTimeMillis()));
+        
+        final CloudJob oldJob = new CloudJob(2);
+        oldJob.setStatus("s2");
+        oldJob.setSubmitDate(new Date(clock.currentTimeMillis() - 24 * 60 * 60 * 1000L));
+        
+        final List<CloudJob> jobs = Arrays.asList(recentJob, oldJob);
+        
+        context.checking(new Expectations() {{
+            exactly(3).of(mockJobStatusReader).getJobStatus(recentJob);will(returnValue("s1"));
+            exactly(2).of(mockJobStatusReader).getJobStatus(oldJob);will(returnValue("s2"));
+        }});
+        
+        monitor.setMinPollInterval(200);
+        monitor.setMaxPollInterval(10000);
+        monitor.setRecentJobAge(60 * 60 * 1000L);
+        
+        monitor.statusPoll(jobs); //Both unscheduled
+        monitor.statusPoll(jobs); //Neither due
+        Assert.assertEquals(0, monitor.getLastSweepMetrics().getPolled());
+        Assert.assertEquals(2, monitor.getLastSweepMetrics().getSkipped());
+        
+        clock.advance(250);
+        monitor.statusPoll(jobs); //Both due, oldJob's interval doubles
+        Assert.assertEquals(2, monitor.getLastSweepMetrics().getPolled());
+        
+        clock.advance(250);
+        monitor.statusPoll(jobs); //Only recentJob due
+        Assert.assertEquals(1, monitor.getLastSweepMetrics().getPolled());
+        Assert.assertEquals(1, monitor.getLastSweepMetrics().getSkipped());
+    }
 }
@@ -0,0 +1,68 @@
+package org.auscope.portal.core.services.csw;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.auscope.portal.core.services.responses.csw.CSWRecord;
+import org.auscope.portal.core.test.PortalTestClass;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for CSWRecordComparator
+ */
+public class TestCSWRecordComparator extends PortalTestClass {
+
+    private static CSWRecord makeRecord(String id, String name, Date date) {
+        CSWRecord record = new CSWRecord(id);
+        record.setServiceName(name);
+        record.setDate(date);
+        return record;
+    }
+
+    private static List<CSWRecord> sort(List<CSWRecord> records, CSWRecordComparator comparator) {
+        List<CSWRecord> sorted = new ArrayList<CSWRecord>(records);
+        Collections.sort(sorted, comparator);
+        return sorted;
+    }
+
+    /**
+     * Tests sorting by name is case insensitive, orders nulls last and falls back to the file identifier
+     */
+    @Test
+    public void testSortByName() {
+        CSWRecord r1 = makeRecord("id1", "beta", null);
+        CSWRecord r2 = makeRecord("id2", "Alpha", null);
+        CSWRecord r3 = makeRecord("id3", null, null);
+        CSWRecord r4 = makeRecord("id4", "alpha", null);
+        List<CSWRecord> records = Arrays.asList(r1, r2, r3, r4);
+
+        Assert.assertEquals(Arrays.asList(r2, r4, r1, r3), sort(records, CSWRecordComparator.fromFieldName("name", true)));
+        Assert.assertEquals(Arrays.asList(r1, r4, r2, r3), sort(records, CSWRecordComparator.fromFieldName("name", false)));
+    }
+
+    /**
+     * Tests sorting by date
+     */
+    @Test
+    public void testSortByDate() {
+        CSWRecord r1 = makeRecord("id1", null, new Date(2000L));
+        CSWRecord r2 = makeRecord("id2", null, null);
+        CSWRecord r3 = makeRecord("id3", null, new Date(1000L));
+        List<CSWRecord> records = Arrays.asList(r1, r2, r3);
+
+        Assert.assertEquals(Arrays.asList(r3, r1, r2), sort(records, new CSWRecordComparator(CSWRecordComparator.SortField.date, true)));
+        Assert.assertEquals(Arrays.asList(r1, r3, r2), sort(records, new CSWRecordComparator(CSWRecordComparator.SortField.date, false)));
+    }
+
+    /**
+     * Tests that unsupported fields are rejected
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsupportedField() {
+        CSWRecordComparator.fromFieldName("constraints", true);
+    }
+}
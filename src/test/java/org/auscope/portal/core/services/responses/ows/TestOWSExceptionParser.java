@@ -1,8 +1,13 @@
 package org.auscope.portal.core.services.responses.ows;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import org.apache.commons.io.IOUtils;
 import org.auscope.portal.core.test.PortalTestClass;
 import org.auscope.portal.core.test.ResourceUtil;
 import org.auscope.portal.core.util.DOMUtil;
+import org.junit.Assert;
 import org.junit.Test;
 import org.w3c.dom.Document;
 
@@ -16,6 +21,10 @@ public class TestOWSExceptionParser extends PortalTestClass {
         //Test both the string and document versions
         OWSExceptionParser.checkForExceptionResponse(xmlString);
         OWSExceptionParser.checkForExceptionResponse(doc);
+
+        //The stream version must hand back the entire, unconsumed response
+        InputStream checked = OWSExceptionParser.checkForExceptionResponse(new ByteArrayInputStream(xmlString.getBytes()));
+        Assert.assertEquals(xmlString, IOUtils.toString(checked));
     }
 
     @Test(expected=OWSException.class)
@@ -30,4 +39,29 @@ public class TestOWSExceptionParser extends PortalTestClass {
         check("org/auscope/portal/core/test/responses/wfs/GetWFSFeatureCount.xml");
         check("org/auscope/portal/core/test/responses/wfs/EmptyWFSResponse.xml");
     }
+
+    @Test(expected=OWSException.class)
+    public void testThrowExceptionStream() throws Exception {
+        final String xmlString = ResourceUtil.loadResourceAsString("org/auscope/portal/core/test/responses/ows/OWSExceptionSample1.xml");
+        OWSExceptionParser.checkForExceptionResponse(new ByteArrayInputStream(xmlString.getBytes()));
+    }
+
+    @Test
+    public void testIsExceptionResponse() throws Exception {
+        Assert.assertTrue(OWSExceptionParser.isExceptionResponse(ResourceUtil.loadResourceAsString("org/auscope/portal/core/test/responses/ows/OWSExceptionSample1.xml")));
+        Assert.assertFalse(OWSExceptionParser.isExceptionResponse(ResourceUtil.loadResourceAsString("org/auscope/portal/core/test/responses/wfs/EmptyWFSResponse.xml")));
+    }
+
+    /**
+     * Only the root element is sniffed so content after the root start element is never parsed
+     */
+    @Test
+    public void testOnlyRootIsSniffed() throws Exception {
+        OWSExceptionParser.checkForExceptionResponse("<?xml version=\"1.0\"?><root><unclosed></root>");
+    }
+
+    @Test(expected=OWSException.class)
+    public void testNotXml() throws Exception {
+        OWSExceptionParser.checkForExceptionResponse("this is not xml");
+    }
 }
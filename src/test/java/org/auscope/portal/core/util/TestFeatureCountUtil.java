@@ -0,0 +1,71 @@
+package org.auscope.portal.core.util;
+
+import java.io.ByteArrayInputStream;
+
+import org.auscope.portal.core.services.responses.ows.OWSException;
+import org.auscope.portal.core.test.PortalTestClass;
+import org.auscope.portal.core.test.ResourceUtil;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for FeatureCountUtil
+ */
+public class TestFeatureCountUtil extends PortalTestClass {
+
+    private int count(String xml) throws Exception {
+        return FeatureCountUtil.getNumberOfFeatures(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+    }
+
+    /**
+     * The numberOfFeatures attribute should be used when it exists
+     */
+    @Test
+    public void testNumberOfFeaturesAttribute() throws Exception {
+        Assert.assertEquals(161, FeatureCountUtil.getNumberOfFeatures(ResourceUtil.loadResourceAsStream("org/auscope/portal/core/test/responses/wfs/GetWFSFeatureCount.xml")));
+        Assert.assertEquals(8, FeatureCountUtil.getNumberOfFeatures(ResourceUtil.loadResourceAsStream("org/auscope/portal/core/test/responses/wfs/GetUndefinedFeatureSet.xml")));
+    }
+
+    /**
+     * Only the root element should be read when numberOfFeatures is available
+     */
+    @Test
+    public void testRootOnlyRead() throws Exception {
+        Assert.assertEquals(3, count("<wfs:FeatureCollection xmlns:wfs=\"http://www.opengis.net/wfs\" numberOfFeatures=\"3\"><unclosed>"));
+    }
+
+    /**
+     * Feature members should be counted when numberOfFeatures is missing
+     */
+    @Test
+    public void testFeatureMemberFallback() throws Exception {
+        String commodityResponse = ResourceUtil.loadResourceAsString("org/auscope/portal/core/test/responses/wfs/commodityGetFeatureResponse.xml");
+        Assert.assertEquals(2, count(commodityResponse.replace("numberOfFeatures=\"2\"", "")));
+
+        Assert.assertEquals(0, FeatureCountUtil.getNumberOfFeatures(ResourceUtil.loadResourceAsStream("org/auscope/portal/core/test/responses/wfs/EmptyWFSResponse.xml")));
+
+        Assert.assertEquals(2, count("<wfs:FeatureCollection xmlns:wfs=\"http://www.opengis.net/wfs\" xmlns:gml=\"http://www.opengis.net/gml\">" +
+                "<gml:featureMembers><a><gml:featureMember/></a><b/></gml:featureMembers></wfs:FeatureCollection>"));
+        Assert.assertEquals(1, count("<wfs:FeatureCollection xmlns:wfs=\"http://www.opengis.net/wfs/2.0\" numberMatched=\"unknown\">" +
+                "<wfs:member><a/></wfs:member></wfs:FeatureCollection>"));
+    }
+
+    /**
+     * Hits responses should only be accepted when they contain no features
+     */
+    @Test
+    public void testHitsCount() throws Exception {
+        Assert.assertEquals(Integer.valueOf(161), FeatureCountUtil.getHitsCount(new ByteArrayInputStream("<wfs:FeatureCollection xmlns:wfs=\"http://www.opengis.net/wfs\" numberOfFeatures=\"161\"/>".getBytes("UTF-8"))));
+        Assert.assertEquals(Integer.valueOf(20), FeatureCountUtil.getHitsCount(new ByteArrayInputStream("<wfs:FeatureCollection xmlns:wfs=\"http://www.opengis.net/wfs/2.0\" numberMatched=\"20\" numberReturned=\"0\"></wfs:FeatureCollection>".getBytes("UTF-8"))));
+
+        //Services ignoring resultType=hits
+        Assert.assertNull(FeatureCountUtil.getHitsCount(ResourceUtil.loadResourceAsStream("org/auscope/portal/core/test/responses/wfs/GetUndefinedFeatureSet.xml")));
+        Assert.assertNull(FeatureCountUtil.getHitsCount(new ByteArrayInputStream("<wfs:FeatureCollection xmlns:wfs=\"http://www.opengis.net/wfs/2.0\" numberMatched=\"unknown\"/>".getBytes("UTF-8"))));
+        Assert.assertNull(FeatureCountUtil.getHitsCount(new ByteArrayInputStream("<wfs:FeatureCollection xmlns:wfs=\"http://www.opengis.net/wfs\"/>".getBytes("UTF-8"))));
+    }
+
+    @Test(expected=OWSException.class)
+    public void testOWSException() throws Exception {
+        FeatureCountUtil.getNumberOfFeatures(ResourceUtil.loadResourceAsStream("org/auscope/portal/core/test/responses/ows/OWSExceptionSample1.xml"));
+    }
+}
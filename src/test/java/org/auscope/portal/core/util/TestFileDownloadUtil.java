@@ -0,0 +1,193 @@
+package org.auscope.portal.core.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.auscope.portal.core.test.PortalTestClass;
+import org.auscope.portal.core.test.jmock.ReadableServletOutputStream;
+import org.jmock.Expectations;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for FileDownloadUtil
+ */
+public class TestFileDownloadUtil extends PortalTestClass {
+
+    private HttpServletRequest mockRequest = context.mock(HttpServletRequest.class);
+    private HttpServletResponse mockResponse = context.mock(HttpServletResponse.class);
+    private ReadableServletOutputStream outStream;
+    private File file;
+    private byte[] data;
+
+    @Before
+    public void setUp() throws Exception {
+        data = new byte[100];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+
+        file = File.createTempFile("TestFileDownloadUtil", ".dat");
+        OutputStream os = new FileOutputStream(file);
+        os.write(data);
+        os.close();
+
+        outStream = new ReadableServletOutputStream();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private void expectRequestHeaders(final String range, final String ifRange, final String ifNoneMatch) {
+        context.checking(new Expectations() {{
+            allowing(mockRequest).getHeader("Range");will(returnValue(range));
+            allowing(mockRequest).getHeader("If-Range");will(returnValue(ifRange));
+            allowing(mockRequest).getHeader("If-None-Match");will(returnValue(ifNoneMatch));
+            allowing(mockRequest).getAttribute(with(any(String.class)));will(returnValue(null));
+
+            oneOf(mockResponse).setHeader("Content-Disposition", "attachment; filename=\"file.dat\"");
+            oneOf(mockResponse).setHeader("Accept-Ranges", "bytes");
+            oneOf(mockResponse).setHeader("ETag", FileDownloadUtil.createETag(file));
+            oneOf(mockResponse).setDateHeader("Last-Modified", file.lastModified());
+        }});
+    }
+
+    /**
+     * A request without a Range header gets the entire file
+     * @throws Exception
+     */
+    @Test
+    public void testFullDownload() throws Exception {
+        expectRequestHeaders(null, null, null);
+        context.checking(new Expectations() {{
+            oneOf(mockResponse).setContentType("text/plain");
+            oneOf(mockResponse).setHeader("Content-Length", "100");
+            oneOf(mockResponse).getOutputStream();will(returnValue(outStream));
+        }});
+
+        FileDownloadUtil.writeFile(file, "file.dat", "text/plain", mockRequest, mockResponse);
+        Assert.assertArrayEquals(data, outStream.getDataWritten());
+    }
+
+    /**
+     * A single satisfiable range returns a 206 with just that range
+     * @throws Exception
+     */
+    @Test
+    public void testSingleRange() throws Exception {
+        expectRequestHeaders("bytes=10-19", null, null);
+        context.checking(new Expectations() {{
+            oneOf(mockResponse).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            oneOf(mockResponse).setContentType("text/plain");
+            oneOf(mockResponse).setHeader("Content-Range", "bytes 10-19/100");
+            oneOf(mockResponse).setHeader("Content-Length", "10");
+            oneOf(mockResponse).getOutputStream();will(returnValue(outStream));
+        }});
+
+        FileDownloadUtil.writeFile(file, "file.dat", "text/plain", mockRequest, mockResponse);
+        Assert.assertArrayEquals(Arrays.copyOfRange(data, 10, 20), outStream.getDataWritten());
+    }
+
+    /**
+     * Multiple ranges are returned as a multipart/byteranges response whose Content-Length is exact
+     * @throws Exception
+     */
+    @Test
+    public void testMultipleRanges() throws Exception {
+        expectRequestHeaders("bytes=0-1,-2", null, null);
+        context.checking(new Expectations() {{
+            oneOf(mockResponse).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            oneOf(mockResponse).setContentType(with(any(String.class)));
+            oneOf(mockResponse).setHeader(with(equal("Content-Length")), with(any(String.class)));
+            oneOf(mockResponse).getOutputStream();will(returnValue(outStream));
+        }});
+
+        FileDownloadUtil.writeFile(file, "file.dat", "text/plain", mockRequest, mockResponse);
+
+        String body = new String(outStream.getDataWritten(), "ISO-8859-1");
+        Assert.assertTrue(body.contains("Content-Range: bytes 0-1/100\r\n\r\n" + new String(new byte[] {0, 1}, "ISO-8859-1")));
+        Assert.assertTrue(body.contains("Content-Range: bytes 98-99/100\r\n\r\n" + new String(new byte[] {98, 99}, "ISO-8859-1")));
+        Assert.assertTrue(body.trim().endsWith("--"));
+    }
+
+    /**
+     * A range starting beyond the end of the file is unsatisfiable
+     * @throws Exception
+     */
+    @Test
+    public void testUnsatisfiableRange() throws Exception {
+        expectRequestHeaders("bytes=100-", null, null);
+        context.checking(new Expectations() {{
+            oneOf(mockResponse).setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            oneOf(mockResponse).setHeader("Content-Range", "bytes */100");
+        }});
+
+        FileDownloadUtil.writeFile(file, "file.dat", "text/plain", mockRequest, mockResponse);
+    }
+
+    /**
+     * A stale If-Range validator means the entire file should be sent
+     * @throws Exception
+     */
+    @Test
+    public void testIfRangeMismatch() throws Exception {
+        expectRequestHeaders("bytes=10-19", "\"stale-etag\"", null);
+        context.checking(new Expectations() {{
+            oneOf(mockResponse).setContentType("text/plain");
+            oneOf(mockResponse).setHeader("Content-Length", "100");
+            oneOf(mockResponse).getOutputStream();will(returnValue(outStream));
+        }});
+
+        FileDownloadUtil.writeFile(file, "file.dat", "text/plain", mockRequest, mockResponse);
+        Assert.assertArrayEquals(data, outStream.getDataWritten());
+    }
+
+    /**
+     * A matching If-None-Match should result in a 304 with no content
+     * @throws Exception
+     */
+    @Test
+    public void testNotModified() throws Exception {
+        expectRequestHeaders(null, null, FileDownloadUtil.createETag(file));
+        context.checking(new Expectations() {{
+            oneOf(mockResponse).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        }});
+
+        FileDownloadUtil.writeFile(file, "file.dat", "text/plain", mockRequest, mockResponse);
+    }
+
+    /**
+     * Tests parsing of various Range headers
+     */
+    @Test
+    public void testParseRanges() {
+        List<FileDownloadUtil.ByteRange> ranges = FileDownloadUtil.parseRanges("bytes=0-9, 50-, -10", 100);
+        Assert.assertEquals(3, ranges.size());
+        Assert.assertEquals(0, ranges.get(0).start);
+        Assert.assertEquals(9, ranges.get(0).end);
+        Assert.assertEquals(50, ranges.get(1).start);
+        Assert.assertEquals(99, ranges.get(1).end);
+        Assert.assertEquals(90, ranges.get(2).start);
+        Assert.assertEquals(99, ranges.get(2).end);
+
+        //End beyond the file length is truncated
+        ranges = FileDownloadUtil.parseRanges("bytes=90-1000", 100);
+        Assert.assertEquals(1, ranges.size());
+        Assert.assertEquals(99, ranges.get(0).end);
+
+        //Malformed headers are ignored
+        Assert.assertNull(FileDownloadUtil.parseRanges("bytes=10-5", 100));
+        Assert.assertNull(FileDownloadUtil.parseRanges("items=0-1", 100));
+        Assert.assertNull(FileDownloadUtil.parseRanges("bytes=a-b", 100));
+    }
+}
@@ -1,10 +1,18 @@
 package org.auscope.portal.core.util;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 
+import org.apache.commons.io.IOUtils;
+import org.auscope.portal.core.server.http.download.DownloadResponse;
 import org.auscope.portal.core.test.PortalTestClass;
 import org.jmock.Expectations;
+import org.junit.Assert;
 import org.junit.Test;
 
 /**
@@ -53,4 +61,33 @@ public class TestFileIOUtil extends PortalTestClass {
 
         FileIOUtil.closeQuietly(null);
     }
+
+    /**
+     * Tests GML is extracted from successful JSON responses and failures are reported in the error message
+     * @throws Exception
+     */
+    @Test
+    public void testWriteResponseJSONToZip() throws Exception {
+        DownloadResponse successful = new DownloadResponse("http://example.org/1");
+        successful.setResponseStream(new ByteArrayInputStream("{\"data\":{\"kml\":\"<kml/>\",\"gml\":\"<gml a=\\\"b\\\"/>\"},\"success\":true}".getBytes()));
+        DownloadResponse unsuccessful = new DownloadResponse("http://example.org/2");
+        unsuccessful.setResponseStream(new ByteArrayInputStream("{\"data\":null,\"msg\":\"broken\",\"success\":false}".getBytes()));
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ZipOutputStream zout = new ZipOutputStream(bos);
+        StringBuilder errorMsg = new StringBuilder();
+        FileIOUtil.writeResponseJSONToZip(successful, 0, zout, errorMsg);
+        FileIOUtil.writeResponseJSONToZip(unsuccessful, 1, zout, errorMsg);
+        zout.close();
+
+        Assert.assertTrue(errorMsg.toString().contains("http://example.org/2"));
+        Assert.assertTrue(errorMsg.toString().contains("broken"));
+
+        ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(bos.toByteArray()));
+        ZipEntry entry = zis.getNextEntry();
+        Assert.assertTrue(entry.getName().startsWith("1_") && entry.getName().endsWith(".xml"));
+        Assert.assertEquals("<gml a=\"b\"/>", IOUtils.toString(zis, "UTF-8"));
+        Assert.assertNull(zis.getNextEntry());
+        zis.close();
+    }
 }
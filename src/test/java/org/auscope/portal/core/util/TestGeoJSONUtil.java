@@ -0,0 +1,149 @@
+package org.auscope.portal.core.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.StringWriter;
+
+import javax.xml.stream.XMLStreamException;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import org.auscope.portal.core.test.PortalTestClass;
+import org.auscope.portal.core.test.ResourceUtil;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for GeoJSONUtil
+ */
+public class TestGeoJSONUtil extends PortalTestClass {
+
+    private JSONObject convert(InputStream wfs, int expectedCount) throws Exception {
+        StringWriter output = new StringWriter();
+        Assert.assertEquals(expectedCount, GeoJSONUtil.writeFeatureCollection(wfs, output));
+
+        JSONObject collection = JSONObject.fromObject(output.toString());
+        Assert.assertEquals("FeatureCollection", collection.getString("type"));
+        Assert.assertEquals(expectedCount, collection.getJSONArray("features").size());
+        return collection;
+    }
+
+    private static void assertCoordinates(String expected, JSONObject geometry) {
+        Assert.assertEquals(expected, geometry.getJSONArray("coordinates").toString());
+    }
+
+    /**
+     * Tests a GML 3.1 response with lat/lon points nested in complex properties
+     * @throws Exception
+     */
+    @Test
+    public void testGml31Points() throws Exception {
+        JSONObject collection = convert(ResourceUtil.loadResourceAsStream("org/auscope/portal/core/test/responses/wfs/GetUndefinedFeatureSet.xml"), 8);
+
+        JSONObject feature = collection.getJSONArray("features").getJSONObject(0);
+        Assert.assertEquals("Feature", feature.getString("type"));
+        Assert.assertEquals("WTB5", feature.getString("id"));
+        Assert.assertEquals("Point", feature.getJSONObject("geometry").getString("type"));
+        assertCoordinates("[121.142,-28.4139]", feature.getJSONObject("geometry"));
+
+        JSONObject properties = feature.getJSONObject("properties");
+        Assert.assertEquals("urn:cgi:feature:Borehole:WTB5", properties.getString("name"));
+        Assert.assertFalse(properties.has("collarLocation"));
+        JSONObject details = properties.getJSONObject("indexData").getJSONObject("UndefinedTypeDetails");
+        Assert.assertEquals("diamond core", details.getString("drillingMethod"));
+        Assert.assertEquals("urn:cgi:party:CSIRONR", details.getString("coreCustodian"));
+    }
+
+    /**
+     * Tests a GML 3.2 response with a variety of geometry types and srsNames
+     * @throws Exception
+     */
+    @Test
+    public void testGml32Geometries() throws Exception {
+        JSONArray features = convert(ResourceUtil.loadResourceAsStream("org/auscope/portal/core/test/responses/wfs/GetFeatureGeometries.xml"), 5).getJSONArray("features");
+
+        //Polygon with interior ring (lat/lon URN)
+        JSONObject site = features.getJSONObject(0);
+        Assert.assertEquals("site.1", site.getString("id"));
+        Assert.assertEquals("Polygon", site.getJSONObject("geometry").getString("type"));
+        assertCoordinates("[[[120,-30],[130,-30],[130,-20],[120,-30]],[[121,-29],[122,-29],[122,-28],[121,-29]]]", site.getJSONObject("geometry"));
+        JSONObject siteProperties = site.getJSONObject("properties");
+        Assert.assertFalse(siteProperties.has("boundedBy"));
+        Assert.assertFalse(siteProperties.has("shape"));
+        Assert.assertEquals("[\"First\",\"Alias\"]", siteProperties.getJSONArray("name").toString());
+        Assert.assertEquals("http://example.org/party/1", siteProperties.getString("operator"));
+        Assert.assertEquals("100.5", siteProperties.getJSONObject("details").getString("depth"));
+        Assert.assertEquals("Contains \"quotes\" & </tags>", siteProperties.getJSONObject("details").getString("comment"));
+
+        //3D LineString (x/y srsName)
+        JSONObject track = features.getJSONObject(1);
+        Assert.assertEquals("LineString", track.getJSONObject("geometry").getString("type"));
+        assertCoordinates("[[120,-30,5],[121,-31,6]]", track.getJSONObject("geometry"));
+
+        //MultiCurve with LineString and Curve members (lat/lon URI)
+        JSONObject rivers = features.getJSONObject(2);
+        Assert.assertEquals("MultiLineString", rivers.getJSONObject("geometry").getString("type"));
+        assertCoordinates("[[[120,-30],[121,-31]],[[122,-32],[123,-33]]]", rivers.getJSONObject("geometry"));
+
+        //MultiSurface with Polygon and Surface members (projected CRS)
+        JSONObject tenements = features.getJSONObject(3);
+        Assert.assertEquals("MultiPolygon", tenements.getJSONObject("geometry").getString("type"));
+        assertCoordinates("[[[[500000,6000000],[500100,6000000],[500100,6000100],[500000,6000000]]],[[[1,2],[3,4],[5,6],[1,2]]]]", tenements.getJSONObject("geometry"));
+
+        //Multiple geometries
+        JSONObject stations = features.getJSONObject(4);
+        JSONObject collection = stations.getJSONObject("geometry");
+        Assert.assertEquals("GeometryCollection", collection.getString("type"));
+        Assert.assertEquals("Point", collection.getJSONArray("geometries").getJSONObject(0).getString("type"));
+        assertCoordinates("[130,-25]", collection.getJSONArray("geometries").getJSONObject(0));
+        Assert.assertEquals("MultiPoint", collection.getJSONArray("geometries").getJSONObject(1).getString("type"));
+        assertCoordinates("[[131,-26],[132,-27]]", collection.getJSONArray("geometries").getJSONObject(1));
+        Assert.assertTrue(stations.getJSONObject("properties").isEmpty());
+    }
+
+    /**
+     * Tests the axis order rules for various srsName formats
+     */
+    @Test
+    public void testLatLonOrder() {
+        Assert.assertTrue(GeoJSONUtil.isLatLonOrder("urn:ogc:def:crs:EPSG::4326"));
+        Assert.assertTrue(GeoJSONUtil.isLatLonOrder("urn:x-ogc:def:crs:EPSG:4283"));
+        Assert.assertTrue(GeoJSONUtil.isLatLonOrder("http://www.opengis.net/def/crs/EPSG/0/4326"));
+        Assert.assertFalse(GeoJSONUtil.isLatLonOrder("urn:ogc:def:crs:EPSG::28355"));
+        Assert.assertFalse(GeoJSONUtil.isLatLonOrder("EPSG:4326"));
+        Assert.assertFalse(GeoJSONUtil.isLatLonOrder("http://www.opengis.net/gml/srs/epsg.xml#4326"));
+        Assert.assertFalse(GeoJSONUtil.isLatLonOrder("urn:ogc:def:crs:OGC:1.3:CRS84"));
+        Assert.assertFalse(GeoJSONUtil.isLatLonOrder(null));
+    }
+
+    /**
+     * Tests that an empty response produces an empty collection
+     * @throws Exception
+     */
+    @Test
+    public void testEmptyResponse() throws Exception {
+        convert(ResourceUtil.loadResourceAsStream("org/auscope/portal/core/test/responses/wfs/EmptyWFSResponse.xml"), 0);
+    }
+
+    /**
+     * Tests that a malformed response still produces valid GeoJSON (containing the features parsed so far)
+     * @throws Exception
+     */
+    @Test
+    public void testMalformedResponse() throws Exception {
+        String xml = "<wfs:FeatureCollection xmlns:wfs=\"http://www.opengis.net/wfs\" xmlns:gml=\"http://www.opengis.net/gml\">" +
+                "<gml:featureMember><a gml:id=\"a.1\"><b>text</b></a></gml:featureMember>" +
+                "<gml:featureMember><a gml:id=\"a.2\"><b>text</c></a></gml:featureMember>";
+        StringWriter output = new StringWriter();
+        try {
+            GeoJSONUtil.writeFeatureCollection(new ByteArrayInputStream(xml.getBytes("UTF-8")), output);
+            Assert.fail("Expected XMLStreamException");
+        } catch (XMLStreamException ex) {
+            JSONObject collection = JSONObject.fromObject(output.toString());
+            Assert.assertEquals(1, collection.getJSONArray("features").size());
+            Assert.assertEquals("a.1", collection.getJSONArray("features").getJSONObject(0).getString("id"));
+            Assert.assertTrue(collection.getString("error").length() > 0);
+        }
+    }
+}
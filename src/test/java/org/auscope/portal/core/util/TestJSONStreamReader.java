@@ -0,0 +1,75 @@
+package org.auscope.portal.core.util;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import org.auscope.portal.core.test.PortalTestClass;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for JSONStreamReader
+ */
+public class TestJSONStreamReader extends PortalTestClass {
+
+    /**
+     * Tests navigating an object, skipping nested values and reading scalars
+     * @throws Exception
+     */
+    @Test
+    public void testNavigation() throws Exception {
+        JSONStreamReader json = new JSONStreamReader(new StringReader(
+                "{ \"skip\" : {\"a\":[1, {\"b\":\"}]\"}, null], \"c\":\"d\"}, \"num\":-1.5e3, \"flag\" : false, \"str\":\"x\\\"y\", \"empty\":null }"));
+        json.beginObject();
+        Assert.assertEquals("skip", json.nextName());
+        json.skipValue();
+        Assert.assertEquals("num", json.nextName());
+        Assert.assertEquals("-1.5e3", json.nextScalar());
+        Assert.assertEquals("flag", json.nextName());
+        Assert.assertEquals("false", json.nextScalar());
+        Assert.assertEquals("str", json.nextName());
+        Assert.assertEquals("x\"y", json.nextScalar());
+        Assert.assertEquals("empty", json.nextName());
+        Assert.assertEquals("null", json.nextScalar());
+        Assert.assertFalse(json.hasNext());
+        json.endObject();
+        Assert.assertEquals(-1, json.peek());
+        json.close();
+    }
+
+    /**
+     * Tests streaming a string value (spanning several buffers) with escapes
+     * @throws Exception
+     */
+    @Test
+    public void testCopyString() throws Exception {
+        StringBuilder expected = new StringBuilder();
+        StringBuilder encoded = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            expected.append("<gml:pos>1 2</gml:pos>\n\t\"\u00e9\\/");
+            encoded.append("<gml:pos>1 2<\\/gml:pos>\\n\\t\\\"\\u00e9\\\\/");
+        }
+
+        JSONStreamReader json = new JSONStreamReader(new StringReader("{\"gml\":\"" + encoded + "\"}"));
+        json.beginObject();
+        Assert.assertEquals("gml", json.nextName());
+        StringWriter out = new StringWriter();
+        json.copyString(out);
+        json.endObject();
+
+        Assert.assertEquals(expected.toString(), out.toString());
+    }
+
+    /**
+     * Truncated documents should raise an IOException
+     * @throws Exception
+     */
+    @Test(expected=IOException.class)
+    public void testTruncated() throws Exception {
+        JSONStreamReader json = new JSONStreamReader(new StringReader("{\"gml\":\"unterminated"));
+        json.beginObject();
+        json.nextName();
+        json.copyString(new StringWriter());
+    }
+}
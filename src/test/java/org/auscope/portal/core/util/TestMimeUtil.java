@@ -28,4 +28,14 @@ public class TestMimeUtil extends PortalTestClass {
         Assert.assertEquals("png", MimeUtil.mimeToFileExtension("image/png;mode=8bit"));
         Assert.assertEquals("tiff", MimeUtil.mimeToFileExtension("image/geotiff"));
     }
+
+    @Test
+    public void testIsCompressed() {
+        Assert.assertTrue(MimeUtil.isCompressed("image/png"));
+        Assert.assertTrue(MimeUtil.isCompressed("application/zip"));
+        Assert.assertTrue(MimeUtil.isCompressed("application/x-netcdf; version=4"));
+        Assert.assertFalse(MimeUtil.isCompressed("text/xml"));
+        Assert.assertFalse(MimeUtil.isCompressed("image/tiff"));
+        Assert.assertFalse(MimeUtil.isCompressed(null));
+    }
 }
@@ -0,0 +1,245 @@
+package org.auscope.portal.core.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Enumeration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.auscope.portal.core.test.PortalTestClass;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for ParallelZipWriter
+ */
+public class TestParallelZipWriter extends PortalTestClass {
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private static byte[] createData(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) ((i / 100) % 251);
+        }
+        return data;
+    }
+
+    /**
+     * Entries should be readable (in the order they were added) by ZipInputStream
+     * @throws Exception
+     */
+    @Test
+    public void testEntryOrder() throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ParallelZipWriter zip = new ParallelZipWriter(bos, executor, 2);
+        for (int i = 0; i < 10; i++) {
+            zip.addEntry("entry" + i + ".xml", "text/xml", createData(1000 * (10 - i)));
+        }
+        zip.close();
+
+        ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(bos.toByteArray()));
+        for (int i = 0; i < 10; i++) {
+            ZipEntry entry = zis.getNextEntry();
+            Assert.assertEquals("entry" + i + ".xml", entry.getName());
+            Assert.assertArrayEquals(createData(1000 * (10 - i)), IOUtils.toByteArray(zis));
+        }
+        Assert.assertNull(zis.getNextEntry());
+        zis.close();
+    }
+
+    /**
+     * Already compressed content should be stored, everything else deflated. The central directory
+     * should be readable by ZipFile
+     * @throws Exception
+     */
+    @Test
+    public void testCompressionMethods() throws Exception {
+        byte[] data = createData(10000);
+        File f = File.createTempFile("TestParallelZipWriter", ".zip");
+        try {
+            ParallelZipWriter zip = new ParallelZipWriter(new FileOutputStream(f), executor, 4);
+            zip.addEntry("image.png", "image/png", data);
+            zip.addEntry("data.nc", "application/x-netcdf", data);
+            zip.addEntry("gml.xml", "text/xml", data);
+            zip.close();
+
+            ZipFile zipFile = new ZipFile(f);
+            try {
+                Assert.assertEquals(3, zipFile.size());
+                Assert.assertEquals(ZipEntry.STORED, zipFile.getEntry("image.png").getMethod());
+                Assert.assertEquals(ZipEntry.STORED, zipFile.getEntry("data.nc").getMethod());
+                ZipEntry gmlEntry = zipFile.getEntry("gml.xml");
+                Assert.assertEquals(ZipEntry.DEFLATED, gmlEntry.getMethod());
+                Assert.assertTrue(gmlEntry.getCompressedSize() < data.length);
+
+                Enumeration<? extends ZipEntry> entries = zipFile.entries();
+                while (entries.hasMoreElements()) {
+                    ZipEntry entry = entries.nextElement();
+                    Assert.assertArrayEquals(data, IOUtils.toByteArray(zipFile.getInputStream(entry)));
+                }
+            } finally {
+                zipFile.close();
+            }
+        } finally {
+            f.delete();
+        }
+    }
+
+    /**
+     * Entries larger than the memory threshold should still be written correctly. NO_COMPRESSION should store everything.
+     * @throws Exception
+     */
+    @Test
+    public void testLargeEntryNoCompression() throws Exception {
+        byte[] data = createData(ParallelZipWriter.MEMORY_THRESHOLD * 2);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ParallelZipWriter zip = new ParallelZipWriter(bos, executor, 2);
+        zip.setLevel(Deflater.NO_COMPRESSION);
+        zip.addEntry("large.xml", "text/xml", new ByteArrayInputStream(data));
+        zip.close();
+
+        ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(bos.toByteArray()));
+        ZipEntry entry = zis.getNextEntry();
+        Assert.assertEquals(ZipEntry.STORED, entry.getMethod());
+        Assert.assertArrayEquals(data, IOUtils.toByteArray(zis));
+        zis.close();
+    }
+
+    /**
+     * Duplicate entry names should be rejected
+     * @throws Exception
+     */
+    @Test(expected=ZipException.class)
+    public void testDuplicateEntry() throws Exception {
+        ParallelZipWriter zip = new ParallelZipWriter(new ByteArrayOutputStream(), executor, 2);
+        zip.addEntry("a.txt", "text/plain", new byte[] {1});
+        zip.addEntry("a.txt", "text/plain", new byte[] {2});
+    }
+
+    /**
+     * Invalid compression levels should be rejected
+     */
+    @Test(expected=IllegalArgumentException.class)
+    public void testInvalidLevel() {
+        new ParallelZipWriter(new ByteArrayOutputStream(), executor, 2).setLevel(10);
+    }
+
+    /**
+     * Input should be read by the thread adding the entry (never by the compression workers)
+     * @throws Exception
+     */
+    @Test
+    public void testInputReadByCaller() throws Exception {
+        final Thread caller = Thread.currentThread();
+        final boolean[] readElsewhere = new boolean[1];
+        ByteArrayInputStream input = new ByteArrayInputStream(createData(5000)) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                readElsewhere[0] |= Thread.currentThread() != caller;
+                return super.read(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                readElsewhere[0] |= Thread.currentThread() != caller;
+                super.close();
+            }
+        };
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ParallelZipWriter zip = new ParallelZipWriter(bos, executor, 2);
+        zip.addEntry("entry.xml", "text/xml", input);
+        zip.close();
+
+        Assert.assertFalse(readElsewhere[0]);
+        ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(bos.toByteArray()));
+        Assert.assertEquals("entry.xml", zis.getNextEntry().getName());
+        Assert.assertArrayEquals(createData(5000), IOUtils.toByteArray(zis));
+        zis.close();
+    }
+
+    /**
+     * Closing a writer that can't be finished should release every buffer, including those of an entry
+     * that is still compressing when the writer is closed
+     * @throws Exception
+     */
+    @Test
+    public void testCloseReleasesBuffers() throws Exception {
+        final int contentLength = ParallelZipWriter.MEMORY_THRESHOLD * 2;
+        File root = Files.createTempDirectory("APT_ZIP_TEST").toFile();
+        //The spilled content of the large entry exhausts the quota so its compression blocks until that content is deleted
+        ScratchSpace space = new ScratchSpace(root, contentLength + 1024, ScratchSpace.UNLIMITED, 0);
+        space.setMaxWaitMillis(30000);
+
+        //Cancelling can't interrupt these workers (just like a worker blocked on I/O)
+        final Thread[] worker = new Thread[1];
+        executor.shutdownNow();
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                worker[0] = new Thread(r) {
+                    @Override
+                    public void interrupt() {
+                        //Ignored
+                    }
+                };
+                return worker[0];
+            }
+        });
+
+        try {
+            ParallelZipWriter zip = new ParallelZipWriter(new ByteArrayOutputStream(), executor, 8, space);
+            zip.setLevel(Deflater.NO_COMPRESSION);
+            zip.addEntry("large.xml", "text/xml", createData(contentLength));
+
+            //Wait for the large entry's compression to block on the scratch quota
+            long deadline = System.currentTimeMillis() + 10000;
+            while (worker[0].getState() != Thread.State.TIMED_WAITING) {
+                Assert.assertTrue("compression never blocked", System.currentTimeMillis() < deadline);
+                Thread.yield();
+            }
+
+            //Interrupting the caller stops close from waiting for the compression to finish
+            Thread.currentThread().interrupt();
+            try {
+                zip.close();
+                Assert.fail("Expected an IOException");
+            } catch (IOException ex) {
+                Assert.assertTrue(Thread.interrupted());
+            }
+
+            executor.shutdown();
+            Assert.assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+            Assert.assertEquals(0, space.getFileCount());
+            Assert.assertEquals(0, space.getUsage());
+        } finally {
+            space.close();
+            FileIOUtil.deleteFilesRecursive(root);
+        }
+    }
+}
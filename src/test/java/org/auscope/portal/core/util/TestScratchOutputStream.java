@@ -0,0 +1,114 @@
+package org.auscope.portal.core.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.apache.commons.io.IOUtils;
+import org.auscope.portal.core.test.PortalTestClass;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for ScratchOutputStream
+ */
+public class TestScratchOutputStream extends PortalTestClass {
+
+    private File root;
+    private ScratchSpace space;
+
+    @Before
+    public void setUp() throws Exception {
+        root = Files.createTempDirectory("APT_SCRATCH_TEST").toFile();
+        space = new ScratchSpace(root, 100, ScratchSpace.UNLIMITED, 0);
+        space.setMaxWaitMillis(0);
+    }
+
+    @After
+    public void tearDown() {
+        space.close();
+        FileIOUtil.deleteFilesRecursive(root);
+    }
+
+    private static byte[] createData(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i % 251);
+        }
+        return data;
+    }
+
+    /**
+     * Content under the threshold should never touch the scratch space
+     * @throws Exception
+     */
+    @Test
+    public void testInMemory() throws Exception {
+        ScratchOutputStream os = new ScratchOutputStream(50, space, "user1", "APT_TEST", ".tmp");
+        os.write(createData(50));
+        os.close();
+
+        Assert.assertTrue(os.isInMemory());
+        Assert.assertNull(os.getFile());
+        Assert.assertArrayEquals(createData(50), os.getData());
+        Assert.assertArrayEquals(createData(50), IOUtils.toByteArray(os.openInputStream()));
+        Assert.assertEquals(0, space.getFileCount());
+    }
+
+    /**
+     * Content over the threshold should spill into a tracked scratch file that is released by delete
+     * @throws Exception
+     */
+    @Test
+    public void testSpill() throws Exception {
+        ScratchOutputStream os = new ScratchOutputStream(50, space, "user1", "APT_TEST", ".tmp");
+        os.write(createData(40));
+        os.write(createData(40));
+        os.close();
+
+        Assert.assertFalse(os.isInMemory());
+        Assert.assertNull(os.getData());
+        Assert.assertEquals(80, space.getUsage("user1"));
+        Assert.assertEquals(80, os.getFile().length());
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        os.writeTo(bos);
+        byte[] expected = new byte[80];
+        System.arraycopy(createData(40), 0, expected, 0, 40);
+        System.arraycopy(createData(40), 0, expected, 40, 40);
+        Assert.assertArrayEquals(expected, bos.toByteArray());
+
+        File file = os.getFile();
+        os.delete();
+        Assert.assertFalse(file.exists());
+        Assert.assertEquals(0, space.getUsage());
+    }
+
+    /**
+     * Spilling should fail once the scratch quota is exhausted
+     * @throws Exception
+     */
+    @Test(expected=IOException.class)
+    public void testQuotaExceeded() throws Exception {
+        ScratchOutputStream os = new ScratchOutputStream(50, space, null, "APT_TEST", ".tmp");
+        try {
+            os.write(createData(101));
+        } finally {
+            os.delete();
+        }
+    }
+
+    /**
+     * Content can't be read back until the stream is closed
+     * @throws Exception
+     */
+    @Test(expected=IOException.class)
+    public void testReadBeforeClose() throws Exception {
+        ScratchOutputStream os = new ScratchOutputStream(50, space, null, "APT_TEST", ".tmp");
+        os.write(createData(10));
+        os.openInputStream();
+    }
+}
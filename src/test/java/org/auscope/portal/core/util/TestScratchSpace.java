@@ -0,0 +1,161 @@
+package org.auscope.portal.core.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+
+import org.auscope.portal.core.test.PortalTestClass;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for ScratchSpace
+ */
+public class TestScratchSpace extends PortalTestClass {
+
+    private File root;
+    private ScratchSpace space;
+
+    @Before
+    public void setUp() throws Exception {
+        root = Files.createTempDirectory("APT_SCRATCH_TEST").toFile();
+        space = new ScratchSpace(root, 100, 60, 0);
+    }
+
+    @After
+    public void tearDown() {
+        space.close();
+        FileIOUtil.deleteFilesRecursive(root);
+    }
+
+    /**
+     * Allocations should respect both the per owner and total quotas
+     * @throws Exception
+     */
+    @Test
+    public void testQuotas() throws Exception {
+        ScratchSpace.ScratchFile a = space.createFile("user1", "APT_TEST", ".tmp");
+        ScratchSpace.ScratchFile b = space.createFile("user2", "APT_TEST", ".tmp");
+
+        OutputStream os = a.openOutputStream();
+        os.write(new byte[50]);
+        os.close();
+        Assert.assertEquals(50, a.getFile().length());
+        Assert.assertEquals(50, space.getUsage("user1"));
+
+        Assert.assertFalse(a.tryAllocate(20)); //owner quota
+        Assert.assertTrue(b.tryAllocate(40));
+        Assert.assertFalse(b.tryAllocate(20)); //total quota
+        Assert.assertEquals(90, space.getUsage());
+
+        b.free(30);
+        Assert.assertEquals(10, space.getUsage("user2"));
+        a.delete();
+        Assert.assertFalse(a.getFile().exists());
+        Assert.assertEquals(10, space.getUsage());
+        Assert.assertEquals(1, space.getFileCount());
+    }
+
+    /**
+     * Writers should block until space is freed and fail if it isn't freed in time
+     * @throws Exception
+     */
+    @Test
+    public void testBackpressure() throws Exception {
+        final ScratchSpace.ScratchFile a = space.createFile(null, "APT_TEST", ".tmp");
+        ScratchSpace.ScratchFile b = space.createFile(null, "APT_TEST", ".tmp");
+        a.allocate(80);
+
+        Thread freer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                a.delete();
+            }
+        };
+        freer.start();
+
+        long start = System.currentTimeMillis();
+        b.allocate(50);
+        Assert.assertTrue(System.currentTimeMillis() - start >= 150);
+        Assert.assertEquals(50, space.getUsage());
+        freer.join();
+
+        space.setMaxWaitMillis(50);
+        try {
+            b.allocate(60);
+            Assert.fail("Expected the quota to be exceeded");
+        } catch (IOException e) {
+            Assert.assertEquals(50, space.getUsage());
+        }
+    }
+
+    /**
+     * Files whose handles are garbage collected (and old untracked files) should be reaped
+     * @throws Exception
+     */
+    @Test
+    public void testReapOrphans() throws Exception {
+        File leaked = space.createFile("user1", "APT_TEST", ".tmp").getFile();
+        ScratchSpace.ScratchFile released = space.createFile("user1", "APT_TEST", ".tmp");
+        released.allocate(10);
+        released.release();
+        Assert.assertTrue(released.getFile().exists());
+        Assert.assertEquals(0, space.getUsage());
+
+        for (int i = 0; i < 50 && leaked.exists(); i++) {
+            System.gc();
+            Thread.sleep(20);
+            space.reap();
+        }
+        Assert.assertFalse(leaked.exists());
+        Assert.assertEquals(0, space.getFileCount());
+
+        //Recently modified untracked files are left alone
+        Assert.assertTrue(released.getFile().exists());
+        Assert.assertTrue(released.getFile().setLastModified(System.currentTimeMillis() - ScratchSpace.DEFAULT_ORPHAN_AGE_MILLIS - 1000));
+        Assert.assertEquals(1, space.reap());
+        Assert.assertFalse(released.getFile().exists());
+    }
+
+    /**
+     * The directories of dead instances should be reaped (once their files have had a chance to be adopted)
+     * @throws Exception
+     */
+    @Test
+    public void testAdoptAbandoned() throws Exception {
+        File deadDir = new File(root, "instance-dead");
+        Assert.assertTrue(deadDir.mkdir());
+        Assert.assertTrue(new File(deadDir, ".lock").createNewFile());
+        File archive = new File(deadDir, "archive.zip");
+        Files.write(archive.toPath(), new byte[30]);
+        Files.write(new File(deadDir, "other.tmp").toPath(), new byte[10]);
+
+        ScratchSpace restarted = new ScratchSpace(root, 100, 60, 0);
+        try {
+            //Files belonging to a live instance can't be adopted
+            File live = space.createFile(null, "APT_TEST", ".tmp").getFile();
+            Assert.assertNull(restarted.adopt("user1", live));
+
+            ScratchSpace.ScratchFile adopted = restarted.adopt("user1", archive);
+            Assert.assertNotNull(adopted);
+            Assert.assertEquals(restarted.getDirectory(), adopted.getFile().getParentFile());
+            Assert.assertEquals(30, adopted.getFile().length());
+            Assert.assertEquals(30, restarted.getUsage("user1"));
+
+            restarted.reap();
+            Assert.assertFalse(deadDir.exists());
+            Assert.assertTrue(adopted.getFile().exists());
+            Assert.assertTrue(space.getDirectory().exists());
+        } finally {
+            restarted.close();
+        }
+    }
+}
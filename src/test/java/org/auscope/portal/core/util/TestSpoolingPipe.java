@@ -0,0 +1,195 @@
+package org.auscope.portal.core.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+
+import org.apache.commons.io.IOUtils;
+import org.auscope.portal.core.test.PortalTestClass;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for SpoolingPipe
+ */
+public class TestSpoolingPipe extends PortalTestClass {
+
+    private static byte[] createData(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i % 251);
+        }
+        return data;
+    }
+
+    /**
+     * Data under the memory threshold should never touch the disk
+     * @throws Exception
+     */
+    @Test
+    public void testInMemory() throws Exception {
+        byte[] data = createData(100);
+        SpoolingPipe pipe = new SpoolingPipe(128);
+        pipe.getOutputStream().write(data);
+        pipe.getOutputStream().close();
+
+        Assert.assertFalse(pipe.isSpooled());
+        Assert.assertArrayEquals(data, IOUtils.toByteArray(pipe.getInputStream()));
+    }
+
+    /**
+     * Data written whilst the consumer isn't reading should spool to disk and be read back in order
+     * @throws Exception
+     */
+    @Test
+    public void testSpooling() throws Exception {
+        byte[] data = createData(1000);
+        SpoolingPipe pipe = new SpoolingPipe(128);
+        OutputStream output = pipe.getOutputStream();
+        for (int i = 0; i < data.length; i += 100) {
+            output.write(data, i, 100);
+        }
+
+        //Interleave some reads to ensure ordering is preserved when switching between memory and disk
+        InputStream input = pipe.getInputStream();
+        byte[] head = new byte[50];
+        Assert.assertEquals(50, IOUtils.read(input, head));
+        output.close();
+
+        Assert.assertTrue(pipe.isSpooled());
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        result.write(head);
+        IOUtils.copy(input, result);
+        Assert.assertArrayEquals(data, result.toByteArray());
+    }
+
+    /**
+     * Tests a concurrent producer/consumer
+     * @throws Exception
+     */
+    @Test
+    public void testConcurrentReadWrite() throws Exception {
+        final byte[] data = createData(256 * 1024);
+        final SpoolingPipe pipe = new SpoolingPipe(4096);
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < data.length; i += 1000) {
+                        pipe.getOutputStream().write(data, i, Math.min(1000, data.length - i));
+                    }
+                    pipe.getOutputStream().close();
+                } catch (IOException ex) {
+                    pipe.fail(ex);
+                }
+            }
+        };
+        producer.start();
+
+        Assert.assertArrayEquals(data, IOUtils.toByteArray(pipe.getInputStream()));
+        producer.join();
+    }
+
+    /**
+     * A failed producer should raise an error in the consumer
+     * @throws Exception
+     */
+    @Test(expected=IOException.class)
+    public void testProducerFailure() throws Exception {
+        SpoolingPipe pipe = new SpoolingPipe(128);
+        pipe.getOutputStream().write(createData(10));
+        pipe.fail(new Exception("upstream failure"));
+
+        IOUtils.toByteArray(pipe.getInputStream());
+    }
+
+    /**
+     * A closed consumer should raise an error in the producer
+     * @throws Exception
+     */
+    @Test(expected=IOException.class)
+    public void testConsumerClosed() throws Exception {
+        SpoolingPipe pipe = new SpoolingPipe(128);
+        pipe.getInputStream().close();
+        pipe.getOutputStream().write(createData(10));
+    }
+
+    /**
+     * Spooling should fail straight away when the scratch quota is exhausted and there is no consumer to wait for
+     * @throws Exception
+     */
+    @Test
+    public void testScratchQuota() throws Exception {
+        File root = Files.createTempDirectory("APT_PIPE_TEST").toFile();
+        ScratchSpace space = new ScratchSpace(root, 200, ScratchSpace.UNLIMITED, 0);
+        space.setMaxWaitMillis(100);
+        try {
+            SpoolingPipe pipe = new SpoolingPipe(100, space, "user1");
+            OutputStream output = pipe.getOutputStream();
+            output.write(createData(100));
+            output.write(createData(200));
+            Assert.assertEquals(200, space.getUsage("user1"));
+
+            try {
+                output.write(createData(100));
+                Assert.fail("Expected the scratch quota to be exceeded");
+            } catch (IOException e) {
+                //expected
+            }
+            output.close();
+
+            //Once read, the spool is released
+            InputStream input = pipe.getInputStream();
+            Assert.assertEquals(300, IOUtils.toByteArray(input).length);
+            Assert.assertEquals(0, space.getUsage());
+        } finally {
+            space.close();
+            FileIOUtil.deleteFilesRecursive(root);
+        }
+    }
+
+    /**
+     * Spooling should wait for an attached consumer to catch up when the scratch quota is exhausted
+     * @throws Exception
+     */
+    @Test
+    public void testScratchQuotaWithConsumer() throws Exception {
+        File root = Files.createTempDirectory("APT_PIPE_TEST").toFile();
+        ScratchSpace space = new ScratchSpace(root, 200, ScratchSpace.UNLIMITED, 0);
+        space.setMaxWaitMillis(60000);
+        try {
+            SpoolingPipe pipe = new SpoolingPipe(100, space, "user1");
+            OutputStream output = pipe.getOutputStream();
+            final InputStream input = pipe.getInputStream();
+            output.write(createData(100));
+            output.write(createData(200));
+            Assert.assertEquals(0, input.read());
+
+            final ByteArrayOutputStream received = new ByteArrayOutputStream();
+            Thread consumer = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        IOUtils.copy(input, received);
+                    } catch (IOException ex) {
+                        throw new RuntimeException(ex);
+                    }
+                }
+            };
+            consumer.start();
+
+            output.write(createData(100));
+            output.close();
+            consumer.join();
+
+            Assert.assertEquals(399, received.size());
+            Assert.assertEquals(0, space.getUsage());
+        } finally {
+            space.close();
+            FileIOUtil.deleteFilesRecursive(root);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package org.auscope.portal.core.view;
+
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.sf.json.JSONSerializer;
+import net.sf.json.JsonConfig;
+import net.sf.json.util.CycleDetectionStrategy;
+
+import org.auscope.portal.core.services.csw.CSWServiceItem;
+import org.auscope.portal.core.services.responses.csw.CSWGetRecordResponse;
+import org.auscope.portal.core.services.responses.csw.CSWRecord;
+import org.auscope.portal.core.test.ResourceUtil;
+import org.auscope.portal.core.util.DOMUtil;
+import org.auscope.portal.core.view.knownlayer.CSWRecordSelector;
+import org.auscope.portal.core.view.knownlayer.KnownLayer;
+import org.springframework.ui.ModelMap;
+import org.w3c.dom.Document;
+
+/**
+ * Compares the time taken for the json-lib tree serialization (the previous JSONView implementation)
+ * against StreamingJSONSerializer for a known layer response. This is not a unit test - run it manually
+ * with the test classpath:
+ *
+ * java org.auscope.portal.core.view.JSONViewBenchmark [copies] [iterations]
+ */
+public class JSONViewBenchmark {
+
+    /**
+     * Builds a known layer response model (as generated by BaseCSWController.generateKnownLayerResponse) using
+     * the records from the cswRecordResponse.xml test resource. Each known layer will have every record
+     * as a belonging record.
+     *
+     * @param knownLayerCount The number of known layers to generate
+     * @return
+     * @throws Exception
+     */
+    public static ModelMap buildKnownLayerModel(int knownLayerCount) throws Exception {
+        Document doc = DOMUtil.buildDomFromStream(ResourceUtil.loadResourceAsStream("org/auscope/portal/core/test/responses/csw/cswRecordResponse.xml"));
+        CSWServiceItem origin = new CSWServiceItem("id", "http://test.com", "http://test.com?uuid=%1$s", "title");
+        List<CSWRecord> records = new CSWGetRecordResponse(origin, doc).getRecords();
+
+        ViewKnownLayerFactory knownLayerFactory = new ViewKnownLayerFactory();
+        ViewCSWRecordFactory recordFactory = new ViewCSWRecordFactory();
+        List<ModelMap> viewKnownLayers = new ArrayList<ModelMap>();
+        for (int i = 0; i < knownLayerCount; i++) {
+            KnownLayer knownLayer = new KnownLayer("kl-" + i, new CSWRecordSelector());
+            knownLayer.setName("Known Layer " + i);
+            knownLayer.setDescription("Description of \"known layer\" " + i);
+            ModelMap viewKnownLayer = knownLayerFactory.toView(knownLayer);
+
+            List<ModelMap> viewRecords = new ArrayList<ModelMap>();
+            for (CSWRecord record : records) {
+                viewRecords.add(recordFactory.toView(record));
+            }
+            viewKnownLayer.put("cswRecords", viewRecords);
+            viewKnownLayer.put("relatedRecords", new ArrayList<ModelMap>());
+            viewKnownLayers.add(viewKnownLayer);
+        }
+
+        ModelMap model = new ModelMap();
+        model.put("data", viewKnownLayers);
+        model.put("success", true);
+        model.put("msg", "");
+        return model;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int copies = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        ModelMap model = buildKnownLayerModel(copies);
+        JsonConfig cfg = new JsonConfig();
+        cfg.setCycleDetectionStrategy(CycleDetectionStrategy.LENIENT);
+
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            Writer treeWriter = new StringWriter();
+            treeWriter.write(JSONSerializer.toJSON(model, cfg).toString());
+            long treeTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            Writer streamWriter = new StringWriter();
+            new StreamingJSONSerializer(cfg).write(model, streamWriter);
+            long streamTime = System.nanoTime() - start;
+
+            System.out.println(String.format("Iteration %1$d: json-lib %2$dms, streaming %3$dms (%4$d chars, identical=%5$s)",
+                    i, treeTime / 1000000, streamTime / 1000000, streamWriter.toString().length(),
+                    treeWriter.toString().equals(streamWriter.toString())));
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package org.auscope.portal.core.view;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import net.sf.json.JSONSerializer;
+import net.sf.json.JsonConfig;
+import net.sf.json.util.CycleDetectionStrategy;
+
+import org.auscope.portal.core.services.csw.CSWCacheChangeEvent;
+import org.auscope.portal.core.services.csw.CSWServiceItem;
+import org.auscope.portal.core.services.responses.csw.CSWGetRecordResponse;
+import org.auscope.portal.core.services.responses.csw.CSWRecord;
+import org.auscope.portal.core.test.PortalTestClass;
+import org.auscope.portal.core.test.ResourceUtil;
+import org.auscope.portal.core.util.DOMUtil;
+import org.auscope.portal.core.view.knownlayer.CSWRecordSelector;
+import org.auscope.portal.core.view.knownlayer.KnownLayer;
+import org.auscope.portal.core.view.knownlayer.KnownLayerAndRecords;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.ui.ModelMap;
+
+/**
+ * Unit tests for JSONFragmentCache
+ */
+public class TestJSONFragmentCache extends PortalTestClass {
+
+    private ViewCSWRecordFactory viewCSWRecordFactory = new ViewCSWRecordFactory();
+    private ViewKnownLayerFactory viewKnownLayerFactory = new ViewKnownLayerFactory();
+    private JSONFragmentCache cache;
+    private JsonConfig cfg;
+
+    @Before
+    public void setup() {
+        cache = new JSONFragmentCache(viewCSWRecordFactory, viewKnownLayerFactory);
+        cfg = new JsonConfig();
+        cfg.setCycleDetectionStrategy(CycleDetectionStrategy.LENIENT);
+    }
+
+    /**
+     * Each call returns a new (but equivalent) set of record instances
+     */
+    private List<CSWRecord> loadRecords() throws Exception {
+        CSWServiceItem origin = new CSWServiceItem("id", "http://test.com", "http://test.com?uuid=%1$s", "title");
+        return new CSWGetRecordResponse(origin, DOMUtil.buildDomFromStream(ResourceUtil.loadResourceAsStream("org/auscope/portal/core/test/responses/csw/cswRecordResponse.xml"))).getRecords();
+    }
+
+    private CSWCacheChangeEvent changeEvent(List<CSWRecord> oldRecords, List<CSWRecord> newRecords) {
+        return CSWCacheChangeEvent.fromSnapshots(oldRecords, new HashMap<String, java.util.Set<CSWRecord>>(),
+                newRecords, new HashMap<String, java.util.Set<CSWRecord>>());
+    }
+
+    /**
+     * Tests that an assembled known layer response is identical to serializing the equivalent model
+     * @throws Exception
+     */
+    @Test
+    public void testKnownLayerResponse() throws Exception {
+        List<CSWRecord> records = loadRecords();
+
+        KnownLayer kl1 = new KnownLayer("kl1", new CSWRecordSelector());
+        kl1.setName("Layer \"1\"");
+        KnownLayer kl2 = new KnownLayer("kl2", new CSWRecordSelector());
+        kl2.setHidden(true);
+        KnownLayer kl3 = new KnownLayer("kl3", new CSWRecordSelector());
+        kl3.setGroup("group");
+
+        List<KnownLayerAndRecords> knownLayers = Arrays.asList(
+                new KnownLayerAndRecords(kl1, records, records.subList(0, 1)),
+                new KnownLayerAndRecords(kl2, records, new ArrayList<CSWRecord>()),
+                new KnownLayerAndRecords(kl3, new ArrayList<CSWRecord>(), records));
+
+        List<ModelMap> viewKnownLayers = new ArrayList<ModelMap>();
+        for (KnownLayerAndRecords klar : Arrays.asList(knownLayers.get(0), knownLayers.get(2))) {
+            ModelMap viewKnownLayer = viewKnownLayerFactory.toView(klar.getKnownLayer());
+            List<ModelMap> belonging = new ArrayList<ModelMap>();
+            for (CSWRecord rec : klar.getBelongingRecords()) {
+                belonging.add(viewCSWRecordFactory.toView(rec));
+            }
+            List<ModelMap> related = new ArrayList<ModelMap>();
+            for (CSWRecord rec : klar.getRelatedRecords()) {
+                related.add(viewCSWRecordFactory.toView(rec));
+            }
+            viewKnownLayer.put("cswRecords", belonging);
+            viewKnownLayer.put("relatedRecords", related);
+            viewKnownLayers.add(viewKnownLayer);
+        }
+        ModelMap model = new ModelMap();
+        model.put("data", viewKnownLayers);
+        model.put("success", true);
+        model.put("msg", "");
+
+        SerializedJSONView view = cache.generateResponseView(true, cache.getKnownLayersJSON(knownLayers), null, "");
+        Assert.assertEquals(JSONSerializer.toJSON(model, cfg).toString(), view.getJson());
+
+        //The same response should reuse the same view
+        Assert.assertSame(view, cache.generateResponseView(true, cache.getKnownLayersJSON(knownLayers), null, ""));
+    }
+
+    /**
+     * Tests that an assembled record response (with matched results) is identical to serializing the equivalent model
+     * @throws Exception
+     */
+    @Test
+    public void testRecordResponse() throws Exception {
+        List<CSWRecord> records = loadRecords();
+        List<ModelMap> viewRecords = new ArrayList<ModelMap>();
+        for (CSWRecord rec : records) {
+            viewRecords.add(viewCSWRecordFactory.toView(rec));
+        }
+        ModelMap model = new ModelMap();
+        model.put("data", viewRecords);
+        model.put("success", true);
+        model.put("totalResults", 123);
+        model.put("msg", "No errors");
+
+        SerializedJSONView view = cache.generateResponseView(true, cache.getRecordsJSON(records), 123, "No errors");
+        Assert.assertEquals(JSONSerializer.toJSON(model, cfg).toString(), view.getJson());
+
+        model.put("data", new ArrayList<ModelMap>());
+        view = cache.generateResponseView(true, cache.getRecordsJSON(new ArrayList<CSWRecord>()), 123, "No errors");
+        Assert.assertEquals(JSONSerializer.toJSON(model, cfg).toString(), view.getJson());
+    }
+
+    /**
+     * Tests fragments are only reused for the record instance that generated them (until carried over
+     * by a change event)
+     * @throws Exception
+     */
+    @Test
+    public void testFragmentInvalidation() throws Exception {
+        List<CSWRecord> firstSnapshot = loadRecords();
+        List<CSWRecord> secondSnapshot = loadRecords();
+
+        cache.handleCacheChange(changeEvent(new ArrayList<CSWRecord>(), firstSnapshot));
+        String unmodifiedJson = cache.getRecordJSON(firstSnapshot.get(0));
+        String modifiedJson = cache.getRecordJSON(firstSnapshot.get(1));
+        Assert.assertSame(unmodifiedJson, cache.getRecordJSON(firstSnapshot.get(0)));
+
+        //Modify the second record in the second snapshot
+        secondSnapshot.get(1).setServiceName("modified name");
+        cache.handleCacheChange(changeEvent(firstSnapshot, secondSnapshot));
+
+        Assert.assertSame(unmodifiedJson, cache.getRecordJSON(secondSnapshot.get(0)));
+        String newModifiedJson = cache.getRecordJSON(secondSnapshot.get(1));
+        Assert.assertNotSame(modifiedJson, newModifiedJson);
+        Assert.assertTrue(newModifiedJson.contains("modified name"));
+
+        //Removed records should be discarded
+        cache.handleCacheChange(changeEvent(secondSnapshot, Collections.<CSWRecord>emptyList()));
+        Assert.assertNotSame(unmodifiedJson, cache.getRecordJSON(secondSnapshot.get(0)));
+        Assert.assertEquals(unmodifiedJson, cache.getRecordJSON(secondSnapshot.get(0)));
+    }
+
+    /**
+     * Tests that projected record fragments match serializing the equivalent projected views
+     * @throws Exception
+     */
+    @Test
+    public void testProjectedRecords() throws Exception {
+        List<CSWRecord> records = loadRecords();
+
+        List<ModelMap> summaryViews = new ArrayList<ModelMap>();
+        List<ModelMap> fullViews = new ArrayList<ModelMap>();
+        for (CSWRecord record : records) {
+            summaryViews.add(viewCSWRecordFactory.toView(record, ViewCSWRecordFactory.SUMMARY_FIELDS));
+            fullViews.add(viewCSWRecordFactory.toView(record));
+        }
+
+        Assert.assertEquals(JSONSerializer.toJSON(summaryViews, cfg).toString(), cache.getRecordsJSON(records, ViewCSWRecordFactory.SUMMARY_FIELDS));
+        Assert.assertEquals(JSONSerializer.toJSON(fullViews, cfg).toString(), cache.getRecordsJSON(records));
+        Assert.assertEquals(JSONSerializer.toJSON(summaryViews, cfg).toString(), cache.getRecordsJSON(records, ViewCSWRecordFactory.SUMMARY_FIELDS));
+    }
+
+    /**
+     * Tests that records outside of the current snapshot aren't cached
+     * @throws Exception
+     */
+    @Test
+    public void testAdHocRecordsNotCached() throws Exception {
+        List<CSWRecord> snapshot = loadRecords();
+        List<CSWRecord> adHoc = loadRecords();
+        cache.handleCacheChange(changeEvent(new ArrayList<CSWRecord>(), snapshot));
+
+        String json = cache.getRecordJSON(adHoc.get(0));
+        Assert.assertNotSame(json, cache.getRecordJSON(adHoc.get(0)));
+        Assert.assertEquals(json, cache.getRecordJSON(adHoc.get(0)));
+        Assert.assertEquals(0, cache.getRecordFragmentCount());
+
+        cache.getRecordJSON(snapshot.get(0));
+        Assert.assertEquals(1, cache.getRecordFragmentCount());
+    }
+
+    /**
+     * Tests that the number of cached records never exceeds the limit
+     * @throws Exception
+     */
+    @Test
+    public void testFragmentLimit() throws Exception {
+        List<CSWRecord> records = loadRecords();
+        Assert.assertTrue(records.size() > 2);
+
+        cache.setMaxRecordFragments(2);
+        cache.getRecordsJSON(records);
+        Assert.assertEquals(2, cache.getRecordFragmentCount());
+    }
+}
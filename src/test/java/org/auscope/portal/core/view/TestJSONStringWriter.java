@@ -0,0 +1,45 @@
+package org.auscope.portal.core.view;
+
+import java.io.StringWriter;
+
+import net.sf.json.util.JSONUtils;
+
+import org.auscope.portal.core.test.PortalTestClass;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for JSONStringWriter
+ */
+public class TestJSONStringWriter extends PortalTestClass {
+
+    private String escape(String... chunks) throws Exception {
+        StringWriter output = new StringWriter();
+        JSONStringWriter writer = new JSONStringWriter(output);
+        for (String chunk : chunks) {
+            writer.write(chunk);
+        }
+        writer.close();
+        return "\"" + output.toString() + "\"";
+    }
+
+    /**
+     * Tests escaping matches json-lib
+     * @throws Exception
+     */
+    @Test
+    public void testEscaping() throws Exception {
+        String content = "plain <kml>\"quoted\" back\\slash</kml>\r\n\t\b\f\u0001\u001f unicode \u00e9";
+        Assert.assertEquals(JSONUtils.quote(content), escape(content));
+    }
+
+    /**
+     * Tests escaping is consistent when content is split over multiple writes
+     * @throws Exception
+     */
+    @Test
+    public void testChunkedEscaping() throws Exception {
+        Assert.assertEquals(JSONUtils.quote("a</b>"), escape("a<", "/b>"));
+        Assert.assertEquals(JSONUtils.quote("\"\""), escape("\"", "", "\""));
+    }
+}
@@ -0,0 +1,100 @@
+package org.auscope.portal.core.view;
+
+import java.io.ByteArrayInputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.io.IOUtils;
+import org.auscope.portal.core.test.PortalTestClass;
+import org.auscope.portal.core.test.jmock.ReadableServletOutputStream;
+import org.jmock.Expectations;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.ui.ModelMap;
+
+/**
+ * Unit tests for SerializedJSONView
+ */
+public class TestSerializedJSONView extends PortalTestClass {
+
+    private static final String JSON = "{\"data\":[1,2,3],\"success\":true}";
+
+    private HttpServletRequest mockRequest = context.mock(HttpServletRequest.class);
+    private HttpServletResponse mockResponse = context.mock(HttpServletResponse.class);
+
+    private void allowHeaders(final String ifNoneMatch, final String acceptEncoding) {
+        context.checking(new Expectations() {{
+            allowing(mockRequest).getAttribute(with(any(String.class)));will(returnValue(null));
+            allowing(mockRequest).getHeader("If-None-Match");will(returnValue(ifNoneMatch));
+            allowing(mockRequest).getHeader("Accept-Encoding");will(returnValue(acceptEncoding));
+            allowing(mockResponse).setContentType("application/json");
+            allowing(mockResponse).setHeader("Vary", "Accept-Encoding");
+        }});
+    }
+
+    /**
+     * Tests the content is written with an ETag
+     * @throws Exception
+     */
+    @Test
+    public void testRender() throws Exception {
+        final SerializedJSONView view = new SerializedJSONView(JSON, false);
+        final StringWriter output = new StringWriter();
+        allowHeaders(null, "gzip");
+
+        context.checking(new Expectations() {{
+            oneOf(mockResponse).setHeader("ETag", view.getETag());
+            oneOf(mockResponse).getWriter();will(returnValue(new PrintWriter(output)));
+        }});
+
+        view.render(new ModelMap(), mockRequest, mockResponse);
+        Assert.assertEquals(JSON, output.toString());
+        Assert.assertTrue(view.getETag().startsWith("\"") && view.getETag().endsWith("\""));
+        Assert.assertFalse(view.getETag().equals(new SerializedJSONView(JSON + " ", false).getETag()));
+    }
+
+    /**
+     * Tests a matching If-None-Match results in a 304
+     * @throws Exception
+     */
+    @Test
+    public void testNotModified() throws Exception {
+        final SerializedJSONView view = new SerializedJSONView(JSON, false);
+        allowHeaders("\"other\", W/" + view.getETag(), null);
+
+        context.checking(new Expectations() {{
+            oneOf(mockResponse).setHeader("ETag", view.getETag());
+            oneOf(mockResponse).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        }});
+
+        view.render(new ModelMap(), mockRequest, mockResponse);
+    }
+
+    /**
+     * Tests clients accepting gzip receive the compressed variant
+     * @throws Exception
+     */
+    @Test
+    public void testGzip() throws Exception {
+        final SerializedJSONView view = new SerializedJSONView(JSON, true);
+        final ReadableServletOutputStream outputStream = new ReadableServletOutputStream();
+        allowHeaders(null, "deflate, gzip;q=0.8");
+
+        context.checking(new Expectations() {{
+            oneOf(mockResponse).setHeader(with("ETag"), with(any(String.class)));
+            allowing(mockResponse).getCharacterEncoding();will(returnValue("UTF-8"));
+            oneOf(mockResponse).setHeader("Content-Encoding", "gzip");
+            oneOf(mockResponse).setContentLength(with(any(Integer.class)));
+            oneOf(mockResponse).getOutputStream();will(returnValue(outputStream));
+        }});
+
+        view.render(new ModelMap(), mockRequest, mockResponse);
+
+        GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(outputStream.getDataWritten()));
+        Assert.assertEquals(JSON, IOUtils.toString(gzip, "UTF-8"));
+    }
+}
@@ -0,0 +1,190 @@
+package org.auscope.portal.core.view;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONException;
+import net.sf.json.JSONNull;
+import net.sf.json.JSONSerializer;
+import net.sf.json.JsonConfig;
+import net.sf.json.util.CycleDetectionStrategy;
+
+import org.auscope.portal.core.test.PortalTestClass;
+import org.jmock.Expectations;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.ui.ModelMap;
+
+/**
+ * Unit tests for StreamingJSONSerializer
+ */
+public class TestStreamingJSONSerializer extends PortalTestClass {
+
+    private JsonConfig cfg;
+
+    /**
+     * Simple bean for testing delegation to json-lib
+     */
+    public static class TestBean {
+        public String getName() {
+            return "bean";
+        }
+
+        public int getValue() {
+            return 3;
+        }
+    }
+
+    private enum TestEnum {
+        ValueA
+    }
+
+    @Before
+    public void setup() {
+        cfg = new JsonConfig();
+        cfg.setCycleDetectionStrategy(CycleDetectionStrategy.LENIENT);
+    }
+
+    /**
+     * Asserts that obj is serialized identically by json-lib and StreamingJSONSerializer
+     */
+    private void assertIdenticalOutput(Object obj) throws Exception {
+        String expected = JSONSerializer.toJSON(obj, cfg).toString();
+
+        StringWriter actual = new StringWriter();
+        new StreamingJSONSerializer(cfg).write(obj, actual);
+
+        Assert.assertEquals(expected, actual.toString());
+    }
+
+    /**
+     * Tests simple values and nested containers
+     * @throws Exception
+     */
+    @Test
+    public void testSimpleValues() throws Exception {
+        Map<String, Object> nested = new LinkedHashMap<String, Object>();
+        nested.put("list", Arrays.asList(1, 2.5, "three", null, true));
+        nested.put("intArray", new int[] {1, 2});
+        nested.put("doubleArray", new double[] {1.0, 1e20, 1e-7, 0.1});
+        nested.put("emptyMap", new HashMap<String, Object>());
+
+        ModelMap model = new ModelMap();
+        model.put("string", "a\"b\\c/</d\n\t\u0001é ");
+        model.put("nullValue", null);
+        model.put("integer", 5);
+        model.put("long", 12345678901L);
+        model.put("short", (short) 7);
+        model.put("double", 1.0);
+        model.put("bigDecimal", new BigDecimal("1.50"));
+        model.put("bigInteger", new BigInteger("123456789012345678901234"));
+        model.put("boolean", false);
+        model.put("", "empty key");
+        model.put("nested", nested);
+        model.put("listOfMaps", Arrays.asList(nested, new ModelMap("key", "value")));
+
+        assertIdenticalOutput(model);
+        assertIdenticalOutput(Arrays.asList(model, "str", 1));
+        assertIdenticalOutput(new Object[] {model, "str", 1});
+    }
+
+    /**
+     * json-lib will parse strings that look like JSON (in various inconsistent ways)
+     * @throws Exception
+     */
+    @Test
+    public void testJSONLikeStrings() throws Exception {
+        List<String> strings = Arrays.asList("null", "{\"a\":1}", "[1,2]", "{abc", "[abc]", "{}", "[]",
+                "function(a){return a;}", " [1] ", "nulls", "functional", "1.0", "true");
+
+        ModelMap model = new ModelMap();
+        for (int i = 0; i < strings.size(); i++) {
+            model.put("key" + i, strings.get(i));
+        }
+        model.put("list", strings);
+        model.put("array", strings.toArray(new String[strings.size()]));
+
+        assertIdenticalOutput(model);
+    }
+
+    /**
+     * Tests types that must be delegated to json-lib
+     * @throws Exception
+     */
+    @Test
+    public void testDelegatedValues() throws Exception {
+        ModelMap model = new ModelMap();
+        model.put("bean", new TestBean());
+        model.put("date", new Date(0));
+        model.put("enum", TestEnum.ValueA);
+        model.put("char", 'c');
+        model.put("float", 0.1f);
+        model.put("class", "excluded by default");
+        model.put("jsonArray", JSONArray.fromObject("[1,\"a\",null]"));
+        model.put("jsonNull", JSONNull.getInstance());
+        model.put("charArray", new char[] {'a', 'b'});
+        model.put("list", Arrays.asList(new TestBean(), TestEnum.ValueA, 'c', 0.1f));
+
+        Map<String, Object> functionKey = new HashMap<String, Object>();
+        functionKey.put("function(){}", 1);
+        model.put("functionKey", functionKey);
+
+        assertIdenticalOutput(model);
+    }
+
+    /**
+     * Non finite numbers are rejected (as per json-lib)
+     * @throws Exception
+     */
+    @Test(expected = JSONException.class)
+    public void testNonFinite() throws Exception {
+        new StreamingJSONSerializer(cfg).write(new ModelMap("nan", Double.NaN), new StringWriter());
+    }
+
+    /**
+     * Tests a large known layer response is serialized identically
+     * @throws Exception
+     */
+    @Test
+    public void testKnownLayerResponse() throws Exception {
+        assertIdenticalOutput(JSONViewBenchmark.buildKnownLayerModel(5));
+    }
+
+    /**
+     * Tests JSONView streams to the response writer
+     * @throws Exception
+     */
+    @Test
+    public void testJSONView() throws Exception {
+        final HttpServletRequest mockRequest = context.mock(HttpServletRequest.class);
+        final HttpServletResponse mockResponse = context.mock(HttpServletResponse.class);
+        final StringWriter output = new StringWriter();
+        final Map<String, Object> model = new ModelMap();
+        model.put("data", new ArrayList<Object>(Arrays.asList("a", 1)));
+        model.put("success", true);
+
+        context.checking(new Expectations() {{
+            allowing(mockRequest).getAttribute(with(any(String.class)));will(returnValue(null));
+            allowing(mockResponse).setContentType("application/json");
+            allowing(mockResponse).getWriter();will(returnValue(new PrintWriter(output)));
+        }});
+
+        new JSONView().render(model, mockRequest, mockResponse);
+
+        Assert.assertEquals(JSONSerializer.toJSON(model, cfg).toString(), output.toString());
+    }
+}
@@ -0,0 +1,108 @@
+package org.auscope.portal.core.view;
+
+import java.io.ByteArrayInputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.util.Properties;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import net.sf.json.JSONObject;
+
+import org.apache.http.client.methods.HttpRequestBase;
+import org.auscope.portal.core.test.PortalTestClass;
+import org.auscope.portal.core.test.ResourceUtil;
+import org.auscope.portal.core.xslt.WfsToKmlTransformer;
+import org.jmock.Expectations;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.ui.ModelMap;
+
+/**
+ * Unit tests for StreamingWFSTransformView
+ */
+public class TestStreamingWFSTransformView extends PortalTestClass {
+
+    private HttpServletRequest mockRequest = context.mock(HttpServletRequest.class);
+    private HttpServletResponse mockResponse = context.mock(HttpServletResponse.class);
+    private HttpRequestBase mockMethod = context.mock(HttpRequestBase.class);
+    private WfsToKmlTransformer transformer = new WfsToKmlTransformer();
+    private Properties params;
+    private String wfs;
+
+    @Before
+    public void setup() throws Exception {
+        wfs = ResourceUtil.loadResourceAsString("org/auscope/portal/core/test/responses/wfs/GetUndefinedFeatureSet.xml");
+        params = new Properties();
+        params.setProperty("serviceURL", "http://example.org/wfs");
+    }
+
+    private JSONObject render(StreamingWFSTransformView view) throws Exception {
+        final StringWriter output = new StringWriter();
+        context.checking(new Expectations() {{
+            allowing(mockRequest).getAttribute(with(any(String.class)));will(returnValue(null));
+            allowing(mockResponse).setContentType("application/json");
+            oneOf(mockResponse).getWriter();will(returnValue(new PrintWriter(output)));
+            oneOf(mockMethod).releaseConnection();
+        }});
+
+        view.render(new ModelMap(), mockRequest, mockResponse);
+        return JSONObject.fromObject(output.toString());
+    }
+
+    private ByteArrayInputStream wfsStream(String content) {
+        return new ByteArrayInputStream(content.getBytes(Charset.defaultCharset()));
+    }
+
+    /**
+     * Tests the streamed response matches the equivalent buffered transformation
+     * @throws Exception
+     */
+    @Test
+    public void testStreamWithGml() throws Exception {
+        ModelMap debugInfo = new ModelMap();
+        debugInfo.put("url", "http://example.org/wfs");
+
+        StreamingWFSTransformView view = new StreamingWFSTransformView(wfsStream(wfs), transformer, params, true, mockMethod, debugInfo, "failed");
+        view.setGmlMemoryThreshold(128); //force spooling to disk
+        JSONObject response = render(view);
+
+        Assert.assertTrue(response.getBoolean("success"));
+        Assert.assertEquals("", response.getString("msg"));
+        Assert.assertEquals(transformer.convert(wfs, params), response.getJSONObject("data").getString("kml"));
+        Assert.assertEquals(wfs, response.getJSONObject("data").getString("gml"));
+        Assert.assertEquals("http://example.org/wfs", response.getJSONObject("debugInfo").getString("url"));
+    }
+
+    /**
+     * Tests the raw GML can be omitted
+     * @throws Exception
+     */
+    @Test
+    public void testStreamWithoutGml() throws Exception {
+        StreamingWFSTransformView view = new StreamingWFSTransformView(wfsStream(wfs), transformer, params, false, mockMethod, null, "failed");
+        JSONObject response = render(view);
+
+        Assert.assertTrue(response.getBoolean("success"));
+        Assert.assertEquals(transformer.convert(wfs, params), response.getJSONObject("data").getString("kml"));
+        Assert.assertFalse(response.getJSONObject("data").has("gml"));
+        Assert.assertFalse(response.has("debugInfo"));
+    }
+
+    /**
+     * Tests a failed transformation is reported as unsuccessful
+     * @throws Exception
+     */
+    @Test
+    public void testTransformFailure() throws Exception {
+        StreamingWFSTransformView view = new StreamingWFSTransformView(wfsStream("<notClosed>"), transformer, params, true, mockMethod, null, "failed");
+        JSONObject response = render(view);
+
+        Assert.assertFalse(response.getBoolean("success"));
+        Assert.assertEquals("failed", response.getString("msg"));
+        Assert.assertEquals("<notClosed>", response.getJSONObject("data").getString("gml"));
+    }
+}
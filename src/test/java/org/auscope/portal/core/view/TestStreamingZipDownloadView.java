@@ -0,0 +1,70 @@
+package org.auscope.portal.core.view;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.auscope.portal.core.server.http.HttpServiceCaller;
+import org.auscope.portal.core.server.http.download.MyHttpResponse;
+import org.auscope.portal.core.server.http.download.ServiceDownloadManager;
+import org.auscope.portal.core.test.PortalTestClass;
+import org.jmock.Expectations;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.ui.ModelMap;
+
+/**
+ * Unit tests for StreamingZipDownloadView
+ */
+public class TestStreamingZipDownloadView extends PortalTestClass {
+
+    private HttpServletRequest mockRequest = context.mock(HttpServletRequest.class);
+    private HttpServletResponse mockResponse = context.mock(HttpServletResponse.class);
+    private HttpServiceCaller mockServiceCaller = context.mock(HttpServiceCaller.class);
+
+    /**
+     * Tests every download is streamed into the response zip
+     * @throws Exception
+     */
+    @Test
+    public void testRender() throws Exception {
+        final String[] serviceUrls = {"http://localhost:8088/AuScope-Portal/doBoreholeFilter.do?&serviceUrl=http://example.org/wfs"};
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final ServletOutputStream servletOutput = new ServletOutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                output.write(b);
+            }
+        };
+
+        context.checking(new Expectations() {{
+            allowing(mockRequest).getAttribute(with(any(String.class)));will(returnValue(null));
+            oneOf(mockResponse).setContentType("application/zip");
+            oneOf(mockResponse).setHeader("Content-Disposition", "inline; filename=download.zip;");
+            oneOf(mockResponse).getOutputStream();will(returnValue(servletOutput));
+
+            oneOf(mockServiceCaller).getMethodResponseAsHttpResponse(with(any(HttpRequestBase.class)));
+            will(returnValue(new MyHttpResponse(new ByteArrayInputStream("<gml/>".getBytes()))));
+        }});
+
+        ServiceDownloadManager sdm = new ServiceDownloadManager(serviceUrls, mockServiceCaller, Executors.newSingleThreadExecutor());
+        new StreamingZipDownloadView(sdm, "download.zip").render(new ModelMap(), mockRequest, mockResponse);
+
+        ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(output.toByteArray()));
+        ZipEntry entry = zis.getNextEntry();
+        Assert.assertNotNull(entry);
+        Assert.assertTrue(entry.getName().startsWith("1_") && entry.getName().endsWith(".xml"));
+        Assert.assertEquals("<gml/>", IOUtils.toString(zis));
+        Assert.assertNull(zis.getNextEntry());
+        zis.close();
+    }
+}
@@ -4,6 +4,8 @@ import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
 
 import org.auscope.portal.core.services.responses.csw.AbstractCSWOnlineResource;
 import org.auscope.portal.core.services.responses.csw.AbstractCSWOnlineResource.OnlineResourceType;
@@ -15,6 +17,7 @@ import org.auscope.portal.core.services.responses.csw.CSWResponsibleParty;
 import org.auscope.portal.core.test.AssertViewUtility;
 import org.auscope.portal.core.test.PortalTestClass;
 import org.jmock.Expectations;
+import org.junit.Assert;
 import org.junit.Test;
 import org.springframework.ui.ModelMap;
 
@@ -367,4 +370,50 @@ public class TestViewCSWRecordFactory extends PortalTestClass {
 
         AssertViewUtility.assertModelMapsEqual(expectation,result);
     }
+
+    /**
+     * Tests that only the requested fields are included in the view (including for child records)
+     */
+    @Test
+    public void testToViewProjection() throws Exception {
+        ViewCSWRecordFactory factory = new ViewCSWRecordFactory();
+
+        CSWRecord record = new CSWRecord("parentId");
+        record.setServiceName("parent");
+        record.setConstraints(new String[] {"c1"});
+        record.setDataIdentificationAbstract("abstract");
+        record.setDate(new Date(529200000000L));
+        CSWRecord child = new CSWRecord("childId");
+        child.setServiceName("child");
+        record.addChildRecord(child);
+
+        ModelMap result = factory.toView(record, new HashSet<String>(Arrays.asList("name", "id", "childRecords")));
+
+        Assert.assertEquals(new HashSet<String>(Arrays.asList("name", "id", "childRecords")), result.keySet());
+        Assert.assertEquals("parent", result.get("name"));
+        Assert.assertEquals("parentId", result.get("id"));
+
+        List<?> childViews = (List<?>) result.get("childRecords");
+        Assert.assertEquals(1, childViews.size());
+        ModelMap childView = (ModelMap) childViews.get(0);
+        Assert.assertEquals(new HashSet<String>(Arrays.asList("name", "id", "childRecords")), childView.keySet());
+        Assert.assertEquals("child", childView.get("name"));
+
+        ModelMap summary = factory.toView(record, ViewCSWRecordFactory.SUMMARY_FIELDS);
+        Assert.assertEquals(ViewCSWRecordFactory.SUMMARY_FIELDS, summary.keySet());
+        Assert.assertFalse(summary.containsKey("constraints"));
+        Assert.assertFalse(summary.containsKey("description"));
+    }
+
+    /**
+     * Tests parsing of the fields request parameter
+     */
+    @Test
+    public void testParseFields() {
+        Assert.assertNull(ViewCSWRecordFactory.parseFields(null));
+        Assert.assertNull(ViewCSWRecordFactory.parseFields(""));
+        Assert.assertNull(ViewCSWRecordFactory.parseFields("all"));
+        Assert.assertSame(ViewCSWRecordFactory.SUMMARY_FIELDS, ViewCSWRecordFactory.parseFields("summary"));
+        Assert.assertEquals(new HashSet<String>(Arrays.asList("name", "date")), ViewCSWRecordFactory.parseFields("name, date,"));
+    }
 }
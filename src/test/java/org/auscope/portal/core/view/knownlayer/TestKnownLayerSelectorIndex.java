@@ -0,0 +1,127 @@
+package org.auscope.portal.core.view.knownlayer;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SortedMap;
+
+import junit.framework.Assert;
+
+import org.auscope.portal.core.services.responses.csw.CSWOnlineResourceImpl;
+import org.auscope.portal.core.services.responses.csw.CSWRecord;
+import org.auscope.portal.core.test.PortalTestClass;
+import org.auscope.portal.core.view.knownlayer.KnownLayerSelector.RelationType;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for KnownLayerSelectorIndex
+ */
+public class TestKnownLayerSelectorIndex extends PortalTestClass {
+
+    private List<CSWRecord> recordList;
+
+    @Before
+    public void setupRecordList() throws Exception {
+        recordList = new ArrayList<CSWRecord>();
+
+        CSWRecord rec = new CSWRecord("name1", "id1", "", "", new CSWOnlineResourceImpl[] {
+                new CSWOnlineResourceImpl(new URL("http://test.url1/wfs"), "OGC:WFS-1.0.0-http-get-feature", "type:name1", "")
+        }, null);
+        recordList.add(rec);
+
+        rec = new CSWRecord("name2", "id2", "", "", new CSWOnlineResourceImpl[] {
+                new CSWOnlineResourceImpl(new URL("http://test.url2/wfs"), "OGC:WFS-1.0.0-http-get-feature", "type:name1", "")
+        }, null);
+        recordList.add(rec);
+
+        rec = new CSWRecord("name3", "id3", "", "", new CSWOnlineResourceImpl[] {
+                new CSWOnlineResourceImpl(new URL("http://test.url3/wms"), "OGC:WMS-1.1.1-http-get-map", "type:name1", "")
+        }, null);
+        rec.setDescriptiveKeywords(new String[] {"WMS", "Keyword"});
+        recordList.add(rec);
+
+        rec = new CSWRecord("name4", "id4", "", "", new CSWOnlineResourceImpl[] {
+                new CSWOnlineResourceImpl(new URL("http://test.url4"), "WWW:LINK-1.0-http--link", "Web Link Name", "")
+        }, null);
+        rec.setDescriptiveKeywords(new String[] {"keyword", "Report", "anotherKeyword"});
+        recordList.add(rec);
+
+        rec = new CSWRecord("name5", "id5", "", "", new CSWOnlineResourceImpl[] {
+                new CSWOnlineResourceImpl(new URL("http://test.url1/wfs"), "OGC:WFS-1.0.0-http-get-feature", "type:name2", ""),
+                new CSWOnlineResourceImpl(new URL("http://test.url3/wms"), "OGC:WMS-1.1.1-http-get-map", "type:name2", "")
+        }, null);
+        recordList.add(rec);
+
+        rec = new CSWRecord("name6", "id6", "", "", new CSWOnlineResourceImpl[] {
+                new CSWOnlineResourceImpl(new URL("http://test.url3/wms"), "OGC:WMS-1.1.1-http-get-map", "type:name2", ""),
+                new CSWOnlineResourceImpl(new URL("http://test.url3/wms"), "OGC:WMS-1.1.1-http-get-map", "type:name1", "")
+        }, null);
+        recordList.add(rec);
+    }
+
+    /**
+     * Asserts that classifying via the index produces identical results to calling isRelatedRecord on each selector
+     */
+    private void assertMatchesSelectors(List<KnownLayerSelector> selectors) {
+        KnownLayerSelectorIndex index = new KnownLayerSelectorIndex(selectors);
+
+        for (CSWRecord record : recordList) {
+            SortedMap<Integer, RelationType> result = index.classify(record);
+            for (int i = 0; i < selectors.size(); i++) {
+                RelationType expected = selectors.get(i).isRelatedRecord(record);
+                RelationType actual = result.containsKey(i) ? result.get(i) : RelationType.NotRelated;
+                Assert.assertEquals(String.format("record %1$s selector %2$d", record.getFileIdentifier(), i), expected, actual);
+            }
+        }
+    }
+
+    /**
+     * Tests indexing of WMS/WFS selectors with and without URL restrictions/relations
+     */
+    @Test
+    public void testResourceSelectors() {
+        WMSSelector wmsRelated = new WMSSelector("type:name1");
+        wmsRelated.setRelatedLayerNames(new String[] {"type:name2"});
+        WFSSelector wfsRelated = new WFSSelector("type:name1");
+        wfsRelated.setRelatedFeatureTypeNames(new String[] {"type:name2", "type:name1"});
+
+        assertMatchesSelectors(Arrays.<KnownLayerSelector>asList(
+                new WMSSelector("type:name1"),
+                wmsRelated,
+                new WMSSelector("type:name2", new String[] {"http://test.url3/wms"}, true),
+                new WMSSelector("type:name2", new String[] {"http://test.url3/wms"}, false),
+                new WFSSelector("type:name1"),
+                wfsRelated,
+                new WFSSelector("type:name1", new String[] {"http://test.url2/wfs"}, false),
+                new WFSSelector("type:name1", new String[] {"http://test.url2/wfs", "http://test.url1/wfs"}, true),
+                new WFSSelector("type:nonexistent")));
+    }
+
+    /**
+     * Tests indexing of CSW record selectors alongside selectors that cannot be indexed
+     */
+    @Test
+    public void testRecordSelectors() {
+        CSWRecordSelector byKeyword = new CSWRecordSelector();
+        byKeyword.setDescriptiveKeyword("Report");
+        CSWRecordSelector byId = new CSWRecordSelector();
+        byId.setRecordId("id2");
+        CSWRecordSelector byBoth = new CSWRecordSelector();
+        byBoth.setRecordId("id1");
+        byBoth.setDescriptiveKeyword("WMS");
+        CSWTitleFilterRecordSelector byTitle = new CSWTitleFilterRecordSelector();
+        byTitle.setTitle("name5");
+
+        //Subclasses can't be indexed as they may change the matching logic
+        WFSSelector subclassed = new WFSSelector("type:name1") {
+            @Override
+            public RelationType isRelatedRecord(CSWRecord record) {
+                return "id3".equals(record.getFileIdentifier()) ? RelationType.Related : RelationType.NotRelated;
+            }
+        };
+
+        assertMatchesSelectors(Arrays.<KnownLayerSelector>asList(byKeyword, byId, byBoth, new CSWRecordSelector(), byTitle, subclassed, new WFSSelector("type:name1")));
+    }
+}
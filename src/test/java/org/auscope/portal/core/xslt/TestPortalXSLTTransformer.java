@@ -1,10 +1,17 @@
 package org.auscope.portal.core.xslt;
 
 import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.Templates;
 import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathConstants;
 import javax.xml.xpath.XPathFactory;
@@ -69,4 +76,56 @@ public class TestPortalXSLTTransformer extends PortalTestClass {
         counter = (Double) xPath.evaluate("count(Document/Placemark/MultiGeometry/Point/Style/IconStyle/Icon/href)", root, XPathConstants.NUMBER);
         Assert.assertEquals(8.0, counter.doubleValue(),0);
     }
+
+    /**
+     * Tests that the compiled XSLT is shared between instances and is only recompiled after the cache is cleared
+     * @throws Exception
+     */
+    @Test
+    public void testTemplatesCaching() throws Exception {
+        PortalXSLTTransformer.clearTemplatesCache();
+        Templates templates = transformer.getTemplates();
+
+        Assert.assertSame(templates, transformer.getTemplates());
+        Assert.assertSame(templates, new PortalXSLTTransformer("/org/auscope/portal/core/xslt/wfsToKml.xsl").getTemplates());
+
+        //An unmodified resource shouldn't be recompiled
+        transformer.setReloadOnChange(true);
+        Templates reloadedTemplates = transformer.getTemplates();
+        Assert.assertSame(reloadedTemplates, transformer.getTemplates());
+
+        PortalXSLTTransformer.clearTemplatesCache();
+        Assert.assertNotSame(reloadedTemplates, transformer.getTemplates());
+    }
+
+    /**
+     * Tests that a single transformer can be used by multiple threads at once
+     * @throws Exception
+     */
+    @Test
+    public void testConcurrentConvert() throws Exception {
+        final String testXml = ResourceUtil.loadResourceAsString("org/auscope/portal/core/test/responses/wfs/GetUndefinedFeatureSet.xml");
+        final Properties properties = new Properties();
+        properties.setProperty("serviceURL", "fake-service-url");
+        final String expected = transformer.convert(testXml, properties);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<String>> results = new ArrayList<Future<String>>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        return transformer.convert(testXml, properties);
+                    }
+                }));
+            }
+
+            for (Future<String> result : results) {
+                Assert.assertEquals(expected, result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
 }
@@ -0,0 +1,41 @@
+package org.auscope.portal.core.xslt;
+
+import org.auscope.portal.core.test.ResourceUtil;
+
+/**
+ * Compares the time taken for a WFS to KML conversion when the XSLT is compiled for every request (the previous
+ * PortalXSLTTransformer implementation) against using the cached compiled XSLT. This is not a unit test - run it
+ * manually with the test classpath:
+ *
+ * java org.auscope.portal.core.xslt.XSLTBenchmark [iterations]
+ */
+public class XSLTBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+
+        String wfs = ResourceUtil.loadResourceAsString("org/auscope/portal/core/test/responses/wfs/GetUndefinedFeatureSet.xml");
+        WfsToKmlTransformer transformer = new WfsToKmlTransformer();
+
+        //Warm up the JVM
+        for (int i = 0; i < 20; i++) {
+            transformer.convert(wfs, "http://example.org/wfs");
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            PortalXSLTTransformer.clearTemplatesCache();
+            transformer.convert(wfs, "http://example.org/wfs");
+        }
+        long uncached = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            transformer.convert(wfs, "http://example.org/wfs");
+        }
+        long cached = System.nanoTime() - start;
+
+        System.out.println(String.format("Compile per request: %1$.3f ms/request", uncached / 1000000.0 / iterations));
+        System.out.println(String.format("Cached templates:    %1$.3f ms/request", cached / 1000000.0 / iterations));
+    }
+}